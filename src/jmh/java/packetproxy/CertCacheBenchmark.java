@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.http.Https;
+import packetproxy.model.CAs.CA;
+import packetproxy.model.CAs.SelfSignedCA;
+import packetproxy.model.Database;
+
+/**
+ * クライアントから見たTLSハンドシェイク1回の時間を測る。サーバ側は Https.createSSLContext() で CertCacheManager からサーバ証明書を取得する。
+ * cachedHost は発行済みのホスト名、newHost は毎回初めてのホスト名 (証明書の発行を含む)。newHostConcurrent は8スレッドが同時に初めてのホスト名で
+ * ハンドシェイクしたときで、証明書の発行が他のハンドシェイクを待たせていないかを見る。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CertCacheBenchmark {
+
+	private static final int CACHED_HOSTS = 16;
+
+	@Param({"rsa", "ecdsa"})
+	public String keyType;
+
+	private CA ca;
+	private SSLContext clientContext;
+	private final AtomicLong counter = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Path dir = Files.createTempDirectory("packetproxy-cert");
+		Database.getInstance().openAt(dir.resolve("resources.sqlite3").toString());
+		CertCacheManager.getInstance().setDiskCacheEnabled(false);
+		CertCacheManager.getInstance().setECDSAEnabled(keyType.equals("ecdsa"));
+		CertCacheManager.clearCache();
+		ca = new SelfSignedCA();
+
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, new TrustManager[]{new X509TrustManager() {
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		}}, null);
+		for (int i = 0; i < CACHED_HOSTS; i++) {
+
+			handshake(String.format("cached-%d.example.com", i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Database.getInstance().close();
+	}
+
+	@Benchmark
+	public void cachedHost() throws Exception {
+		handshake(String.format("cached-%d.example.com", counter.incrementAndGet() % CACHED_HOSTS));
+	}
+
+	@Benchmark
+	public void newHost() throws Exception {
+		handshake(String.format("new-%d.example.com", counter.incrementAndGet()));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void newHostConcurrent() throws Exception {
+		handshake(String.format("new-%d.example.com", counter.incrementAndGet()));
+	}
+
+	/* ソケットを使わず、2つの SSLEngine の間でハンドシェイクが終わるまでレコードを受け渡す */
+	private void handshake(String host) throws Exception {
+		SSLEngine server = Https.createSSLContext(host, ca).createSSLEngine();
+		server.setUseClientMode(false);
+		SSLEngine client = clientContext.createSSLEngine(host, 443);
+		client.setUseClientMode(true);
+
+		ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+		ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+		ByteBuffer app = ByteBuffer.allocate(Math.max(client.getSession().getApplicationBufferSize(),
+				server.getSession().getApplicationBufferSize()));
+		client.beginHandshake();
+		server.beginHandshake();
+		for (int i = 0; isHandshaking(client) || isHandshaking(server); i++) {
+
+			if (i > 1000) {
+
+				throw new IllegalStateException("handshake did not finish: " + host);
+			}
+			step(client, serverToClient, clientToServer, app);
+			step(server, clientToServer, serverToClient, app);
+		}
+	}
+
+	private static boolean isHandshaking(SSLEngine engine) {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	private static void step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app) throws Exception {
+		switch (engine.getHandshakeStatus()) {
+			case NEED_TASK :
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+
+					task.run();
+				}
+				break;
+			case NEED_WRAP :
+				engine.wrap(ByteBuffer.allocate(0), out);
+				break;
+			case NEED_UNWRAP :
+			case NEED_UNWRAP_AGAIN :
+				in.flip();
+				engine.unwrap(in, app);
+				in.compact();
+				app.clear();
+				break;
+			default :
+				break;
+		}
+	}
+}
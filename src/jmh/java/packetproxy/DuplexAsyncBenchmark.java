@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.common.SocketEndpoint;
+
+/**
+ * ローカルのエコーサーバとの間に connections 本の DuplexAsync を張り、全接続で1KBずつ往復させたときのスループットを測る。
+ * 接続数を増やしたときの中継スレッドの数は Trial の終わりに標準出力に表示する。エコーサーバは RelayExecutor とは別のスレッドで動かし、
+ * 数に含めない。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DuplexAsyncBenchmark {
+
+	private static final int MESSAGE_SIZE = 1024;
+
+	@Param({"100", "1000"})
+	public int connections;
+
+	private ServerSocket echoServer;
+	private ExecutorService echoPool;
+	private ServerSocket proxyServer;
+	private final List<Socket> clients = new ArrayList<>();
+	private final List<DuplexAsync> duplexes = new ArrayList<>();
+	private int baseThreads;
+	private byte[] message;
+	private byte[] received;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		message = new byte[MESSAGE_SIZE];
+		received = new byte[MESSAGE_SIZE];
+
+		echoServer = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+		echoPool = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "echo");
+			thread.setDaemon(true);
+			return thread;
+		});
+		echoPool.execute(() -> {
+			while (!echoServer.isClosed()) {
+
+				try {
+
+					Socket socket = echoServer.accept();
+					echoPool.execute(() -> echo(socket));
+				} catch (Exception e) {
+
+					return;
+				}
+			}
+		});
+
+		proxyServer = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+		InetSocketAddress echoAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+		for (int i = 0; i < connections; i++) {
+
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), proxyServer.getLocalPort());
+			Socket accepted = proxyServer.accept();
+			DuplexAsync duplex = new DuplexAsync(new SocketEndpoint(accepted), new SocketEndpoint(echoAddr));
+			duplex.start();
+			clients.add(client);
+			duplexes.add(duplex);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long relayThreads = Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.getName().matches("PacketProxy-relay-[0-9]+")).count();
+		System.out.printf("%n%d connections: %d relay threads, %d relays running, %d threads (+%d with echo)%n",
+				connections, relayThreads, RelayExecutor.getInstance().getActiveRelays(), threads,
+				threads - baseThreads);
+		for (Socket client : clients) {
+
+			client.close();
+		}
+		for (DuplexAsync duplex : duplexes) {
+
+			duplex.close();
+		}
+		proxyServer.close();
+		echoServer.close();
+		echoPool.shutdownNow();
+	}
+
+	/* 全接続で1往復させる。1オペレーション = connections 往復 */
+	@Benchmark
+	public int roundTripAllConnections() throws Exception {
+		for (Socket client : clients) {
+
+			OutputStream out = client.getOutputStream();
+			out.write(message);
+			out.flush();
+		}
+		int total = 0;
+		for (Socket client : clients) {
+
+			InputStream in = client.getInputStream();
+			int n = 0;
+			while (n < MESSAGE_SIZE) {
+
+				int len = in.read(received, n, MESSAGE_SIZE - n);
+				if (len < 0) {
+
+					throw new IllegalStateException("connection closed");
+				}
+				n += len;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static void echo(Socket socket) {
+		try (socket) {
+
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			byte[] buf = new byte[MESSAGE_SIZE];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+
+				out.write(buf, 0, len);
+				out.flush();
+			}
+		} catch (Exception e) {
+
+			// closed by tearDown
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.ArrayUtils;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 数MBのHTTPレスポンスを16KBずつ受信したときの Simplex の受信処理のコストを測る。 legacyBacklog は以前の
+ * ByteArrayOutputStream.toByteArray() を繰り返す実装、simplex は現在の Simplex.run() を通した場合。
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SimplexBenchmark {
+
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	@Param({"2", "20"})
+	public int bodyMegaBytes;
+
+	private byte[] response;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		byte[] body = new byte[bodyMegaBytes * 1024 * 1024];
+		new Random(0).nextBytes(body);
+		byte[] header = String.format("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: %d\r\n\r\n",
+				body.length).getBytes(StandardCharsets.US_ASCII);
+		response = ArrayUtils.addAll(header, body);
+	}
+
+	@Benchmark
+	public long simplex() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		Simplex simplex = new Simplex(new ChunkedInputStream(response), out);
+		simplex.addSimplexEventListener(new Simplex.SimplexEventAdapter() {
+
+			@Override
+			public int onPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return contentLengthDelimiter(data, offset, length);
+			}
+		});
+		simplex.run();
+		return out.count;
+	}
+
+	@Benchmark
+	public long legacyBacklog() throws Exception {
+		InputStream in = new ChunkedInputStream(response);
+		CountingOutputStream out = new CountingOutputStream();
+		byte[] input_data = new byte[100 * 1024];
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		int length;
+		while ((length = in.read(input_data)) != -1) {
+
+			bout.write(input_data, 0, length);
+			while (bout.size() > 0) {
+
+				byte[] data = bout.toByteArray();
+				int accepted_input_size = contentLengthDelimiter(data, 0, data.length);
+				if (accepted_input_size < 0 || accepted_input_size > bout.size()) {
+
+					break;
+				}
+				byte[] accepted_array = ArrayUtils.subarray(bout.toByteArray(), 0, accepted_input_size);
+				byte[] unaccepted_array = ArrayUtils.subarray(bout.toByteArray(), accepted_input_size, bout.size());
+				bout.reset();
+				bout.write(unaccepted_array);
+				out.write(accepted_array);
+			}
+		}
+		return out.count;
+	}
+
+	private static int contentLengthDelimiter(byte[] data, int offset, int length) {
+		int end = offset + length;
+		int headerEnd = -1;
+		for (int i = offset; i + 3 < end; i++) {
+
+			if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+
+				headerEnd = i + 4;
+				break;
+			}
+		}
+		if (headerEnd < 0) {
+
+			return -1;
+		}
+		String header = new String(data, offset, headerEnd - offset, StandardCharsets.US_ASCII);
+		int idx = header.indexOf("Content-Length: ");
+		int contentLength = 0;
+		if (idx >= 0) {
+
+			contentLength = Integer.parseInt(header.substring(idx + 16, header.indexOf("\r\n", idx)));
+		}
+		int packetSize = headerEnd - offset + contentLength;
+		return packetSize <= length ? packetSize : -1;
+	}
+
+	/* ソケットのように1回の read で最大 CHUNK_SIZE バイトだけ返す */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final byte[] data;
+		private int pos = 0;
+
+		ChunkedInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos >= data.length) {
+
+				return -1;
+			}
+			int n = Math.min(Math.min(len, CHUNK_SIZE), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
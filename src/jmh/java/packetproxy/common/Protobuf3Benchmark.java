@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Protobuf3Benchmark {
+
+	@Param({"1", "3"})
+	private int depth;
+
+	@Param({"16"})
+	private int items;
+
+	private byte[] message;
+
+	private static void writeTag(int field, int type, ByteArrayOutputStream output) {
+		Protobuf3.writeVar((field << 3) | type, output);
+	}
+
+	private static void writeLengthDelimited(int field, byte[] data, ByteArrayOutputStream output) {
+		writeTag(field, 2, output);
+		Protobuf3.writeVar(data.length, output);
+		output.write(data, 0, data.length);
+	}
+
+	/* API のレスポンスによくある、文字列・数値・packed repeated・バイナリと入れ子のメッセージの並び */
+	private byte[] item(Random rng, int level) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writeTag(1, 0, output);
+		Protobuf3.writeVar(rng.nextInt(1000000), output);
+		writeLengthDelimited(2, ("name-" + rng.nextInt(100000)).getBytes(StandardCharsets.UTF_8), output);
+		writeLengthDelimited(3, "説明文 description".getBytes(StandardCharsets.UTF_8), output);
+		writeTag(4, 1, output);
+		for (int i = 0; i < 8; i++) {
+
+			output.write(rng.nextInt(256));
+		}
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		for (int i = 0; i < 12; i++) {
+
+			Protobuf3.writeVar(rng.nextInt(300), packed);
+		}
+		writeLengthDelimited(5, packed.toByteArray(), output);
+		byte[] hash = new byte[20];
+		rng.nextBytes(hash);
+		hash[0] = (byte) 0xff;
+		writeLengthDelimited(6, hash, output);
+		if (level < depth) {
+
+			writeLengthDelimited(7, item(rng, level + 1), output);
+		}
+		return output.toByteArray();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random rng = new Random(0);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (int i = 0; i < items; i++) {
+
+			writeLengthDelimited(1, item(rng, 1), output);
+		}
+		writeTag(2, 0, output);
+		Protobuf3.writeVar(items, output);
+		message = output.toByteArray();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public String decode() throws Exception {
+		return Protobuf3.decode(message);
+	}
+}
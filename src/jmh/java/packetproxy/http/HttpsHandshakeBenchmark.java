@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.CertCacheManager;
+import packetproxy.model.CAs.CA;
+import packetproxy.model.CAs.SelfSignedCA;
+import packetproxy.model.Database;
+
+/**
+ * ローカルのTLSサーバに PacketProxy と同じ方法 (Https.createBothSideSSLSockets()) で中継し、クライアントが接続してから
+ * 最初の1バイトを受け取るまでの時間を測る。Throughput はハンドシェイク数/秒、AverageTime は接続1回の時間。
+ * shared は SSLContext を使い回してセッションを再開する場合、perConnection は接続ごとに作り直していた以前の方法。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class HttpsHandshakeBenchmark {
+
+	private static final String HOST = "localhost";
+
+	@Param({"shared", "perConnection"})
+	public String contexts;
+
+	private CA ca;
+	private ServerSocket origin;
+	private ServerSocket proxy;
+	private ExecutorService workers;
+	private SSLContext clientContext;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Path dir = Files.createTempDirectory("packetproxy-https");
+		Database.getInstance().openAt(dir.resolve("resources.sqlite3").toString());
+		CertCacheManager.getInstance().setDiskCacheEnabled(false);
+		ca = new SelfSignedCA();
+		Https.clearContextCache();
+		workers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		/* 接続先のサーバ: ハンドシェイクが終わったら1バイト送って閉じる */
+		origin = Https.createServerSSLSocket(0, HOST, ca);
+		InetSocketAddress originAddr = new InetSocketAddress(HOST, origin.getLocalPort());
+		accept(origin, socket -> {
+			socket.getOutputStream().write('x');
+			socket.getOutputStream().flush();
+		});
+
+		/* PacketProxy: 両側とハンドシェイクして、サーバからの1バイトをクライアントに返す */
+		proxy = new ServerSocket(0);
+		accept(proxy, socket -> {
+			SSLSocket[] sockets = Https.createBothSideSSLSockets(socket, null, originAddr, null, HOST, ca);
+			try {
+
+				sockets[0].getOutputStream().write(sockets[1].getInputStream().read());
+				sockets[0].getOutputStream().flush();
+			} finally {
+
+				sockets[1].close();
+				sockets[0].close();
+			}
+		});
+		clientContext = createClientContext();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		proxy.close();
+		origin.close();
+		workers.shutdownNow();
+		Database.getInstance().close();
+	}
+
+	private interface Handler {
+
+		void handle(Socket socket) throws Exception;
+	}
+
+	private void accept(ServerSocket server, Handler handler) {
+		workers.execute(() -> {
+			while (!server.isClosed()) {
+
+				try {
+
+					Socket socket = server.accept();
+					workers.execute(() -> {
+						try (socket) {
+
+							handler.handle(socket);
+						} catch (Exception e) {
+
+							// クライアント側で読み込みが失敗するので、ここでは何もしない
+						}
+					});
+				} catch (Exception e) {
+
+					return;
+				}
+			}
+		});
+	}
+
+	private static SSLContext createClientContext() throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[]{new X509TrustManager() {
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		}}, null);
+		return context;
+	}
+
+	@Benchmark
+	public int connect() throws Exception {
+		return connectThroughProxy();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int connectConcurrent() throws Exception {
+		return connectThroughProxy();
+	}
+
+	private int connectThroughProxy() throws Exception {
+		SSLContext context = clientContext;
+		if (contexts.equals("perConnection")) {
+
+			Https.clearContextCache();
+			context = createClientContext();
+		}
+		try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(HOST, proxy.getLocalPort())) {
+
+			SSLParameters params = socket.getSSLParameters();
+			params.setApplicationProtocols(new String[]{"http/1.1"});
+			socket.setSSLParameters(params);
+			socket.startHandshake();
+			InputStream in = socket.getInputStream();
+			int b = in.read();
+			if (b < 0) {
+
+				throw new IllegalStateException("connection closed by proxy");
+			}
+			return b;
+		}
+	}
+}
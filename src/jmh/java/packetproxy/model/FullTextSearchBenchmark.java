@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.model.Packet.Direction;
+
+/**
+ * 10万パケットのDBで、フィルタの full_text / full_text_i が呼ぶ検索の時間を測る。 index が false の場合はtrigramインデックスで候補を絞り込まず、
+ * 全てのpayloadに LIKE / GLOB をかける。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FullTextSearchBenchmark {
+
+	private static final int PACKET_COUNT = 100000;
+
+	@Param({"true", "false"})
+	public boolean index;
+
+	private Packets packets;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Path dir = Files.createTempDirectory("packetproxy-search");
+		Database.getInstance().openAt(dir.resolve("resources.sqlite3").toString());
+		packets = Packets.getInstance(false);
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+
+			body.append(String.format("{\"id\":%d,\"name\":\"item %d\",\"description\":\"lorem ipsum dolor sit amet\"},",
+					i, i));
+		}
+		for (int i = 0; i < PACKET_COUNT / 2; i++) {
+
+			byte[] request = String.format(
+					"GET /items?page=%d HTTP/1.1\r\nHost: example.com\r\nX-Request-Id: req-%08d\r\n\r\n", i, i)
+					.getBytes(StandardCharsets.UTF_8);
+			String json = String.format("{\"page\":%d,\"session\":\"sess-%08x\",\"items\":[%s{}]}", i, i * 7919, body);
+			byte[] response = String.format(
+					"HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: %d\r\n\r\n%s",
+					json.length(), json).getBytes(StandardCharsets.UTF_8);
+			packets.update(createPacket(Direction.CLIENT, request, i));
+			packets.update(createPacket(Direction.SERVER, response, i));
+		}
+		packets.flush();
+		packets.setFullTextIndexEnabled(index);
+		// 初回の検索でのインデックスの確認を計測に含めない
+		packets.queryFullText_i("warmup");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Database.getInstance().close();
+	}
+
+	private static Packet createPacket(Direction direction, byte[] data, long group) {
+		Packet packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				direction, 0, group + 1);
+		packet.setDecodedData(data);
+		packet.setModifiedData(data);
+		packet.setSentData(data);
+		packet.setReceivedData(data);
+		return packet;
+	}
+
+	/* 1パケットにだけ含まれる文字列 (case sensitive) */
+	@Benchmark
+	public int rareToken() throws Exception {
+		return packets.queryFullText("req-00031337").size();
+	}
+
+	/* 1パケットにだけ含まれる文字列 (case insensitive) */
+	@Benchmark
+	public int rareTokenIgnoreCase() throws Exception {
+		return packets.queryFullText_i("SESS-01E46CC7").size();
+	}
+
+	/* 半分のパケットに含まれる文字列 */
+	@Benchmark
+	public int commonToken() throws Exception {
+		return packets.queryFullText_i("lorem ipsum").size();
+	}
+
+	/* どのパケットにも含まれない文字列 */
+	@Benchmark
+	public int missingToken() throws Exception {
+		return packets.queryFullText("no-such-token").size();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.model.Packet.Direction;
+
+/**
+ * 生成した大きなプロジェクトを開いたときに、履歴の一覧を埋めるのにかかる時間を測る。 GUIHistory.updateAllAsync() と同じく100件ずつ読み込む。
+ * full はpayloadも読み込む queryRange()、summary は要約だけを読み込む querySummaryRange()。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class HistoryLoadBenchmark {
+
+	private static final int PAGE_SIZE = 100;
+
+	@Param({"20000", "200000"})
+	public int packetCount;
+
+	private Packets packets;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Path dir = Files.createTempDirectory("packetproxy-history");
+		Database.getInstance().openAt(dir.resolve("resources.sqlite3").toString());
+		packets = Packets.getInstance(false);
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+
+			body.append(String.format("{\"id\":%d,\"name\":\"item %d\"},", i, i));
+		}
+		for (int i = 0; i < packetCount / 2; i++) {
+
+			// payloadの重複除去が効かないように、全てのパケットの内容を変える
+			byte[] request = String.format("GET /items?page=%d HTTP/1.1\r\nHost: example.com\r\n\r\n", i)
+					.getBytes(StandardCharsets.UTF_8);
+			String json = String.format("{\"page\":%d,\"items\":[%s{}]}", i, body);
+			byte[] response = String.format(
+					"HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: %d\r\n\r\n%s",
+					json.length(), json).getBytes(StandardCharsets.UTF_8);
+			packets.update(createPacket(Direction.CLIENT, request, i));
+			packets.update(createPacket(Direction.SERVER, response, i));
+		}
+		packets.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Database.getInstance().close();
+	}
+
+	private static Packet createPacket(Direction direction, byte[] data, long group) {
+		Packet packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				direction, 0, group + 1);
+		packet.setDecodedData(data);
+		packet.setModifiedData(data);
+		packet.setSentData(data);
+		packet.setReceivedData(data);
+		return packet;
+	}
+
+	@Benchmark
+	public int full() throws Exception {
+		int loaded = 0;
+		for (long offset = 0; offset < packetCount; offset += PAGE_SIZE) {
+
+			List<Packet> page = packets.queryRange(offset, PAGE_SIZE);
+			for (Packet packet : page) {
+
+				loaded += packet.getSummarizedRequest().length() + packet.getSummarizedResponse().length();
+			}
+		}
+		return loaded;
+	}
+
+	@Benchmark
+	public int summary() throws Exception {
+		int loaded = 0;
+		for (long offset = 0; offset < packetCount; offset += PAGE_SIZE) {
+
+			List<Packet> page = packets.querySummaryRange(offset, PAGE_SIZE);
+			for (Packet packet : page) {
+
+				loaded += packet.getSummarizedRequest().length() + packet.getSummarizedResponse().length();
+			}
+		}
+		return loaded;
+	}
+}
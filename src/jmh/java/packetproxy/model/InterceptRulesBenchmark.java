@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.model.InterceptOption.Direction;
+import packetproxy.model.InterceptOption.Method;
+import packetproxy.model.InterceptOption.Relationship;
+import packetproxy.model.InterceptOption.Type;
+
+/**
+ * 30個のインターセプトのルールで、256KBのリクエストとレスポンスの組を判定する時間を測る。 どのルールにもマッチしないので全てのルールが評価される。
+ * perRule はルールごとに InterceptOption.match() を呼び、レスポンスの判定でリクエストのルールを評価し直す以前の方法、compiled は
+ * InterceptOptions が使う CompiledInterceptRules。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class InterceptRulesBenchmark {
+
+	private static final int BODY_SIZE = 256 * 1024;
+
+	private List<InterceptOption> rules;
+	private CompiledInterceptRules compiled;
+	private Packet clientPacket;
+	private Packet serverPacket;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		rules = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+
+			rules.add(rule(Direction.REQUEST, Relationship.IS_INTERCEPTED_IF_IT_MATCHES, "/admin/" + i, Method.SIMPLE));
+		}
+		for (int i = 0; i < 4; i++) {
+
+			rules.add(rule(Direction.REQUEST, Relationship.IS_NOT_INTERCEPTED_IF_IT_MATCHES,
+					"^GET /static/" + i + "/.*\\.(png|css|js) ", Method.REGEX));
+		}
+		rules.add(rule(Direction.ALL_THE_OTHER_REQUESTS, Relationship.ARE_NOT_INTERCEPTED, "", Method.UNDEFINED));
+		for (int i = 0; i < 8; i++) {
+
+			rules.add(rule(Direction.RESPONSE, Relationship.IS_INTERCEPTED_IF_IT_MATCHES, "\"role\":\"admin" + i,
+					Method.SIMPLE));
+		}
+		for (int i = 0; i < 4; i++) {
+
+			rules.add(rule(Direction.RESPONSE, Relationship.IS_INTERCEPTED_IF_IT_MATCHES,
+					"\"token_" + i + "\":\"[A-Z]{32}\"", Method.REGEX));
+		}
+		rules.add(rule(Direction.RESPONSE, Relationship.IS_NOT_INTERCEPTED_IF_IT_MATCHES, "deadbeef", Method.BINARY));
+		rules.add(
+				rule(Direction.RESPONSE, Relationship.IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED, "", Method.UNDEFINED));
+		rules.add(rule(Direction.ALL_THE_OTHER_RESPONSES, Relationship.ARE_NOT_INTERCEPTED, "", Method.UNDEFINED));
+		compiled = new CompiledInterceptRules(rules);
+
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; json.length() < BODY_SIZE; i++) {
+
+			json.append(String.format("{\"id\":%d,\"role\":\"user\",\"name\":\"user %d\"},", i, i));
+		}
+		clientPacket = packet(Packet.Direction.CLIENT,
+				"POST /api/users HTTP/1.1\r\nHost: example.com\r\nContent-Type: application/json\r\n\r\n" + json);
+		serverPacket = packet(Packet.Direction.SERVER,
+				"HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n" + json);
+	}
+
+	private static InterceptOption rule(Direction direction, Relationship relationship, String pattern,
+			Method method) {
+		return new InterceptOption(direction, Type.REQUEST, relationship, pattern, method, null);
+	}
+
+	private static Packet packet(Packet.Direction direction, String body) {
+		Packet packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				direction, 0, 0);
+		packet.setDecodedData(body.getBytes(StandardCharsets.UTF_8));
+		return packet;
+	}
+
+	@Benchmark
+	public boolean perRule() throws Exception {
+		return perRuleOnRequest(clientPacket) | perRuleOnResponse(clientPacket, serverPacket);
+	}
+
+	@Benchmark
+	public boolean compiled() throws Exception {
+		// 新しいパケットと同じく、リクエストの判定結果が記録されていない状態から測る
+		clientPacket.setInterceptedOnRequest(null, false);
+		return compiled.interceptOnRequest(clientPacket)
+				| compiled.interceptOnResponse(clientPacket, serverPacket);
+	}
+
+	private boolean perRuleOnRequest(Packet client_packet) throws Exception {
+		for (InterceptOption intercept : rules) {
+
+			if (intercept.isDirection(Direction.REQUEST)) {
+
+				if (intercept.match(client_packet, null)) {
+
+					return intercept.getRelationship() == Relationship.IS_INTERCEPTED_IF_IT_MATCHES;
+				}
+			} else if (intercept.isDirection(Direction.ALL_THE_OTHER_REQUESTS)) {
+
+				return intercept.getRelationship() != Relationship.ARE_NOT_INTERCEPTED;
+			}
+		}
+		return true;
+	}
+
+	private boolean perRuleOnResponse(Packet client_packet, Packet server_packet) throws Exception {
+		for (InterceptOption intercept : rules) {
+
+			if (intercept.isDirection(Direction.RESPONSE)) {
+
+				if (intercept.getRelationship() == Relationship.IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED) {
+
+					if (perRuleOnRequest(client_packet)) {
+
+						return true;
+					}
+				} else if (intercept.match(client_packet, server_packet)) {
+
+					return intercept.getRelationship() == Relationship.IS_INTERCEPTED_IF_IT_MATCHES;
+				}
+			} else if (intercept.isDirection(Direction.ALL_THE_OTHER_RESPONSES)) {
+
+				return intercept.getRelationship() != Relationship.ARE_NOT_INTERCEPTED;
+			}
+		}
+		return true;
+	}
+}
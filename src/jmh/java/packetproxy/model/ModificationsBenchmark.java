@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.model.Modification.Direction;
+import packetproxy.model.Modification.Method;
+
+/**
+ * 50個の置換ルールを1MBのレスポンスに適用する時間を測る。 sequential はルールを1つずつ適用する方法、compiled は Modifications
+ * が使う CompiledModifications。ルールは SIMPLE 40個、BINARY 8個、REGEX 2個。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ModificationsBenchmark {
+
+	private static final int BODY_SIZE = 1024 * 1024;
+
+	/* 置換されるパケットの割合を変えるため、ルールにマッチする文字列を含むかどうか */
+	@Param({"true", "false"})
+	public boolean matching;
+
+	private List<Modification> modifications;
+	private CompiledModifications compiled;
+	private byte[] body;
+	private Packet packet;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		modifications = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+
+			modifications.add(new Modification(Direction.ALL, String.format("\"feature_%02d\":false", i),
+					String.format("\"feature_%02d\":true", i), Method.SIMPLE, null));
+		}
+		for (int i = 0; i < 8; i++) {
+
+			modifications.add(new Modification(Direction.ALL, String.format("de ad be %02x", i),
+					String.format("ca fe ba %02x", i), Method.BINARY, null));
+		}
+		modifications.add(new Modification(Direction.ALL, "\"expires\":\\d+", "\"expires\":9999999999", Method.REGEX, null));
+		modifications.add(new Modification(Direction.ALL, "Set-Cookie: [^\\r\\n]*\\r\\n", "", Method.REGEX, null));
+		compiled = new CompiledModifications(modifications);
+
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; json.length() < BODY_SIZE; i++) {
+
+			if (matching) {
+
+				json.append(String.format("{\"id\":%d,\"feature_%02d\":false,\"expires\":%d},", i, i % 40, 1600000000 + i));
+			} else {
+
+				json.append(String.format("{\"id\":%d,\"feature_xx\":false,\"updated\":%d},", i, 1600000000 + i));
+			}
+		}
+		body = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nSet-Cookie: session=abc\r\n\r\n" + json)
+				.getBytes(StandardCharsets.UTF_8);
+		packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				Packet.Direction.SERVER, 0, 0);
+	}
+
+	@Benchmark
+	public byte[] sequential() throws Exception {
+		byte[] data = body;
+		for (Modification mod : modifications) {
+
+			data = mod.replace(data, packet);
+		}
+		return data;
+	}
+
+	@Benchmark
+	public byte[] compiled() throws Exception {
+		return compiled.replace(body, packet);
+	}
+}
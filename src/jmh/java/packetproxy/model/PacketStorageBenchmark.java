@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.model.Packet.Direction;
+
+/**
+ * キャプチャ1回分のパケットを履歴に保存したときの書き込み速度とDBのサイズを測る。 legacy はpayloadを packets テーブルに直接保存していた以前の形式、
+ * payloads / payloads_zstd は payloads テーブルに重複を除いて保存する現在の形式。
+ *
+ * <p>
+ * キャプチャは -Dpacketproxy.capture=<以前の形式の resources.sqlite3> で指定できる。指定しない場合は、同じレスポンスが繰り返される
+ * ポーリングを含む合成したキャプチャを使う。DBのサイズと書き込み速度は Trial の終わりに標準出力に表示する。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class PacketStorageBenchmark {
+
+	private static final String LEGACY_TABLE = "CREATE TABLE `packets` (`id` INTEGER PRIMARY KEY AUTOINCREMENT , `direction` VARCHAR , `decoded_data` BLOB , `modified_data` BLOB , `sent_data` BLOB , `received_data` BLOB , `listen_port` INTEGER , `client_ip` VARCHAR , `client_port` INTEGER , `server_ip` VARCHAR , `server_name` VARCHAR , `server_port` INTEGER , `use_ssl` BOOLEAN , `content_type` VARCHAR , `encoder_name` VARCHAR , `alpn` VARCHAR , `modified` BOOLEAN , `resend` BOOLEAN , `date` BIGINT , `conn` INTEGER , `group` BIGINT , `color` VARCHAR )";
+	private static final int LEGACY_BATCH_SIZE = 1000;
+
+	@Param({"legacy", "payloads", "payloads_zstd"})
+	public String layout;
+
+	private List<CapturedPacket> capture;
+	private Path dir;
+	private Path dbPath;
+	private Packets packets;
+	private Connection legacy;
+
+	private long dbSize;
+	private long insertedPackets;
+	private long insertNanos;
+
+	private static class CapturedPacket {
+
+		Direction direction;
+		byte[] decoded;
+		byte[] modified;
+		byte[] sent;
+		byte[] received;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		capture = System.getProperty("packetproxy.capture") != null
+				? loadCapture(System.getProperty("packetproxy.capture"))
+				: createPollingCapture();
+		dir = Files.createTempDirectory("packetproxy-storage");
+		dbPath = dir.resolve("resources.sqlite3");
+		if (layout.equals("legacy")) {
+
+			legacy = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+			try (Statement statement = legacy.createStatement()) {
+
+				statement.execute(LEGACY_TABLE);
+			}
+		} else {
+
+			Database.getInstance().openAt(dbPath.toString());
+			packets = Packets.getInstance(false);
+			packets.setPayloadCompression(layout.equals("payloads_zstd"));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void clear() throws Exception {
+		if (legacy != null) {
+
+			try (Statement statement = legacy.createStatement()) {
+
+				statement.execute("DELETE FROM `packets`");
+			}
+		} else {
+
+			packets.deleteAll();
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void measureSize() throws Exception {
+		dbSize = databaseSize();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		System.out.printf("%n%s: %d packets, %.2f MB, %.0f packets/sec%n", layout, capture.size(),
+				dbSize / 1024.0 / 1024.0, insertedPackets * 1e9 / insertNanos);
+		if (legacy != null) {
+
+			legacy.close();
+		} else {
+
+			Database.getInstance().close();
+		}
+	}
+
+	/* キャプチャ1回分を保存し終わるまで。1オペレーション = capture.size() パケット */
+	@Benchmark
+	public int insertCapture() throws Exception {
+		long start = System.nanoTime();
+		if (legacy != null) {
+
+			insertLegacy();
+		} else {
+
+			for (CapturedPacket captured : capture) {
+
+				Packet packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+						captured.direction, 0, 0);
+				packet.setDecodedData(captured.decoded);
+				packet.setModifiedData(captured.modified);
+				packet.setSentData(captured.sent);
+				packet.setReceivedData(captured.received);
+				packets.update(packet);
+			}
+			packets.flush();
+		}
+		insertNanos += System.nanoTime() - start;
+		insertedPackets += capture.size();
+		return capture.size();
+	}
+
+	/* 以前の形式への書き込み。PacketWriter と同じく一定数ごとに1トランザクションでまとめて書き込む */
+	private void insertLegacy() throws Exception {
+		legacy.setAutoCommit(false);
+		try (PreparedStatement insert = legacy.prepareStatement(
+				"INSERT INTO `packets` (`direction`,`decoded_data`,`modified_data`,`sent_data`,`received_data`,`listen_port`,`client_ip`,`client_port`,`server_ip`,`server_name`,`server_port`,`use_ssl`,`encoder_name`,`date`) VALUES (?,?,?,?,?,0,'127.0.0.1',50000,'127.0.0.1','example.com',443,1,'HTTP',?)")) {
+
+			int count = 0;
+			for (CapturedPacket captured : capture) {
+
+				insert.setString(1, captured.direction.name());
+				insert.setBytes(2, captured.decoded);
+				insert.setBytes(3, captured.modified);
+				insert.setBytes(4, captured.sent);
+				insert.setBytes(5, captured.received);
+				insert.setLong(6, System.currentTimeMillis());
+				insert.executeUpdate();
+				if (++count % LEGACY_BATCH_SIZE == 0) {
+
+					legacy.commit();
+				}
+			}
+			legacy.commit();
+		} finally {
+
+			legacy.setAutoCommit(true);
+		}
+	}
+
+	/* WALの内容を書き戻した上で、使用中のページの合計をDBのサイズとする */
+	private long databaseSize() throws Exception {
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+				Statement statement = conn.createStatement()) {
+
+			statement.execute("PRAGMA wal_checkpoint");
+			return (pragma(statement, "page_count") - pragma(statement, "freelist_count"))
+					* pragma(statement, "page_size");
+		}
+	}
+
+	private static long pragma(Statement statement, String name) throws Exception {
+		try (ResultSet result = statement.executeQuery("PRAGMA " + name)) {
+
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+
+	/* 以前の形式(payloadをBLOBカラムに保存していた)で保存されたDBからパケットを読み込む */
+	private static List<CapturedPacket> loadCapture(String path) throws Exception {
+		List<CapturedPacket> captured = new ArrayList<>();
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+				Statement statement = conn.createStatement();
+				ResultSet result = statement.executeQuery(
+						"SELECT `direction`,`decoded_data`,`modified_data`,`sent_data`,`received_data` FROM `packets` ORDER BY `id`")) {
+
+			while (result.next()) {
+
+				CapturedPacket packet = new CapturedPacket();
+				packet.direction = Direction.valueOf(result.getString(1));
+				packet.decoded = result.getBytes(2);
+				packet.modified = result.getBytes(3);
+				packet.sent = result.getBytes(4);
+				packet.received = result.getBytes(5);
+				captured.add(packet);
+			}
+		}
+		return captured;
+	}
+
+	/* 5秒ごとのポーリング(レスポンスは時々しか変わらない)と、ページの読み込みが混ざった通信を合成する */
+	private static List<CapturedPacket> createPollingCapture() {
+		List<CapturedPacket> captured = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+
+			String request;
+			String body;
+			if (i % 10 == 0) {
+
+				request = String.format("GET /articles/%d HTTP/1.1\r\nHost: example.com\r\nAccept: text/html\r\n\r\n", i);
+				StringBuilder html = new StringBuilder("<html><body>");
+				for (int j = 0; j < 200; j++) {
+
+					html.append(String.format("<p class=\"line\">article %d paragraph %d</p>\n", i, j));
+				}
+				body = html.append("</body></html>").toString();
+			} else {
+
+				request = "GET /api/notifications/poll HTTP/1.1\r\nHost: example.com\r\nAccept: application/json\r\n\r\n";
+				StringBuilder json = new StringBuilder("{\"version\":" + (i / 100) + ",\"items\":[");
+				for (int j = 0; j < 40; j++) {
+
+					json.append(String.format("{\"id\":%d,\"title\":\"notification %d\",\"read\":false},", j, j));
+				}
+				body = json.append("{}]}").toString();
+			}
+			byte[] body_bytes = body.getBytes(StandardCharsets.UTF_8);
+			String response = String.format("HTTP/1.1 200 OK\r\nContent-Type: %s\r\nContent-Length: %d\r\n\r\n%s",
+					i % 10 == 0 ? "text/html" : "application/json", body_bytes.length, body);
+			captured.add(createPacket(Direction.CLIENT, request.getBytes(StandardCharsets.UTF_8)));
+			captured.add(createPacket(Direction.SERVER, response.getBytes(StandardCharsets.UTF_8)));
+		}
+		return captured;
+	}
+
+	/* 改ざんしていない通信なので decoded / modified / sent / received は全て同じになる */
+	private static CapturedPacket createPacket(Direction direction, byte[] data) {
+		CapturedPacket packet = new CapturedPacket();
+		packet.direction = direction;
+		packet.decoded = data;
+		packet.modified = data;
+		packet.sent = data;
+		packet.received = data;
+		return packet;
+	}
+}
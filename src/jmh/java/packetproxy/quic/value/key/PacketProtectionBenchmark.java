@@ -0,0 +1,86 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.quic.value.key;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import packetproxy.quic.value.ConnectionId;
+import packetproxy.quic.value.PacketNumber;
+import packetproxy.quic.value.key.level.ApplicationKey;
+import packetproxy.quic.value.packet.shortheader.ShortHeaderPacket;
+
+/**
+ * 1200バイトのペイロードを持つ 1-RTT パケットの保護 (暗号化とヘッダ保護) と、その解除にかかる時間を測る。
+ * Throughput はパケット数/秒。パケット番号はパケットごとに増やし、同じ nonce で暗号化しないようにする。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PacketProtectionBenchmark {
+
+	private static final int PAYLOAD_SIZE = 1200;
+	private static final int PACKETS = 1024;
+
+	@Param({"AES_128_GCM_SHA256", "CHACHA20_POLY1305_SHA256"})
+	public CipherSuite suite;
+
+	private Key key;
+	private ConnectionId destConnId;
+	private byte[] payload;
+	private byte[][] protectedPackets;
+	private long packetNumber;
+	private int index;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		byte[] secret = new byte[32];
+		for (int i = 0; i < secret.length; i++) {
+
+			secret[i] = (byte) i;
+		}
+		key = ApplicationKey.of(secret, suite);
+		destConnId = ConnectionId.generateRandom();
+		// PADDING フレームだけのペイロード
+		payload = new byte[PAYLOAD_SIZE];
+		protectedPackets = new byte[PACKETS][];
+		for (int i = 0; i < PACKETS; i++) {
+
+			protectedPackets[i] = ShortHeaderPacket.of(destConnId, PacketNumber.of(i), payload).getBytes(key,
+					largestAcked(i));
+		}
+		packetNumber = PACKETS;
+	}
+
+	/* 直前のパケットまで ACK されている状態 */
+	private static PacketNumber largestAcked(long pn) {
+		return pn > 0 ? PacketNumber.of(pn - 1) : PacketNumber.Infinite;
+	}
+
+	@Benchmark
+	public byte[] protect() throws Exception {
+		long pn = packetNumber++;
+		return ShortHeaderPacket.of(destConnId, PacketNumber.of(pn), payload).getBytes(key, largestAcked(pn));
+	}
+
+	@Benchmark
+	public ShortHeaderPacket unprotect() throws Exception {
+		int i = index++ % PACKETS;
+		return new ShortHeaderPacket(ByteBuffer.wrap(protectedPackets[i]), key, largestAcked(i));
+	}
+}
@@ -15,18 +15,34 @@
  */
 package packetproxy;
 
+import static packetproxy.util.Logging.err;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 import packetproxy.model.CAs.CA;
+import packetproxy.model.ConfigBoolean;
 
 public class CertCacheManager {
 
 	private static CertCacheManager instance;
 
-	public static CertCacheManager getInstance() throws Exception {
+	public static synchronized CertCacheManager getInstance() throws Exception {
 		if (instance == null) {
 
 			instance = new CertCacheManager();
@@ -34,32 +50,180 @@ public class CertCacheManager {
 		return instance;
 	}
 
-	private Map<String, KeyStore> certCache;
+	/* メモリに保持するサーバ証明書の数の上限。超えたら最も長く使われていないものから捨てる */
+	private static final int MAX_ENTRIES = 1024;
+	/* 有効期限が1日未満のディスクのキャッシュは使わずに発行し直す */
+	private static final long MIN_VALIDITY_MILLIS = 24L * 60 * 60 * 1000;
+	private static final String diskCachePath = Paths
+			.get(System.getProperty("user.home") + "/.packetproxy/certs/cache").toString();
+	private static final String alias = "newalias";
+	private static final char[] password = "testtest".toCharArray();
+
+	/*
+	 * 発行中のものも含めて、キーごとに1回だけ発行する。発行はロックの外で行うので、新しいホスト名のハンドシェイクが他のハンドシェイクを待たせない
+	 */
+	private final Map<String, FutureTask<KeyStore>> certCache;
+	private ConfigBoolean configECDSA;
+	private ConfigBoolean configDiskCache;
+	private volatile boolean ecdsa;
+	private volatile boolean diskCache;
 
 	private CertCacheManager() throws Exception {
-		certCache = new HashMap<String, KeyStore>();
+		certCache = new LinkedHashMap<String, FutureTask<KeyStore>>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FutureTask<KeyStore>> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+		configECDSA = new ConfigBoolean("CertificateECDSA");
+		configDiskCache = new ConfigBoolean("CertificateDiskCache");
+		ecdsa = configECDSA.getState();
+		diskCache = configDiskCache.getState();
 	}
 
 	public static void clearCache() {
 		if (instance != null) {
 
-			instance.certCache.clear();
+			synchronized (instance.certCache) {
+
+				instance.certCache.clear();
+			}
 		}
 	}
 
+	public boolean isECDSAEnabled() {
+		return ecdsa;
+	}
+
+	public void setECDSAEnabled(boolean enabled) throws Exception {
+		configECDSA.setState(enabled);
+		ecdsa = enabled;
+	}
+
+	public boolean isDiskCacheEnabled() {
+		return diskCache;
+	}
+
+	public void setDiskCacheEnabled(boolean enabled) throws Exception {
+		configDiskCache.setState(enabled);
+		diskCache = enabled;
+	}
+
 	public KeyStore getKeyStore(String commonName, String[] domainNames, CA ca) throws Exception {
-		synchronized (instance) {
-			String key = commonName;
-			key += Arrays.stream(domainNames).collect(Collectors.joining());
-			key += ca.getName();
-			KeyStore ks = certCache.get(key);
-			if (ks != null) {
+		return getKeyStore(commonName, domainNames, ca, ecdsa);
+	}
 
-				return ks;
+	/** 鍵の種類を指定してサーバ証明書を取得する。RSAの鍵しか扱えない呼び出し元は ecdsa に false を指定すること */
+	public KeyStore getKeyStore(String commonName, String[] domainNames, CA ca, boolean ecdsa) throws Exception {
+		String key = commonName;
+		key += Arrays.stream(domainNames).collect(Collectors.joining());
+		key += ca.getName();
+		if (ecdsa) {
+
+			key += ":ecdsa";
+		}
+		String cacheKey = key;
+		FutureTask<KeyStore> task;
+		boolean created = false;
+		synchronized (certCache) {
+
+			task = certCache.get(cacheKey);
+			if (task == null) {
+
+				task = new FutureTask<KeyStore>(() -> loadOrCreate(cacheKey, commonName, domainNames, ca, ecdsa));
+				certCache.put(cacheKey, task);
+				created = true;
+			}
+		}
+		if (created) {
+
+			task.run();
+		}
+		try {
+
+			return task.get();
+		} catch (ExecutionException e) {
+
+			// 失敗した結果は残さず、次のハンドシェイクで発行し直す
+			synchronized (certCache) {
+
+				certCache.remove(cacheKey, task);
 			}
-			ks = ca.createKeyStore(commonName, domainNames);
-			certCache.put(key, ks);
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	private KeyStore loadOrCreate(String key, String commonName, String[] domainNames, CA ca, boolean ecdsa)
+			throws Exception {
+		if (!diskCache) {
+
+			return ca.createKeyStore(commonName, domainNames, ecdsa);
+		}
+		Path file = getDiskCacheFile(key, ca);
+		KeyStore ks = readDiskCache(file);
+		if (ks != null) {
+
 			return ks;
 		}
+		ks = ca.createKeyStore(commonName, domainNames, ecdsa);
+		writeDiskCache(file, ks);
+		return ks;
+	}
+
+	/* CAのルート証明書ごとにディレクトリを分けるので、CAを再生成・インポートすると古い証明書は使われなくなる */
+	private Path getDiskCacheFile(String key, CA ca) throws Exception {
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+		return Paths.get(diskCachePath, ca.getFingerprint(), HexFormat.of().formatHex(hash) + ".ks");
+	}
+
+	private KeyStore readDiskCache(Path file) {
+		if (!Files.exists(file)) {
+
+			return null;
+		}
+		try (InputStream input = Files.newInputStream(file)) {
+
+			KeyStore ks = KeyStore.getInstance("JKS");
+			ks.load(input, password);
+			X509Certificate cert = (X509Certificate) ks.getCertificate(alias);
+			if (cert != null && ks.isKeyEntry(alias)
+					&& cert.getNotAfter().getTime() - System.currentTimeMillis() > MIN_VALIDITY_MILLIS) {
+
+				return ks;
+			}
+		} catch (Exception e) {
+
+			err("CertCacheManager: cannot read %s: %s", file, e.getMessage());
+		}
+		return null;
+	}
+
+	/* 秘密鍵を含むので、本人だけが読めるようにしてから書き込む。途中で落ちても壊れたファイルが残らないよう、一時ファイルから置き換える */
+	private void writeDiskCache(Path file, KeyStore ks) {
+		try {
+
+			File dir = file.getParent().toFile();
+			if (!dir.exists()) {
+
+				dir.mkdirs();
+				dir.setReadable(false, false);
+				dir.setReadable(true);
+				dir.setExecutable(false, false);
+				dir.setExecutable(true);
+			}
+			Path tmp = Files.createTempFile(file.getParent(), "cert", ".tmp");
+			File tmpFile = tmp.toFile();
+			tmpFile.setReadable(false, false);
+			tmpFile.setReadable(true);
+			try (OutputStream output = Files.newOutputStream(tmp)) {
+
+				ks.store(output, password);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+
+			err("CertCacheManager: cannot write %s: %s", file, e.getMessage());
+		}
 	}
 }
@@ -21,10 +21,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.EventListener;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.event.EventListenerList;
 
 public abstract class Duplex {
+
+	/* 起動ごとに乱数から始めて、以前の起動で履歴に記録された conn と同じ ID を使わないようにする */
+	private static final AtomicInteger nextId = new AtomicInteger(new SecureRandom().nextInt(1 << 30));
+
+	/* パケットのconnに記録する、コネクションのID */
+	private final int id = nextId.updateAndGet(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+	private final long openedAt = System.currentTimeMillis();
+	private volatile boolean finished = false;
 	protected EventListenerList duplexEventListenerList = new EventListenerList();
 	private boolean flag_event_listener;
 	private int PIPE_SIZE = 65536;
@@ -77,6 +88,18 @@ public abstract class Duplex {
 		return data.length;
 	}
 
+	public int callOnClientPacketReceived(byte[] data, int offset, int length) throws Exception {
+		if (isEnabledDuplexEventListener() == false) {
+
+			return length;
+		}
+		for (DuplexEventListener listener : duplexEventListenerList.getListeners(DuplexEventListener.class)) {
+
+			return listener.onClientPacketReceived(data, offset, length);
+		}
+		return length;
+	}
+
 	public int callOnServerPacketReceived(byte[] data) throws Exception {
 		if (isEnabledDuplexEventListener() == false) {
 
@@ -89,6 +112,18 @@ public abstract class Duplex {
 		return data.length;
 	}
 
+	public int callOnServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+		if (isEnabledDuplexEventListener() == false) {
+
+			return length;
+		}
+		for (DuplexEventListener listener : duplexEventListenerList.getListeners(DuplexEventListener.class)) {
+
+			return listener.onServerPacketReceived(data, offset, length);
+		}
+		return length;
+	}
+
 	public void callOnClientChunkArrived(byte[] data) throws Exception {
 		if (isEnabledDuplexEventListener() == false) {
 
@@ -350,11 +385,70 @@ public abstract class Duplex {
 		return false;
 	}
 
+	public int getId() {
+		return id;
+	}
+
+	/** コネクションを開始した時刻 (ミリ秒) */
+	public long getOpenedAt() {
+		return openedAt;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/** 両方向の中継が終わったときに呼ぶ。DuplexManager の接続中の一覧から取り除かれる */
+	protected void finish() {
+		finished = true;
+		try {
+
+			DuplexManager.getInstance().retireDuplex(this);
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	/** クライアントから受信したバイト数 */
+	public long getClientBytes() {
+		return 0;
+	}
+
+	/** サーバから受信したバイト数 */
+	public long getServerBytes() {
+		return 0;
+	}
+
+	/** クライアントから受信したパケット数 */
+	public long getClientPackets() {
+		return 0;
+	}
+
+	/** サーバから受信したパケット数 */
+	public long getServerPackets() {
+		return 0;
+	}
+
+	/** 接続先のアドレス。分からない場合は空文字列 */
+	public String getServerAddress() {
+		return "";
+	}
+
 	public interface DuplexEventListener extends EventListener {
 		int onClientPacketReceived(byte[] data) throws Exception;
 
 		int onServerPacketReceived(byte[] data) throws Exception;
 
+		/** data の [offset, offset + length) からパケットの区切りを探す。デフォルトでは範囲をコピーして onClientPacketReceived(byte[]) を呼ぶ */
+		default int onClientPacketReceived(byte[] data, int offset, int length) throws Exception {
+			return onClientPacketReceived(Arrays.copyOfRange(data, offset, offset + length));
+		}
+
+		default int onServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+			return onServerPacketReceived(Arrays.copyOfRange(data, offset, offset + length));
+		}
+
 		void onClientChunkArrived(byte[] data) throws Exception;
 
 		void onServerChunkArrived(byte[] data) throws Exception;
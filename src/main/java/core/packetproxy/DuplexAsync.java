@@ -15,10 +15,11 @@
  */
 package packetproxy;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.common.Endpoint;
 
@@ -28,18 +29,12 @@ public class DuplexAsync extends Duplex {
 	private Endpoint server;
 	private Simplex client_to_server;
 	private Simplex server_to_client;
-	private Thread clientFlowSourceThread;
-	private Thread serverFlowSourceThread;
-	private Thread clientFlowSinkThread;
-	private Thread serverFlowSinkThread;
 	private InputStream client_input;
 	private InputStream server_input;
 	private OutputStream client_output;
 	private OutputStream server_output;
-	private PipedInputStream flow_controlled_client_input;
-	private PipedOutputStream flow_controlled_client_output;
-	private PipedInputStream flow_controlled_server_input;
-	private PipedOutputStream flow_controlled_server_output;
+	private OutputStream flow_controlled_client_output;
+	private OutputStream flow_controlled_server_output;
 
 	public DuplexAsync(Endpoint client_endpoint, Endpoint server_endpoint) throws Exception {
 		this.client = client_endpoint;
@@ -49,14 +44,21 @@ public class DuplexAsync extends Duplex {
 		server_input = (server_endpoint != null) ? server_endpoint.getInputStream() : null;
 		server_output = (server_endpoint != null) ? server_endpoint.getOutputStream() : null;
 
-		flow_controlled_client_output = new PipedOutputStream();
-		flow_controlled_client_input = new PipedInputStream(flow_controlled_client_output, 65536);
-
-		flow_controlled_server_output = new PipedOutputStream();
-		flow_controlled_server_input = new PipedInputStream(flow_controlled_server_output, 65536);
+		// Simplexの出力をパイプと中継スレッドを介さず、直接フロー制御キューに渡す
+		flow_controlled_client_output = new FlowControlOutputStream(false);
+		flow_controlled_server_output = new FlowControlOutputStream(true);
 
 		client_to_server = createClientToServerSimplex(client_input, flow_controlled_server_output);
 		server_to_client = createServerToClientSimplex(server_input, flow_controlled_client_output);
+		AtomicInteger running = new AtomicInteger(2);
+		Runnable onFinished = () -> {
+			if (running.decrementAndGet() == 0) {
+
+				finish();
+			}
+		};
+		client_to_server.setOnFinished(onFinished);
+		server_to_client.setOnFinished(onFinished);
 
 		disableDuplexEventListener();
 	}
@@ -71,6 +73,32 @@ public class DuplexAsync extends Duplex {
 		return new DuplexAsync(this.client, this.server);
 	}
 
+	@Override
+	public long getClientBytes() {
+		return client_to_server.getReceivedBytes();
+	}
+
+	@Override
+	public long getServerBytes() {
+		return server_to_client.getReceivedBytes();
+	}
+
+	@Override
+	public long getClientPackets() {
+		return client_to_server.getReceivedPackets();
+	}
+
+	@Override
+	public long getServerPackets() {
+		return server_to_client.getReceivedPackets();
+	}
+
+	@Override
+	public String getServerAddress() {
+		InetSocketAddress addr = (server != null) ? server.getAddress() : null;
+		return (addr != null) ? addr.toString() : "";
+	}
+
 	public byte[] prepareFastSend(byte[] data) throws Exception {
 		int accepted_length = callOnClientPacketReceived(data);
 		if (accepted_length <= 0) {
@@ -88,110 +116,55 @@ public class DuplexAsync extends Duplex {
 	}
 
 	public void start() throws Exception {
-		clientFlowSourceThread = new Thread(new Runnable() {
-
-			public void run() {
-				try {
+		RelayExecutor relay = RelayExecutor.getInstance();
+		relay.execute(() -> {
+			try {
 
-					byte[] inputBuf = new byte[65536];
-					int inputLen = 0;
-					while ((inputLen = flow_controlled_client_input.read(inputBuf)) > 0) {
+				byte[] inputBuf = new byte[65536];
+				int inputLen = 0;
+				while ((inputLen = getClientChunkFlowControlSink().read(inputBuf)) > 0) {
 
-						callOnClientChunkFlowControl(ArrayUtils.subarray(inputBuf, 0, inputLen));
-					}
-					flow_controlled_client_input.close();
-					closeOnClientChunkFlowControl();
-				} catch (Exception e) {
-
-					// errWithStackTrace(e);
+					client_output.write(inputBuf, 0, inputLen);
+					client_output.flush();
 				}
-			}
-		});
-
-		serverFlowSourceThread = new Thread(new Runnable() {
+				client_output.close();
+			} catch (Exception e) {
 
-			public void run() {
 				try {
 
-					byte[] inputBuf = new byte[65536];
-					int inputLen = 0;
-					while ((inputLen = flow_controlled_server_input.read(inputBuf)) > 0) {
-
-						callOnServerChunkFlowControl(ArrayUtils.subarray(inputBuf, 0, inputLen));
-					}
-					flow_controlled_server_input.close();
-					closeOnServerChunkFlowControl();
-				} catch (Exception e) {
+					client_output.close();
+				} catch (Exception e1) {
 
-					// errWithStackTrace(e);
+					// errWithStackTrace(e1);
 				}
+				// errWithStackTrace(e);
 			}
 		});
+		relay.execute(() -> {
+			try {
 
-		clientFlowSinkThread = new Thread(new Runnable() {
-
-			public void run() {
-				try {
-
-					byte[] inputBuf = new byte[65536];
-					int inputLen = 0;
-					while ((inputLen = getClientChunkFlowControlSink().read(inputBuf)) > 0) {
-
-						client_output.write(inputBuf, 0, inputLen);
-						client_output.flush();
-					}
-					flow_controlled_client_input.close();
-					client_output.close();
-				} catch (Exception e) {
-
-					try {
-
-						flow_controlled_client_input.close();
-						client_output.close();
-					} catch (Exception e1) {
+				byte[] inputBuf = new byte[65536];
+				int inputLen = 0;
+				while ((inputLen = getServerChunkFlowControlSink().read(inputBuf)) > 0) {
 
-						// errWithStackTrace(e1);
-					}
-					// errWithStackTrace(e);
+					server_output.write(inputBuf, 0, inputLen);
+					server_output.flush();
 				}
-			}
-		});
-
-		serverFlowSinkThread = new Thread(new Runnable() {
+				server_output.close();
+			} catch (Exception e) {
 
-			public void run() {
 				try {
 
-					byte[] inputBuf = new byte[65536];
-					int inputLen = 0;
-					while ((inputLen = getServerChunkFlowControlSink().read(inputBuf)) > 0) {
-
-						server_output.write(inputBuf, 0, inputLen);
-						server_output.flush();
-					}
-					flow_controlled_server_input.close();
 					server_output.close();
-				} catch (Exception e) {
-
-					try {
+				} catch (Exception e1) {
 
-						flow_controlled_server_input.close();
-						server_output.close();
-					} catch (Exception e1) {
-
-						// errWithStackTrace(e1);
-					}
-					// errWithStackTrace(e);
+					// errWithStackTrace(e1);
 				}
+				// errWithStackTrace(e);
 			}
 		});
-
 		client_to_server.start();
 		server_to_client.start();
-		clientFlowSinkThread.start();
-		serverFlowSinkThread.start();
-		clientFlowSourceThread.start();
-		serverFlowSourceThread.start();
 	}
 
 	@Override
@@ -233,6 +206,11 @@ public class DuplexAsync extends Duplex {
 				return callOnClientPacketReceived(data);
 			}
 
+			@Override
+			public int onPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return callOnClientPacketReceived(data, offset, length);
+			}
+
 			@Override
 			public byte[] onChunkSend(byte[] data) throws Exception {
 				return callOnClientChunkSend(data);
@@ -270,6 +248,11 @@ public class DuplexAsync extends Duplex {
 				return callOnServerPacketReceived(data);
 			}
 
+			@Override
+			public int onPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return callOnServerPacketReceived(data, offset, length);
+			}
+
 			@Override
 			public byte[] onChunkSend(byte[] data) throws Exception {
 				return callOnServerChunkSend(data);
@@ -287,4 +270,70 @@ public class DuplexAsync extends Duplex {
 	protected void sendToServerImpl(byte[] data) throws Exception {
 		client_to_server.sendWithoutRecording(data);
 	}
+
+	/* Simplexが書き込んだデータをそのままフロー制御キューに積む。送信と再送が別スレッドから来るため直列化する */
+	private class FlowControlOutputStream extends OutputStream {
+
+		private final boolean toServer;
+		private boolean closed = false;
+
+		FlowControlOutputStream(boolean toServer) {
+			this.toServer = toServer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+
+				throw new IOException("Stream closed");
+			}
+			try {
+
+				byte[] data = ArrayUtils.subarray(b, off, off + len);
+				if (toServer) {
+
+					callOnServerChunkFlowControl(data);
+				} else {
+
+					callOnClientChunkFlowControl(data);
+				}
+			} catch (IOException e) {
+
+				throw e;
+			} catch (Exception e) {
+
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed) {
+
+				return;
+			}
+			closed = true;
+			try {
+
+				if (toServer) {
+
+					closeOnServerChunkFlowControl();
+				} else {
+
+					closeOnClientChunkFlowControl();
+				}
+			} catch (IOException e) {
+
+				throw e;
+			} catch (Exception e) {
+
+				throw new IOException(e);
+			}
+		}
+	}
 }
@@ -79,16 +79,26 @@ public class DuplexFactory {
 				return encoder.checkRequestDelimiter(data);
 			}
 
+			@Override
+			public int onClientPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return encoder.checkRequestDelimiter(data, offset, length);
+			}
+
 			@Override
 			public int onServerPacketReceived(byte[] data) throws Exception {
 				return encoder.checkResponseDelimiter(data);
 			}
 
+			@Override
+			public int onServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return encoder.checkResponseDelimiter(data, offset, length);
+			}
+
 			@Override
 			public byte[] onClientChunkReceived(byte[] data) throws Exception {
 				long initialGroupId = UniqueID.getInstance().createId();
 				client_packet = new Packet(0, client_addr, server_addr, server_endpoint.getName(), use_ssl,
-						encoder_name, ALPN, Packet.Direction.CLIENT, duplex.hashCode(), initialGroupId);
+						encoder_name, ALPN, Packet.Direction.CLIENT, duplex.getId(), initialGroupId);
 				client_packet.setReceivedData(data);
 				byte[] decoded_data = encoder.decodeClientRequest(client_packet);
 				client_packet.setDecodedData(decoded_data);
@@ -142,7 +152,7 @@ public class DuplexFactory {
 					group_id = UniqueID.getInstance().createId();
 				}
 				server_packet = new Packet(0, client_addr, server_addr, server_endpoint.getName(), use_ssl,
-						encoder_name, ALPN, Packet.Direction.SERVER, duplex.hashCode(), group_id);
+						encoder_name, ALPN, Packet.Direction.SERVER, duplex.getId(), group_id);
 				packets.update(server_packet);
 				server_packet.setReceivedData(data);
 				if (data.length < SKIP_LENGTH) {
@@ -226,7 +236,7 @@ public class DuplexFactory {
 			@Override
 			public byte[] onClientChunkSendForced(byte[] data) throws Exception {
 				Packet client_packet = new Packet(0, client_addr, server_addr, server_endpoint.getName(), use_ssl,
-						encoder_name, ALPN, Packet.Direction.CLIENT, duplex.hashCode(),
+						encoder_name, ALPN, Packet.Direction.CLIENT, duplex.getId(),
 						UniqueID.getInstance().createId());
 				packets.update(client_packet);
 				client_packet.setModified();
@@ -259,7 +269,7 @@ public class DuplexFactory {
 					group_id = UniqueID.getInstance().createId();
 				}
 				Packet server_packet = new Packet(0, client_addr, server_addr, server_endpoint.getName(), use_ssl,
-						encoder_name, ALPN, Packet.Direction.SERVER, duplex.hashCode(), group_id);
+						encoder_name, ALPN, Packet.Direction.SERVER, duplex.getId(), group_id);
 				packets.update(server_packet);
 				server_packet.setDecodedData(data);
 				if (data.length < SKIP_LENGTH) {
@@ -341,7 +351,13 @@ public class DuplexFactory {
 	}
 
 	public static DuplexSync createDuplexSyncFromOneShotPacket(final OneShotPacket oneshot) throws Exception {
-		DuplexSync duplex = new DuplexSync(EndpointFactory.createFromOneShotPacket(oneshot));
+		return createDuplexSyncFromOneShotPacket(oneshot, EndpointFactory.createFromOneShotPacket(oneshot));
+	}
+
+	/** endpoint は UpstreamConnectionPool から取得したものなど、接続済みのサーバとのコネクション */
+	public static DuplexSync createDuplexSyncFromOneShotPacket(final OneShotPacket oneshot, Endpoint endpoint)
+			throws Exception {
+		DuplexSync duplex = new DuplexSync(endpoint);
 		duplex.addDuplexEventListener(new Duplex.DuplexEventListener() {
 
 			private Packets packets = Packets.getInstance();
@@ -361,6 +377,11 @@ public class DuplexFactory {
 				return encoder.checkResponseDelimiter(data);
 			}
 
+			@Override
+			public int onServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return encoder.checkResponseDelimiter(data, offset, length);
+			}
+
 			@Override
 			public byte[] onClientChunkReceived(byte[] data) throws Exception {
 				/* do nothing so far */
@@ -380,7 +401,7 @@ public class DuplexFactory {
 				}
 				server_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.SERVER,
-						duplex.hashCode(), group_id);
+						duplex.getId(), group_id);
 				packets.update(server_packet);
 				server_packet.setReceivedData(data);
 				if (data.length < SKIP_LENGTH) {
@@ -411,7 +432,7 @@ public class DuplexFactory {
 			public byte[] onClientChunkSend(byte[] data) throws Exception {
 				client_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.CLIENT,
-						duplex.hashCode(), UniqueID.getInstance().createId());
+						duplex.getId(), UniqueID.getInstance().createId());
 				client_packet.setModified();
 				client_packet.setReceivedData(data);
 				client_packet.setDecodedData(data);
@@ -549,6 +570,11 @@ public class DuplexFactory {
 				return encoder.checkResponseDelimiter(data);
 			}
 
+			@Override
+			public int onServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return encoder.checkResponseDelimiter(data, offset, length);
+			}
+
 			@Override
 			public byte[] onClientChunkReceived(byte[] data) throws Exception {
 				return data;
@@ -558,7 +584,7 @@ public class DuplexFactory {
 			public byte[] onServerChunkReceived(byte[] data) throws Exception {
 				client_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.CLIENT,
-						duplex.hashCode(), packetproxy.common.UniqueID.getInstance().createId());
+						duplex.getId(), packetproxy.common.UniqueID.getInstance().createId());
 				client_packet.setDecodedData(oneshot.getData());
 				client_packet.setModifiedData(oneshot.getData());
 				client_packet.setResend();
@@ -570,7 +596,7 @@ public class DuplexFactory {
 
 				server_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.SERVER,
-						duplex.hashCode(), group_id);
+						duplex.getId(), group_id);
 				packets.update(server_packet);
 				server_packet.setReceivedData(data);
 				if (data.length < SKIP_LENGTH) {
@@ -709,6 +735,11 @@ public class DuplexFactory {
 				return encoder.checkResponseDelimiter(data);
 			}
 
+			@Override
+			public int onServerPacketReceived(byte[] data, int offset, int length) throws Exception {
+				return encoder.checkResponseDelimiter(data, offset, length);
+			}
+
 			@Override
 			public byte[] onClientChunkReceived(byte[] data) throws Exception {
 				/* do nothing so far */
@@ -728,7 +759,7 @@ public class DuplexFactory {
 				}
 				server_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.SERVER,
-						original_duplex.hashCode(), group_id);
+						original_duplex.getId(), group_id);
 				packets.update(server_packet);
 				server_packet.setReceivedData(data);
 				if (data.length < SKIP_LENGTH) {
@@ -759,7 +790,7 @@ public class DuplexFactory {
 			public byte[] onClientChunkSend(byte[] data) throws Exception {
 				client_packet = new Packet(0, oneshot.getClient(), oneshot.getServer(), oneshot.getServerName(),
 						oneshot.getUseSSL(), oneshot.getEncoder(), oneshot.getAlpn(), Packet.Direction.CLIENT,
-						original_duplex.hashCode(), UniqueID.getInstance().createId());
+						original_duplex.getId(), UniqueID.getInstance().createId());
 				packets.update(client_packet);
 				client_packet.setModified();
 				client_packet.setDecodedData(data);
@@ -15,15 +15,27 @@
  */
 package packetproxy;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 中継中のコネクション (Duplex) の一覧
+ *
+ * <p>
+ * 両方向の中継が終わった Duplex は接続中の一覧から取り除き、再送で参照できるように直近のものだけを一定数残しておく。
+ */
 public class DuplexManager {
 
+	/* 中継が終わった後も残しておく Duplex の数 */
+	static final int RETAINED_FINISHED_DUPLEXES = 256;
+
 	private static DuplexManager instance;
 
-	public static DuplexManager getInstance() throws Exception {
+	public static synchronized DuplexManager getInstance() throws Exception {
 		if (instance == null) {
 
 			instance = new DuplexManager();
@@ -31,35 +43,97 @@ public class DuplexManager {
 		return instance;
 	}
 
-	private Map<Integer, Duplex> duplex_list;
+	/** 接続中の一覧の1行。作成した時点の値 */
+	public static class Connection {
+
+		public final int id;
+		public final String serverAddress;
+		public final long openedAt;
+		public final long clientBytes;
+		public final long serverBytes;
+		public final long clientPackets;
+		public final long serverPackets;
+
+		Connection(Duplex duplex) {
+			id = duplex.getId();
+			serverAddress = duplex.getServerAddress();
+			openedAt = duplex.getOpenedAt();
+			clientBytes = duplex.getClientBytes();
+			serverBytes = duplex.getServerBytes();
+			clientPackets = duplex.getClientPackets();
+			serverPackets = duplex.getServerPackets();
+		}
+	}
+
+	private final Map<Integer, Duplex> live = new ConcurrentHashMap<>();
+	private final Map<Integer, Duplex> finished = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Duplex> eldest) {
+			return size() > RETAINED_FINISHED_DUPLEXES;
+		}
+	});
 
 	public DuplexManager() {
-		duplex_list = new HashMap<Integer, Duplex>();
 	}
 
 	public void closeAndClearDuplex(int listenPort) throws Exception {
-		for (Iterator<Integer> i = duplex_list.keySet().iterator(); i.hasNext();) {
+		for (Duplex d : live.values()) {
 
-			int key = i.next();
-			Duplex d = duplex_list.get(key);
 			if (d.isListenPort(listenPort)) {
 
 				d.close();
-				i.remove();
+				live.remove(d.getId());
 			}
 		}
+		synchronized (finished) {
+
+			finished.values().removeIf(d -> d.isListenPort(listenPort));
+		}
 	}
 
 	public int registerDuplex(Duplex duplex) {
-		duplex_list.put(duplex.hashCode(), duplex);
-		return duplex.hashCode();
+		live.put(duplex.getId(), duplex);
+		if (duplex.isFinished()) {
+
+			// 登録する前に中継が終わっていた
+			retireDuplex(duplex);
+		}
+		return duplex.getId();
+	}
+
+	/** 中継が終わった Duplex を接続中の一覧から取り除く。Duplex.finish() から呼ばれる */
+	void retireDuplex(Duplex duplex) {
+		if (live.remove(duplex.getId(), duplex)) {
+
+			finished.put(duplex.getId(), duplex);
+		}
 	}
 
-	public Duplex getDuplex(int hash) {
-		return duplex_list.get(hash);
+	public Duplex getDuplex(int id) {
+		Duplex duplex = live.get(id);
+		return (duplex != null) ? duplex : finished.get(id);
+	}
+
+	public boolean has(int id) {
+		return getDuplex(id) != null;
+	}
+
+	/** 中継中のコネクションの一覧。古いものから順に並べる */
+	public List<Connection> getConnections() {
+		List<Connection> connections = new ArrayList<>();
+		for (Duplex duplex : live.values()) {
+
+			connections.add(new Connection(duplex));
+		}
+		connections.sort((a, b) -> Integer.compare(a.id, b.id));
+		return connections;
 	}
 
-	public boolean has(int hash) {
-		return (duplex_list.get(hash) == null) ? false : true;
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("live", (long) live.size());
+		metrics.put("retained_finished", (long) finished.size());
+		return metrics;
 	}
 }
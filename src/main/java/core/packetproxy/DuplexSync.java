@@ -125,6 +125,11 @@ public class DuplexSync extends Duplex {
 		}
 	}
 
+	/** receive() で読み込んだもののうち、まだ返していないサーバからのデータがあるか */
+	public boolean hasBufferedServerData() {
+		return serverBuffer.size() > 0;
+	}
+
 	@Override
 	public void close() throws Exception {
 		in.close();
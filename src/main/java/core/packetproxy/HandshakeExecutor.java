@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import static packetproxy.model.PropertyChangeEventType.CONFIGS;
+import static packetproxy.util.Logging.err;
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import packetproxy.model.ConfigInteger;
+import packetproxy.model.Configs;
+
+/**
+ * 透過プロキシで accept したソケットの ClientHello の読み込みからTLSハンドシェイクまでを実行する共有スレッドプール
+ *
+ * <p>
+ * accept するスレッドでは何も待たないので、応答の遅いサーバがあっても他のクライアントの接続は止まらない。
+ * 同時に処理するハンドシェイクの数と待ち行列の長さには上限があり、溢れた接続はすぐに閉じる。
+ * 転送先のポートに接続できるかの確認結果はしばらく覚えておき、同じ宛先への接続のたびに確認し直さない。
+ */
+public class HandshakeExecutor {
+
+	/** 一度に実行するハンドシェイクの数の既定値 */
+	public static final int DEFAULT_CONCURRENCY = 64;
+	/** ClientHello を受信し終えるまで待つ時間の既定値 */
+	public static final int DEFAULT_CLIENT_HELLO_TIMEOUT_MSEC = 10 * 1000;
+	/** 転送先のポートに接続できるかを確認するときのタイムアウトの既定値 */
+	public static final int DEFAULT_PROBE_TIMEOUT_MSEC = 500;
+
+	/* 実行を待つハンドシェイクの数の上限。一度に実行する数に対する倍率 */
+	static final int QUEUE_FACTOR = 16;
+	/* 接続確認の結果を使い回す時間と、覚えておく宛先の数 */
+	static final long PROBE_CACHE_TTL_MSEC = 60 * 1000;
+	private static final int PROBE_CACHE_ENTRIES = 1024;
+
+	private static HandshakeExecutor instance;
+
+	public static synchronized HandshakeExecutor getInstance() throws Exception {
+		if (instance == null) {
+
+			instance = new HandshakeExecutor(new ConfigInteger("SSLTransparentHandshakeConcurrency"));
+		}
+		return instance;
+	}
+
+	/** ハンドシェイクの段階。段階ごとに所要時間を集計する */
+	public enum Stage {
+		CLIENT_HELLO, DNS, PROBE, CONNECT, HANDSHAKE
+	}
+
+	public interface Handshake {
+
+		void run() throws Exception;
+	}
+
+	private static class Probe {
+
+		final boolean reachable;
+		final long expiresAt;
+
+		Probe(boolean reachable, long expiresAt) {
+			this.reachable = reachable;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class StageStats {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	private ConfigInteger configConcurrency;
+	private ConfigInteger configClientHelloTimeout;
+	private ConfigInteger configProbeTimeout;
+	/* 接続のたびにDBを引かないように、設定が変わったときに読み直しておく */
+	private volatile int clientHelloTimeoutMsec = DEFAULT_CLIENT_HELLO_TIMEOUT_MSEC;
+	private volatile int probeTimeoutMsec = DEFAULT_PROBE_TIMEOUT_MSEC;
+
+	private final LongSupplier clock;
+	private final ThreadPoolExecutor pool;
+	private final Map<InetSocketAddress, Probe> probes = new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Probe> eldest) {
+			return size() > PROBE_CACHE_ENTRIES;
+		}
+	};
+
+	private final Map<Stage, StageStats> stats = new LinkedHashMap<>();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong probeHits = new AtomicLong();
+	private final AtomicLong probeMisses = new AtomicLong();
+
+	private HandshakeExecutor(ConfigInteger configConcurrency) throws Exception {
+		this(orDefault(configConcurrency.getInteger(), DEFAULT_CONCURRENCY), System::currentTimeMillis);
+		this.configConcurrency = configConcurrency;
+		configClientHelloTimeout = new ConfigInteger("SSLTransparentClientHelloTimeoutMsec");
+		configProbeTimeout = new ConfigInteger("SSLTransparentProbeTimeoutMsec");
+		loadConfigs();
+		Configs.getInstance().addPropertyChangeListener(evt -> {
+			if (!CONFIGS.matches(evt)) {
+
+				return;
+			}
+			try {
+
+				loadConfigs();
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		});
+	}
+
+	HandshakeExecutor(int concurrency, LongSupplier clock) {
+		this.clock = clock;
+		for (Stage stage : Stage.values()) {
+
+			stats.put(stage, new StageStats());
+		}
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(concurrency * QUEUE_FACTOR), runnable -> {
+					Thread thread = new Thread(runnable, "PacketProxy-handshake-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		// 使われていないときはスレッドを残さない
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/** 設定を読み直す。同時に実行する数が変わったら、次に始めるハンドシェイクから新しい上限に従う */
+	private synchronized void loadConfigs() throws Exception {
+		clientHelloTimeoutMsec = orDefault(configClientHelloTimeout.getInteger(), DEFAULT_CLIENT_HELLO_TIMEOUT_MSEC);
+		probeTimeoutMsec = orDefault(configProbeTimeout.getInteger(), DEFAULT_PROBE_TIMEOUT_MSEC);
+		int size = orDefault(configConcurrency.getInteger(), DEFAULT_CONCURRENCY);
+		if (size > pool.getMaximumPoolSize()) {
+
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else if (size < pool.getMaximumPoolSize()) {
+
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+
+	private static int orDefault(int value, int defaultValue) {
+		return value > 0 ? value : defaultValue;
+	}
+
+	/**
+	 * client のハンドシェイクを別スレッドで実行する。待ち行列が一杯のときや、handshake が失敗したときは client を閉じる
+	 */
+	public void execute(Socket client, Handshake handshake) {
+		accepted.incrementAndGet();
+		try {
+
+			pool.execute(() -> {
+				active.incrementAndGet();
+				try {
+
+					handshake.run();
+				} catch (Exception e) {
+
+					failed.incrementAndGet();
+					errWithStackTrace(e);
+					closeQuietly(client);
+				} finally {
+
+					active.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+
+			rejected.incrementAndGet();
+			err("[HandshakeExecutor] too many pending handshakes, closing %s", client.getRemoteSocketAddress());
+			closeQuietly(client);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+
+			socket.close();
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	/** System.nanoTime() で取得した startNanos から今までを stage の所要時間として記録する */
+	public void record(Stage stage, long startNanos) {
+		stats.get(stage).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * addr に接続できるかを返す。直近に確認した宛先は、その結果をそのまま返す
+	 */
+	public boolean probe(InetSocketAddress addr) throws Exception {
+		long now = clock.getAsLong();
+		synchronized (probes) {
+
+			Probe probe = probes.get(addr);
+			if (probe != null && probe.expiresAt > now) {
+
+				probeHits.incrementAndGet();
+				return probe.reachable;
+			}
+		}
+		probeMisses.incrementAndGet();
+		long start = System.nanoTime();
+		boolean reachable;
+		try (Socket s = new Socket()) {
+
+			s.connect(addr, probeTimeoutMsec);
+			reachable = true;
+		} catch (Exception e) {
+
+			reachable = false;
+		}
+		record(Stage.PROBE, start);
+		synchronized (probes) {
+
+			probes.put(addr, new Probe(reachable, now + PROBE_CACHE_TTL_MSEC));
+		}
+		return reachable;
+	}
+
+	public int getConcurrency() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * 実行中のハンドシェイクはそのまま続け、次に始めるものから新しい上限に従う。待ち行列の長さは起動時のまま。
+	 * 設定の値は Configs の変更通知で読み直す
+	 */
+	public void setConcurrency(int concurrency) throws Exception {
+		configConcurrency.setInteger(concurrency);
+	}
+
+	public int getClientHelloTimeoutMsec() {
+		return clientHelloTimeoutMsec;
+	}
+
+	public void setClientHelloTimeoutMsec(int timeout) throws Exception {
+		configClientHelloTimeout.setInteger(timeout);
+	}
+
+	public int getProbeTimeoutMsec() {
+		return probeTimeoutMsec;
+	}
+
+	public void setProbeTimeoutMsec(int timeout) throws Exception {
+		configProbeTimeout.setInteger(timeout);
+	}
+
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("accepted", accepted.get());
+		metrics.put("active", (long) active.get());
+		metrics.put("queued", (long) pool.getQueue().size());
+		metrics.put("rejected", rejected.get());
+		metrics.put("failed", failed.get());
+		metrics.put("probe_cache_hits", probeHits.get());
+		metrics.put("probe_cache_misses", probeMisses.get());
+		for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+
+			String name = entry.getKey().name().toLowerCase();
+			StageStats stage = entry.getValue();
+			long count = stage.count.sum();
+			metrics.put(name + "_count", count);
+			long avg = count > 0 ? stage.totalNanos.sum() / count : 0;
+			metrics.put(name + "_avg_usec", TimeUnit.NANOSECONDS.toMicros(avg));
+			metrics.put(name + "_max_usec", TimeUnit.NANOSECONDS.toMicros(stage.maxNanos.get()));
+		}
+		return metrics;
+	}
+}
@@ -31,12 +31,19 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.net.util.SubnetUtils;
 import org.apache.commons.net.util.SubnetUtils.SubnetInfo;
 import org.xbill.DNS.*;
 import org.xbill.DNS.Record;
 import packetproxy.model.ConfigBoolean;
 import packetproxy.model.ConfigInteger;
+import packetproxy.model.Resolutions;
 import packetproxy.model.Server;
 import packetproxy.model.Servers;
 
@@ -51,6 +58,16 @@ public class PrivateDNS {
 	private Servers servers;
 	private Object lock;
 	private SpoofAddrFactory spoofAddrFactry = new SpoofAddrFactory();
+	private PrivateDNSResolver resolver;
+
+	/* 同時に名前解決する問い合わせの数と、それを待つ問い合わせの数 */
+	static int WORKERS = 16;
+	static int PENDING_QUERIES = 1024;
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
 
 	class SpoofAddrFactory {
 
@@ -142,6 +159,8 @@ public class PrivateDNS {
 		lock = new Object();
 		state = new ConfigBoolean("PrivateDNS");
 		servers = Servers.getInstance();
+		resolver = new PrivateDNSResolver();
+		Resolutions.getInstance().addPropertyChangeListener(resolver);
 		dns = null;
 	}
 
@@ -284,16 +303,10 @@ public class PrivateDNS {
 		private DNSSpoofingIPGetter spoofingIp;
 		private final int listenPort;
 
-		private InetAddress cAddr;
-		private int cPort;
 		private byte[] buf = new byte[BUFSIZE];
 		DatagramSocket soc;
 		DatagramPacket recvPacket;
-		DatagramPacket sendPacket;
-		DatagramSocket s_soc;
-		DatagramPacket s_recvPacket;
-		DatagramPacket s_sendPacket;
-		InetAddress s_sAddr;
+		ThreadPoolExecutor workers;
 
 		public PrivateDNSImp(DNSSpoofingIPGetter dnsSpoofingIPGetter) throws Exception {
 			this.spoofingIp = dnsSpoofingIPGetter;
@@ -302,7 +315,6 @@ public class PrivateDNS {
 
 				soc = new DatagramSocket(listenPort, InetAddress.getByName(spoofingIp.getInt()));
 				recvPacket = new DatagramPacket(buf, BUFSIZE);
-				sendPacket = null;
 			} catch (BindException e) {
 
 				err("cannot boot private DNS server (permission issue or already listened): addr=%s port=%d",
@@ -310,10 +322,14 @@ public class PrivateDNS {
 				return;
 			}
 
-			s_sAddr = InetAddress.getByName(dnsServer);
-			s_soc = new DatagramSocket();
-			s_recvPacket = new DatagramPacket(buf, BUFSIZE);
-			s_sendPacket = null;
+			AtomicInteger count = new AtomicInteger();
+			workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(PENDING_QUERIES), runnable -> {
+						Thread thread = new Thread(runnable, "PacketProxy-dns-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			workers.allowCoreThreadTimeOut(true);
 		}
 
 		public boolean isRunning() {
@@ -323,166 +339,183 @@ public class PrivateDNS {
 		public void finish() {
 			if (isRunning()) {
 
-				s_soc.close();
 				soc.close();
-				s_soc = null;
 				soc = null;
+				workers.shutdownNow();
 			}
 		}
 
+		/* 受信だけをこのスレッドで行い、名前解決と応答はワーカーのスレッドで行う。上流の応答が遅い問い合わせがあっても、他の問い合わせは待たない */
 		public void run() {
 			log("Private DNS Server started. (addr=%s port=%d)", spoofingIp.getInt(), listenPort);
+			DatagramSocket soc = this.soc;
 			while (true) {
 
 				try {
 
+					recvPacket.setLength(BUFSIZE);
 					soc.receive(recvPacket);
-					cAddr = recvPacket.getAddress();
-					cPort = recvPacket.getPort();
-
-					Map<Integer, String> spoofingIpStrs = new HashMap<>();
-					String spoofingIpStr = "";
-					String spoofingIp6Str = "";
-
-					// if (cAddr instanceof Inet6Address) {
-					// util.packetProxyLog(String.format("[ScopeID] %s",
-					// ((Inet6Address)cAddr).getScopeId()));
-					// }
-					if (spoofingIp.isAuto()) {
-
-						spoofingIpStrs = spoofAddrFactry.getSpoofAddr(cAddr);
-						spoofingIpStr = spoofingIpStrs.get(4);
-						spoofingIp6Str = spoofingIpStrs.get(6);
-					} else {
+					byte[] requestData = Arrays.copyOf(recvPacket.getData(), recvPacket.getLength());
+					InetAddress cAddr = recvPacket.getAddress();
+					int cPort = recvPacket.getPort();
+					long start = System.nanoTime();
+					queries.incrementAndGet();
+					try {
 
-						spoofingIpStr = spoofingIp.get();
-						spoofingIp6Str = spoofingIp.get6();
-					}
+						workers.execute(() -> {
+							try {
 
-					// util.packetProxyLog(String.format("[hostAddrStr] %s",
-					// cAddr.getHostAddress()));
-					// util.packetProxyLog(String.format("[SpoofingIP] %s : %s", spoofingIpStr,
-					// spoofingIp6Str));
+								reply(soc, requestData, cAddr, cPort);
+							} catch (Exception e) {
 
-					byte[] requestData = recvPacket.getData();
+								failed.incrementAndGet();
+								errWithStackTrace(e);
+							} finally {
 
-					Message smsg = new Message(requestData);
-					byte[] smsgBA = smsg.toWire();
-					int queryRecType = smsg.getQuestion().getType();
-					String queryHostName = smsg.getQuestion().getName().toString(true);
-					String queryRecTypeName = Type.string(queryRecType);
-					InetAddress addr;
-					byte[] res = null;
+								long nanos = System.nanoTime() - start;
+								totalNanos.addAndGet(nanos);
+								maxNanos.accumulateAndGet(nanos, Math::max);
+							}
+						});
+					} catch (RejectedExecutionException e) {
 
-					try {
+						// クライアントが再送するので、ここでは捨てる
+						dropped.incrementAndGet();
+					}
+				} catch (SocketException e) {
+					if (soc.isClosed()) {
+						finish();
+						return;
+					}
+					errWithStackTrace(e);
+					finish();
+					return;
+				} catch (IOException e) {
 
-						if (queryRecType == Type.A) {
+					errWithStackTrace(e);
+				} catch (Exception e) {
 
-							addr = PrivateDNSClient.getByName(queryHostName);
-							if (addr instanceof Inet6Address) {
+					errWithStackTrace(e);
+					finish();
+					return;
+				}
+			}
+		}
 
-								throw new UnknownHostException();
-							}
-						} else if (queryRecType == Type.AAAA) {
+		private void reply(DatagramSocket soc, byte[] requestData, InetAddress cAddr, int cPort) throws Exception {
+			Map<Integer, String> spoofingIpStrs = new HashMap<>();
+			String spoofingIpStr = "";
+			String spoofingIp6Str = "";
 
-							addr = PrivateDNSClient.getByName6(queryHostName);
-							if (addr == null) {
+			// if (cAddr instanceof Inet6Address) {
+			// util.packetProxyLog(String.format("[ScopeID] %s",
+			// ((Inet6Address)cAddr).getScopeId()));
+			// }
+			if (spoofingIp.isAuto()) {
 
-								throw new UnknownHostException();
-							}
-						} else if (queryRecType == Type.HTTPS) {
-
-							log("[DNS Query] '%s' [HTTPS]", queryHostName);
-							PrivateDnsResponseBuilder jn;
-							if (isTargetHost(queryHostName)) {
-
-								Name label = Name.fromString(queryHostName + ".");
-								Name svcDomain = Name.fromString(".");
-								HTTPSRecord.ParameterAlpn alpn = new HTTPSRecord.ParameterAlpn();
-								alpn.fromString("h1,h2,h3");
-								List<HTTPSRecord.ParameterBase> params = List.of(alpn);
-								HTTPSRecord record = new HTTPSRecord(label, DClass.IN, 300, 1, svcDomain, params);
-								jn = new PrivateDnsResponseBuilder(record);
-								log("Force to access '%s' with HTTP3", queryHostName);
-							} else {
-
-								Record[] records = PrivateDNSClient.getHTTPSRecord(queryHostName);
-								jn = new PrivateDnsResponseBuilder(records);
-							}
-							res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
-							sendPacket = new DatagramPacket(res, res.length, cAddr, cPort);
-							soc.send(sendPacket);
-							continue;
-						} else {
+				spoofingIpStrs = spoofAddrFactry.getSpoofAddr(cAddr);
+				spoofingIpStr = spoofingIpStrs.get(4);
+				spoofingIp6Str = spoofingIpStrs.get(6);
+			} else {
 
-							log("[DNS Query] Unsupported Query Type: '%s' [%s]", queryHostName, queryRecTypeName);
-							throw new UnsupportedOperationException();
-						}
+				spoofingIpStr = spoofingIp.get();
+				spoofingIp6Str = spoofingIp.get6();
+			}
 
-						String ip = addr.getHostAddress();
+			// util.packetProxyLog(String.format("[hostAddrStr] %s",
+			// cAddr.getHostAddress()));
+			// util.packetProxyLog(String.format("[SpoofingIP] %s : %s", spoofingIpStr,
+			// spoofingIp6Str));
 
-						log("[DNS Query] '%s' [%s]", queryHostName, queryRecTypeName);
-						// log(String.format("[DNS Response Address] '%s'", ip));
+			Message smsg = new Message(requestData);
+			byte[] smsgBA = smsg.toWire();
+			int queryRecType = smsg.getQuestion().getType();
+			String queryHostName = smsg.getQuestion().getName().toString(true);
+			String queryRecTypeName = Type.string(queryRecType);
+			InetAddress addr;
+			byte[] res = null;
 
-						if (isTargetHost(queryHostName)) {
+			try {
 
-							if (queryRecType == Type.A) {
+				if (queryRecType == Type.A) {
 
-								// ToDo GUIにIPv4有効チェックを追加し、無効のときはスキップするようにする。
-								ip = spoofingIpStr;
-								log("Replaced to %s", ip);
-							}
-						}
-						if (isTargetHost6(queryHostName)) {
+					addr = resolver.resolve(queryHostName);
+				} else if (queryRecType == Type.AAAA) {
 
-							if (queryRecType == Type.AAAA) {
+					addr = resolver.resolve6(queryHostName);
+				} else if (queryRecType == Type.HTTPS) {
 
-								// ToDo GUIにIPv6有効チェックを追加し、無効のときはスキップするようにする。
-								ip = spoofingIp6Str;
-								log("Replaced to %s", ip);
-							}
-						}
-						PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder(ip);
-						res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+					log("[DNS Query] '%s' [HTTPS]", queryHostName);
+					PrivateDnsResponseBuilder jn;
+					if (isTargetHost(queryHostName)) {
 
-					} catch (UnknownHostException e) {
+						Name label = Name.fromString(queryHostName + ".");
+						Name svcDomain = Name.fromString(".");
+						HTTPSRecord.ParameterAlpn alpn = new HTTPSRecord.ParameterAlpn();
+						alpn.fromString("h1,h2,h3");
+						List<HTTPSRecord.ParameterBase> params = List.of(alpn);
+						HTTPSRecord record = new HTTPSRecord(label, DClass.IN, 300, 1, svcDomain, params);
+						jn = new PrivateDnsResponseBuilder(record);
+						log("Force to access '%s' with HTTP3", queryHostName);
+					} else {
 
-						err("[DNS Query] Unknown Host: '%s' [%s]", queryHostName, queryRecTypeName);
-						PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
-						res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+						Record[] records = resolver.resolveHTTPS(queryHostName);
+						jn = new PrivateDnsResponseBuilder(records);
+					}
+					res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+					soc.send(new DatagramPacket(res, res.length, cAddr, cPort));
+					return;
+				} else {
 
-					} catch (UnsupportedOperationException e) {
+					log("[DNS Query] Unsupported Query Type: '%s' [%s]", queryHostName, queryRecTypeName);
+					throw new UnsupportedOperationException();
+				}
 
-						// Not implemented yet
-						PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
-						res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+				String ip = addr.getHostAddress();
 
-					} catch (Exception e) {
+				log("[DNS Query] '%s' [%s]", queryHostName, queryRecTypeName);
+				// log(String.format("[DNS Response Address] '%s'", ip));
 
-						err("[DNS Query] Unknown Error: '%s' [%s]", queryHostName, queryRecTypeName);
-						PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
-						res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
-					}
-					sendPacket = new DatagramPacket(res, res.length, cAddr, cPort);
-					soc.send(sendPacket);
-				} catch (SocketException e) {
-					if (soc == null || soc.isClosed()) {
-						finish();
-						return;
+				if (isTargetHost(queryHostName)) {
+
+					if (queryRecType == Type.A) {
+
+						// ToDo GUIにIPv4有効チェックを追加し、無効のときはスキップするようにする。
+						ip = spoofingIpStr;
+						log("Replaced to %s", ip);
 					}
-					errWithStackTrace(e);
-					finish();
-					return;
-				} catch (IOException e) {
+				}
+				if (isTargetHost6(queryHostName)) {
 
-					errWithStackTrace(e);
-				} catch (Exception e) {
+					if (queryRecType == Type.AAAA) {
 
-					errWithStackTrace(e);
-					finish();
-					return;
+						// ToDo GUIにIPv6有効チェックを追加し、無効のときはスキップするようにする。
+						ip = spoofingIp6Str;
+						log("Replaced to %s", ip);
+					}
 				}
+				PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder(ip);
+				res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+
+			} catch (UnknownHostException e) {
+
+				err("[DNS Query] Unknown Host: '%s' [%s]", queryHostName, queryRecTypeName);
+				PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
+				res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+
+			} catch (UnsupportedOperationException e) {
+
+				// Not implemented yet
+				PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
+				res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
+
+			} catch (Exception e) {
+
+				err("[DNS Query] Unknown Error: '%s' [%s]", queryHostName, queryRecTypeName);
+				PrivateDnsResponseBuilder jn = new PrivateDnsResponseBuilder();
+				res = jn.generateReply(smsg, smsgBA, smsgBA.length, null);
 			}
+			soc.send(new DatagramPacket(res, res.length, cAddr, cPort));
 		}
 
 		private boolean isTargetHost(String hostName) throws Exception {
@@ -510,6 +543,19 @@ public class PrivateDNS {
 		}
 	}
 
+	/** 受け付けた問い合わせの数、応答までの時間、回答のキャッシュのヒット数 */
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		long count = queries.get();
+		metrics.put("queries", count);
+		metrics.put("dropped", dropped.get());
+		metrics.put("failed", failed.get());
+		metrics.put("latency_avg_usec", count > 0 ? TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / count) : 0);
+		metrics.put("latency_max_usec", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+		metrics.putAll(resolver.getMetrics());
+		return metrics;
+	}
+
 	private int getListenPort() {
 		try {
 			ConfigInteger portConfig = new ConfigInteger("PrivateDNSPort");
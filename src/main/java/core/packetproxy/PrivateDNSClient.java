@@ -144,9 +144,7 @@ public class PrivateDNSClient {
 		InetAddress hostIP;
 		try {
 
-			Lookup lookup = new Lookup(host, Type.AAAA);
-			// lookup.setResolver(resolver);
-			Record[] records = lookup.run();
+			Record[] records = lookup(host, Type.AAAA);
 			if (records == null) {
 
 				return null;
@@ -161,7 +159,13 @@ public class PrivateDNSClient {
 	}
 
 	public static Record[] getHTTPSRecord(String host) throws Exception {
-		Lookup lookup = new Lookup(host, Type.HTTPS);
+		return lookup(host, Type.HTTPS);
+	}
+
+	/** host の type のレコードを上流のDNSサーバに問い合わせる。見つからない場合は null */
+	public static Record[] lookup(String host, int type) throws TextParseException {
+		Lookup lookup = new Lookup(host, type);
+		// lookup.setResolver(resolver);
 		return lookup.run();
 	}
 }
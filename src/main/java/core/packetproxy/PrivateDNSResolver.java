@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import static packetproxy.model.PropertyChangeEventType.RESOLUTIONS_UPDATED;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * PrivateDNS がクライアントに返す前の、上流のDNSサーバ (またはOS) からの回答をキャッシュする
+ *
+ * <p>
+ * レコードのTTLの間は同じ名前とタイプの問い合わせに上流へ問い合わせずに答え、名前が見つからなかったことも NEGATIVE_TTL_MSEC
+ * の間は覚えておく。同じ名前とタイプの問い合わせが同時に来た場合は、上流への問い合わせを1回にまとめる。
+ * 偽装 (isTargetHost) や HTTPS レコードの生成は問い合わせごとに PrivateDNS が行うので、ここではキャッシュしない。
+ * 名前解決の設定 (Resolutions) が変更されたらキャッシュを全て捨てる。
+ */
+public class PrivateDNSResolver implements PropertyChangeListener {
+
+	/* TTLが分からない回答 (OSのリゾルバで解決したAレコード) を使い回す時間。JavaのDNSキャッシュの既定値に合わせる */
+	static final long DEFAULT_TTL_MSEC = 30 * 1000;
+	/* 名前が見つからなかったことを覚えておく時間。Javaの networkaddress.cache.negative.ttl の既定値に合わせる */
+	static final long NEGATIVE_TTL_MSEC = 10 * 1000;
+	/* レコードのTTLが長すぎる場合の上限 */
+	static final long MAX_TTL_MSEC = 60 * 60 * 1000;
+	/* キャッシュする回答の数 */
+	static final int MAX_ENTRIES = 4096;
+
+	/** 上流から得た回答。address と records がどちらも null の場合は、名前が見つからなかったことを表す */
+	static class Answer {
+
+		final InetAddress address;
+		final Record[] records;
+		final long ttlMsec;
+
+		Answer(InetAddress address, Record[] records, long ttlMsec) {
+			this.address = address;
+			this.records = records;
+			this.ttlMsec = ttlMsec;
+		}
+
+		static Answer negative() {
+			return new Answer(null, null, NEGATIVE_TTL_MSEC);
+		}
+
+		boolean isNegative() {
+			return address == null && records == null;
+		}
+	}
+
+	interface Loader {
+
+		Answer load() throws Exception;
+	}
+
+	private static class Entry {
+
+		final Answer answer;
+		final long expiresAt;
+
+		Entry(Answer answer, long expiresAt) {
+			this.answer = answer;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final LongSupplier clock;
+	private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private final Map<String, CompletableFuture<Answer>> inflight = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public PrivateDNSResolver() {
+		this(System::currentTimeMillis);
+	}
+
+	PrivateDNSResolver(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	/** Aレコードを解決する。見つからない場合は UnknownHostException */
+	public InetAddress resolve(String host) throws Exception {
+		Answer answer = lookup(Type.A, host, () -> {
+			try {
+
+				InetAddress addr = PrivateDNSClient.getByName(host);
+				return addr instanceof Inet6Address ? Answer.negative() : new Answer(addr, null, DEFAULT_TTL_MSEC);
+			} catch (UnknownHostException e) {
+
+				return Answer.negative();
+			}
+		});
+		if (answer.isNegative()) {
+
+			throw new UnknownHostException(host);
+		}
+		return answer.address;
+	}
+
+	/** AAAAレコードを解決する。見つからない場合は UnknownHostException */
+	public InetAddress resolve6(String host) throws Exception {
+		Answer answer = lookup(Type.AAAA, host, () -> {
+			Record[] records = PrivateDNSClient.lookup(host, Type.AAAA);
+			if (records == null || records.length == 0) {
+
+				return Answer.negative();
+			}
+			return new Answer(((AAAARecord) records[0]).getAddress(), null, ttlOf(records));
+		});
+		if (answer.isNegative()) {
+
+			throw new UnknownHostException(host);
+		}
+		return answer.address;
+	}
+
+	/** HTTPSレコードを取得する。見つからない場合は null */
+	public Record[] resolveHTTPS(String host) throws Exception {
+		Answer answer = lookup(Type.HTTPS, host, () -> {
+			Record[] records = PrivateDNSClient.getHTTPSRecord(host);
+			if (records == null || records.length == 0) {
+
+				return Answer.negative();
+			}
+			return new Answer(null, records, ttlOf(records));
+		});
+		return answer.records;
+	}
+
+	private static long ttlOf(Record[] records) {
+		long ttl = Long.MAX_VALUE;
+		for (Record record : records) {
+
+			ttl = Math.min(ttl, record.getTTL());
+		}
+		return Math.min(ttl * 1000, MAX_TTL_MSEC);
+	}
+
+	/**
+	 * キャッシュにあればそれを返し、なければ loader で上流に問い合わせる。同じ問い合わせを実行中のスレッドがあれば、その結果を待つ。
+	 * loader が例外を投げた場合はキャッシュせず、待っていたスレッドにも同じ例外を投げる
+	 */
+	Answer lookup(int type, String host, Loader loader) throws Exception {
+		String key = Type.string(type) + " " + host.toLowerCase();
+		synchronized (cache) {
+
+			Entry entry = cache.get(key);
+			if (entry != null && entry.expiresAt > clock.getAsLong()) {
+
+				(entry.answer.isNegative() ? negativeHits : hits).incrementAndGet();
+				return entry.answer;
+			}
+		}
+		CompletableFuture<Answer> future = new CompletableFuture<>();
+		CompletableFuture<Answer> running = inflight.putIfAbsent(key, future);
+		if (running != null) {
+
+			coalesced.incrementAndGet();
+			try {
+
+				return running.get();
+			} catch (ExecutionException e) {
+
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		misses.incrementAndGet();
+		try {
+
+			Answer answer = loader.load();
+			if (answer.ttlMsec > 0) {
+
+				synchronized (cache) {
+
+					cache.put(key, new Entry(answer, clock.getAsLong() + answer.ttlMsec));
+				}
+			}
+			future.complete(answer);
+			return answer;
+		} catch (Exception e) {
+
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+
+			inflight.remove(key, future);
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+
+			cache.clear();
+		}
+	}
+
+	@Override
+	public void propertyChange(PropertyChangeEvent evt) {
+		if (RESOLUTIONS_UPDATED.matches(evt)) {
+
+			clear();
+		}
+	}
+
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		synchronized (cache) {
+
+			metrics.put("cache_entries", (long) cache.size());
+		}
+		metrics.put("cache_hits", hits.get());
+		metrics.put("cache_negative_hits", negativeHits.get());
+		metrics.put("cache_misses", misses.get());
+		metrics.put("coalesced", coalesced.get());
+		return metrics;
+	}
+}
@@ -18,6 +18,7 @@ package packetproxy;
 import static packetproxy.util.Logging.errWithStackTrace;
 import static packetproxy.util.Logging.log;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import packetproxy.common.Endpoint;
 import packetproxy.common.EndpointFactory;
 import packetproxy.common.SSLSocketEndpoint;
 import packetproxy.common.SocketEndpoint;
+import packetproxy.common.UpstreamConnectionPool;
 import packetproxy.http.Http;
 import packetproxy.http.Https;
 import packetproxy.model.ListenPort;
@@ -125,22 +127,17 @@ public class ProxyHttp extends Proxy {
 
 								SocketEndpoint client_e = new SocketEndpoint(client);
 								Server next = listen_info.getServer();
-								Endpoint server_e = null;
+								InetSocketAddress server_addr;
+								Server s = null;
 
 								if (next != null) { // connect to upstream proxy
 
-									server_e = new SocketEndpoint(next.getAddress());
+									server_addr = next.getAddress();
 								} else {
 
 									http.disableProxyFormatUrl(); // direct connect!
-									Server s = Servers.getInstance().queryByAddress(http.getServerAddr());
-									if (s != null) {
-
-										server_e = EndpointFactory.createFromServer(s);
-									} else {
-
-										server_e = new SocketEndpoint(http.getServerAddr());
-									}
+									server_addr = http.getServerAddr();
+									s = Servers.getInstance().queryByAddress(server_addr);
 								}
 
 								boolean flag_keepalive = false;
@@ -148,10 +145,12 @@ public class ProxyHttp extends Proxy {
 
 									flag_keepalive = true;
 								}
-								http.getHeader().update("Connection", "close");
+								// サーバとのコネクションはクライアントとは別に keep-alive にして、次のリクエストに使い回す
+								http.getHeader().update("Connection", "keep-alive");
 								http.getHeader().removeAll("Proxy-Connection");
 
-								Http response = Http.create(createConnection(client_e, server_e, http.toByteArray()));
+								Http response = Http
+										.create(createConnection(client_e, server_addr, s, http.toByteArray()));
 
 								if (response.getHeader().getAll("Connection").contains("keep-alive")
 										&& flag_keepalive == true) {
@@ -188,14 +187,25 @@ public class ProxyHttp extends Proxy {
 		listen_socket.close();
 	}
 
-	private byte[] createConnection(Endpoint client, Endpoint server, byte[] input_data) throws Exception {
-		Server s = Servers.getInstance().queryByAddress(server.getAddress());
-		DuplexSync duplex = (s != null)
-				? DuplexFactory.createDuplexSync(client, server, s.getEncoder(), "http/1.1")
-				: DuplexFactory.createDuplexSync(client, server, "HTTP", "http/1.1");
-		duplex.send(input_data);
-		byte[] output_data = duplex.receive();
-		duplex.close();
-		return output_data;
+	/** server は server_addr のサーバ設定 (なければ null)。サーバとのコネクションは UpstreamConnectionPool から借りて返す */
+	private byte[] createConnection(Endpoint client, InetSocketAddress server_addr, Server server, byte[] input_data)
+			throws Exception {
+		UpstreamConnectionPool pool = UpstreamConnectionPool.getInstance();
+		Endpoint server_e = pool.acquire(server_addr, server);
+		boolean reusable = false;
+		try {
+
+			Server s = Servers.getInstance().queryByAddress(server_addr);
+			DuplexSync duplex = (s != null)
+					? DuplexFactory.createDuplexSync(client, server_e, s.getEncoder(), "http/1.1")
+					: DuplexFactory.createDuplexSync(client, server_e, "HTTP", "http/1.1");
+			duplex.send(input_data);
+			byte[] output_data = duplex.receive();
+			reusable = !duplex.hasBufferedServerData() && UpstreamConnectionPool.isReusable(input_data, output_data);
+			return output_data;
+		} finally {
+
+			pool.release(server_e, reusable);
+		}
 	}
 }
@@ -22,12 +22,14 @@ import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.net.ssl.SNIServerName;
 import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.common.*;
@@ -41,6 +43,8 @@ import packetproxy.model.Servers;
 public class ProxySSLTransparent extends Proxy {
 	private ListenPort listen_info;
 	private ServerSocket listen_socket;
+	/* listenを閉じたときに一緒に閉じる。閉じられたソケットは次の accept のときに取り除く */
+	private Set<Socket> clients = ConcurrentHashMap.newKeySet();
 
 	public ProxySSLTransparent(ServerSocket listen_socket, ListenPort listen_info) throws Exception {
 		this.listen_socket = listen_socket;
@@ -53,13 +57,24 @@ public class ProxySSLTransparent extends Proxy {
 
 	@Override
 	public void run() {
-		List<Socket> clients = new ArrayList<Socket>();
+		HandshakeExecutor executor;
+		try {
+
+			executor = HandshakeExecutor.getInstance();
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+			return;
+		}
+		int proxyPort = listen_socket.getLocalPort();
 		while (!listen_socket.isClosed()) {
 			try {
 				Socket client = listen_socket.accept();
-				clients.add(client);
 				log("[ProxySSLTransparent]: accept");
-				checkTransparentSSLProxy(client, listen_socket.getLocalPort());
+				clients.removeIf(Socket::isClosed);
+				clients.add(client);
+				/* ClientHelloの受信からハンドシェイクまでは別スレッドで行い、すぐに次の接続を受け付ける */
+				executor.execute(client, () -> checkTransparentSSLProxy(executor, client, proxyPort));
 			} catch (Exception e) {
 
 				errWithStackTrace(e);
@@ -75,13 +90,17 @@ public class ProxySSLTransparent extends Proxy {
 		}
 	}
 
-	private void checkTransparentSSLProxy(Socket client, int proxyPort) throws Exception {
+	private void checkTransparentSSLProxy(HandshakeExecutor executor, Socket client, int proxyPort)
+			throws Exception {
 		InputStream ins = client.getInputStream();
 
 		byte[] buffer = new byte[0xFF];
 		int position = 0;
 		SSLCapabilities capabilities = null;
 
+		long start = System.nanoTime();
+		client.setSoTimeout(executor.getClientHelloTimeoutMsec());
+
 		// Read the header of TLS record
 		while (position < SSLExplorer.RECORD_HEADER_SIZE) {
 
@@ -118,6 +137,8 @@ public class ProxySSLTransparent extends Proxy {
 
 			throw new Exception("capabilities not found.");
 		}
+		client.setSoTimeout(0);
+		executor.record(HandshakeExecutor.Stage.CLIENT_HELLO, start);
 
 		List<SNIServerName> serverNames = capabilities.getServerNames();
 		if (serverNames.isEmpty()) {
@@ -145,10 +166,12 @@ public class ProxySSLTransparent extends Proxy {
 				throw new Exception(I18nString.get("[Error] SNI header was not found in SSL packets."));
 			}
 			WrapEndpoint wep_e = new WrapEndpoint(client_e, ArrayUtils.subarray(buff, 0, length));
-			InetSocketAddress serverAddr = new InetSocketAddress(PrivateDNSClient.getByName(serverName), proxyPort);
+			InetSocketAddress serverAddr = new InetSocketAddress(resolve(executor, serverName), proxyPort);
 			// SNIヘッダが無い場合、SSLPassThroughは使えない
 			Server server = Servers.getInstance().queryByHostNameAndPort(serverName, proxyPort);
+			start = System.nanoTime();
 			SSLSocketEndpoint server_e = new SSLSocketEndpoint(serverAddr, serverName, null);
+			executor.record(HandshakeExecutor.Stage.HANDSHAKE, start);
 			createConnection(wep_e, server_e, server);
 		} else {
 
@@ -173,35 +196,49 @@ public class ProxySSLTransparent extends Proxy {
 						serverAddr = listen_info.getServer().getAddress();
 					} else {
 
-						serverAddr = new InetSocketAddress(PrivateDNSClient.getByName(serverName), proxyPort);
+						serverAddr = new InetSocketAddress(resolve(executor, serverName), proxyPort);
+					}
+					/* 接続できるかの確認結果はしばらくキャッシュされる */
+					if (!executor.probe(serverAddr)) {
+
+						throw new Exception(String.format("cannot connect to %s", serverAddr));
 					}
-					Socket s = new Socket();
-					s.connect(serverAddr, 500); /* timeout: 500ms */
-					s.close();
 				} catch (Exception e) {
 
 					/* listenポート番号と同じポート番号へアクセスできないので443番にフォールバックする */
-					serverAddr = new InetSocketAddress(PrivateDNSClient.getByName(serverName), 443);
+					serverAddr = new InetSocketAddress(resolve(executor, serverName), 443);
 					log("[Fallback port] %d -> 443", proxyPort);
 				}
 
 				if (SSLPassThroughs.getInstance().includes(serverName, listen_info.getPort())) {
 
+					start = System.nanoTime();
 					SocketEndpoint server_e = new SocketEndpoint(serverAddr);
+					executor.record(HandshakeExecutor.Stage.CONNECT, start);
 					SocketEndpoint client_e = new SocketEndpoint(client, bais);
 					DuplexAsync duplex = new DuplexAsync(client_e, server_e);
 					duplex.start();
 				} else {
 
 					Server server = Servers.getInstance().queryByHostNameAndPort(serverName, serverAddr.getPort());
+					/* サーバへの接続は両側のハンドシェイクの途中 (ALPNの選択時) に行われるので、HANDSHAKEに含まれる */
+					start = System.nanoTime();
 					SSLSocketEndpoint[] eps = EndpointFactory.createBothSideSSLEndpoints(client, bais, serverAddr, null,
 							serverName, listen_info.getCA().get());
+					executor.record(HandshakeExecutor.Stage.HANDSHAKE, start);
 					createConnection(eps[0], eps[1], server);
 				}
 			}
 		}
 	}
 
+	private static InetAddress resolve(HandshakeExecutor executor, String serverName) throws Exception {
+		long start = System.nanoTime();
+		InetAddress addr = PrivateDNSClient.getByName(serverName);
+		executor.record(HandshakeExecutor.Stage.DNS, start);
+		return addr;
+	}
+
 	public void createConnection(SSLSocketEndpoint client_e, SSLSocketEndpoint server_e, Server server)
 			throws Exception {
 		DuplexAsync duplex = null;
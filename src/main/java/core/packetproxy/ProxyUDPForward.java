@@ -19,7 +19,7 @@ import static packetproxy.util.Logging.errWithStackTrace;
 import static packetproxy.util.Logging.log;
 
 import java.net.InetSocketAddress;
-import packetproxy.common.Endpoint;
+import packetproxy.common.UDPConn;
 import packetproxy.common.UDPServerSocket;
 import packetproxy.common.UDPSocketEndpoint;
 import packetproxy.model.ListenPort;
@@ -40,11 +40,25 @@ public class ProxyUDPForward extends Proxy {
 
 			while (true) {
 
-				Endpoint client_endpoint = listen_socket.accept();
+				UDPConn client_endpoint = listen_socket.accept();
+				if (client_endpoint == null) {
+
+					break;
+				}
 				log("accept");
 
 				InetSocketAddress serverAddr = listen_info.getServer().getAddress();
 				UDPSocketEndpoint server_endpoint = new UDPSocketEndpoint(serverAddr);
+				// 一定時間通信がなかったフローは、サーバ側のソケットとスレッドも閉じる
+				client_endpoint.addCloseListener(() -> {
+					try {
+
+						server_endpoint.close();
+					} catch (Exception e) {
+
+						errWithStackTrace(e);
+					}
+				});
 
 				DuplexAsync duplex = DuplexFactory.createDuplexAsync(client_endpoint, server_endpoint,
 						listen_info.getServer().getEncoder());
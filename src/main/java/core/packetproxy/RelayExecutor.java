@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simplex / DuplexAsync の中継ループを実行する共有スレッドプール
+ *
+ * <p>
+ * 接続ごとにスレッドを生成・破棄せず、終了した中継ループのスレッドを次の接続で再利用する。
+ * 受信途中のパケットのタイムアウトは1本の監視スレッドでまとめて扱うため、読み込みのたびに別スレッドへ処理を渡す必要はない。
+ *
+ * <p>
+ * 中継ループは Endpoint の InputStream をブロッキングで読むので、実行中の中継ループは1つずつスレッドを使う
+ * (1接続あたり、方向ごとの読み込みとフロー制御の送り出しで4本)。SSLSocket やパイプの Endpoint は Selector
+ * で待てないため、スレッド数を接続数から切り離すには Endpoint を SocketChannel と SSLEngine で作り直す必要がある。
+ */
+public class RelayExecutor {
+
+	private static RelayExecutor instance;
+
+	public static synchronized RelayExecutor getInstance() {
+		if (instance == null) {
+
+			instance = new RelayExecutor();
+		}
+		return instance;
+	}
+
+	private final ExecutorService relayPool;
+	private final ScheduledThreadPoolExecutor watchdog;
+	private final AtomicInteger activeRelays = new AtomicInteger();
+	private final AtomicLong totalRelays = new AtomicLong();
+
+	private RelayExecutor() {
+		relayPool = Executors.newCachedThreadPool(createThreadFactory("PacketProxy-relay-"));
+		watchdog = new ScheduledThreadPoolExecutor(1, createThreadFactory("PacketProxy-relay-watchdog-"));
+		// 読み込みが完了するたびにキャンセルされるので、キャンセル済みのタスクはキューから取り除く
+		watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	private static ThreadFactory createThreadFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	public void execute(Runnable relay) {
+		totalRelays.incrementAndGet();
+		relayPool.execute(() -> {
+			activeRelays.incrementAndGet();
+			try {
+
+				relay.run();
+			} finally {
+
+				activeRelays.decrementAndGet();
+			}
+		});
+	}
+
+	public ScheduledFuture<?> scheduleTimeout(Runnable task, long timeoutMillis) {
+		return watchdog.schedule(task, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** 実行中の中継ループの数 */
+	public int getActiveRelays() {
+		return activeRelays.get();
+	}
+
+	/** これまでに開始した中継ループの数 */
+	public long getTotalRelays() {
+		return totalRelays.get();
+	}
+}
@@ -19,29 +19,35 @@ import static packetproxy.util.Logging.errWithStackTrace;
 import static packetproxy.util.Logging.log;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.util.Arrays;
 import java.util.EventListener;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
 import javax.net.ssl.SSLException;
 import javax.swing.event.EventListenerList;
-import org.apache.commons.lang3.ArrayUtils;
+import packetproxy.common.ReceiveBuffer;
 
-class Simplex extends Thread {
+class Simplex implements Runnable {
 
 	private final int TIMEOUT = 30 * 1000;
+	private final int READ_SIZE = 100 * 1024;
 	private InputStream in;
 	private OutputStream out;
 	private boolean flag_enable_event;
 	private boolean flag_break_loop = false;
 	private boolean flag_close = true;
-	private final byte[] input_data;
+	private volatile boolean flag_timed_out = false;
+	private boolean flag_reading = false;
+	private Thread relay_thread;
+	private final Object read_lock = new Object();
+	/* 中継スレッドだけが更新する */
+	private volatile long received_bytes = 0;
+	private volatile long received_packets = 0;
+	private Runnable on_finished;
 
 	protected EventListenerList simplexEventListenerList = new EventListenerList();
 
@@ -55,6 +61,9 @@ class Simplex extends Thread {
 
 		int onPacketReceived(byte[] data) throws Exception;
 
+		/** data の [offset, offset + length) が未処理の受信データ。配列をコピーせずにパケットの区切りを探すために使う */
+		int onPacketReceived(byte[] data, int offset, int length) throws Exception;
+
 		byte[] onChunkReceived(byte[] data) throws Exception;
 
 		byte[] onChunkSend(byte[] data) throws Exception;
@@ -86,6 +95,11 @@ class Simplex extends Thread {
 			return data.length;
 		}
 
+		@Override
+		public int onPacketReceived(byte[] data, int offset, int length) throws Exception {
+			return onPacketReceived(Arrays.copyOfRange(data, offset, offset + length));
+		}
+
 		@Override
 		public byte[] onChunkReceived(byte[] data) throws Exception {
 			return data;
@@ -114,15 +128,19 @@ class Simplex extends Thread {
 	}
 
 	public int callOnPacketReceived(byte[] data) throws Exception {
+		return callOnPacketReceived(data, 0, data.length);
+	}
+
+	public int callOnPacketReceived(byte[] data, int offset, int length) throws Exception {
 		if (!isEnabledSimplexEvent()) {
 
-			return data.length;
+			return length;
 		}
 		for (SimplexEventListener listener : simplexEventListenerList.getListeners(SimplexEventListener.class)) {
 
-			return listener.onPacketReceived(data);
+			return listener.onPacketReceived(data, offset, length);
 		}
-		return data.length;
+		return length;
 	}
 
 	public void callOnChunkArrived(byte[] data) throws Exception {
@@ -187,7 +205,6 @@ class Simplex extends Thread {
 	public Simplex(InputStream in, OutputStream out) throws Exception {
 		this.in = in;
 		this.out = out;
-		input_data = new byte[100 * 1024];
 		enableSimplexEvent();
 	}
 
@@ -195,54 +212,54 @@ class Simplex extends Thread {
 	public void run() {
 		if (in == null) {
 
+			notifyFinished();
 			return;
 		}
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		Callable<Integer> readTask = new Callable<Integer>() {
+		synchronized (read_lock) {
 
-			public Integer call() throws Exception {
-				int ret;
-				try {
+			relay_thread = Thread.currentThread();
+		}
+		// 区切りが見つかるまで受信データを溜め続けるため、toByteArray()で毎回全体をコピーしないバッファを使う
+		ReceiveBuffer buffer = new ReceiveBuffer(READ_SIZE);
+		RelayExecutor relay = RelayExecutor.getInstance();
 
-					ret = in.read(input_data);
-				} catch (SSLException e) {
+		try {
 
-					// Logging.err(String.format("SSLException: %s", e.getMessage()));
-					ret = -1; // should be finished
-				} catch (SocketException e) {
+			while (!flag_break_loop) {
 
-					// Logging.err(String.format("SocketException: %s", e.getMessage()));
-					ret = -1; // should be finished
-				}
-				return ret;
-			}
-		};
+				int timeout = buffer.size() > 0 ? TIMEOUT : 24 * 60 * 60 * 1000;
+				ScheduledFuture<?> watchdog = relay.scheduleTimeout(this::onReadTimeout, timeout);
+				int length;
+				try {
 
-		try {
+					synchronized (read_lock) {
 
-			while (!flag_break_loop) {
+						flag_reading = true;
+					}
+					length = readInput(buffer);
+				} finally {
 
-				Future<Integer> future = executor.submit(readTask);
-				int timeout = bout.size() > 0 ? TIMEOUT : 24 * 60 * 60 * 1000;
-				int length = future.get(timeout, TimeUnit.MILLISECONDS);
-				if (length == -1) {
+					synchronized (read_lock) {
+
+						flag_reading = false;
+					}
+					watchdog.cancel(false);
+				}
+				if (length == -1 || flag_timed_out) {
 
 					break;
 				}
+				received_bytes += length;
 
-				bout.write(input_data, 0, length);
-				while (bout.size() > 0) {
+				while (buffer.size() > 0) {
 
-					int accepted_input_size = callOnPacketReceived(bout.toByteArray());
-					if (accepted_input_size < 0 || accepted_input_size > bout.size()) {
+					int accepted_input_size = callOnPacketReceived(buffer.array(), buffer.readIndex(), buffer.size());
+					if (accepted_input_size < 0 || accepted_input_size > buffer.size()) {
 
 						break;
 					}
-					byte[] accepted_array = ArrayUtils.subarray(bout.toByteArray(), 0, accepted_input_size);
-					byte[] unaccepted_array = ArrayUtils.subarray(bout.toByteArray(), accepted_input_size, bout.size());
-					bout.reset();
-					bout.write(unaccepted_array);
+					byte[] accepted_array = buffer.read(accepted_input_size);
+					received_packets++;
 
 					callOnChunkArrived(accepted_array);
 
@@ -264,18 +281,13 @@ class Simplex extends Thread {
 					}
 				}
 			}
-		} catch (TimeoutException e) {
-
-			errWithStackTrace(e);
-			log("-----");
-			log(new String(bout.toByteArray()));
-			log("-----");
-			try {
-
-				in.close();
-			} catch (Exception e1) {
+			if (flag_timed_out) {
 
-				errWithStackTrace(e);
+				errWithStackTrace(new TimeoutException(
+						String.format("no data received for %d ms while a packet is incomplete", TIMEOUT)));
+				log("-----");
+				log(new String(buffer.array(), buffer.readIndex(), buffer.size()));
+				log("-----");
 			}
 		} catch (SSLException e) {
 
@@ -288,7 +300,12 @@ class Simplex extends Thread {
 			errWithStackTrace(e);
 		} finally {
 
-			executor.shutdownNow();
+			synchronized (read_lock) {
+
+				relay_thread = null;
+				// タイムアウト処理による割り込みを、スレッドプールの次のタスクに持ち越さない
+				Thread.interrupted();
+			}
 			if (flag_close) {
 
 				try {
@@ -310,9 +327,77 @@ class Simplex extends Thread {
 					errWithStackTrace(e1);
 				}
 			}
+			notifyFinished();
+		}
+	}
+
+	/** 中継ループが終わったときに、中継スレッドで呼ばれる */
+	public void setOnFinished(Runnable on_finished) {
+		this.on_finished = on_finished;
+	}
+
+	private void notifyFinished() {
+		if (on_finished != null) {
+
+			on_finished.run();
+		}
+	}
+
+	public long getReceivedBytes() {
+		return received_bytes;
+	}
+
+	public long getReceivedPackets() {
+		return received_packets;
+	}
+
+	private int readInput(ReceiveBuffer buffer) throws Exception {
+		try {
+
+			return buffer.readFrom(in, READ_SIZE);
+		} catch (SSLException e) {
+
+			// Logging.err(String.format("SSLException: %s", e.getMessage()));
+			return -1; // should be finished
+		} catch (SocketException e) {
+
+			// Logging.err(String.format("SocketException: %s", e.getMessage()));
+			return -1; // should be finished
+		} catch (IOException e) {
+
+			if (flag_timed_out) {
+
+				return -1; // onReadTimeout()で閉じられた
+			}
+			throw e;
+		}
+	}
+
+	/* 監視スレッドから呼ばれる。読み込み中の in を閉じて、ブロックしている read を終わらせる */
+	private void onReadTimeout() {
+		synchronized (read_lock) {
+
+			if (!flag_reading || relay_thread == null) {
+
+				return;
+			}
+			flag_timed_out = true;
+			try {
+
+				in.close();
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+			// PipedInputStream等はcloseしても読み込みが終わらないため割り込む
+			relay_thread.interrupt();
 		}
 	}
 
+	public void start() {
+		RelayExecutor.getInstance().execute(this);
+	}
+
 	public void send(byte[] input_data) throws Exception {
 		input_data = callOnChunkSend(input_data);
 		if (out != null && input_data != null) {
@@ -20,10 +20,13 @@ import static packetproxy.util.Logging.err;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,10 +34,16 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import org.apache.commons.lang3.ArrayUtils;
 
 public class Protobuf3 {
 
+	/* ObjectMapper の生成は重いので使い回す。設定を変えなければスレッドセーフ */
+	private static final ObjectWriter prettyWriter = new ObjectMapper().writerWithDefaultPrettyPrinter();
+	private static final ObjectMapper strictMapper = new ObjectMapper()
+			.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
 	public static class Key {
 
 		public static enum Type {
@@ -94,29 +103,37 @@ public class Protobuf3 {
 	}
 
 	public static boolean validateVar(byte[] input, int[] outLength) {
-		long var = 0;
-		int i = 0;
-		if (input.length == 0) {
+		int length = varLength(input, 0, input.length);
+		if (length < 0) {
 
 			return false;
 		}
-		while (0 < input.length) {
+		if (outLength != null)
+			outLength[0] = length;
+		return true;
+	}
 
-			long nextB = input[i] & 0xff;
-			var = var | ((nextB & 0x7f) << (7 * i));
+	/* input の [pos, limit) の先頭にある varint の長さ。正しい varint でなければ -1 */
+	private static int varLength(byte[] input, int pos, int limit) {
+		if (pos >= limit) {
+
+			return -1;
+		}
+		int i = 0;
+		while (true) {
+
+			int nextB = input[pos + i] & 0xff;
 			i++;
-			if (i >= 2 && ((nextB & 0xff) == 0)) // 0xf4 00 のように 00で終わるケース。これは、0x74になるべき
-				return false;
+			if (i >= 2 && nextB == 0) // 0xf4 00 のように 00で終わるケース。これは、0x74になるべき
+				return -1;
 			if ((nextB & 0x80) == 0)
 				break;
 			if (i > 9) // max 64bit (long size)
-				return false;
-			if (i == input.length)
-				return false;
+				return -1;
+			if (i == limit - pos)
+				return -1;
 		}
-		if (outLength != null)
-			outLength[0] = i;
-		return true;
+		return i;
 	}
 
 	public static long decodeVar(ByteArrayInputStream input) {
@@ -191,25 +208,27 @@ public class Protobuf3 {
 
 	/* 注意：repeatedデータが、inputバッファとぴったり合わないとfalse */
 	public static boolean validateRepeatedStrictly(byte[] input) {
-		int i = 0;
+		return validateRepeatedStrictly(input, 0, input.length);
+	}
+
+	private static boolean validateRepeatedStrictly(byte[] input, int pos, int limit) {
 		int entries = 0;
-		while (i < input.length) {
+		while (pos < limit) {
 
-			byte[] subInput = ArrayUtils.subarray(input, i, input.length);
-			int[] varLen = new int[1];
-			if (validateVar(subInput, varLen) == false) {
+			int varLen = varLength(input, pos, limit);
+			if (varLen < 0) {
 
 				return false;
 			}
-			i += varLen[0];
+			pos += varLen;
 			entries++;
-		}
-		if (entries > 64) {
-			/* 64エントリを超える場合はrepeatedとみなさずbytesとみなす */
+			if (entries > 64) {
+				/* 64エントリを超える場合はrepeatedとみなさずbytesとみなす */
 
-			return false;
+				return false;
+			}
 		}
-		return i == input.length;
+		return true;
 	}
 
 	public static List<Object> decodeRepeated(ByteArrayInputStream input) {
@@ -227,103 +246,210 @@ public class Protobuf3 {
 				.collect(Collectors.joining(":"));
 	}
 
+	private static String decodeBytes(byte[] input, int offset, int length) {
+		StringBuilder sb = new StringBuilder(Math.max(0, length * 3 - 1));
+		for (int i = 0; i < length; i++) {
+
+			if (i > 0) {
+
+				sb.append(':');
+			}
+			int b = input[offset + i] & 0xff;
+			sb.append(HEX[b >> 4]).append(HEX[b & 0x0f]);
+		}
+		return sb.toString();
+	}
+
 	public static byte[] encodeBytes(String bytes) throws Exception {
 		String hexStr = bytes.replace(":", "");
 		return new Binary(new Binary.HexString(hexStr)).toByteArray();
 	}
 
 	public static String decode(byte[] input) throws Exception {
-		ByteArrayInputStream data = new ByteArrayInputStream(input);
 		Map<String, Object> messages = new TreeMap<>();
-		decodeData(data, messages);
-		ObjectMapper mapper = new ObjectMapper();
-		return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(messages);
+		decodeData(new Cursor(input, 0, input.length), messages);
+		return prettyWriter.writeValueAsString(messages);
 	}
 
 	public static byte[] encode(String input) throws Exception {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
-		HashMap<String, Object> messages = mapper.readValue(input, new TypeReference<HashMap<String, Object>>() {
-		});
+		HashMap<String, Object> messages = strictMapper.readValue(input,
+				new TypeReference<HashMap<String, Object>>() {
+				});
 		return encodeData(messages);
 	}
 
 	public static boolean decodeData(ByteArrayInputStream data, Map<String, Object> messages) throws Exception {
+		byte[] input = data.readAllBytes();
+		return decodeData(new Cursor(input, 0, input.length), messages);
+	}
+
+	/**
+	 * input の [pos, limit) を読み進める。埋め込まれたメッセージも同じ配列の範囲として読むので、部分配列をコピーしない
+	 */
+	private static class Cursor {
+
+		private final byte[] input;
+		private int pos;
+		private final int limit;
+
+		Cursor(byte[] input, int pos, int limit) {
+			this.input = input;
+			this.pos = pos;
+			this.limit = limit;
+		}
+
+		int available() {
+			return limit - pos;
+		}
+
+		boolean validateVar() {
+			return varLength(input, pos, limit) > 0;
+		}
+
+		long readVar() {
+			long var = 0;
+			for (long i = 0; pos < limit; i++) {
+
+				long nextB = input[pos++] & 0xff;
+				var = var | ((nextB & 0x7f) << (7 * i));
+				if ((nextB & 0x80) == 0)
+					break;
+			}
+			return var;
+		}
+
+		long readBit64() {
+			long bit64 = 0;
+			for (int idx = 0; idx < 8; idx++) {
+
+				long nextB = input[pos++] & 0xff;
+				bit64 = bit64 | (nextB << (8 * idx));
+			}
+			return bit64;
+		}
+
+		int readBit32() {
+			int bit32 = 0;
+			for (int idx = 0; idx < 4; idx++) {
+
+				int nextB = input[pos++] & 0xff;
+				bit32 = bit32 | (nextB << (8 * idx));
+			}
+			return bit32;
+		}
+	}
+
+	/* "%04x:%04x:type" と同じ形式のキー */
+	private static String messageKey(long fieldNumber, int ordinary, String type) {
+		StringBuilder sb = new StringBuilder(10 + type.length());
+		appendHex4(sb, Long.toHexString(fieldNumber));
+		sb.append(':');
+		appendHex4(sb, Integer.toHexString(ordinary));
+		return sb.append(':').append(type).toString();
+	}
+
+	private static void appendHex4(StringBuilder sb, String hex) {
+		for (int i = hex.length(); i < 4; i++) {
+
+			sb.append('0');
+		}
+		sb.append(hex);
+	}
+
+	private static boolean decodeData(Cursor data, Map<String, Object> messages) throws Exception {
 		int ordinary = 0;
 		while (data.available() > 0) {
 
-			Key key = new Key(data);
+			Key key = new Key(data.readVar());
 
 			switch (key.getWireType()) {
 				case Variant : {
-					if (validateVar(data) == false) {
+					if (data.validateVar() == false) {
 
 						return false;
 					}
-					long variant = decodeVar(data);
-					messages.put(String.format("%04x:%04x:Varint", key.getFieldNumber(), ordinary), variant);
+					long variant = data.readVar();
+					messages.put(messageKey(key.getFieldNumber(), ordinary, "Varint"), variant);
 					break;
 				}
 				case Bit32 : {
-					if (validateBit32(data) == false) {
+					if (data.available() < 4) {
 
 						return false;
 					}
-					int bit32 = decodeBit32(data);
-					messages.put(String.format("%04x:%04x:32-bit", key.getFieldNumber(), ordinary), bit32);
+					int bit32 = data.readBit32();
+					messages.put(messageKey(key.getFieldNumber(), ordinary, "32-bit"), bit32);
 					break;
 				}
 				case Bit64 : {
-					if (validateBit64(data) == false) {
+					if (data.available() < 8) {
 
 						return false;
 					}
-					long bit64 = decodeBit64(data);
-					messages.put(String.format("%04x:%04x:64-bit", key.getFieldNumber(), ordinary), bit64);
+					long bit64 = data.readBit64();
+					messages.put(messageKey(key.getFieldNumber(), ordinary, "64-bit"), bit64);
 					break;
 				}
 				case LengthDelimited : {
-					if (validateVar(data) == false) {
+					if (data.validateVar() == false) {
 
 						return false;
 					}
-					long length = decodeVar(data);
+					long length = data.readVar();
 					if (length > data.available()) {
 
 						return false;
 					}
 
-					byte[] rawSubData = new byte[(int) length];
-					data.read(rawSubData, 0, (int) length);
+					byte[] input = data.input;
+					int offset = data.pos;
+					int size = (int) length;
+					if (length < 0) {
+						/* 10バイトの varint で負になった長さは、以前の実装 (new byte[(int) length] に読み込む) と同じく扱う */
+
+						byte[] rawSubData = new byte[size];
+						int read = Math.min(size, data.available());
+						System.arraycopy(data.input, data.pos, rawSubData, 0, read);
+						input = rawSubData;
+						offset = 0;
+						data.pos += read;
+					} else {
+
+						data.pos += size;
+					}
 
 					/* String */
-					if (StringUtils.validatePrintableUTF8(rawSubData)) {
+					if (StringUtils.validatePrintableUTF8(input, offset, size)) {
 
-						messages.put(String.format("%04x:%04x:String", key.getFieldNumber(), ordinary),
-								new String(rawSubData, "UTF-8"));
+						messages.put(messageKey(key.getFieldNumber(), ordinary, "String"),
+								new String(input, offset, size, StandardCharsets.UTF_8));
 						break;
 					}
 
 					/* Data */
 					Map<String, Object> subMsg = new TreeMap<>();
-					if (decodeData(new ByteArrayInputStream(rawSubData), subMsg) == true) {
+					if (decodeData(new Cursor(input, offset, offset + size), subMsg) == true) {
 
-						messages.put(String.format("%04x:%04x:embedded message", key.getFieldNumber(), ordinary),
-								subMsg);
+						messages.put(messageKey(key.getFieldNumber(), ordinary, "embedded message"), subMsg);
 						break;
 					}
 
 					/* Repeated */
-					if (validateRepeatedStrictly(rawSubData) == true) {
+					if (validateRepeatedStrictly(input, offset, offset + size) == true) {
 
-						List<Object> list = decodeRepeated(new ByteArrayInputStream(rawSubData));
-						messages.put(String.format("%04x:%04x:repeated", key.getFieldNumber(), ordinary), list);
+						Cursor repeated = new Cursor(input, offset, offset + size);
+						List<Object> list = new ArrayList<>();
+						while (repeated.available() > 0) {
+
+							list.add(repeated.readVar());
+						}
+						messages.put(messageKey(key.getFieldNumber(), ordinary, "repeated"), list);
 						break;
 					}
 
 					/* Bytes */
-					String result = decodeBytes(rawSubData);
-					messages.put(String.format("%04x:%04x:bytes", key.getFieldNumber(), ordinary), result);
+					String result = decodeBytes(input, offset, size);
+					messages.put(messageKey(key.getFieldNumber(), ordinary, "bytes"), result);
 					break;
 				}
 				default :
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 受信データを溜めておくための再利用可能なバッファ
+ *
+ * <p>
+ * 読み出し位置(readIndex)と書き込み位置(writeIndex)を持ち、未処理データは array() の [readIndex, writeIndex)
+ * に格納される。 ByteArrayOutputStream と違い、未処理データを参照するたびにコピーが発生しないため、
+ * パケットの区切りが見つかるまで大きなデータを溜め続ける場合でも受信1回あたりのコストは新しく届いたデータ量に比例する。
+ */
+public class ReceiveBuffer {
+
+	private static final int DEFAULT_CAPACITY = 100 * 1024;
+
+	private byte[] buffer;
+	private int readIndex = 0;
+	private int writeIndex = 0;
+
+	public ReceiveBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ReceiveBuffer(int initialCapacity) {
+		buffer = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	/** 未処理データが格納されている配列。内容は readIndex() から size() バイト分だけが有効 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	public int readIndex() {
+		return readIndex;
+	}
+
+	public int size() {
+		return writeIndex - readIndex;
+	}
+
+	public boolean isEmpty() {
+		return readIndex == writeIndex;
+	}
+
+	/** InputStreamから直接バッファの末尾に読み込む。戻り値は InputStream.read と同じ */
+	public int readFrom(InputStream in, int maxLength) throws IOException {
+		ensureWritable(maxLength);
+		int length = in.read(buffer, writeIndex, maxLength);
+		if (length > 0) {
+
+			writeIndex += length;
+		}
+		return length;
+	}
+
+	public void write(byte[] data, int offset, int length) {
+		ensureWritable(length);
+		System.arraycopy(data, offset, buffer, writeIndex, length);
+		writeIndex += length;
+	}
+
+	public void write(byte[] data) {
+		write(data, 0, data.length);
+	}
+
+	/** 先頭から length バイトを取り出し、読み出し位置を進める */
+	public byte[] read(int length) {
+		if (length < 0 || length > size()) {
+
+			throw new IndexOutOfBoundsException(String.format("length: %d, size: %d", length, size()));
+		}
+		byte[] ret = Arrays.copyOfRange(buffer, readIndex, readIndex + length);
+		skip(length);
+		return ret;
+	}
+
+	/** 先頭から length バイトを読み捨てる */
+	public void skip(int length) {
+		if (length < 0 || length > size()) {
+
+			throw new IndexOutOfBoundsException(String.format("length: %d, size: %d", length, size()));
+		}
+		readIndex += length;
+		if (readIndex == writeIndex) {
+
+			readIndex = 0;
+			writeIndex = 0;
+		}
+	}
+
+	/** 未処理データのコピーを返す */
+	public byte[] toByteArray() {
+		return Arrays.copyOfRange(buffer, readIndex, writeIndex);
+	}
+
+	public void reset() {
+		readIndex = 0;
+		writeIndex = 0;
+	}
+
+	private void ensureWritable(int length) {
+		if (buffer.length - writeIndex >= length) {
+
+			return;
+		}
+		int size = size();
+		// 読み出し済み領域を詰めれば足りる場合は、配列を拡張せずに再利用する
+		if (buffer.length - size >= length && readIndex >= buffer.length / 2) {
+
+			System.arraycopy(buffer, readIndex, buffer, 0, size);
+			readIndex = 0;
+			writeIndex = size;
+			return;
+		}
+		int newCapacity = buffer.length;
+		while (newCapacity - size < length) {
+
+			newCapacity *= 2;
+		}
+		byte[] newBuffer = new byte[newCapacity];
+		System.arraycopy(buffer, readIndex, newBuffer, 0, size);
+		buffer = newBuffer;
+		readIndex = 0;
+		writeIndex = size;
+	}
+}
@@ -262,9 +262,17 @@ public class StringUtils {
 	}
 
 	public static boolean validatePrintableUTF8(byte[] data) {
-		for (int i = 0; i < data.length; i++) {
+		return validatePrintableUTF8(data, 0, data.length);
+	}
+
+	/**
+	 * data の [offset, offset + length) が表示可能なUTF-8の文字列かどうか。末尾で途切れたマルチバイト文字は
+	 * ArrayIndexOutOfBoundsException になる (部分配列をコピーして判定していた頃と同じ振る舞い)
+	 */
+	public static boolean validatePrintableUTF8(byte[] data, int offset, int length) {
+		for (int i = 0; i < length; i++) {
 
-			byte octet = data[i];
+			byte octet = data[offset + i];
 			if (octet == 0x0D || octet == 0x0A) {
 
 				continue;
@@ -299,7 +307,11 @@ public class StringUtils {
 			while (i < end) {
 
 				i++;
-				octet = data[i];
+				if (i >= length) {
+
+					throw new ArrayIndexOutOfBoundsException(i);
+				}
+				octet = data[offset + i];
 				if ((octet & 0xC0) != 0x80) {
 
 					return false;
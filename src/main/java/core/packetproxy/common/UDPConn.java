@@ -15,58 +15,180 @@
  */
 package packetproxy.common;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-public class UDPConn {
+/**
+ * UDPServerSocket が受け付けた1つのクライアント (送信元のアドレスとポート) とのフロー
+ *
+ * <p>
+ * 受信したデータグラムは UDPConnManager の受信スレッドからキューに積まれ、InputStream の read() 1回で1つのデータグラムを返す。
+ * OutputStream への write() 1回が1つのデータグラムとしてクライアントに送られる。フローごとのスレッドは持たない。
+ */
+public class UDPConn implements Endpoint {
+
+	/* フローごとに溜めておくデータグラムの数。溢れた分は捨てる */
+	static final int QUEUE_LIMIT = 256;
+	/* close() されたかを確認する間隔 */
+	private static final long POLL_INTERVAL_MSEC = 1000;
 
-	private PipeEndpoint pipe;
-	private InetSocketAddress addr;
+	private final InetSocketAddress addr;
+	private final UDPConnManager manager;
+	private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+	private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+	private final InputStream input = new DatagramInputStream();
+	private final OutputStream output = new DatagramOutputStream();
+	private volatile long lastActive = System.currentTimeMillis();
+	private volatile boolean closed = false;
 
-	public UDPConn(InetSocketAddress addr) throws Exception {
+	UDPConn(InetSocketAddress addr, UDPConnManager manager) {
 		this.addr = addr;
-		this.pipe = new PipeEndpoint(addr);
+		this.manager = manager;
+	}
+
+	/** 受信スレッドから呼ばれる。キューが一杯の場合は false を返し、データグラムは捨てられる */
+	boolean offer(byte[] datagram) {
+		lastActive = System.currentTimeMillis();
+		return received.offer(datagram);
+	}
+
+	long getLastActive() {
+		return lastActive;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/** フローを閉じたとき (一定時間通信がなかったときを含む) に呼ばれる処理を追加する */
+	public void addCloseListener(Runnable listener) {
+		closeListeners.add(listener);
+	}
+
+	public void close() {
+		if (closed) {
+
+			return;
+		}
+		closed = true;
+		manager.remove(this);
+		for (Runnable listener : closeListeners) {
+
+			listener.run();
+		}
 	}
 
-	public void put(byte[] data, int offset, int length) throws Exception {
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		bout.write(data, offset, length);
-		put(bout.toByteArray());
-		bout.close();
+	@Override
+	public InputStream getInputStream() throws Exception {
+		return input;
 	}
 
-	public void put(byte[] data) throws Exception {
-		OutputStream os = pipe.getRawEndpoint().getOutputStream();
-		os.write(data);
-		os.flush();
+	@Override
+	public OutputStream getOutputStream() throws Exception {
+		return output;
 	}
 
-	public void getAutomatically(final BlockingQueue<DatagramPacket> queue) throws Exception {
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		Callable<Void> recvTask = new Callable<Void>() {
+	@Override
+	public InetSocketAddress getAddress() {
+		return addr;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return manager.getLocalPort();
+	}
+
+	@Override
+	public String getName() {
+		return null;
+	}
 
-			public Void call() throws Exception {
-				while (true) {
+	private class DatagramInputStream extends InputStream {
 
-					InputStream is = pipe.getRawEndpoint().getInputStream();
-					byte[] buf = new byte[4096];
-					int len = is.read(buf);
-					DatagramPacket recvPacket = new DatagramPacket(buf, len, addr);
-					queue.put(recvPacket);
+		/* 読み出し途中のデータグラム。read() に渡されたバッファより大きい場合だけ使う */
+		private byte[] current;
+		private int position;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+
+				return 0;
+			}
+			if (current == null || position >= current.length) {
+
+				current = take();
+				position = 0;
+				if (current == null) {
+
+					return -1;
 				}
 			}
-		};
-		executor.submit(recvTask);
+			int length = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, length);
+			position += length;
+			return length;
+		}
+
+		private byte[] take() throws IOException {
+			try {
+
+				while (!closed) {
+
+					byte[] datagram = received.poll(POLL_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+					if (datagram != null) {
+
+						return datagram;
+					}
+				}
+				// 閉じる前に届いていた分は返す
+				return received.poll();
+			} catch (InterruptedException e) {
+
+				throw new InterruptedIOException();
+			}
+		}
+
+		@Override
+		public void close() {
+			UDPConn.this.close();
+		}
 	}
 
-	public Endpoint getEndpoint() throws Exception {
-		return pipe.getProxyRawEndpoint();
+	private class DatagramOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+
+				throw new IOException("UDP flow is already closed: " + addr);
+			}
+			lastActive = System.currentTimeMillis();
+			manager.send(addr, b, off, len);
+		}
+
+		@Override
+		public void close() {
+			UDPConn.this.close();
+		}
 	}
 }
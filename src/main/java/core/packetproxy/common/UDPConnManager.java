@@ -15,53 +15,144 @@
  */
 package packetproxy.common;
 
-import java.net.DatagramPacket;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 1つの DatagramChannel で受信したデータグラムを、送信元のアドレスとポートごとのフロー (UDPConn) に振り分ける表
+ *
+ * <p>
+ * 一定時間データグラムの送受信がなかったフローは閉じて表から取り除く。フローの数には上限があり、上限を超えた新しい送信元からのデータグラムは捨てる。
+ */
 public class UDPConnManager {
 
-	private Map<InetSocketAddress, UDPConn> connList;
-	private BlockingQueue<InetSocketAddress> acceptedQueue;
-	private BlockingQueue<DatagramPacket> recvQueue;
+	/* フローを閉じるまでの無通信の時間。Linux の conntrack (nf_conntrack_udp_timeout_stream) に合わせる */
+	static final long IDLE_TIMEOUT_MSEC = 120 * 1000;
+	/* 同時に保持するフローの数の上限 */
+	static final int MAX_FLOWS = 4096;
+
+	/* 閉じたことを accept() に伝えるための印 */
+	private static final UDPConn CLOSED = new UDPConn(null, null);
+
+	private final DatagramChannel channel;
+	private final long idleTimeoutMsec;
+	private final Map<InetSocketAddress, UDPConn> flows = new ConcurrentHashMap<>();
+	private final BlockingQueue<UDPConn> acceptedQueue = new LinkedBlockingQueue<>();
 
-	public UDPConnManager() {
-		connList = new HashMap<InetSocketAddress, UDPConn>();
-		acceptedQueue = new LinkedBlockingQueue<InetSocketAddress>();
-		recvQueue = new LinkedBlockingQueue<DatagramPacket>();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong datagramsIn = new AtomicLong();
+	private final AtomicLong datagramsOut = new AtomicLong();
+	private final AtomicLong droppedQueueFull = new AtomicLong();
+	private final AtomicLong droppedFlowLimit = new AtomicLong();
+	private final AtomicLong droppedSendBuffer = new AtomicLong();
+
+	public UDPConnManager(DatagramChannel channel) {
+		this(channel, IDLE_TIMEOUT_MSEC);
 	}
 
-	public Endpoint accept() throws Exception {
-		InetSocketAddress addr = acceptedQueue.take();
-		return connList.get(addr).getEndpoint();
+	public UDPConnManager(DatagramChannel channel, long idleTimeoutMsec) {
+		this.channel = channel;
+		this.idleTimeoutMsec = idleTimeoutMsec;
 	}
 
-	public void put(DatagramPacket packet) throws Exception {
-		InetSocketAddress addr = new InetSocketAddress(packet.getAddress(), packet.getPort());
-		UDPConn conn = this.query(addr);
+	/** 新しいフローを待つ。close() された場合は null を返す */
+	public UDPConn accept() throws Exception {
+		UDPConn conn = acceptedQueue.take();
+		if (conn == CLOSED) {
+
+			acceptedQueue.put(CLOSED);
+			return null;
+		}
+		return conn;
+	}
+
+	/** 受信スレッドから呼ばれる */
+	public void received(InetSocketAddress addr, byte[] datagram) throws Exception {
+		datagramsIn.incrementAndGet();
+		UDPConn conn = flows.get(addr);
 		if (conn == null) {
 
-			conn = this.create(addr);
-			conn.getAutomatically(recvQueue);
-			acceptedQueue.put(addr);
+			if (flows.size() >= MAX_FLOWS) {
+
+				droppedFlowLimit.incrementAndGet();
+				return;
+			}
+			conn = new UDPConn(addr, this);
+			flows.put(addr, conn);
+			accepted.incrementAndGet();
+			acceptedQueue.put(conn);
+		}
+		if (!conn.offer(datagram)) {
+
+			droppedQueueFull.incrementAndGet();
+		}
+	}
+
+	void send(InetSocketAddress addr, byte[] data, int offset, int length) throws IOException {
+		if (channel.send(ByteBuffer.wrap(data, offset, length), addr) == 0) {
+
+			// ノンブロッキングのチャネルで送信バッファが一杯だった
+			droppedSendBuffer.incrementAndGet();
+			return;
 		}
-		conn.put(packet.getData(), 0, packet.getLength());
+		datagramsOut.incrementAndGet();
 	}
 
-	public DatagramPacket get() throws Exception {
-		return recvQueue.take();
+	void remove(UDPConn conn) {
+		flows.remove(conn.getAddress(), conn);
 	}
 
-	private UDPConn query(InetSocketAddress key) {
-		return connList.get(key);
+	int getLocalPort() {
+		try {
+
+			InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+			return local != null ? local.getPort() : 0;
+		} catch (IOException e) {
+
+			return 0;
+		}
 	}
 
-	private UDPConn create(InetSocketAddress key) throws Exception {
-		UDPConn conn = new UDPConn(key);
-		connList.put(key, conn);
-		return conn;
+	/** now の時点で無通信の時間が idleTimeoutMsec を超えたフローを閉じる */
+	public void evictIdle(long now) {
+		for (UDPConn conn : flows.values()) {
+
+			if (now - conn.getLastActive() >= idleTimeoutMsec) {
+
+				evicted.incrementAndGet();
+				conn.close();
+			}
+		}
+	}
+
+	/** 全てのフローを閉じ、accept() を待っているスレッドを終わらせる */
+	public void close() throws Exception {
+		for (UDPConn conn : flows.values()) {
+
+			conn.close();
+		}
+		acceptedQueue.put(CLOSED);
+	}
+
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("flows", (long) flows.size());
+		metrics.put("accepted", accepted.get());
+		metrics.put("evicted", evicted.get());
+		metrics.put("datagrams_in", datagramsIn.get());
+		metrics.put("datagrams_out", datagramsOut.get());
+		metrics.put("dropped_queue_full", droppedQueueFull.get());
+		metrics.put("dropped_flow_limit", droppedFlowLimit.get());
+		metrics.put("dropped_send_buffer", droppedSendBuffer.get());
+		return metrics;
 	}
 }
@@ -15,56 +15,95 @@
  */
 package packetproxy.common;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import static packetproxy.util.Logging.errWithStackTrace;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+
+/**
+ * UDPのポートで待ち受け、送信元ごとのフローを accept() で返す
+ *
+ * <p>
+ * 全てのフローの受信を、1つの DatagramChannel と Selector で待つ1本のスレッドで行う。
+ * 受信バッファはこのスレッドで使い回し、データグラムごとには受信した長さの配列だけを作る。
+ */
 public class UDPServerSocket {
 
-	private DatagramSocket socket;
-	private UDPConnManager connManager;
+	/* UDPのペイロードの最大長。これより小さいバッファで受信すると、大きなデータグラムの末尾が切り捨てられる */
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	/* 無通信のフローを確認する間隔 */
+	private static final long SWEEP_INTERVAL_MSEC = 1000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final UDPConnManager connManager;
 
 	public UDPServerSocket(int port) throws Exception {
-		socket = new DatagramSocket(port);
-		connManager = new UDPConnManager();
-		createRecvLoop();
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		connManager = new UDPConnManager(channel);
+
+		Thread thread = new Thread(this::recvLoop, "PacketProxy-udp-" + port);
+		thread.setDaemon(true);
+		thread.start();
 	}
 
 	public void close() throws Exception {
-		socket.close();
+		channel.close();
+		selector.close();
+		connManager.close();
 	}
 
-	public Endpoint accept() throws Exception {
+	/** 新しい送信元からのフローを待つ。close() された場合は null を返す */
+	public UDPConn accept() throws Exception {
 		return connManager.accept();
 	}
 
-	private void createRecvLoop() throws Exception {
-		ExecutorService executor = Executors.newFixedThreadPool(2);
-		Callable<Void> recvTask = new Callable<Void>() {
+	public Map<String, Long> getMetrics() {
+		return connManager.getMetrics();
+	}
+
+	private void recvLoop() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+		long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MSEC;
+		try {
 
-			public Void call() throws Exception {
-				while (true) {
+			while (channel.isOpen()) {
 
-					byte[] buf = new byte[4096];
-					DatagramPacket recvPacket = new DatagramPacket(buf, 4096);
-					socket.receive(recvPacket);
-					connManager.put(recvPacket);
-				}
-			}
-		};
-		Callable<Void> sendTask = new Callable<Void>() {
+				selector.select(SWEEP_INTERVAL_MSEC);
+				selector.selectedKeys().clear();
+				SocketAddress addr;
+				while ((addr = channel.receive(buffer)) != null) {
 
-			public Void call() throws Exception {
-				while (true) {
+					buffer.flip();
+					byte[] datagram = new byte[buffer.remaining()];
+					buffer.get(datagram);
+					buffer.clear();
+					connManager.received((InetSocketAddress) addr, datagram);
+				}
+				long now = System.currentTimeMillis();
+				if (now >= nextSweep) {
 
-					DatagramPacket sendPacket = connManager.get();
-					socket.send(sendPacket);
+					connManager.evictIdle(now);
+					nextSweep = now + SWEEP_INTERVAL_MSEC;
 				}
 			}
-		};
-		executor.submit(recvTask);
-		executor.submit(sendTask);
+		} catch (ClosedChannelException | ClosedSelectorException e) {
+
+			// close() された
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
 	}
 }
@@ -29,7 +29,9 @@ public class UDPSocketEndpoint implements Endpoint {
 	private DatagramSocket socket;
 	private InetSocketAddress serverAddr;
 	private PipeEndpoint pipe;
-	private static int BUFSIZE = 4096;
+	private ExecutorService executor;
+	/* UDPのペイロードの最大長。これより小さいバッファで受信すると、大きなデータグラムの末尾が切り捨てられる */
+	private static int BUFSIZE = 65507;
 
 	public UDPSocketEndpoint(InetSocketAddress addr) throws Exception {
 		socket = new DatagramSocket();
@@ -55,38 +57,54 @@ public class UDPSocketEndpoint implements Endpoint {
 	}
 
 	private void loop() {
-		ExecutorService executor = Executors.newFixedThreadPool(2);
+		executor = Executors.newFixedThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "PacketProxy-udp-endpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
 		Callable<Void> sendTask = new Callable<Void>() {
 
 			public Void call() throws Exception {
-				while (true) {
+				InputStream is = pipe.getRawEndpoint().getInputStream();
+				byte[] input_data = new byte[BUFSIZE];
+				DatagramPacket sendPacket = new DatagramPacket(input_data, 0, serverAddr);
+				int len;
+				while ((len = is.read(input_data)) >= 0) {
 
-					InputStream is = pipe.getRawEndpoint().getInputStream();
-					byte[] input_data = new byte[BUFSIZE];
-					int len = is.read(input_data);
-					DatagramPacket sendPacket = new DatagramPacket(input_data, 0, len, serverAddr);
+					sendPacket.setData(input_data, 0, len);
 					socket.send(sendPacket);
 				}
+				return null;
 			}
 		};
 		Callable<Void> recvTask = new Callable<Void>() {
 
 			public Void call() throws Exception {
-				while (true) {
+				OutputStream os = pipe.getRawEndpoint().getOutputStream();
+				byte[] buf = new byte[BUFSIZE];
+				DatagramPacket recvPacket = new DatagramPacket(buf, BUFSIZE);
+				while (!socket.isClosed()) {
 
-					byte[] buf = new byte[BUFSIZE];
-					DatagramPacket recvPacket = new DatagramPacket(buf, BUFSIZE);
+					recvPacket.setData(buf, 0, BUFSIZE);
 					socket.receive(recvPacket);
-					OutputStream os = pipe.getRawEndpoint().getOutputStream();
 					os.write(recvPacket.getData(), 0, recvPacket.getLength());
 					os.flush();
 				}
+				return null;
 			}
 		};
 		executor.submit(sendTask);
 		executor.submit(recvTask);
 	}
 
+	/** サーバとのソケットを閉じ、送受信のスレッドを終わらせる */
+	public void close() throws Exception {
+		socket.close();
+		pipe.getRawEndpoint().getInputStream().close();
+		pipe.getRawEndpoint().getOutputStream().close();
+		executor.shutdownNow();
+	}
+
 	@Override
 	public int getLocalPort() {
 		return socket.getLocalPort();
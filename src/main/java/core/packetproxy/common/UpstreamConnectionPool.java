@@ -0,0 +1,367 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import packetproxy.encode.EncodeHTTPBase;
+import packetproxy.encode.Encoder;
+import packetproxy.model.OneShotPacket;
+import packetproxy.model.Server;
+import packetproxy.model.Servers;
+
+/**
+ * 再送と、ProxyHttp が中継する CONNECT 以外のリクエストに使ったサーバとのコネクションのうち、HTTP/1.x の keep-alive で続けて使えるものを保持しておく
+ *
+ * <p>
+ * 接続先のアドレス、TLSの有無、SNI、ALPN、クライアント証明書が同じリクエストでは、TCPとTLSのハンドシェイクをせずに保持しているコネクションを使う。
+ * 一定時間使われなかったコネクションと、保持している間にサーバから閉じられたコネクションは捨てる。
+ *
+ * <p>
+ * CONNECT や透過プロキシで受けたコネクションは、DuplexAsync がクライアントとサーバのコネクションを組にして閉じるまで持つので使い回さない。 HTTP/2
+ * のストリームの多重化もしない。
+ */
+public class UpstreamConnectionPool {
+
+	/* 使われていないコネクションを保持する時間。keep-alive のタイムアウトが短いサーバ (Apache の既定値は5秒) に合わせる */
+	static final long IDLE_TIMEOUT_MSEC = 4 * 1000;
+	/* 接続先ごとに保持するコネクションの数 */
+	static final int MAX_IDLE_PER_HOST = 8;
+
+	private static final Pattern CONNECTION_PATTERN = Pattern.compile("\nConnection *: *([^\r\n]*)",
+			Pattern.CASE_INSENSITIVE);
+
+	private static UpstreamConnectionPool instance;
+
+	public static synchronized UpstreamConnectionPool getInstance() {
+		if (instance == null) {
+
+			instance = new UpstreamConnectionPool();
+		}
+		return instance;
+	}
+
+	private static class Idle {
+
+		final Endpoint endpoint;
+		final long since;
+
+		Idle(Endpoint endpoint, long since) {
+			this.endpoint = endpoint;
+			this.since = since;
+		}
+	}
+
+	private final Map<Key, Deque<Idle>> idles = new HashMap<>();
+	/* 貸し出し中のコネクションと、その接続先のキー */
+	private final Map<Endpoint, Key> leased = new HashMap<>();
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	private UpstreamConnectionPool() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "PacketProxy-upstream-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::evictExpired, IDLE_TIMEOUT_MSEC, IDLE_TIMEOUT_MSEC,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 保持しているコネクションを使い回せる再送か。HTTP/1.x 以外 (HTTP/2, HTTP/3, HTTP以外のエンコーダ) は1回ごとに接続する
+	 */
+	public static boolean isPoolable(OneShotPacket packet, Encoder encoder) {
+		if (!(encoder instanceof EncodeHTTPBase)
+				|| ((EncodeHTTPBase) encoder).getHttpVersion() != EncodeHTTPBase.HTTPVersion.HTTP1) {
+
+			return false;
+		}
+		String alpn = packet.getAlpn();
+		return alpn == null || alpn.isEmpty() || alpn.equals("http/1.1") || alpn.equals("http/1.0");
+	}
+
+	/**
+	 * request に response が返ってきたコネクションを、次のリクエストに使えるか。 どちらかが Connection: close のときと、HTTP/1.0 で
+	 * keep-alive が指定されていないときは使えない。レスポンスの続きが残っていた場合は acquire() のときに捨てる
+	 */
+	public static boolean isReusable(byte[] request, byte[] response) {
+		return request != null && response != null && isKeepAlive(request) && isKeepAlive(response);
+	}
+
+	private static boolean isKeepAlive(byte[] message) {
+		int end = Utils.indexOf(message, 0, message.length, "\r\n\r\n".getBytes());
+		String header = new String(message, 0, end >= 0 ? end : message.length, StandardCharsets.ISO_8859_1);
+		Matcher matcher = CONNECTION_PATTERN.matcher(header);
+		String connection = matcher.find() ? matcher.group(1).toLowerCase() : "";
+		if (connection.contains("close")) {
+
+			return false;
+		}
+		int eol = header.indexOf("\r\n");
+		String startLine = eol >= 0 ? header.substring(0, eol) : header;
+		if (startLine.contains("HTTP/1.0")) {
+
+			return connection.contains("keep-alive");
+		}
+		return startLine.contains("HTTP/1.1");
+	}
+
+	/**
+	 * コネクションを使い回せる再送の条件。クライアント証明書の KeyManager は配列そのもので比べるので、
+	 * 別のクライアントとして認証したコネクションを使うことはない
+	 */
+	static final class Key {
+
+		private final String endpoint;
+		private final Object keyManagers;
+
+		Key(String endpoint, Object keyManagers) {
+			this.endpoint = endpoint;
+			this.keyManagers = keyManagers;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+
+				return false;
+			}
+			Key other = (Key) obj;
+			return endpoint.equals(other.endpoint) && keyManagers == other.keyManagers;
+		}
+
+		@Override
+		public int hashCode() {
+			return endpoint.hashCode() * 31 + System.identityHashCode(keyManagers);
+		}
+	}
+
+	/** 新しいコネクションを作る */
+	interface Connector {
+
+		Endpoint connect() throws Exception;
+	}
+
+	private static Key keyOf(OneShotPacket packet) throws Exception {
+		// クライアント証明書は接続先のサーバごとに設定される
+		Object keyManagers = ClientKeyManager.getKeyManagers(Servers.getInstance().queryByAddress(packet.getServer()));
+		String endpoint = String.format("%s|%s|%s|%s", packet.getUseSSL() ? "tls" : "tcp", packet.getServer(),
+				packet.getServerName(), Objects.toString(packet.getAlpn(), ""));
+		return new Key(endpoint, keyManagers);
+	}
+
+	/**
+	 * ProxyHttp が中継するリクエストの送り先へのコネクションを返す。server は addr のサーバ設定 (なければ null)。
+	 * 使い終わったら release() を呼ぶこと
+	 */
+	public Endpoint acquire(InetSocketAddress addr, Server server) throws Exception {
+		boolean useSSL = server != null && server.getUseSSL();
+		Key key = new Key(String.format("%s|%s", useSSL ? "tls" : "tcp", addr), ClientKeyManager.getKeyManagers(server));
+		return acquire(key, () -> server != null ? EndpointFactory.createFromServer(server) : new SocketEndpoint(addr));
+	}
+
+	/**
+	 * packet の送り先へのコネクションを返す。保持しているものがなければ新しく接続する。使い終わったら release() を呼ぶこと
+	 */
+	public Endpoint acquire(OneShotPacket packet) throws Exception {
+		return acquire(keyOf(packet), () -> EndpointFactory.createFromOneShotPacket(packet));
+	}
+
+	Endpoint acquire(Key key, Connector connector) throws Exception {
+		while (true) {
+
+			Idle idle;
+			synchronized (this) {
+
+				Deque<Idle> queue = idles.get(key);
+				idle = queue != null ? queue.pollFirst() : null;
+				if (queue != null && queue.isEmpty()) {
+
+					idles.remove(key);
+				}
+			}
+			if (idle == null) {
+
+				break;
+			}
+			if (System.currentTimeMillis() - idle.since < IDLE_TIMEOUT_MSEC && isAlive(idle.endpoint)) {
+
+				reused.incrementAndGet();
+				lease(idle.endpoint, key);
+				return idle.endpoint;
+			}
+			evicted.incrementAndGet();
+			close(idle.endpoint);
+		}
+		Endpoint endpoint = connector.connect();
+		created.incrementAndGet();
+		lease(endpoint, key);
+		return endpoint;
+	}
+
+	private synchronized void lease(Endpoint endpoint, Key key) {
+		leased.put(endpoint, key);
+	}
+
+	/**
+	 * acquire() で取得したコネクションを返す。reusable が false のときや、接続先ごとの上限を超えるときは閉じる
+	 */
+	public void release(Endpoint endpoint, boolean reusable) {
+		Key key;
+		synchronized (this) {
+
+			key = leased.remove(endpoint);
+			if (key != null && reusable && socketOf(endpoint) != null) {
+
+				Deque<Idle> queue = idles.computeIfAbsent(key, k -> new ArrayDeque<>());
+				if (queue.size() < MAX_IDLE_PER_HOST) {
+
+					// 最後に使ったものから貸し出す
+					queue.addFirst(new Idle(endpoint, System.currentTimeMillis()));
+					released.incrementAndGet();
+					return;
+				}
+			}
+		}
+		discarded.incrementAndGet();
+		close(endpoint);
+	}
+
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		Deque<Idle> expired = new ArrayDeque<>();
+		synchronized (this) {
+
+			Iterator<Deque<Idle>> queues = idles.values().iterator();
+			while (queues.hasNext()) {
+
+				Deque<Idle> queue = queues.next();
+				queue.removeIf(idle -> {
+					if (now - idle.since >= IDLE_TIMEOUT_MSEC) {
+
+						expired.add(idle);
+						return true;
+					}
+					return false;
+				});
+				if (queue.isEmpty()) {
+
+					queues.remove();
+				}
+			}
+		}
+		for (Idle idle : expired) {
+
+			evicted.incrementAndGet();
+			close(idle.endpoint);
+		}
+	}
+
+	private static Socket socketOf(Endpoint endpoint) {
+		if (endpoint instanceof SSLSocketEndpoint) {
+
+			return ((SSLSocketEndpoint) endpoint).socket;
+		}
+		if (endpoint instanceof SocketEndpoint) {
+
+			return ((SocketEndpoint) endpoint).socket;
+		}
+		return null;
+	}
+
+	/* 保持している間にサーバから閉じられていないか。読めるデータがある場合も、前のレスポンスの続きなので使わない */
+	private static boolean isAlive(Endpoint endpoint) {
+		Socket socket = socketOf(endpoint);
+		if (socket == null || socket.isClosed() || socket.isInputShutdown()) {
+
+			return false;
+		}
+		try {
+
+			socket.setSoTimeout(1);
+			InputStream in = endpoint.getInputStream();
+			in.read();
+			return false;
+		} catch (SocketTimeoutException e) {
+
+			return true;
+		} catch (Exception e) {
+
+			return false;
+		} finally {
+
+			try {
+
+				socket.setSoTimeout(0);
+			} catch (Exception e) {
+
+				// 閉じられている
+			}
+		}
+	}
+
+	private static void close(Endpoint endpoint) {
+		Socket socket = socketOf(endpoint);
+		if (socket == null) {
+
+			return;
+		}
+		try {
+
+			socket.close();
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		synchronized (this) {
+
+			metrics.put("idle", (long) idles.values().stream().mapToInt(Deque::size).sum());
+			metrics.put("leased", (long) leased.size());
+		}
+		metrics.put("created", created.get());
+		metrics.put("reused", reused.get());
+		metrics.put("released", released.get());
+		metrics.put("discarded", discarded.get());
+		metrics.put("evicted", evicted.get());
+		return metrics;
+	}
+}
@@ -27,8 +27,11 @@ import packetproxy.Duplex;
 import packetproxy.DuplexAsync;
 import packetproxy.DuplexFactory;
 import packetproxy.DuplexManager;
+import packetproxy.DuplexSync;
 import packetproxy.EncoderManager;
+import packetproxy.common.Endpoint;
 import packetproxy.common.I18nString;
+import packetproxy.common.UpstreamConnectionPool;
 import packetproxy.encode.EncodeHTTPBase;
 import packetproxy.encode.Encoder;
 import packetproxy.http.Http;
@@ -173,6 +176,7 @@ public class ResendController {
 		private class DataToBeSend {
 
 			private Duplex duplex;
+			private Endpoint pooled;
 			private OneShotPacket oneshot;
 			private byte[] preparedData;
 			private Consumer<OneShotPacket> onReceived;
@@ -192,7 +196,15 @@ public class ResendController {
 				}
 				if (encoder.useNewConnectionForResend() == true) {
 
-					this.duplex = DuplexFactory.createDuplexSyncFromOneShotPacket(this.oneshot);
+					if (UpstreamConnectionPool.isPoolable(this.oneshot, encoder)) {
+
+						// 前の再送で keep-alive になったコネクションがあれば使い回す
+						this.pooled = UpstreamConnectionPool.getInstance().acquire(this.oneshot);
+						this.duplex = DuplexFactory.createDuplexSyncFromOneShotPacket(this.oneshot, this.pooled);
+					} else {
+
+						this.duplex = DuplexFactory.createDuplexSyncFromOneShotPacket(this.oneshot);
+					}
 					this.isSync = false;
 				} else {
 
@@ -209,7 +221,14 @@ public class ResendController {
 					}
 					this.isSync = true;
 				}
-				this.preparedData = this.duplex.prepareFastSend(this.oneshot.getData());
+				try {
+
+					this.preparedData = this.duplex.prepareFastSend(this.oneshot.getData());
+				} catch (Exception e) {
+
+					releasePooled(false);
+					throw e;
+				}
 			}
 
 			public boolean isDirectSend() {
@@ -234,7 +253,14 @@ public class ResendController {
 					return;
 				}
 
-				this.duplex.execFastSend(this.preparedData);
+				try {
+
+					this.duplex.execFastSend(this.preparedData);
+				} catch (Exception e) {
+
+					releasePooled(false);
+					throw e;
+				}
 				if (isSync) {
 
 					OneShotPacket result = new OneShotPacket(oneshot.getId(), oneshot.getListenPort(),
@@ -247,21 +273,14 @@ public class ResendController {
 					this.onReceived.accept(result);
 				} else {
 
-					byte[] data = duplex.receive();
-
-					/* 100 Continue 対策 */
-					Encoder encoder = EncoderManager.getInstance().createInstance(oneshot.getEncoder(),
-							oneshot.getAlpn());
-					if (encoder instanceof EncodeHTTPBase) {
-
-						EncodeHTTPBase httpEncoder = (EncodeHTTPBase) encoder;
-						if (httpEncoder.getHttpVersion() == EncodeHTTPBase.HTTPVersion.HTTP1) {
+					byte[] data;
+					try {
 
-							while (Http.create(data).getStatusCode().equals("100")) {
+						data = receive();
+					} catch (Exception e) {
 
-								data = duplex.receive();
-							}
-						}
+						releasePooled(false);
+						throw e;
 					}
 
 					OneShotPacket result = new OneShotPacket(oneshot.getId(), oneshot.getListenPort(),
@@ -272,6 +291,35 @@ public class ResendController {
 					this.onReceived.accept(result);
 				}
 			}
+
+			private byte[] receive() throws Exception {
+				byte[] data = duplex.receive();
+
+				/* 100 Continue 対策 */
+				Encoder encoder = EncoderManager.getInstance().createInstance(oneshot.getEncoder(), oneshot.getAlpn());
+				if (encoder instanceof EncodeHTTPBase) {
+
+					EncodeHTTPBase httpEncoder = (EncodeHTTPBase) encoder;
+					if (httpEncoder.getHttpVersion() == EncodeHTTPBase.HTTPVersion.HTTP1) {
+
+						while (Http.create(data).getStatusCode().equals("100")) {
+
+							data = duplex.receive();
+						}
+					}
+				}
+				releasePooled(!((DuplexSync) duplex).hasBufferedServerData()
+						&& UpstreamConnectionPool.isReusable(preparedData, data));
+				return data;
+			}
+
+			private void releasePooled(boolean reusable) {
+				if (pooled != null) {
+
+					UpstreamConnectionPool.getInstance().release(pooled, reusable);
+					pooled = null;
+				}
+			}
 		}
 	}
 }
@@ -15,7 +15,6 @@
  */
 package packetproxy.encode;
 
-import com.google.protobuf.Descriptors.Descriptor;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -23,8 +22,8 @@ import java.util.Arrays;
 import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.common.Protobuf3;
 import packetproxy.common.Utils;
+import packetproxy.grpc.GrpcMessageCodec;
 import packetproxy.grpc.GrpcSchemaResolver;
-import packetproxy.grpc.GrpcServiceRegistry;
 import packetproxy.http.Http;
 import packetproxy.http2.Grpc;
 
@@ -51,10 +50,9 @@ public class EncodeGRPC extends EncodeHTTPBase {
 	@Override
 	protected Http decodeClientRequestHttp(Http inputHttp) throws Exception {
 		lastGrpcPath = inputHttp.getPath();
-		GrpcServiceRegistry reg = schemaResolver.resolveRegistryForRequest(inputHttp);
-		Descriptor type = reg != null ? reg.getInputType(lastGrpcPath) : null;
-		if (type != null) {
-			inputHttp.setBody(schemaResolver.decodeSchemaAwareBody(inputHttp.getBody(), type));
+		GrpcMessageCodec codec = schemaResolver.inputCodecForRequest(inputHttp, lastGrpcPath);
+		if (codec != null) {
+			inputHttp.setBody(schemaResolver.decodeSchemaAwareBody(inputHttp.getBody(), codec));
 			return inputHttp;
 		}
 		byte[] raw = inputHttp.getBody();
@@ -86,10 +84,9 @@ public class EncodeGRPC extends EncodeHTTPBase {
 	@Override
 	protected Http encodeClientRequestHttp(Http inputHttp) throws Exception {
 		lastGrpcPath = inputHttp.getPath();
-		GrpcServiceRegistry reg = schemaResolver.resolveRegistryForRequest(inputHttp);
-		Descriptor type = reg != null ? reg.getInputType(lastGrpcPath) : null;
-		if (type != null) {
-			inputHttp.setBody(schemaResolver.encodeSchemaAwareBody(inputHttp.getBody(), type));
+		GrpcMessageCodec codec = schemaResolver.inputCodecForRequest(inputHttp, lastGrpcPath);
+		if (codec != null) {
+			inputHttp.setBody(schemaResolver.encodeSchemaAwareBody(inputHttp.getBody(), codec));
 			return inputHttp;
 		}
 		byte[] body = inputHttp.getBody();
@@ -127,10 +124,9 @@ public class EncodeGRPC extends EncodeHTTPBase {
 
 			return inputHttp;
 		}
-		GrpcServiceRegistry reg = schemaResolver.effectiveRegistry(inputHttp);
-		Descriptor type = reg != null ? reg.getOutputType(lastGrpcPath) : null;
-		if (type != null) {
-			inputHttp.setBody(schemaResolver.decodeSchemaAwareBody(raw, type));
+		GrpcMessageCodec codec = schemaResolver.outputCodec(inputHttp, lastGrpcPath);
+		if (codec != null) {
+			inputHttp.setBody(schemaResolver.decodeSchemaAwareBody(raw, codec));
 			return inputHttp;
 		}
 		ByteArrayOutputStream body = new ByteArrayOutputStream();
@@ -165,10 +161,9 @@ public class EncodeGRPC extends EncodeHTTPBase {
 
 			return inputHttp;
 		}
-		GrpcServiceRegistry reg = schemaResolver.effectiveRegistry(inputHttp);
-		Descriptor type = reg != null ? reg.getOutputType(lastGrpcPath) : null;
-		if (type != null) {
-			inputHttp.setBody(schemaResolver.encodeSchemaAwareBody(body, type));
+		GrpcMessageCodec codec = schemaResolver.outputCodec(inputHttp, lastGrpcPath);
+		if (codec != null) {
+			inputHttp.setBody(schemaResolver.encodeSchemaAwareBody(body, codec));
 			return inputHttp;
 		}
 		ByteArrayOutputStream rawStream = new ByteArrayOutputStream();
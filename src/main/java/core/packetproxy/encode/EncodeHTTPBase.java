@@ -19,6 +19,7 @@ import static packetproxy.util.Logging.errWithStackTrace;
 
 import java.io.InputStream;
 import packetproxy.http.Http;
+import packetproxy.http.Http1Framer;
 import packetproxy.http2.FramesBase;
 import packetproxy.http2.Http2;
 import packetproxy.http3.service.Http3;
@@ -34,6 +35,12 @@ public abstract class EncodeHTTPBase extends Encoder {
 	private FramesBase http2;
 	private Http3 http3;
 	private String requestMethod = "";
+	/* HTTP/1.x の区切りの解析状態は方向ごとに持つ */
+	private final Http1Framer requestFramer = new Http1Framer();
+	private final Http1Framer responseFramer = new Http1Framer();
+	/* 区切りの判定 (byte[] 版) をプラグインなどのサブクラスが独自に実装しているか。その場合は範囲版でもそちらを使う */
+	private final boolean customRequestDelimiter = overrides("checkDelimiter") || overrides("checkRequestDelimiter");
+	private final boolean customResponseDelimiter = overrides("checkDelimiter") || overrides("checkResponseDelimiter");
 
 	public EncodeHTTPBase() {
 		super("http/1.1");
@@ -95,6 +102,53 @@ public abstract class EncodeHTTPBase extends Encoder {
 		return checkDelimiter(data);
 	}
 
+	private boolean overrides(String name) {
+		try {
+
+			Class<?> declaring = getClass().getMethod(name, byte[].class).getDeclaringClass();
+			return declaring != EncodeHTTPBase.class && declaring != Encoder.class;
+		} catch (NoSuchMethodException e) {
+
+			return true;
+		}
+	}
+
+	@Override
+	public int checkRequestDelimiter(byte[] data, int offset, int length) throws Exception {
+		if (customRequestDelimiter) {
+
+			return super.checkRequestDelimiter(data, offset, length);
+		}
+		if (this.httpVersion == HTTPVersion.HTTP1) {
+
+			return requestFramer.checkDelimiter(data, offset, length);
+		} else if (this.httpVersion == HTTPVersion.HTTP2) {
+
+			return http2.checkDelimiter(data, offset, length);
+		}
+		return super.checkRequestDelimiter(data, offset, length);
+	}
+
+	@Override
+	public int checkResponseDelimiter(byte[] data, int offset, int length) throws Exception {
+		if (customResponseDelimiter) {
+
+			return super.checkResponseDelimiter(data, offset, length);
+		}
+		if (this.requestMethod.equals("HEAD")) {
+
+			return length;
+		}
+		if (this.httpVersion == HTTPVersion.HTTP1) {
+
+			return responseFramer.checkDelimiter(data, offset, length);
+		} else if (this.httpVersion == HTTPVersion.HTTP2) {
+
+			return http2.checkDelimiter(data, offset, length);
+		}
+		return super.checkResponseDelimiter(data, offset, length);
+	}
+
 	@Override
 	public void clientRequestArrived(byte[] frames) throws Exception {
 		if (this.httpVersion == HTTPVersion.HTTP1) {
@@ -181,14 +235,18 @@ public abstract class EncodeHTTPBase extends Encoder {
 
 	@Override
 	public byte[] decodeClientRequest(byte[] input_data) throws Exception {
+		Http http;
 		if (this.httpVersion == HTTPVersion.HTTP2) {
 
-			input_data = http2.decodeClientRequest(input_data);
+			// フレームから組み立てた Http をそのまま使い、byte[] にしてから解析し直さない
+			http = http2.decodeClientRequestAsHttp(input_data);
 		} else if (this.httpVersion == HTTPVersion.HTTP3) {
 
-			input_data = http3.decodeClientRequest(input_data);
+			http = Http.create(http3.decodeClientRequest(input_data));
+		} else {
+
+			http = Http.create(input_data);
 		}
-		Http http = Http.create(input_data);
 		Http decodedHttp = http;
 		if (http.getFirstHeader("X-PacketProxy-Skip-ClientSideEncode").contains("true")) {
 
@@ -205,11 +263,12 @@ public abstract class EncodeHTTPBase extends Encoder {
 		Http http = Http.create(input_data);
 		this.requestMethod = http.getMethod();
 		Http encodedHttp = encodeClientRequestHttp(http);
-		byte[] encodedData = encodedHttp.toByteArray();
 		if (this.httpVersion == HTTPVersion.HTTP2) {
 
-			encodedData = http2.encodeClientRequest(encodedData);
-		} else if (this.httpVersion == HTTPVersion.HTTP3) {
+			return http2.encodeClientRequest(encodedHttp);
+		}
+		byte[] encodedData = encodedHttp.toByteArray();
+		if (this.httpVersion == HTTPVersion.HTTP3) {
 
 			encodedData = http3.encodeClientRequest(encodedData);
 		}
@@ -218,6 +277,11 @@ public abstract class EncodeHTTPBase extends Encoder {
 
 	@Override
 	public final byte[] decodeServerResponse(byte[] input_data) throws Exception {
+		// HEAD へのレスポンスは Content-Length を残すために、byte[] にしてから解析し直す
+		if (this.httpVersion == HTTPVersion.HTTP2 && !this.requestMethod.equals("HEAD")) {
+
+			return decodeServerResponseHttp(http2.decodeServerResponseAsHttp(input_data)).toByteArray();
+		}
 		if (this.httpVersion == HTTPVersion.HTTP2) {
 
 			input_data = http2.decodeServerResponse(input_data);
@@ -252,11 +316,12 @@ public abstract class EncodeHTTPBase extends Encoder {
 
 			encodedHttp = encodeServerResponseHttp(http);
 		}
-		byte[] encodedData = encodedHttp.toByteArray();
 		if (this.httpVersion == HTTPVersion.HTTP2) {
 
-			encodedData = http2.encodeServerResponse(encodedData);
-		} else if (this.httpVersion == HTTPVersion.HTTP3) {
+			return http2.encodeServerResponse(encodedHttp);
+		}
+		byte[] encodedData = encodedHttp.toByteArray();
+		if (this.httpVersion == HTTPVersion.HTTP3) {
 
 			encodedData = http3.encodeServerResponse(encodedData);
 		}
@@ -309,7 +374,7 @@ public abstract class EncodeHTTPBase extends Encoder {
 
 	@Override
 	public String getContentType(byte[] input_data) throws Exception {
-		Http http = Http.create(input_data);
+		Http http = Http.createLazily(input_data);
 		return http.getFirstHeader("Content-Type");
 	}
 
@@ -338,7 +403,7 @@ public abstract class EncodeHTTPBase extends Encoder {
 		try {
 
 			byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			String statusCode = http.getStatusCode();
 			summary = statusCode;
 		} catch (Exception e) {
@@ -359,7 +424,7 @@ public abstract class EncodeHTTPBase extends Encoder {
 		try {
 
 			byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			summary = http.getMethod() + " " + http.getURL(packet.getServerPort(), packet.getUseSSL());
 		} catch (Exception e) {
 
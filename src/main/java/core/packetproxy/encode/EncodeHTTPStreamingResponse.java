@@ -244,7 +244,7 @@ public class EncodeHTTPStreamingResponse extends Encoder {
 
 	@Override
 	public String getContentType(byte[] input_data) throws Exception {
-		Http http = Http.create(input_data);
+		Http http = Http.createLazily(input_data);
 		return http.getFirstHeader("Content-Type");
 	}
 
@@ -258,7 +258,7 @@ public class EncodeHTTPStreamingResponse extends Encoder {
 		try {
 
 			byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			String statusCode = http.getStatusCode();
 			summary = statusCode;
 		} catch (Exception e) {
@@ -279,7 +279,7 @@ public class EncodeHTTPStreamingResponse extends Encoder {
 		try {
 
 			byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			summary = http.getMethod() + " " + http.getURL(packet.getServerPort(), packet.getUseSSL());
 		} catch (Exception e) {
 
@@ -240,7 +240,7 @@ public class EncodeHTTPWebSocket extends Encoder {
 			return "WebSocket";
 		} else {
 
-			Http http = Http.create(input);
+			Http http = Http.createLazily(input);
 			return http.getFirstHeader("Content-Type");
 		}
 	}
@@ -92,7 +92,7 @@ public class EncodeMQTTWebSocket extends EncodeHTTPWebSocket {
 
 			if (data.length == 0)
 				throw new Exception();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			String method = http.getMethod();
 			String url = http.getURL(packet.getServerPort(), packet.getUseSSL());
 			if (method == null)
@@ -116,7 +116,7 @@ public class EncodeMQTTWebSocket extends EncodeHTTPWebSocket {
 
 			if (data.length == 0)
 				throw new Exception();
-			Http http = Http.create(data);
+			Http http = packet.getHttp(data);
 			if (http.getStatusCode() == null)
 				return getSummarizedMessage(encodeMQTT(data));
 			return http.getStatusCode();
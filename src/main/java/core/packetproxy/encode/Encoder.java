@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.Arrays;
 import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.common.StringUtils;
 import packetproxy.model.Packet;
@@ -78,6 +79,18 @@ public abstract class Encoder {
 		return checkDelimiter(input_data);
 	}
 
+	/**
+	 * input_data の [offset, offset + length) から区切りを探す。受信バッファをコピーせずに走査できるエンコーダはこちらをオーバーライドする。
+	 * デフォルトでは範囲をコピーして checkRequestDelimiter(byte[]) を呼ぶ
+	 */
+	public int checkRequestDelimiter(byte[] input_data, int offset, int length) throws Exception {
+		return checkRequestDelimiter(Arrays.copyOfRange(input_data, offset, offset + length));
+	}
+
+	public int checkResponseDelimiter(byte[] input_data, int offset, int length) throws Exception {
+		return checkResponseDelimiter(Arrays.copyOfRange(input_data, offset, offset + length));
+	}
+
 	public abstract byte[] decodeServerResponse(byte[] input_data) throws Exception;
 
 	public abstract byte[] encodeServerResponse(byte[] input_data) throws Exception;
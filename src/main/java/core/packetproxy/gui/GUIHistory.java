@@ -79,6 +79,7 @@ import packetproxy.model.Filters;
 import packetproxy.model.OptionTableModel;
 import packetproxy.model.Packet;
 import packetproxy.model.Packets;
+import packetproxy.model.Packets.UpdatedPackets;
 import packetproxy.model.ResenderPackets;
 
 public class GUIHistory implements PropertyChangeListener {
@@ -668,6 +669,9 @@ public class GUIHistory implements PropertyChangeListener {
 				} else if (arg1 instanceof Integer) {
 
 					handleIntegerPacketValue((Integer) arg1);
+				} else if (arg1 instanceof UpdatedPackets) {
+
+					handleUpdatedPackets((UpdatedPackets) arg1);
 				} else if (arg1 instanceof DatabaseMessage && (DatabaseMessage) arg1 == DatabaseMessage.RECONNECT) {
 
 					updateAllAsync();
@@ -698,7 +702,7 @@ public class GUIHistory implements PropertyChangeListener {
 		}
 
 		int packetId = value * -1;
-		Packet packet = packets.query(packetId);
+		Packet packet = packets.querySummary(packetId);
 		long groupId = packet.getGroup();
 		boolean isResponse = packet.getDirection() == Packet.Direction.SERVER;
 		int packetCount = countAndTrackPacket(packet);
@@ -712,6 +716,23 @@ public class GUIHistory implements PropertyChangeListener {
 		}
 	}
 
+	/* Packets.update() の1回の書き込み分をまとめて反映する。更新分は1回のSwingWorkerで読み直す */
+	private void handleUpdatedPackets(UpdatedPackets updated) throws Exception {
+		for (int id : updated.getCreatedIds()) {
+
+			handleIntegerPacketValue(id * -1);
+		}
+		if (updated.getUpdatedIds().isEmpty()) {
+
+			return;
+		}
+		synchronized (update_packet_ids) {
+
+			update_packet_ids.addAll(updated.getUpdatedIds());
+		}
+		updateRequest(false);
+	}
+
 	private int countAndTrackPacket(Packet packet) {
 		long groupId = packet.getGroup();
 		if (groupId == 0) {
@@ -743,6 +764,14 @@ public class GUIHistory implements PropertyChangeListener {
 		return packet.getModifiedData();
 	}
 
+	/* 要約だけを読み込んだパケットは、保存時に計算しておいた長さを使う */
+	private int getDisplayLength(Packet packet) {
+		if (packet.getSummary() != null) {
+			return packet.getSummary().getLength();
+		}
+		return getDisplayData(packet).length;
+	}
+
 	private String resolveContentType(Packet requestPacket, Packet responsePacket) {
 		String contentType = requestPacket.getContentType();
 		if (contentType == null || contentType.isEmpty()) {
@@ -760,8 +789,8 @@ public class GUIHistory implements PropertyChangeListener {
 		int requestPacketId = (Integer) tableModel.getValueAt(rowIndex, COL_ID);
 		tableModel.setValueAt(responsePacket.getSummarizedResponse(), rowIndex, COL_SERVER_RESPONSE);
 		int currentLength = (Integer) tableModel.getValueAt(rowIndex, COL_LENGTH);
-		tableModel.setValueAt(currentLength + getDisplayData(responsePacket).length, rowIndex, COL_LENGTH);
-		Packet requestPacket = packets.query(requestPacketId);
+		tableModel.setValueAt(currentLength + getDisplayLength(responsePacket), rowIndex, COL_LENGTH);
+		Packet requestPacket = packets.querySummary(requestPacketId);
 		tableModel.setValueAt(resolveContentType(requestPacket, responsePacket), rowIndex, COL_CONTENT_TYPE);
 		boolean currentModified = (boolean) tableModel.getValueAt(rowIndex, COL_MODIFIED);
 		tableModel.setValueAt(currentModified || responsePacket.getModified(), rowIndex, COL_MODIFIED);
@@ -769,7 +798,7 @@ public class GUIHistory implements PropertyChangeListener {
 		pairingService.registerPairing(responsePacketId, requestPacketId);
 		id_row.put(responsePacketId, rowIndex);
 		if (refreshSelection && requestPacketId == getSelectedPacketId()) {
-			resolveAndShowPacket(requestPacket, true);
+			resolveAndShowPacket(packets.query(requestPacketId), true);
 		}
 	}
 
@@ -860,20 +889,19 @@ public class GUIHistory implements PropertyChangeListener {
 		}
 
 		// リクエスト行を元に戻す（Server Response列をクリア、Lengthを再計算）
-		Packet requestPacket = packets.query(requestPacketId);
-		byte[] requestData = getDisplayData(requestPacket);
+		Packet requestPacket = packets.querySummary(requestPacketId);
 		tableModel.setValueAt("", rowIndex, COL_SERVER_RESPONSE); // Server Response列をクリア
-		tableModel.setValueAt(requestData.length, rowIndex, COL_LENGTH); // Length列を再計算
+		tableModel.setValueAt(getDisplayLength(requestPacket), rowIndex, COL_LENGTH); // Length列を再計算
 
 		// 以前マージされていたレスポンスパケット用の新しい行を追加
-		Packet responsePacket = packets.query(responsePacketId);
+		Packet responsePacket = packets.querySummary(responsePacketId);
 		tableModel.addRow(makeRowDataFromPacket(responsePacket));
 		int newRowIndex = tableModel.getRowCount() - 1;
 		id_row.put(responsePacketId, newRowIndex);
 
 		// 選択中のパケットだった場合は詳細表示を更新
 		if (requestPacketId == getSelectedPacketId()) {
-			resolveAndShowPacket(requestPacket, true);
+			resolveAndShowPacket(packets.query(requestPacketId), true);
 		}
 	}
 
@@ -936,7 +964,7 @@ public class GUIHistory implements PropertyChangeListener {
 				}
 				for (int id : update_targets) {
 
-					Packet packet = packets.query(id);
+					Packet packet = packets.querySummary(id);
 					publish(packet);
 				}
 				return cursor_update ? packets.query(select_id) : null;
@@ -978,7 +1006,7 @@ public class GUIHistory implements PropertyChangeListener {
 	// 新規作成時などの初期化用
 	// TODO SwingWorkerの終了を待たないとバグるのでそれを修正する必要があるはず（あまりしないので優先度は低い）
 	public void updateAll() throws Exception {
-		List<Packet> packetList = packets.queryAll();
+		List<Packet> packetList = packets.querySummaryAll();
 		tableModel.setRowCount(0);
 		id_row.clear();
 		pairingService.clear();
@@ -1057,7 +1085,7 @@ public class GUIHistory implements PropertyChangeListener {
 
 							offset = i - limit;
 						}
-						List<Packet> packetList = history.packets.queryRange(offset, limit);
+						List<Packet> packetList = history.packets.querySummaryRange(offset, limit);
 						for (Packet packet : packetList) {
 
 							SwingUtilities.invokeLater(new Runnable() {
@@ -1151,10 +1179,8 @@ public class GUIHistory implements PropertyChangeListener {
 				tableModel.setValueAt(packet.getSummarizedResponse(), row_index, COL_SERVER_RESPONSE);
 				// Length列を再計算
 				int requestPacketId = pairingService.getRequestIdForResponse(packetId);
-				Packet requestPacket = packets.query(requestPacketId);
-				byte[] requestData = getDisplayData(requestPacket);
-				byte[] responseData = getDisplayData(packet);
-				tableModel.setValueAt(requestData.length + responseData.length, row_index, COL_LENGTH);
+				Packet requestPacket = packets.querySummary(requestPacketId);
+				tableModel.setValueAt(getDisplayLength(requestPacket) + getDisplayLength(packet), row_index, COL_LENGTH);
 				// Type列を更新
 				tableModel.setValueAt(resolveContentType(requestPacket, packet), row_index, COL_CONTENT_TYPE);
 				// Modified列を更新（リクエストまたはレスポンスのどちらかが改ざんされていれば true）
@@ -1195,16 +1221,7 @@ public class GUIHistory implements PropertyChangeListener {
 		String server_ip = (packet.getServerIP() == null) ? "" : packet.getServerIP();
 		String server_port = (packet.getServerPort() == 0) ? "" : String.valueOf(packet.getServerPort());
 
-		byte[] data = null;
-		if (packet.getDecodedData().length > 0) {
-
-			data = packet.getDecodedData();
-		} else {
-
-			data = packet.getModifiedData();
-		}
-
-		int length = data.length;
+		int length = getDisplayLength(packet);
 
 		SimpleDateFormat date_format = new SimpleDateFormat("HH:mm:ss yyyy/MM/dd Z");
 		return new Object[]{packet.getId(), packet.getSummarizedRequest(), packet.getSummarizedResponse(), length,
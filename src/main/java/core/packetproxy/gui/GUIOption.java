@@ -33,6 +33,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import packetproxy.CertCacheManager;
 import packetproxy.common.FontManager;
 import packetproxy.common.I18nString;
 import packetproxy.model.CAFactory;
@@ -189,6 +190,13 @@ public class GUIOption {
 
 		panel.add(createSeparator());
 
+		panel.add(createElement("History Queue",
+				I18nString.get("Set how to handle packets when saving history can't keep up with the traffic.")));
+		GUIOptionHistoryQueue historyQueue = new GUIOptionHistoryQueue();
+		panel.add(historyQueue.createPanel());
+
+		panel.add(createSeparator());
+
 		panel.add(createTitle("PacketProxy CA Certificates & Private Keys"));
 
 		JPanel caPanel = new JPanel();
@@ -262,6 +270,43 @@ public class GUIOption {
 
 		panel.add(caPanel);
 
+		JCheckBox ecdsaCheck = new JCheckBox(I18nString.get("Issue server certificates with ECDSA P-256 keys"));
+		ecdsaCheck.setSelected(CertCacheManager.getInstance().isECDSAEnabled());
+		ecdsaCheck.setBackground(Color.WHITE);
+		ecdsaCheck.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent ae) {
+				try {
+
+					CertCacheManager.getInstance().setECDSAEnabled(ecdsaCheck.isSelected());
+				} catch (Exception e) {
+
+					errWithStackTrace(e);
+				}
+			}
+		});
+		panel.add(ecdsaCheck);
+
+		JCheckBox diskCacheCheck = new JCheckBox(
+				I18nString.get("Save issued server certificates to reuse them after restart"));
+		diskCacheCheck.setSelected(CertCacheManager.getInstance().isDiskCacheEnabled());
+		diskCacheCheck.setBackground(Color.WHITE);
+		diskCacheCheck.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent ae) {
+				try {
+
+					CertCacheManager.getInstance().setDiskCacheEnabled(diskCacheCheck.isSelected());
+				} catch (Exception e) {
+
+					errWithStackTrace(e);
+				}
+			}
+		});
+		panel.add(diskCacheCheck);
+
 		panel.add(createSeparator());
 
 		panel.add(createElement("Character encodings",
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.gui;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.ItemEvent;
+import javax.swing.BoxLayout;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import packetproxy.common.I18nString;
+import packetproxy.model.Packets;
+import packetproxy.model.Packets.OverflowPolicy;
+
+public class GUIOptionHistoryQueue {
+
+	private JComboBox<OverflowPolicy> combo = new JComboBox<>(OverflowPolicy.values());
+	private JTextField limitField = new JTextField(5);
+	private JTextField dropBodySizeField = new JTextField(5);
+	private JCheckBox compressionCheck = new JCheckBox(I18nString.get("Compress saved payloads with zstd"));
+
+	public GUIOptionHistoryQueue() throws Exception {
+		Packets packets = Packets.getInstance();
+		combo.setSelectedItem(packets.getOverflowPolicy());
+		combo.addItemListener(event -> {
+			try {
+
+				if (event.getStateChange() != ItemEvent.SELECTED || combo.getSelectedItem() == null) {
+
+					return;
+				}
+				packets.setOverflowPolicy((OverflowPolicy) combo.getSelectedItem());
+				dropBodySizeField.setEnabled(combo.getSelectedItem() == OverflowPolicy.DROP_BODY);
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		});
+		combo.setMaximumSize(new Dimension(combo.getPreferredSize().width, combo.getMinimumSize().height));
+
+		limitField.setText(Integer.toString(packets.getQueueLimitMB()));
+		limitField.setMaximumSize(limitField.getPreferredSize());
+		limitField.addActionListener(event -> saveLimit());
+		limitField.addFocusListener(new FocusAdapter() {
+
+			@Override
+			public void focusLost(FocusEvent event) {
+				saveLimit();
+			}
+		});
+
+		dropBodySizeField.setText(Integer.toString(packets.getDropBodySizeKB()));
+		dropBodySizeField.setMaximumSize(dropBodySizeField.getPreferredSize());
+		dropBodySizeField.setEnabled(packets.getOverflowPolicy() == OverflowPolicy.DROP_BODY);
+		dropBodySizeField.addActionListener(event -> saveDropBodySize());
+		dropBodySizeField.addFocusListener(new FocusAdapter() {
+
+			@Override
+			public void focusLost(FocusEvent event) {
+				saveDropBodySize();
+			}
+		});
+
+		compressionCheck.setSelected(packets.getPayloadCompression());
+		compressionCheck.setBackground(Color.WHITE);
+		compressionCheck.addActionListener(event -> {
+			try {
+
+				packets.setPayloadCompression(compressionCheck.isSelected());
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		});
+	}
+
+	private void saveLimit() {
+		try {
+
+			int limit = Integer.parseInt(limitField.getText().trim());
+			if (limit > 0) {
+
+				Packets.getInstance().setQueueLimitMB(limit);
+			}
+			limitField.setText(Integer.toString(Packets.getInstance().getQueueLimitMB()));
+		} catch (NumberFormatException e) {
+
+			try {
+
+				limitField.setText(Integer.toString(Packets.getInstance().getQueueLimitMB()));
+			} catch (Exception e1) {
+
+				errWithStackTrace(e1);
+			}
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	private void saveDropBodySize() {
+		try {
+
+			int size = Integer.parseInt(dropBodySizeField.getText().trim());
+			if (size > 0) {
+
+				Packets.getInstance().setDropBodySizeKB(size);
+			}
+			dropBodySizeField.setText(Integer.toString(Packets.getInstance().getDropBodySizeKB()));
+		} catch (NumberFormatException e) {
+
+			try {
+
+				dropBodySizeField.setText(Integer.toString(Packets.getInstance().getDropBodySizeKB()));
+			} catch (Exception e1) {
+
+				errWithStackTrace(e1);
+			}
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	public JPanel createPanel() throws Exception {
+		JPanel panel = new JPanel();
+		panel.setBackground(Color.WHITE);
+		panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+		panel.add(new JLabel(I18nString.get("When pending history exceeds")));
+		panel.add(limitField);
+		panel.add(new JLabel(I18nString.get("MB:")));
+		panel.add(combo);
+		panel.add(new JLabel(I18nString.get("Max body size to keep with DROP_BODY (KB):")));
+		panel.add(dropBodySizeField);
+		panel.add(compressionCheck);
+		panel.setAlignmentX(Component.LEFT_ALIGNMENT);
+		panel.setMaximumSize(new Dimension(Short.MAX_VALUE, panel.getMaximumSize().height));
+		return panel;
+	}
+}
@@ -45,7 +45,9 @@ public class Http {
 
 	private HttpHeader header;
 	private HttpHeader originalHeader;
-	private byte[] rawBody;
+	/* 展開前のボディは、受け取ったメッセージの bodyOffset 以降。展開するまで写しを作らずに参照だけ持つ */
+	private byte[] rawData;
+	private int bodyOffset;
 	private String statusCode;
 	private String method;
 	private String proxyHost;
@@ -57,6 +59,10 @@ public class Http {
 	// private MultiValueMap<String,Parameter> bodyParams;
 	// private ArrayList<String> header_order;
 	private byte[] body;
+	/* ボディの展開は getBody() で初めて必要になったときに行う */
+	private boolean flag_body_decoded = false;
+	private boolean flag_chunked = false;
+	private String content_encoding;
 	// private boolean flag_https = false;
 	private boolean flag_request = false;
 	private boolean flag_proxy = false;
@@ -66,11 +72,24 @@ public class Http {
 	private boolean flag_dont_touch_content_length = false;
 
 	public static Http create(byte[] data) throws Exception {
-		return new Http(data, false);
+		Http http = new Http(data, false);
+		http.decodeBody();
+		return http;
 	}
 
 	public static Http createWithoutTouchingContentLength(byte[] data) throws Exception {
-		return new Http(data, true);
+		Http http = new Http(data, true);
+		http.decodeBody();
+		return http;
+	}
+
+	/**
+	 * ステータスラインとヘッダだけを解析する。ボディの dechunk や展開は getBody() で初めて必要になったときに行うので、
+	 * ヘッダしか見ない要約やグループ分けでは圧縮されたボディを展開しない。展開できないボディは、Content-Encoding を戻して展開前のまま扱う。
+	 * data はボディを展開するまで写さずに参照するので、その間は書き換えないこと
+	 */
+	public static Http createLazily(byte[] data) throws Exception {
+		return new Http(data, false);
 	}
 
 	/*
@@ -125,96 +144,9 @@ public class Http {
 	static final Pattern ZSTD_PATTERN = Pattern.compile("\nContent-Encoding *: *zstd", Pattern.CASE_INSENSITIVE);
 	static final Pattern BR_PATTERN = Pattern.compile("\nContent-Encoding *: *br", Pattern.CASE_INSENSITIVE);
 
-	// TODO header系作業をHttpHeaderに分離
+	/* 状態を持たずに区切りを探す。同じコネクションで繰り返し呼ぶ場合は Http1Framer を使い回すこと */
 	public static int parseHttpDelimiter(byte[] data) throws Exception {
-		int header_size = HttpHeader.calcHeaderSize(data);
-		if (header_size == -1) {
-
-			return -1;
-		}
-
-		byte[] header = ArrayUtils.subarray(data, 0, header_size);
-		String header_str = new String(header, "UTF-8");
-
-		Matcher continue_matcher = CONTINUE_PATTERN.matcher(header_str);
-		if (continue_matcher.find()) {
-
-			header_size = continue_matcher.end();
-			return header_size;
-		}
-
-		Matcher plain_matcher = PLAIN_PATTERN.matcher(header_str);
-		int content_length;
-		if (plain_matcher.find()) {
-
-			content_length = Integer.parseInt(plain_matcher.group(1));
-		} else {
-
-			content_length = 0;
-		}
-
-		Matcher matcher = CHUNKED_PATTERN.matcher(header_str);
-		if (matcher.find()) {
-
-			byte[] body = ArrayUtils.subarray(data, header_size, data.length);
-			byte[] finishFlag = "0\r\n\r\n".getBytes();
-			if (body.length < finishFlag.length) {
-
-				return -1;
-			}
-			if (Arrays.compare(finishFlag, 0, finishFlag.length, body, body.length - finishFlag.length,
-					body.length) != 0) {
-
-				return -1;
-			}
-			body = getChankedHttpBody(body);
-			if (body == null)
-				return -1;
-		} else if (content_length == 0) {
-
-			if (GZIP_PATTERN.matcher(header_str).find()) {
-
-				try {
-
-					byte[] body = ArrayUtils.subarray(data, header_size, data.length);
-					gunzip(body);
-				} catch (Exception e1) {
-
-					return -1;
-				}
-			} else if (ZSTD_PATTERN.matcher(header_str).find()) {
-
-				try {
-
-					byte[] body = ArrayUtils.subarray(data, header_size, data.length);
-					zstd_decompress(body);
-				} catch (Exception e1) {
-
-					return -1;
-				}
-			} else if (BR_PATTERN.matcher(header_str).find()) {
-
-				try {
-
-					byte[] body = ArrayUtils.subarray(data, header_size, data.length);
-					br_decompress(body);
-				} catch (Exception e1) {
-
-					return -1;
-				}
-			}
-		}
-
-		if (content_length == 0) {
-
-			return data.length;
-		}
-
-		if (data.length < header_size + content_length) {
-
-			return -1;
-		}
-		return header_size + content_length;
+		return new Http1Framer().checkDelimiter(data, 0, data.length);
 	}
 
 	public static boolean isHTTP(byte[] data) {
@@ -230,8 +162,9 @@ public class Http {
 		header = new HttpHeader(data);
 		originalHeader = new HttpHeader(data);
 		analyzeStatusLine(header.getStatusline());
-		rawBody = getHttpBody(data);
-		body = getCookedBody(header, rawBody);
+		rawData = data;
+		bodyOffset = getHttpBodyOffset(data);
+		analyzeBodyEncoding(header);
 	}
 
 	public HttpHeader getHeader() {
@@ -258,7 +191,18 @@ public class Http {
 		return flag_proxy_ssl;
 	}
 
-	public byte[] getBody() {
+	public synchronized byte[] getBody() {
+		if (!flag_body_decoded) {
+
+			try {
+
+				decodeBody();
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+				keepEncodedBody();
+			}
+		}
 		return body;
 	}
 
@@ -298,8 +242,10 @@ public class Http {
 		return this.statusCode;
 	}
 
-	public void setBody(byte[] body) {
+	public synchronized void setBody(byte[] body) {
 		this.body = body != null ? body : new byte[]{};
+		this.flag_body_decoded = true;
+		this.rawData = null;
 	}
 
 	public void disableContentLength() {
@@ -316,9 +262,8 @@ public class Http {
 		this.flag_disable_proxy_format_url = true;
 	}
 
-	private byte[] getCookedBody(HttpHeader header, byte[] rawBody) throws Exception {
-		byte[] cookedBody = rawBody;
-
+	/* ボディの展開方法を調べて、展開後には不要になるヘッダを取り除く */
+	private void analyzeBodyEncoding(HttpHeader header) {
 		{
 			String headerName = "Transfer-Encoding";
 			Optional<String> enc = header.getValue(headerName);
@@ -326,9 +271,7 @@ public class Http {
 			if (enc.isPresent() && enc.get().equalsIgnoreCase("chunked")) {
 
 				header.removeAll(headerName);
-				cookedBody = getChankedHttpBodyFussy(cookedBody);
-				if (cookedBody == null)
-					return null;
+				flag_chunked = true;
 			}
 		}
 
@@ -336,24 +279,11 @@ public class Http {
 			String headerName = "Content-Encoding";
 			Optional<String> enc = header.getValue(headerName);
 
-			if (enc.isPresent() && enc.get().equalsIgnoreCase("gzip")) {
-
-				cookedBody = gunzip(cookedBody);
-				header.removeAll(headerName);
-				if (cookedBody == null)
-					return null;
-			} else if (enc.isPresent() && enc.get().equalsIgnoreCase("zstd")) {
-
-				cookedBody = zstd_decompress(cookedBody);
-				header.removeAll(headerName);
-				if (cookedBody == null)
-					return null;
-			} else if (enc.isPresent() && enc.get().equalsIgnoreCase("br")) {
+			if (enc.isPresent() && (enc.get().equalsIgnoreCase("gzip") || enc.get().equalsIgnoreCase("zstd")
+					|| enc.get().equalsIgnoreCase("br"))) {
 
-				cookedBody = br_decompress(cookedBody);
+				content_encoding = enc.get().toLowerCase();
 				header.removeAll(headerName);
-				if (cookedBody == null)
-					return null;
 			}
 		}
 
@@ -361,7 +291,67 @@ public class Http {
 
 			header.removeAll("Content-Length");
 		}
-		return cookedBody;
+	}
+
+	/* 展開できなかったボディを、dechunk だけして Content-Encoding とともに展開前のまま残す */
+	private synchronized void keepEncodedBody() {
+		if (flag_body_decoded) {
+
+			return;
+		}
+		byte[] rawBody = ArrayUtils.subarray(rawData, bodyOffset, rawData.length);
+		body = rawBody;
+		if (flag_chunked) {
+
+			try {
+
+				byte[] dechunked = getChankedHttpBodyFussy(rawBody);
+				body = dechunked != null ? dechunked : rawBody;
+			} catch (Exception e) {
+
+				// chunk の区切りも壊れている場合は受信したまま残す
+			}
+		}
+		if (content_encoding != null) {
+
+			header.update("Content-Encoding", content_encoding);
+			content_encoding = null;
+		}
+		rawData = null;
+		flag_body_decoded = true;
+	}
+
+	private synchronized void decodeBody() throws Exception {
+		if (flag_body_decoded) {
+
+			return;
+		}
+		byte[] cookedBody = ArrayUtils.subarray(rawData, bodyOffset, rawData.length);
+		if (flag_chunked) {
+
+			cookedBody = getChankedHttpBodyFussy(cookedBody);
+		}
+		if (cookedBody != null) { // chunk が揃っていないボディは、以前と同じく null のまま
+
+			cookedBody = decompress(cookedBody);
+		}
+		body = cookedBody;
+		rawData = null;
+		flag_body_decoded = true;
+	}
+
+	private byte[] decompress(byte[] data) throws Exception {
+		if ("gzip".equals(content_encoding)) {
+
+			return gunzip(data);
+		} else if ("zstd".equals(content_encoding)) {
+
+			return zstd_decompress(data);
+		} else if ("br".equals(content_encoding)) {
+
+			return br_decompress(data);
+		}
+		return data;
 	}
 
 	public String getURL(int port, boolean use_ssl) {
@@ -401,6 +391,7 @@ public class Http {
 		byte[] result = null;
 		byte[] newLine = new String("\r\n").getBytes();
 		String statusLine = header.getStatusline();
+		byte[] body = getBody();
 
 		if (flag_request) {
 
@@ -461,8 +452,13 @@ public class Http {
 		return getOriginalHeader().getValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip");
 	}
 
+	/* Content-Encoding や Transfer-Encoding が付いていると、byte[] にして解析し直したときにボディが展開されて変わる */
+	public boolean hasBodyEncodingHeader() {
+		return header.getValue("Content-Encoding").isPresent() || header.getValue("Transfer-Encoding").isPresent();
+	}
+
 	public void encodeBodyByGzip() throws Exception {
-		body = gzip(body);
+		setBody(gzip(getBody()));
 		header.update("Content-Encoding", "gzip");
 	}
 
@@ -565,7 +561,7 @@ public class Http {
 		}
 	}
 
-	private static byte[] getHttpBody(byte[] input_data) throws Exception {
+	private static int getHttpBodyOffset(byte[] input_data) throws Exception {
 		byte[][] search_words = {new String("\r\n\r\n").getBytes(), new String("\n\n").getBytes(),
 				new String("\r\r").getBytes()};
 		for (byte[] search_word : search_words) {
@@ -575,9 +571,9 @@ public class Http {
 
 				continue;
 			}
-			return ArrayUtils.subarray(input_data, idx + search_word.length, input_data.length);
+			return idx + search_word.length;
 		}
-		return new byte[]{};
+		return input_data.length;
 	}
 
 	private static byte[] zstd_decompress(byte[] input_data) throws Exception {
@@ -593,7 +589,7 @@ public class Http {
 		return out.toByteArray();
 	}
 
-	private static byte[] br_decompress(byte[] input_data) throws Exception {
+	static byte[] br_decompress(byte[] input_data) throws Exception {
 		ByteArrayInputStream in = new ByteArrayInputStream(input_data);
 		BrotliCompressorInputStream brIn = new BrotliCompressorInputStream(in);
 		return IOUtils.toByteArray(brIn);
@@ -667,35 +663,6 @@ public class Http {
 		return body;
 	}
 
-	private static byte[] getChankedHttpBody(byte[] input_data) throws Exception {
-		// TODO 改行コードの対応
-		byte[] search_word = new String("\r\n").getBytes();
-		int index = 0;
-		int start_index = 0;
-		byte[] body = new byte[0];
-		while ((index = Utils.indexOf(input_data, start_index, input_data.length, search_word)) >= 0) {
-
-			try {
-
-				byte[] chank_header = ArrayUtils.subarray(input_data, start_index, index);
-				String chank_length_str = new String(chank_header, "UTF-8").replaceAll("^0+([^0].*)$", "$1");
-				int chank_length = Integer.parseInt(chank_length_str.trim(), 16);
-				if (chank_length == 0) {
-
-					return body;
-				}
-				byte[] chank = ArrayUtils.subarray(input_data, index + search_word.length,
-						index + search_word.length + chank_length);
-				body = ArrayUtils.addAll(body, chank);
-				start_index = index + search_word.length * 2 + chank_length;
-			} catch (Exception e) {
-
-				return null;
-			}
-		}
-		return null;
-	}
-
 	public InetSocketAddress getServerAddr() throws Exception {
 		return new InetSocketAddress(PrivateDNSClient.getByName(proxyHost), proxyPort);
 	}
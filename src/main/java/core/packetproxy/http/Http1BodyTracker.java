@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 受信したそばから中継する HTTP/1.x のボディの終わりを探す
+ *
+ * <p>
+ * Http1Framer と違ってメッセージの先頭からのデータを必要としない。届いたボディを1度だけ読んで状態を進めるので、
+ * 大きなダウンロードや終わらないストリームでもボディを溜め込まない。
+ * Content-Length と chunked 以外のボディは、コネクションが閉じるまで続くとみなす
+ */
+public class Http1BodyTracker {
+
+	private enum State {
+		FIXED, CHUNK_SIZE, CHUNK_DATA, TRAILER, UNTIL_CLOSE, DONE
+	}
+
+	/* chunkのサイズ行やtrailerの1行の上限。超えた場合は区切りを探すのをやめる */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private static final Pattern STATUS_CODE_PATTERN = Pattern.compile("^HTTP/[0-9.]+ +([0-9]{3})");
+
+	private State state;
+	private long remaining;
+	private final StringBuilder line = new StringBuilder();
+
+	/**
+	 * @param header
+	 *            空行までを含むレスポンスのヘッダ
+	 */
+	public Http1BodyTracker(byte[] header) {
+		String headerStr = new String(header, StandardCharsets.ISO_8859_1);
+		Matcher status = STATUS_CODE_PATTERN.matcher(headerStr);
+		if (status.find()) {
+
+			int code = Integer.parseInt(status.group(1));
+			if (code / 100 == 1 || code == 204 || code == 304) {
+
+				state = State.DONE;
+				return;
+			}
+		}
+		Matcher plain = Http.PLAIN_PATTERN.matcher(headerStr);
+		if (Http.CHUNKED_PATTERN.matcher(headerStr).find()) {
+
+			state = State.CHUNK_SIZE;
+		} else if (plain.find()) {
+
+			remaining = Long.parseLong(plain.group(1));
+			state = remaining > 0 ? State.FIXED : State.DONE;
+		} else {
+
+			state = State.UNTIL_CLOSE;
+		}
+	}
+
+	public boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/** data の [offset, offset + length) のうち、このメッセージのボディに含まれる長さを返す */
+	public int consume(byte[] data, int offset, int length) {
+		int pos = offset;
+		int end = offset + length;
+		while (pos < end && state != State.DONE) {
+
+			switch (state) {
+
+				case FIXED :
+				case CHUNK_DATA :
+					int size = (int) Math.min(remaining, end - pos);
+					pos += size;
+					remaining -= size;
+					if (remaining == 0) {
+
+						state = (state == State.FIXED) ? State.DONE : State.CHUNK_SIZE;
+					}
+					break;
+				case CHUNK_SIZE :
+				case TRAILER :
+					byte b = data[pos++];
+					if (b == '\n') {
+
+						endOfLine();
+					} else if (b != '\r') {
+
+						line.append((char) (b & 0xff));
+						if (line.length() > MAX_LINE_LENGTH) {
+
+							state = State.UNTIL_CLOSE;
+						}
+					}
+					break;
+				default :
+					pos = end;
+			}
+		}
+		return pos - offset;
+	}
+
+	private void endOfLine() {
+		String str = line.toString().trim();
+		line.setLength(0);
+		if (state == State.TRAILER) {
+
+			if (str.isEmpty()) {
+
+				state = State.DONE;
+			}
+			return;
+		}
+		int ext = str.indexOf(';');
+		if (ext >= 0) {
+
+			str = str.substring(0, ext).trim();
+		}
+		try {
+
+			long chunkSize = Long.parseLong(str, 16);
+			if (chunkSize == 0) {
+
+				state = State.TRAILER;
+			} else {
+
+				remaining = chunkSize + 2; /* chunkの後ろの改行を含む */
+				state = State.CHUNK_DATA;
+			}
+		} catch (NumberFormatException e) {
+
+			// 不正なchunkは揃うことが無いので、以前と同様に区切りなしとする
+			state = State.UNTIL_CLOSE;
+		}
+	}
+}
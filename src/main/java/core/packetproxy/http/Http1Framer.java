@@ -0,0 +1,356 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import com.google.re2j.Matcher;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HTTP/1.x のメッセージの区切りを探す
+ *
+ * <p>
+ * 1コネクションの1方向ごとに1インスタンスを使う。受信データが増えるたびに同じメッセージの先頭から checkDelimiter
+ * が呼ばれることを前提に、解析済みのヘッダ、Content-Length、chunkの位置を覚えておき、前回の続きから走査する。
+ * そのため、メッセージ全体を何度も走査したり、圧縮されたボディを展開したりせずに区切りが分かる。 区切りを返した時点で状態はリセットされ、次のメッセージの解析に移る。
+ */
+public class Http1Framer {
+
+	private enum BodyType {
+		FIXED, CHUNKED, GZIP, ZSTD, BR, UNTIL_NOW
+	}
+
+	private enum ChunkState {
+		SIZE, TRAILER
+	}
+
+	private static final int ZSTD_MAGIC = 0xFD2FB528;
+	private static final int ZSTD_SKIPPABLE_MAGIC = 0x184D2A50;
+
+	/* 以下の位置は全てメッセージの先頭からの相対位置 */
+	private int seen;
+	private int headerScanned;
+	private int headerSize;
+	private BodyType bodyType;
+	private int contentLength;
+
+	private ChunkState chunkState;
+	private int chunkPos;
+	private int lineScanned;
+
+	private int zstdPos;
+	private boolean zstdInFrame;
+	private boolean zstdChecksum;
+
+	public Http1Framer() {
+		reset();
+	}
+
+	public void reset() {
+		seen = 0;
+		headerScanned = 0;
+		headerSize = -1;
+		bodyType = null;
+		contentLength = 0;
+		chunkState = ChunkState.SIZE;
+		chunkPos = 0;
+		lineScanned = 0;
+		zstdPos = 0;
+		zstdInFrame = false;
+		zstdChecksum = false;
+	}
+
+	/**
+	 * data の [offset, offset + length) の先頭にあるHTTPメッセージの長さを返す。まだ揃っていなければ -1 を返す。
+	 *
+	 * @param data
+	 *            受信データ。前回呼び出し時と同じメッセージの先頭から始まっていること
+	 */
+	public int checkDelimiter(byte[] data, int offset, int length) throws Exception {
+		if (length < seen) {
+
+			// 前回より短いデータが来た場合は別のメッセージとして解析し直す
+			reset();
+		}
+		seen = length;
+
+		if (headerSize < 0) {
+
+			headerSize = findHeaderEnd(data, offset, length);
+			if (headerSize < 0) {
+
+				return -1;
+			}
+			int continueSize;
+			try {
+
+				continueSize = parseHeader(data, offset);
+			} catch (RuntimeException e) {
+
+				reset();
+				throw e;
+			}
+			if (continueSize > 0) {
+
+				return finish(continueSize);
+			}
+		}
+
+		switch (bodyType) {
+
+			case CHUNKED :
+				int chunkedEnd = walkChunks(data, offset, length);
+				if (chunkedEnd < 0) {
+
+					return -1;
+				}
+				if (contentLength > 0) {
+
+					return length < headerSize + contentLength ? -1 : finish(headerSize + contentLength);
+				}
+				return finish(chunkedEnd);
+			case FIXED :
+				return length < headerSize + contentLength ? -1 : finish(headerSize + contentLength);
+			case GZIP :
+				return isGzipHeaderReady(data, offset + headerSize, length - headerSize) ? finish(length) : -1;
+			case ZSTD :
+				return walkZstdFrames(data, offset, length) ? finish(length) : -1;
+			case BR :
+				// brotliは圧縮データの長さがバイト境界で分からないため、展開して完結しているかを確かめる
+				try {
+
+					Http.br_decompress(Arrays.copyOfRange(data, offset + headerSize, offset + length));
+				} catch (Exception e) {
+
+					return -1;
+				}
+				return finish(length);
+			default :
+				return finish(length);
+		}
+	}
+
+	private int finish(int messageSize) {
+		reset();
+		return messageSize;
+	}
+
+	private int findHeaderEnd(byte[] data, int offset, int length) {
+		// 前回の走査で見つからなかった位置の直前から再開する
+		for (int i = Math.max(0, headerScanned - 3); i < length; i++) {
+
+			int p = offset + i;
+			if (i <= length - 4 && data[p] == '\r' && data[p + 1] == '\n' && data[p + 2] == '\r'
+					&& data[p + 3] == '\n') {
+
+				return i + 4;
+			}
+			if (i <= length - 2 && data[p] == '\n' && data[p + 1] == '\n') {
+
+				return i + 2;
+			}
+		}
+		headerScanned = length;
+		return -1;
+	}
+
+	/* ヘッダの解析はメッセージごとに1回だけ行う。100 Continueの場合はその長さを返す */
+	private int parseHeader(byte[] data, int offset) {
+		String header_str = new String(data, offset, headerSize, StandardCharsets.UTF_8);
+
+		Matcher continue_matcher = Http.CONTINUE_PATTERN.matcher(header_str);
+		if (continue_matcher.find()) {
+
+			return continue_matcher.end();
+		}
+
+		Matcher plain_matcher = Http.PLAIN_PATTERN.matcher(header_str);
+		contentLength = plain_matcher.find() ? Integer.parseInt(plain_matcher.group(1)) : 0;
+
+		if (Http.CHUNKED_PATTERN.matcher(header_str).find()) {
+
+			bodyType = BodyType.CHUNKED;
+			chunkPos = headerSize;
+			lineScanned = headerSize;
+		} else if (contentLength > 0) {
+
+			bodyType = BodyType.FIXED;
+		} else if (Http.GZIP_PATTERN.matcher(header_str).find()) {
+
+			bodyType = BodyType.GZIP;
+		} else if (Http.ZSTD_PATTERN.matcher(header_str).find()) {
+
+			bodyType = BodyType.ZSTD;
+			zstdPos = headerSize;
+		} else if (Http.BR_PATTERN.matcher(header_str).find()) {
+
+			bodyType = BodyType.BR;
+		} else {
+
+			bodyType = BodyType.UNTIL_NOW;
+		}
+		return -1;
+	}
+
+	/* chunkを前回の続きからたどり、終端chunk(とtrailer)の末尾の位置を返す */
+	private int walkChunks(byte[] data, int offset, int length) {
+		while (chunkPos <= length) {
+
+			int lineEnd = findLineEnd(data, offset, length);
+			if (lineEnd < 0) {
+
+				return -1;
+			}
+			if (chunkState == ChunkState.TRAILER) {
+
+				boolean emptyLine = lineEnd == chunkPos;
+				chunkPos = lineEnd + 2;
+				lineScanned = chunkPos;
+				if (emptyLine) {
+
+					return chunkPos;
+				}
+				continue;
+			}
+
+			String sizeStr = new String(data, offset + chunkPos, lineEnd - chunkPos, StandardCharsets.US_ASCII);
+			int ext = sizeStr.indexOf(';');
+			if (ext >= 0) {
+
+				sizeStr = sizeStr.substring(0, ext);
+			}
+			int chunkSize;
+			try {
+
+				chunkSize = Integer.parseInt(sizeStr.trim(), 16);
+			} catch (NumberFormatException e) {
+
+				// 不正なchunkは揃うことが無いので、以前と同様に区切りなしとする
+				return -1;
+			}
+			chunkPos = lineEnd + 2;
+			if (chunkSize == 0) {
+
+				chunkState = ChunkState.TRAILER;
+			} else {
+
+				chunkPos += chunkSize + 2;
+			}
+			lineScanned = chunkPos;
+		}
+		return -1;
+	}
+
+	private int findLineEnd(byte[] data, int offset, int length) {
+		for (int i = Math.max(chunkPos, lineScanned - 1); i < length - 1; i++) {
+
+			if (data[offset + i] == '\r' && data[offset + i + 1] == '\n') {
+
+				return i;
+			}
+		}
+		lineScanned = Math.max(chunkPos, length - 1);
+		return -1;
+	}
+
+	/* gzipはヘッダ(10バイト)が揃っていれば、途中までのデータでも展開できる */
+	private boolean isGzipHeaderReady(byte[] data, int bodyOffset, int bodyLength) {
+		if (bodyLength == 0) {
+
+			return true;
+		}
+		if (bodyLength < 10) {
+
+			return false;
+		}
+		return (data[bodyOffset] & 0xff) == 0x1f && (data[bodyOffset + 1] & 0xff) == 0x8b;
+	}
+
+	/* zstdのフレームとブロックのヘッダだけを前回の続きからたどり、最後のフレームがちょうど末尾で終わっているかを調べる */
+	private boolean walkZstdFrames(byte[] data, int offset, int length) {
+		while (zstdPos <= length) {
+
+			if (!zstdInFrame) {
+
+				if (zstdPos == length) {
+
+					return true;
+				}
+				if (zstdPos + 4 > length) {
+
+					return false;
+				}
+				int magic = readLittleEndian(data, offset + zstdPos, 4);
+				if ((magic & 0xFFFFFFF0) == ZSTD_SKIPPABLE_MAGIC) {
+
+					if (zstdPos + 8 > length) {
+
+						return false;
+					}
+					zstdPos += 8 + readLittleEndian(data, offset + zstdPos + 4, 4);
+					continue;
+				}
+				if (magic != ZSTD_MAGIC || zstdPos + 5 > length) {
+
+					return false;
+				}
+				int descriptor = data[offset + zstdPos + 4] & 0xff;
+				int fcsFlag = descriptor >> 6;
+				boolean singleSegment = (descriptor & 0x20) != 0;
+				int didFlag = descriptor & 0x03;
+				int frameHeaderSize = 4 + 1 + (singleSegment ? 0 : 1) + new int[]{0, 1, 2, 4}[didFlag]
+						+ (fcsFlag == 0 ? (singleSegment ? 1 : 0) : new int[]{0, 2, 4, 8}[fcsFlag]);
+				if (zstdPos + frameHeaderSize > length) {
+
+					return false;
+				}
+				zstdChecksum = (descriptor & 0x04) != 0;
+				zstdInFrame = true;
+				zstdPos += frameHeaderSize;
+			} else {
+
+				if (zstdPos + 3 > length) {
+
+					return false;
+				}
+				int blockHeader = readLittleEndian(data, offset + zstdPos, 3);
+				boolean lastBlock = (blockHeader & 0x01) != 0;
+				int blockType = (blockHeader >> 1) & 0x03;
+				int blockSize = blockHeader >>> 3;
+				if (blockType == 3) {
+
+					return false;
+				}
+				zstdPos += 3 + (blockType == 1 ? 1 : blockSize);
+				if (lastBlock) {
+
+					zstdPos += zstdChecksum ? 4 : 0;
+					zstdInFrame = false;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int readLittleEndian(byte[] data, int pos, int size) {
+		int value = 0;
+		for (int i = size - 1; i >= 0; i--) {
+
+			value = (value << 8) | (data[pos + i] & 0xff);
+		}
+		return value;
+	}
+}
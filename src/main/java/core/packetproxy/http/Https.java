@@ -30,8 +30,11 @@ import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -57,14 +60,64 @@ public class Https {
 
 	private static final char[] KS_PASS = "testtest".toCharArray();
 
+	/*
+	 * SSLContext はセッションキャッシュを持つので、接続ごとに作り直すとセッションの再開ができない。
+	 * クライアントとの接続に使うものはCAとホスト名ごと、サーバとの接続に使うものはクライアント証明書の設定ごとに1つを使い回す。
+	 * TLS1.3のセッションチケットは JDK13 以降では既定で有効になっている。
+	 */
+	private static final int SERVER_CONTEXT_ENTRIES = 1024;
+
+	private static class ServerContext {
+
+		final KeyStore keyStore;
+		final SSLContext sslContext;
+
+		ServerContext(KeyStore keyStore, SSLContext sslContext) {
+			this.keyStore = keyStore;
+			this.sslContext = sslContext;
+		}
+	}
+
+	private static final Map<String, ServerContext> serverContexts = new LinkedHashMap<>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ServerContext> eldest) {
+			return size() > SERVER_CONTEXT_ENTRIES;
+		}
+	};
+	private static final Map<KeyManager[], SSLContext> clientContexts = new ConcurrentHashMap<>();
+
+	/** 使い回している SSLContext を捨てる。以降の接続ではセッションを再開しない */
+	public static void clearContextCache() {
+		synchronized (serverContexts) {
+
+			serverContexts.clear();
+		}
+		clientContexts.clear();
+	}
+
 	public static SSLContext createSSLContext(String commonName, CA ca) throws Exception {
-		SSLContext sslContext = SSLContext.getInstance("TLS");
 		String[] domainNames = Servers.getInstance().queryResolvedByDNS().stream().map(a -> a.getIp())
 				.sorted(String::compareTo).toArray(String[]::new);
 		KeyStore ks = CertCacheManager.getInstance().getKeyStore(commonName, domainNames, ca);
+		String key = ca.getName() + "\n" + commonName;
+		synchronized (serverContexts) {
+
+			// 証明書が発行し直された場合 (有効期限切れ、サーバの追加など) は作り直す
+			ServerContext cached = serverContexts.get(key);
+			if (cached != null && cached.keyStore == ks) {
+
+				return cached.sslContext;
+			}
+		}
+		SSLContext sslContext = SSLContext.getInstance("TLS");
 		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
 		kmf.init(ks, KS_PASS);
 		sslContext.init(kmf.getKeyManagers(), null, null);
+		synchronized (serverContexts) {
+
+			serverContexts.put(key, new ServerContext(ks, sslContext));
+		}
 		return sslContext;
 	}
 
@@ -91,7 +144,7 @@ public class Https {
 		clientSSLSocket.setUseClientMode(false);
 
 		Server server = Servers.getInstance().queryByAddress(serverAddr);
-		clientKeyManagers = ClientKeyManager.getKeyManagers(server);
+		KeyManager[] keyManagers = ClientKeyManager.getKeyManagers(server);
 		SSLSocket[] serverSSLSocket = new SSLSocket[1];
 		clientSSLSocket.setHandshakeApplicationProtocolSelector((clientSocketParam, clientProtocols) -> {
 			try {
@@ -118,7 +171,9 @@ public class Https {
 
 					serverSocket = new Socket(serverAddr.getAddress(), serverAddr.getPort());
 				}
-				serverSSLSocket[0] = (SSLSocket) createSSLSocketFactory().createSocket(serverSocket, null, true);
+				/* セッションを再開できるように、接続先のホストとポートを渡す */
+				serverSSLSocket[0] = (SSLSocket) createSSLSocketFactory(keyManagers).createSocket(serverSocket,
+						serverAddr.getHostString(), serverAddr.getPort(), true);
 				serverSSLSocket[0].setUseClientMode(true);
 				SSLParameters sp = serverSSLSocket[0].getSSLParameters();
 
@@ -171,7 +226,8 @@ public class Https {
 
 				serverSocket = new Socket(serverAddr.getAddress(), serverAddr.getPort());
 			}
-			serverSSLSocket[0] = (SSLSocket) createSSLSocketFactory().createSocket(serverSocket, null, true);
+			serverSSLSocket[0] = (SSLSocket) createSSLSocketFactory(keyManagers).createSocket(serverSocket,
+					serverAddr.getHostString(), serverAddr.getPort(), true);
 			serverSSLSocket[0].setUseClientMode(true);
 			serverSSLSocket[0].startHandshake();
 		}
@@ -196,7 +252,23 @@ public class Https {
 	}
 
 	public static SSLSocketFactory createSSLSocketFactory() throws Exception {
-		SSLContext sslContext = SSLContext.getInstance("TLS");
+		return createSSLSocketFactory(null);
+	}
+
+	/**
+	 * keyManagers はクライアント証明書 (ClientKeyManager.getKeyManagers())。null のときはクライアント証明書を送らない
+	 */
+	public static SSLSocketFactory createSSLSocketFactory(KeyManager[] keyManagers) throws Exception {
+		KeyManager[] profile = keyManagers != null ? keyManagers : clientKeyManagers;
+		SSLContext sslContext = clientContexts.get(profile);
+		if (sslContext == null) {
+
+			sslContext = clientContexts.computeIfAbsent(profile, Https::createClientSSLContext);
+		}
+		return sslContext.getSocketFactory();
+	}
+
+	private static SSLContext createClientSSLContext(KeyManager[] keyManagers) {
 		X509TrustManager[] trustManagers = {new X509TrustManager() {
 
 			public void checkClientTrusted(X509Certificate[] arg0, String arg1) {
@@ -209,11 +281,19 @@ public class Https {
 				return new X509Certificate[]{};
 			}
 		}};
-		sslContext.init(clientKeyManagers, trustManagers, new SecureRandom());
-		return (SSLSocketFactory) sslContext.getSocketFactory();
+		try {
+
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(keyManagers, trustManagers, new SecureRandom());
+			return sslContext;
+		} catch (Exception e) {
+
+			throw new IllegalStateException(e);
+		}
 	}
 
-	private static KeyManager[] clientKeyManagers = {new X509KeyManager() {
+	/* クライアント証明書を送らないときの KeyManager */
+	private static final KeyManager[] clientKeyManagers = {new X509KeyManager() {
 
 		@Override
 		public String[] getClientAliases(String s, Principal[] principals) {
@@ -288,9 +368,8 @@ public class Https {
 		SNIHostName serverName = new SNIHostName(SNIServerName);
 		/* Fetch Client Certificate from ClientKeyManager */
 		Server server = Servers.getInstance().queryByAddress(addr);
-		clientKeyManagers = ClientKeyManager.getKeyManagers(server);
 
-		SSLSocketFactory ssf = createSSLSocketFactory();
+		SSLSocketFactory ssf = createSSLSocketFactory(ClientKeyManager.getKeyManagers(server));
 		SSLSocket sock = (SSLSocket) ssf.createSocket(addr.getAddress(), addr.getPort());
 		SSLParameters sslp = sock.getSSLParameters();
 		String[] clientAPs;
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import packetproxy.model.ConfigInteger;
+import packetproxy.model.Packet;
+import packetproxy.model.Packets;
+
+/**
+ * 受信したそばから中継したレスポンスを、履歴のパケットに反映する
+ *
+ * <p>
+ * 履歴に残すのはヘッダとボディの先頭 (StreamingHistoryLimitKB まで) だけで、それ以降のボディは中継するだけで保持しない。
+ * 反映は全てのレスポンスで共有する1つのスレッドで行い、前回の反映以降にボディが増えていれば1回だけ解析し直す
+ */
+public class StreamingHistory {
+
+	private static final int DEFAULT_LIMIT_KB = 1024;
+	/* 履歴のパケットが見つからないときに探し直す間隔 (回数に比例して延ばす) と回数の上限 */
+	private static final long LOOKUP_RETRY_MSEC = 100;
+	private static final int MAX_LOOKUPS = 10;
+
+	private static final ScheduledExecutorService updater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "PacketProxy-streaming-history");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static ConfigInteger configLimitKB;
+
+	private static synchronized ConfigInteger getConfigLimitKB() throws Exception {
+		if (configLimitKB == null) {
+
+			configLimitKB = new ConfigInteger("StreamingHistoryLimitKB");
+		}
+		return configLimitKB;
+	}
+
+	/** 履歴に残すボディの上限 (KB) */
+	public static int getLimitKB() throws Exception {
+		int limit = getConfigLimitKB().getInteger();
+		return limit > 0 ? limit : DEFAULT_LIMIT_KB;
+	}
+
+	public static void setLimitKB(int limit) throws Exception {
+		getConfigLimitKB().setInteger(limit);
+	}
+
+	private final String uuid;
+	private final int limit;
+	private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+	private final int headerLength;
+	private boolean scheduled = false;
+	/* uuid を含む履歴のパケット。見つかるまでは null */
+	private volatile List<Integer> packetIds;
+	/* 履歴のパケットを探した回数。updater のスレッドからだけ使う */
+	private int lookups = 0;
+
+	/**
+	 * @param uuid
+	 *            履歴のパケットを探すために header に埋め込んだ UUID
+	 */
+	public StreamingHistory(String uuid, byte[] header) throws Exception {
+		this.uuid = uuid;
+		this.limit = getLimitKB() * 1024;
+		this.message.write(header);
+		this.headerLength = header.length;
+	}
+
+	/**
+	 * ボディの続きを記録する。上限を超えた分は記録しないが、履歴のパケットがまだ見つかっていなければ、記録済みの分を反映し直す
+	 */
+	public synchronized void append(byte[] data, int offset, int length) {
+		int room = limit - (message.size() - headerLength);
+		int recorded = Math.min(room, length);
+		if (recorded > 0) {
+
+			message.write(data, offset, recorded);
+		} else if (packetIds != null) {
+
+			return;
+		}
+		if (!scheduled) {
+
+			scheduled = true;
+			updater.execute(this::update);
+		}
+	}
+
+	private void update() {
+		byte[] data;
+		synchronized (this) {
+
+			scheduled = false;
+			data = message.toByteArray();
+		}
+		try {
+
+			Http http = Http.create(data);
+			if (http.getBody() == null || http.getBody().length == 0) {
+
+				return;
+			}
+			if (packetIds == null) {
+
+				List<Packet> packets = Packets.getInstance().queryFullText(uuid);
+				if (packets.isEmpty()) {
+
+					retryLookup();
+					return;
+				}
+				packetIds = packets.stream().map(Packet::getId).collect(Collectors.toList());
+			}
+			for (int id : packetIds) {
+
+				Packet p = Packets.getInstance().query(id);
+				p.setDecodedData(http.toByteArray());
+				p.setModifiedData(http.toByteArray());
+				Packets.getInstance().update(p);
+			}
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	/*
+	 * 履歴に追加される前なので、少し待ってから探し直す。続きのボディが届かない短いレスポンスでも記録できるように、
+	 * 次のボディを待たずに上限の回数まで探す
+	 */
+	private void retryLookup() {
+		lookups++;
+		if (lookups >= MAX_LOOKUPS) {
+
+			return;
+		}
+		synchronized (this) {
+
+			if (scheduled) {
+
+				return; /* 次のボディが届いて、反映が予約済み */
+			}
+			scheduled = true;
+		}
+		updater.schedule(this::update, LOOKUP_RETRY_MSEC * lookups, TimeUnit.MILLISECONDS);
+	}
+}
@@ -15,24 +15,24 @@
  */
 package packetproxy.http1;
 
-import static packetproxy.util.Logging.errWithStackTrace;
-
 import java.io.ByteArrayOutputStream;
-import java.util.List;
 import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.common.StringUtils;
 import packetproxy.http.Http;
-import packetproxy.model.Packet;
-import packetproxy.model.Packets;
+import packetproxy.http.Http1BodyTracker;
+import packetproxy.http.StreamingHistory;
 
 public class Http1StreamingResponse {
 
 	private ByteArrayOutputStream clientInput = new ByteArrayOutputStream();
 	private ByteArrayOutputStream serverInput = new ByteArrayOutputStream();
 
+	/* ヘッダの途中まで届いたデータ */
 	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 	private ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
-	private boolean headerReceived = false;
+	/* ボディを受信中のメッセージ。ヘッダを待っている間は null */
+	private Http1BodyTracker body;
+	private StreamingHistory history;
 
 	public int checkRequestDelimiter(byte[] data) throws Exception {
 		return Http.parseHttpDelimiter(data);
@@ -68,66 +68,47 @@ public class Http1StreamingResponse {
 		serverInput.write(data);
 	}
 
+	/*
+	 * 受信したデータはそのまま中継する。メッセージの区切りはヘッダとボディの長さだけから判断し、履歴にはヘッダとボディの先頭だけを残す
+	 */
 	public byte[] passThroughServerResponse() throws Exception {
-		buffer.write(serverInput.toByteArray());
-		if (headerReceived == false) {
+		byte[] out = serverInput.toByteArray();
+		serverInput.reset();
+		int pos = 0;
+		while (pos < out.length) {
 
-			int endOfHeader = StringUtils.binaryFind(buffer.toByteArray(), "\r\n\r\n".getBytes());
-			if (endOfHeader > 0) {
+			if (body == null) {
 
-				byte[] header = ArrayUtils.subarray(buffer.toByteArray(), 0, endOfHeader + 2);
-				byte[] body = ArrayUtils.subarray(buffer.toByteArray(), endOfHeader + 4, buffer.size());
+				/* ヘッダが揃うまでは溜めておく */
+				int buffered = buffer.size();
+				buffer.write(out, pos, out.length - pos);
+				byte[] pending = buffer.toByteArray();
+				int endOfHeader = StringUtils.binaryFind(pending, "\r\n\r\n".getBytes());
+				if (endOfHeader < 0) {
+
+					break;
+				}
+				byte[] header = ArrayUtils.subarray(pending, 0, endOfHeader + 2);
+				String uuid = StringUtils.randomUUID();
 				byte[] newHeader = ArrayUtils.addAll(header,
-						String.format("X-PacketProxy-HTTP1-UUID: %s\r\n\r\n", StringUtils.randomUUID()).getBytes());
-				byte[] newHttp = ArrayUtils.addAll(newHeader, body);
-				buffer.reset();
-				buffer.write(newHttp);
+						String.format("X-PacketProxy-HTTP1-UUID: %s\r\n\r\n", uuid).getBytes());
 				headerBuffer.write(newHeader);
-				headerReceived = true;
-			}
-		} else {
-
-			Http http;
-			int delim = Http.parseHttpDelimiter(buffer.toByteArray());
-			if (delim > 0) {
-
-				byte[] httpData = ArrayUtils.subarray(buffer.toByteArray(), 0, delim);
-				byte[] remaining = ArrayUtils.subarray(buffer.toByteArray(), delim, buffer.size());
-				headerReceived = false;
+				history = new StreamingHistory(uuid, newHeader);
+				body = new Http1BodyTracker(header);
 				buffer.reset();
-				buffer.write(remaining);
-				http = Http.create(httpData);
+				pos += endOfHeader + 4 - buffered;
 			} else {
 
-				http = Http.create(buffer.toByteArray());
+				int length = body.consume(out, pos, out.length - pos);
+				history.append(out, pos, length);
+				pos += length;
 			}
-			Thread guiHistoryUpdater = new Thread(new Runnable() {
+			if (body.isComplete()) {
 
-				public void run() {
-					try {
-
-						if (http.getBody() != null && http.getBody().length > 0) {
-
-							List<Packet> packets = Packets.getInstance()
-									.queryFullText(http.getFirstHeader("X-PacketProxy-HTTP1-UUID"));
-							for (Packet packet : packets) {
-
-								Packet p = Packets.getInstance().query(packet.getId());
-								p.setDecodedData(http.toByteArray());
-								p.setModifiedData(http.toByteArray());
-								Packets.getInstance().update(p);
-							}
-						}
-					} catch (Exception e) {
-
-						errWithStackTrace(e);
-					}
-				}
-			});
-			guiHistoryUpdater.start();
+				body = null;
+				history = null;
+			}
 		}
-		byte[] out = serverInput.toByteArray();
-		serverInput.reset();
 		return out;
 	}
 
@@ -15,167 +15,208 @@
  */
 package packetproxy.http2;
 
-import static packetproxy.util.Logging.err;
-
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import lombok.Getter;
-import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.http2.frames.DataFrame;
 import packetproxy.http2.frames.Frame;
-import packetproxy.http2.frames.FrameFactory;
 
+/**
+ * ストリーム1本分の送信待ちのフレームとウィンドウサイズ。FlowControlManager のロックの中から使う
+ *
+ * <p>
+ * DATA フレームのペイロードは受け取った配列のまま並べておき、送るときに必要な長さだけを1回コピーする。
+ */
 @Getter
 public class FlowControl {
 
-	private int streamId;
+	private final int streamId;
+	private final boolean localInitiated;
 	private int windowSize;
-	private Frame headersFrame = null;
-	private Frame grpcHeaderFrame = null;
-	private boolean headersFrameSent = false;
-	private boolean dataFrameSent = false;
-	private boolean grpcHeadersFrameSent = false;
-	private ByteArrayOutputStream queue;
-	private boolean end_flag;
-	private boolean empty_data_end_flag = false;
-
-	public FlowControl(int streamId, int initialWindowSize) {
+	/* HEADERS (と続く CONTINUATION)。1つ目はヘッダ、2つ目は gRPC のトレイラーとして DATA の後に送る */
+	private Stream headers = null;
+	private Stream trailers = null;
+	private boolean headersSent = false;
+	private boolean trailersSent = false;
+	private final Deque<byte[]> chunks = new ArrayDeque<>();
+	/* chunks の先頭の配列のうち、送信済みの長さ */
+	private int chunkOffset = 0;
+	private long queuedBytes = 0;
+	private boolean endStream = false;
+	private boolean endStreamSent = false;
+	private boolean remoteClosed = false;
+	private boolean reset = false;
+	/* FlowControlManager の送信待ちの列に入っているか */
+	boolean scheduled = false;
+
+	public FlowControl(int streamId, int initialWindowSize, boolean localInitiated) {
 		this.streamId = streamId;
 		this.windowSize = initialWindowSize;
-		this.queue = new ByteArrayOutputStream();
-		this.end_flag = false;
+		this.localInitiated = localInitiated;
 	}
 
 	public void appendWindowSize(int appendWindowSize) {
-		synchronized (queue) {
-			windowSize += appendWindowSize;
-		}
+		windowSize += appendWindowSize;
 	}
 
 	// 1回目のpushは、HeadersFrameとして扱う。
 	// 2回目のpushは、gRPC通信の2nd HeadersFrameとして扱い、DataFrameの後に送信する
 	public void pushHeadersFrame(Frame headersFrame) {
-		if (this.headersFrame == null) {
+		if (this.headers == null) {
 
-			this.headersFrame = headersFrame;
+			this.headers = new Stream();
+			this.headers.write(headersFrame);
 		} else {
 
-			this.grpcHeaderFrame = headersFrame;
+			this.trailers = new Stream();
+			this.trailers.write(headersFrame);
+		}
+		if ((headersFrame.getFlags() & DataFrame.FLAG_END_STREAM) > 0) {
+
+			this.endStream = true;
 		}
 	}
 
-	public void enqueue(Frame frame) throws Exception {
-		synchronized (queue) {
-			queue.write(frame.getPayload());
-			queue.flush();
-			if ((frame.getFlags() & DataFrame.FLAG_END_STREAM) > 0) {
+	/** 直前の HEADERS に続くヘッダブロックの断片。まだ送っていないヘッダブロックに続けて送る。送っていなければ false */
+	public boolean pushContinuationFrame(Frame continuationFrame) {
+		if (this.trailers != null && !this.trailersSent) {
 
-				end_flag = true;
-				if (queue.size() == 0) {
+			this.trailers.write(continuationFrame);
+			return true;
+		}
+		if (this.headers != null && !this.headersSent) {
 
-					empty_data_end_flag = true;
-				}
-			}
+			this.headers.write(continuationFrame);
+			return true;
 		}
+		return false;
 	}
 
-	public synchronized Stream dequeue(int connectionWindowSize) throws Exception {
-		Stream stream = new Stream();
-
-		// 最初にheadersFrameを送信する
-		if (!this.headersFrameSent && this.headersFrame != null) {
+	public void enqueue(Frame frame) {
+		byte[] payload = frame.getPayload();
+		if (payload.length > 0) {
 
-			// Logging.log("[%d] HeadersFrame sent!\n", streamId);
-			stream.write(this.headersFrame);
-			this.headersFrameSent = true;
-			return stream;
+			chunks.addLast(payload);
+			queuedBytes += payload.length;
 		}
+		if ((frame.getFlags() & DataFrame.FLAG_END_STREAM) > 0) {
 
-		// データの送信が終わっていたら、grpcヘッダを送信する
-		if (this.headersFrameSent && (this.dataFrameSent || queue.size() == 0) && !this.grpcHeadersFrameSent
-				&& this.grpcHeaderFrame != null) {
-
-			// Logging.log("[%d] gRPC HeadersFrame sent!\n", streamId);
-			stream.write(this.grpcHeaderFrame);
-			this.grpcHeadersFrameSent = true;
-			return stream;
+			endStream = true;
 		}
+	}
 
-		if (queue.size() == 0) {
+	public boolean hasHeadersToSend() {
+		return !headersSent && headers != null;
+	}
 
-			if (empty_data_end_flag) {
+	/** 送れるものが残っているか (ウィンドウが足りるかは問わない) */
+	public boolean hasPending() {
+		if (reset) {
 
-				empty_data_end_flag = false;
-				int flags = DataFrame.FLAG_END_STREAM;
-				Frame frame = FrameFactory.create(DataFrame.TYPE, flags, streamId, new byte[0]);
-				stream.write(frame);
-				return stream;
-			}
-			return null; /* no data */
+			return false;
 		}
+		if (hasHeadersToSend()) {
 
-		int capacity = Math.min(windowSize, connectionWindowSize);
-		if (capacity == 0) {
-
-			err("[HTTP/2 FlowControl] try to send %d data, but running out of window (streamId: %d)", queue.size(),
-					this.streamId);
-			return null;
+			return true;
 		}
-		// 少しだけcapacityに余裕を持たせる
-		if (capacity <= 3000) {
+		return queuedBytes > 0 || (trailers != null && !trailersSent) || (endStream && !endStreamSent);
+	}
 
-			return null;
-		} else {
+	public boolean isClosed() {
+		return reset || (endStreamSent && remoteClosed);
+	}
 
-			capacity -= 3000;
+	public void closeRemote() {
+		remoteClosed = true;
+	}
+
+	public void reset() {
+		reset = true;
+		chunks.clear();
+		chunkOffset = 0;
+		queuedBytes = 0;
+	}
+
+	/**
+	 * 次に送るフレームを1つ返す。DATA フレームは maxFrameSize とウィンドウサイズに収まる長さに切り出す。
+	 * 送るものがないか、ウィンドウが足りないときは null
+	 */
+	public Stream dequeue(int connectionWindowSize, int maxFrameSize) throws Exception {
+		// 最初にheadersFrameを送信する
+		if (hasHeadersToSend()) {
+
+			this.headersSent = true;
+			return sent(this.headers);
 		}
-		int dataLen = Math.min(queue.size(), capacity);
-		if (dataLen == 0) {
+		if (this.reset) {
 
-			err("[HTTP/2 FlowControl] sending data is not found (streamId: %d)", this.streamId);
 			return null;
 		}
-		this.windowSize -= dataLen;
-		byte[] data = ArrayUtils.subarray(queue.toByteArray(), 0, dataLen);
-		byte[] remaining = ArrayUtils.subarray(queue.toByteArray(), dataLen, queue.size());
-		queue.reset();
-		queue.write(remaining);
-		queue.flush();
-
-		while (data.length > 0) {
 
-			int payloadLen = Math.min(data.length, 16384);
-			byte[] payload = ArrayUtils.subarray(data, 0, payloadLen);
-			data = ArrayUtils.subarray(data, payloadLen, data.length);
+		if (queuedBytes == 0) {
 
-			int flags = 0x0;
-			if (remaining.length == 0 && end_flag && data.length == 0) {
+			// データの送信が終わっていたら、grpcヘッダを送信する
+			if (this.trailers != null && !this.trailersSent) {
 
-				flags = DataFrame.FLAG_END_STREAM;
+				this.trailersSent = true;
+				return sent(this.trailers);
 			}
-			Frame frame = FrameFactory.create(DataFrame.TYPE, flags, streamId, payload);
-
-			if (remaining.length == 0 && data.length == 0) {
+			if (this.endStream && !this.endStreamSent) {
 
-				this.dataFrameSent = true;
+				Stream stream = new Stream();
+				stream.write(new DataFrame(DataFrame.FLAG_END_STREAM, streamId, new byte[0]));
+				return sent(stream);
 			}
+			return null; /* no data */
+		}
 
-			stream.write(frame);
+		int dataLen = (int) Math.min(queuedBytes, Math.min(Math.min(windowSize, connectionWindowSize), maxFrameSize));
+		if (dataLen <= 0) {
+
+			return null; /* ウィンドウが開くのを待つ */
 		}
+		byte[] payload = take(dataLen);
+		this.windowSize -= dataLen;
 
-		// データの送信が終わっていたら、grpcヘッダを送信する
-		if (this.headersFrameSent && this.dataFrameSent && !this.grpcHeadersFrameSent && this.grpcHeaderFrame != null) {
+		int flags = 0x0;
+		if (queuedBytes == 0 && endStream && trailers == null) {
 
-			// Logging.log("[%d] gRPC HeadersFrame sent!\n", streamId);
-			stream.write(this.grpcHeaderFrame);
-			this.grpcHeadersFrameSent = true;
+			flags = DataFrame.FLAG_END_STREAM;
 		}
+		Stream stream = new Stream();
+		stream.write(new DataFrame(flags, streamId, payload));
+		return sent(stream);
+	}
+
+	private Stream sent(Stream stream) {
+		if ((stream.getFlags() & DataFrame.FLAG_END_STREAM) > 0) {
 
+			this.endStreamSent = true;
+		}
 		return stream;
 	}
 
-	public int size() {
-		synchronized (queue) {
-			return queue.size();
+	private byte[] take(int length) {
+		byte[] data = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+
+			byte[] chunk = chunks.peekFirst();
+			int n = Math.min(length - copied, chunk.length - chunkOffset);
+			System.arraycopy(chunk, chunkOffset, data, copied, n);
+			copied += n;
+			chunkOffset += n;
+			if (chunkOffset == chunk.length) {
+
+				chunks.pollFirst();
+				chunkOffset = 0;
+			}
 		}
+		queuedBytes -= length;
+		return data;
+	}
+
+	public long size() {
+		return queuedBytes;
 	}
 }
@@ -21,73 +21,172 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import packetproxy.http2.frames.DataFrame;
 import packetproxy.http2.frames.Frame;
 import packetproxy.http2.frames.SettingsFrame;
 import packetproxy.http2.frames.SettingsFrame.SettingsFrameType;
 import packetproxy.http2.frames.WindowUpdateFrame;
 
+/**
+ * 相手に送る HEADERS/DATA フレームを、相手のウィンドウサイズと SETTINGS に従って送り出す
+ *
+ * <p>
+ * 送れるものが残っているストリームを順に回り、1回に1フレームずつ送るので、大きなデータを送るストリームがあっても他のストリームが待たされない。
+ * DATA フレームの長さは相手の SETTINGS_MAX_FRAME_SIZE に従う。こちらから開くストリームの数が相手の
+ * SETTINGS_MAX_CONCURRENT_STREAMS に達している間は、新しいストリームの HEADERS を送らずに待たせる。
+ * 両方向とも END_STREAM を送ったストリームと、RST_STREAM で閉じられたストリームは忘れる。
+ */
 public class FlowControlManager {
 
+	/* RFC 7540 6.5.2 */
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+
 	private Map<Integer, FlowControl> flows;
+	/* 送れるものが残っているストリーム。先頭のストリームから1フレームずつ送る */
+	private Deque<FlowControl> ready;
 	private int PIPE_SIZE = 65535;
-	private int connectionWindowSize = 65535;
-	private int initialStreamWindowSize = 65535;
-	private int maxConcurrentStreams = 100;
+	private int connectionWindowSize = DEFAULT_WINDOW_SIZE;
+	private int initialStreamWindowSize = DEFAULT_WINDOW_SIZE;
+	private int maxConcurrentStreams = Integer.MAX_VALUE;
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	/* こちらから開いて、まだ閉じていないストリームの数 */
+	private int openStreams = 0;
+	private long framesSent = 0;
+	private long dataBytesSent = 0;
+	private long streamsClosed = 0;
 	private PipedOutputStream outputForFlowControl;
 	private PipedInputStream inputForFlowControl;
 
 	public FlowControlManager() throws Exception {
 		flows = new HashMap<>();
+		ready = new ArrayDeque<>();
 		outputForFlowControl = new PipedOutputStream();
 		inputForFlowControl = new PipedInputStream(outputForFlowControl, PIPE_SIZE);
 	}
 
-	private synchronized FlowControl getFlow(int streamId) {
+	/* こちらから送るフレームで初めて現れたストリームは、こちらから開いたストリーム */
+	private FlowControl getFlow(int streamId, boolean localInitiated) {
 		FlowControl flow = flows.get(streamId);
 		if (flow == null) {
 
-			flow = new FlowControl(streamId, initialStreamWindowSize);
+			flow = new FlowControl(streamId, initialStreamWindowSize, localInitiated);
 			flows.put(streamId, flow);
 		}
 		return flow;
 	}
 
-	private synchronized void writeData(FlowControl flow) throws Exception {
-		Stream stream = flow.dequeue(this.connectionWindowSize);
-		if (stream != null) {
+	private void markReady(FlowControl flow) {
+		if (!flow.scheduled && flow.hasPending()) {
 
-			this.connectionWindowSize -= stream.payloadSize();
-			// Logging.log("[%d] sent: %d (remain: %d), WindowSize: %d,
-			// ConnectionWindowSize: %d\n", flow.getStreamId(), stream.payloadSize(),
-			// flow.size(), flow.getWindowSize(), this.connectionWindowSize);
-			// System.out.flush();
-			this.outputForFlowControl.write(stream.toByteArrayWithoutExtra());
-			this.outputForFlowControl.flush();
+			flow.scheduled = true;
+			ready.addLast(flow);
 		}
 	}
 
-	public synchronized void setInitialWindowSize(SettingsFrame frame) {
-		int flags = frame.getFlags();
-		if ((flags & 0x1) > 0) {
+	private boolean blockedByConcurrency(FlowControl flow) {
+		return flow.isLocalInitiated() && flow.hasHeadersToSend() && openStreams >= maxConcurrentStreams;
+	}
 
-			return;
+	/** 送れるフレームがなくなるまで、ストリームを順に回って1フレームずつ送る */
+	private void schedule() throws Exception {
+		boolean progress = true;
+		while (progress && !ready.isEmpty()) {
+
+			progress = false;
+			for (int i = ready.size(); i > 0; i--) {
+
+				FlowControl flow = ready.pollFirst();
+				flow.scheduled = false;
+				if (blockedByConcurrency(flow)) {
+
+					markReady(flow);
+					continue;
+				}
+				boolean opening = flow.isLocalInitiated() && flow.hasHeadersToSend();
+				Stream stream = flow.dequeue(this.connectionWindowSize, this.maxFrameSize);
+				if (stream != null) {
+
+					if (opening) {
+
+						openStreams++;
+					}
+					int dataSize = stream.dataSize();
+					this.connectionWindowSize -= dataSize;
+					this.outputForFlowControl.write(stream.toByteArrayWithoutExtra());
+					framesSent++;
+					dataBytesSent += dataSize;
+					progress = true;
+				}
+				if (flow.isClosed()) {
+
+					release(flow);
+				} else {
+
+					markReady(flow);
+				}
+			}
+		}
+		this.outputForFlowControl.flush();
+	}
+
+	private void release(FlowControl flow) {
+		if (flows.remove(flow.getStreamId(), flow)) {
+
+			streamsClosed++;
+			if (flow.isLocalInitiated() && flow.isHeadersSent()) {
+
+				openStreams--;
+			}
 		}
-		if (initialStreamWindowSize != 65535) {
+		if (flow.scheduled) {
 
-			err("[Error] Initial window size is reset. We cannot handle it (not implemented yet)");
+			flow.scheduled = false;
+			ready.remove(flow);
 		}
-		initialStreamWindowSize = frame.get(SettingsFrameType.SETTINGS_INITIAL_WINDOW_SIZE);
 	}
 
-	public synchronized void setMaxConcurrentStreams(SettingsFrame frame) {
+	/** 相手の SETTINGS のうち、送信に関わる値を反映する。SETTINGS に含まれていない値はそのまま */
+	public synchronized void applySettings(SettingsFrame frame) throws Exception {
 		int flags = frame.getFlags();
 		if ((flags & 0x1) > 0) {
 
 			return;
 		}
-		maxConcurrentStreams = frame.get(SettingsFrameType.SETTINGS_MAX_CONCURRENT_STREAMS);
+		if (frame.has(SettingsFrameType.SETTINGS_INITIAL_WINDOW_SIZE)) {
+
+			// 開いているストリームのウィンドウサイズも差分だけ変わる (RFC 7540 6.9.2)
+			int windowSize = frame.get(SettingsFrameType.SETTINGS_INITIAL_WINDOW_SIZE);
+			int delta = windowSize - initialStreamWindowSize;
+			initialStreamWindowSize = windowSize;
+			for (FlowControl flow : flows.values()) {
+
+				flow.appendWindowSize(delta);
+			}
+		}
+		if (frame.has(SettingsFrameType.SETTINGS_MAX_FRAME_SIZE)) {
+
+			int frameSize = frame.get(SettingsFrameType.SETTINGS_MAX_FRAME_SIZE);
+			if (frameSize < DEFAULT_MAX_FRAME_SIZE || frameSize > MAX_FRAME_SIZE_LIMIT) {
+
+				err("[HTTP/2 FlowControl] invalid SETTINGS_MAX_FRAME_SIZE: %d", frameSize);
+			} else {
+
+				maxFrameSize = frameSize;
+			}
+		}
+		if (frame.has(SettingsFrameType.SETTINGS_MAX_CONCURRENT_STREAMS)) {
+
+			maxConcurrentStreams = frame.get(SettingsFrameType.SETTINGS_MAX_CONCURRENT_STREAMS);
+		}
+		schedule();
 	}
 
 	public synchronized void appendWindowSize(WindowUpdateFrame frame) throws Exception {
@@ -97,45 +196,113 @@ public class FlowControlManager {
 		if (streamId == 0) {
 
 			connectionWindowSize += windowSize;
-			// Logging.err("ConnectionWindowSize: +%d\n", connectionWindowSize);
-			// System.err.flush();
-			for (FlowControl flow : flows.values()) {
-
-				writeData(flow);
-			}
 		} else {
 
-			FlowControl flow = getFlow(streamId);
+			FlowControl flow = flows.get(streamId);
+			if (flow == null) {
+
+				return; /* 閉じたストリーム */
+			}
 			flow.appendWindowSize(windowSize);
-			// Logging.err("[%d] WindowSize: +%d\n", streamId, flow.getWindowSize());
-			// System.err.flush();
-			writeData(flow);
+			markReady(flow);
+		}
+		schedule();
+	}
+
+	/**
+	 * 相手から届いた HEADERS/DATA/RST_STREAM フレームで、ストリームが相手側から閉じられたことを知る。
+	 * streamId はこちらから送るフレームと同じ番号の空間で渡すこと
+	 */
+	public synchronized void received(Frame frame, int streamId) throws Exception {
+		if (streamId == 0) {
+
+			return;
+		}
+		if (frame.getType() == Frame.Type.RST_STREAM) {
+
+			FlowControl flow = flows.get(streamId);
+			if (flow != null) {
+
+				flow.reset();
+				release(flow);
+				schedule();
+			}
+			return;
+		}
+		FlowControl flow = (frame.getType() == Frame.Type.HEADERS) ? getFlow(streamId, false) : flows.get(streamId);
+		if (flow != null && (frame.getFlags() & DataFrame.FLAG_END_STREAM) > 0) {
+
+			flow.closeRemote();
+			if (flow.isClosed()) {
+
+				release(flow);
+				schedule();
+			}
 		}
 	}
 
 	public synchronized void write(Frame frame) throws Exception {
-		/* TODO: maximum concurrent streams is not implemented yet */
+		if (frame.getType() == Frame.Type.CONTINUATION) {
+
+			FlowControl flow = flows.get(frame.getStreamId());
+			if (flow != null && flow.pushContinuationFrame(frame)) {
+
+				return; /* 送信待ちの HEADERS と一緒に送る */
+			}
+		}
 		if (frame.getType() == Frame.Type.HEADERS) {
 
 			// Logging.log("[%d] sent HeadersFrame %02x\n", frame.getStreamId(),
 			// frame.getFlags());
-			FlowControl flow = getFlow(frame.getStreamId());
+			FlowControl flow = getFlow(frame.getStreamId(), true);
 			flow.pushHeadersFrame(frame);
-			writeData(flow);
+			markReady(flow);
+			schedule();
 		} else if (frame.getType() == Frame.Type.DATA) {
 
 			// Logging.log("[%d] sent DataFrame %02x\n", frame.getStreamId(),
 			// frame.getFlags());
-			FlowControl flow = getFlow(frame.getStreamId());
+			FlowControl flow = getFlow(frame.getStreamId(), true);
 			flow.enqueue(frame);
-			writeData(flow);
+			markReady(flow);
+			schedule();
 		} else {
 
+			if (frame.getType() == Frame.Type.RST_STREAM && flows.containsKey(frame.getStreamId())) {
+
+				FlowControl flow = flows.get(frame.getStreamId());
+				flow.reset();
+				release(flow);
+			}
 			outputForFlowControl.write(frame.toByteArray());
 			outputForFlowControl.flush();
 		}
 	}
 
+	/**
+	 * コネクション全体と、ストリームごとのウィンドウサイズ (stream_&lt;id&gt;_window) と送信待ちのバイト数
+	 * (stream_&lt;id&gt;_queued)
+	 */
+	public synchronized Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("connection_window", (long) connectionWindowSize);
+		metrics.put("max_frame_size", (long) maxFrameSize);
+		metrics.put("max_concurrent_streams", (long) maxConcurrentStreams);
+		metrics.put("streams", (long) flows.size());
+		metrics.put("open_streams", (long) openStreams);
+		metrics.put("pending_streams", flows.values().stream().filter(this::blockedByConcurrency).count());
+		metrics.put("queued_bytes", flows.values().stream().mapToLong(FlowControl::size).sum());
+		metrics.put("frames_sent", framesSent);
+		metrics.put("data_bytes_sent", dataBytesSent);
+		metrics.put("streams_closed", streamsClosed);
+		for (FlowControl flow : new TreeMap<>(flows).values()) {
+
+			metrics.put("stream_" + flow.getStreamId() + "_window", (long) flow.getWindowSize());
+			metrics.put("stream_" + flow.getStreamId() + "_queued", flow.size());
+		}
+		return metrics;
+	}
+
 	public OutputStream getOutputStream() {
 		return outputForFlowControl;
 	}
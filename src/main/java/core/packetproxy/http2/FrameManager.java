@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.IntConsumer;
 import org.apache.commons.lang3.ArrayUtils;
 import org.eclipse.jetty.http2.hpack.HpackDecoder;
 import org.eclipse.jetty.http2.hpack.HpackEncoder;
@@ -38,6 +39,7 @@ public class FrameManager {
 	private boolean flag_send_settings = false;
 	private boolean flag_send_end_settings = false;
 	private StreamIdRemapper streamIdRemapper = null;
+	private IntConsumer streamResetListener = null;
 
 	public FrameManager() throws Exception {
 		flowControlManager = new FlowControlManager();
@@ -47,6 +49,11 @@ public class FrameManager {
 		this.streamIdRemapper = streamIdRemapper;
 	}
 
+	/** RST_STREAM を受信したら、閉じられたストリームのID (クライアント側の番号) を listener に渡す */
+	public void setStreamResetListener(IntConsumer listener) {
+		this.streamResetListener = listener;
+	}
+
 	public HpackDecoder getHpackDecoder() {
 		return hpackDecoder;
 	}
@@ -78,16 +85,18 @@ public class FrameManager {
 
 			HeadersFrame headersFrame = (HeadersFrame) frame;
 			headersDataFrames.add(headersFrame);
+			flowControlManager.received(headersFrame, toOutgoingStreamId(headersFrame.getStreamId()));
 			// Logging.log("HeadersFrame: " + headersFrame);
 		} else if (frame instanceof DataFrame) {
 
 			DataFrame dataFrame = (DataFrame) frame;
 			headersDataFrames.add(dataFrame);
+			flowControlManager.received(dataFrame, toOutgoingStreamId(dataFrame.getStreamId()));
 			// Logging.log("DataFrame: " + dataFrame);
 		} else if (frame instanceof SettingsFrame) {
 
 			SettingsFrame settingsFrame = (SettingsFrame) frame;
-			flowControlManager.setInitialWindowSize(settingsFrame);
+			flowControlManager.applySettings(settingsFrame);
 			if ((settingsFrame.getFlags() & 0x1) == 0) {
 
 				int header_table_size = settingsFrame.get(SettingsFrameType.SETTINGS_HEADER_TABLE_SIZE);
@@ -117,6 +126,12 @@ public class FrameManager {
 
 				err("RstStream:%s", rstFrame);
 			}
+			// RST_STREAM はストリームIDを書き換えずに届く
+			flowControlManager.received(rstFrame, rstFrame.getStreamId());
+			if (streamResetListener != null) {
+
+				streamResetListener.accept(toIncomingStreamId(rstFrame.getStreamId()));
+			}
 		} else if (frame instanceof WindowUpdateFrame) {
 
 			WindowUpdateFrame windowUpdateFrame = (WindowUpdateFrame) frame;
@@ -193,6 +208,24 @@ public class FrameManager {
 		}
 	}
 
+	/* StreamIdRemapper で書き換えられた HEADERS/DATA のストリームIDを、送信するフレームと同じ番号に戻す */
+	private int toOutgoingStreamId(int streamId) {
+		if (streamIdRemapper == null || streamId == 0) {
+
+			return streamId;
+		}
+		return streamIdRemapper.mapClientToServer(streamId, false);
+	}
+
+	/* サーバ側の番号のままの RST_STREAM のストリームIDを、HEADERS/DATA と同じクライアント側の番号にする */
+	private int toIncomingStreamId(int streamId) {
+		if (streamIdRemapper == null || streamId == 0) {
+
+			return streamId;
+		}
+		return streamIdRemapper.mapServerToClient(streamId);
+	}
+
 	private void remapOutgoingStreamId(Frame f) {
 		if (streamIdRemapper == null || f.getStreamId() == 0) {
 
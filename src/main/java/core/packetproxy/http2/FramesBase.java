@@ -20,6 +20,7 @@ import java.io.InputStream;
 import java.util.List;
 import org.eclipse.jetty.http2.hpack.HpackDecoder;
 import org.eclipse.jetty.http2.hpack.HpackEncoder;
+import packetproxy.http.Http;
 import packetproxy.http2.frames.Frame;
 import packetproxy.http2.frames.FrameUtils;
 import packetproxy.model.Packet;
@@ -36,6 +37,15 @@ public abstract class FramesBase {
 		clientFrameManager = new FrameManager();
 		serverFrameManager = new FrameManager();
 		serverFrameManager.setStreamIdRemapper(streamIdRemapper);
+		clientFrameManager.setStreamResetListener(this::streamReset);
+		serverFrameManager.setStreamResetListener(this::streamReset);
+	}
+
+	/**
+	 * streamId のストリームがクライアントかサーバの RST_STREAM で閉じられた。ストリームごとに状態を持つサブクラスはここで捨てる。
+	 * クライアントからのフレームを受信するスレッドとサーバからのフレームを受信するスレッドの両方から呼ばれる
+	 */
+	protected void streamReset(int streamId) {
 	}
 
 	public String getName() {
@@ -46,6 +56,10 @@ public abstract class FramesBase {
 		return FrameUtils.checkDelimiter(data);
 	}
 
+	public int checkDelimiter(byte[] data, int offset, int length) throws Exception {
+		return FrameUtils.checkDelimiter(data, offset, length);
+	}
+
 	public void clientRequestArrived(byte[] frames) throws Exception {
 		clientFrameManager.write(frames);
 	}
@@ -119,6 +133,24 @@ public abstract class FramesBase {
 		return frames;
 	}
 
+	/* フレームから組み立てた Http を返す。Http を組み立てないサブクラスでは、decodeClientRequest() の結果を解析する */
+	public Http decodeClientRequestAsHttp(byte[] frames) throws Exception {
+		return Http.create(decodeClientRequest(frames));
+	}
+
+	public Http decodeServerResponseAsHttp(byte[] frames) throws Exception {
+		return Http.create(decodeServerResponse(frames));
+	}
+
+	/* 解析済みの Http からフレームを作る。Http を扱わないサブクラスでは、byte[] にして encodeClientRequest() に渡す */
+	public byte[] encodeClientRequest(Http http) throws Exception {
+		return encodeClientRequest(http.toByteArray());
+	}
+
+	public byte[] encodeServerResponse(Http http) throws Exception {
+		return encodeServerResponse(http.toByteArray());
+	}
+
 	public void putToClientFlowControlledQueue(byte[] frames) throws Exception {
 		clientFrameManager.putToFlowControlledQueue(frames);
 	}
@@ -228,7 +228,7 @@ public class GrpcStreaming extends FramesBase {
 
 	public void setGroupId(Packet packet) throws Exception {
 		byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-		Http http = Http.create(data);
+		Http http = packet.getHttp(data);
 		String streamIdStr = http.getFirstHeader("X-PacketProxy-HTTP2-Stream-Id");
 		if (streamIdStr != null && streamIdStr.length() > 0) {
 
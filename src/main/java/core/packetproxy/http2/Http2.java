@@ -73,15 +73,25 @@ public class Http2 extends FramesBase {
 
 	@Override
 	protected byte[] decodeClientRequestFromFrames(byte[] frames) throws Exception {
-		return decodeFromFrames(frames);
+		return decodeFromFrames(frames).toByteArray();
 	}
 
 	@Override
 	protected byte[] decodeServerResponseFromFrames(byte[] frames) throws Exception {
+		return decodeFromFrames(frames).toByteArray();
+	}
+
+	@Override
+	public Http decodeClientRequestAsHttp(byte[] frames) throws Exception {
 		return decodeFromFrames(frames);
 	}
 
-	private byte[] decodeFromFrames(byte[] frames) throws Exception {
+	@Override
+	public Http decodeServerResponseAsHttp(byte[] frames) throws Exception {
+		return decodeFromFrames(frames);
+	}
+
+	private Http decodeFromFrames(byte[] frames) throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		for (Frame frame : FrameUtils.parseFrames(frames)) {
 
@@ -101,7 +111,7 @@ public class Http2 extends FramesBase {
 
 			http.updateHeader("X-PacketProxy-HTTP2-Flags", String.valueOf(flags & 0xff | HeadersFrame.FLAG_END_STREAM));
 		}
-		return http.toByteArray();
+		return http;
 	}
 
 	@Override
@@ -114,9 +124,31 @@ public class Http2 extends FramesBase {
 		return encodeToFrames(http, super.getServerHpackEncoder());
 	}
 
+	@Override
+	public byte[] encodeClientRequest(Http http) throws Exception {
+		if (http.hasBodyEncodingHeader()) {
+
+			// byte[] で渡されたときと同じく、解析し直してボディを展開する
+			return super.encodeClientRequest(http);
+		}
+		return encodeToFrames(http, super.getClientHpackEncoder());
+	}
+
+	@Override
+	public byte[] encodeServerResponse(Http http) throws Exception {
+		if (http.hasBodyEncodingHeader()) {
+
+			return super.encodeServerResponse(http);
+		}
+		return encodeToFrames(http, super.getServerHpackEncoder());
+	}
+
 	private byte[] encodeToFrames(byte[] data, HpackEncoder encoder) throws Exception {
+		return encodeToFrames(Http.create(data), encoder);
+	}
+
+	private byte[] encodeToFrames(Http http, HpackEncoder encoder) throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		Http http = Http.create(data);
 		int flags = Integer.valueOf(http.getFirstHeader("X-PacketProxy-HTTP2-Flags"));
 		if (http.getBody() != null && http.getBody().length > 0) {
 
@@ -140,7 +172,7 @@ public class Http2 extends FramesBase {
 
 	public void setGroupId(Packet packet) throws Exception {
 		byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-		Http http = Http.create(data);
+		Http http = packet.getHttp(data);
 		String streamIdStr = http.getFirstHeader("X-PacketProxy-HTTP2-Stream-Id");
 		if (streamIdStr != null && streamIdStr.length() > 0) {
 
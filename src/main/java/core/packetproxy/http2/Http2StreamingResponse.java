@@ -15,23 +15,22 @@
  */
 package packetproxy.http2;
 
-import static packetproxy.util.Logging.errWithStackTrace;
-
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import org.eclipse.jetty.http2.hpack.HpackEncoder;
 import packetproxy.common.UniqueID;
 import packetproxy.http.Http;
+import packetproxy.http.StreamingHistory;
 import packetproxy.http2.frames.DataFrame;
 import packetproxy.http2.frames.Frame;
 import packetproxy.http2.frames.FrameUtils;
 import packetproxy.http2.frames.HeadersFrame;
 import packetproxy.model.Packet;
-import packetproxy.model.Packets;
 
 public class Http2StreamingResponse extends FramesBase {
 
@@ -41,9 +40,18 @@ public class Http2StreamingResponse extends FramesBase {
 	public Http2StreamingResponse() throws Exception {
 	}
 
-	StreamManager stream = new StreamManager();
 	private Queue<Frame> frameQueue = new ArrayDeque<>();
+	/* key: streamId。END_STREAM を受信するか、RST_STREAM で閉じられるまでの間だけ保持する */
+	private Map<Integer, StreamingHistory> histories = new ConcurrentHashMap<>();
 
+	@Override
+	protected void streamReset(int streamId) {
+		histories.remove(streamId);
+	}
+
+	/*
+	 * HEADERS と DATA は受信したそばから中継する。履歴には HEADERS と DATA の先頭だけを残し、ボディ全体は保持しない
+	 */
 	@Override
 	public byte[] passThroughServerResponse() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -64,56 +72,26 @@ public class Http2StreamingResponse extends FramesBase {
 				HeadersFrame headersFrame = (HeadersFrame) frame;
 				out.write(headersFrame.toByteArrayWithoutExtra(super.getServerHpackEncoder(), true));
 				frameQueue.add(headersFrame);
-				synchronized (stream) {
-					stream.write(headersFrame);
+				if (!histories.containsKey(frame.getStreamId())) {
+
+					byte[] header = headersFrame.getHttp();
+					String uuid = Http.createLazily(header).getFirstHeader("X-PacketProxy-HTTP2-UUID");
+					histories.put(frame.getStreamId(), new StreamingHistory(uuid, header));
 				}
 			} else {
 				/* Data Frame */
 
 				out.write(frame.toByteArray());
-				synchronized (stream) {
-					stream.write(frame);
-				}
-				Thread guiHistoryUpdater = new Thread(new Runnable() {
-
-					public void run() {
-						try {
-
-							ByteArrayOutputStream data = new ByteArrayOutputStream();
-							synchronized (stream) {
-								for (Frame frame : stream.read(frame.getStreamId())) {
-
-									if (frame instanceof HeadersFrame) {
+				StreamingHistory history = histories.get(frame.getStreamId());
+				if (history != null) {
 
-										data.write(frame.getExtra());
-									} else {
-
-										data.write(frame.getPayload());
-									}
-								}
-							}
-
-							Http http = Http.create(data.toByteArray());
-
-							if (http.getBody().length > 0) {
-
-								List<Packet> packets = Packets.getInstance()
-										.queryFullText(http.getFirstHeader("X-PacketProxy-HTTP2-UUID"));
-								for (Packet packet : packets) {
-
-									Packet p = Packets.getInstance().query(packet.getId());
-									p.setDecodedData(http.toByteArray());
-									p.setModifiedData(http.toByteArray());
-									Packets.getInstance().update(p);
-								}
-							}
-						} catch (Exception e) {
+					byte[] payload = frame.getPayload();
+					history.append(payload, 0, payload.length);
+				}
+			}
+			if ((frame.getFlags() & HeadersFrame.FLAG_END_STREAM) > 0) {
 
-							errWithStackTrace(e);
-						}
-					}
-				});
-				guiHistoryUpdater.start();
+				histories.remove(frame.getStreamId());
 			}
 		}
 		return out.toByteArray();
@@ -216,7 +194,7 @@ public class Http2StreamingResponse extends FramesBase {
 
 	public void setGroupId(Packet packet) throws Exception {
 		byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-		Http http = Http.create(data);
+		Http http = packet.getHttp(data);
 		String streamIdStr = http.getFirstHeader("X-PacketProxy-HTTP2-Stream-Id");
 		if (streamIdStr != null && streamIdStr.length() > 0) {
 
@@ -46,6 +46,24 @@ public class Stream {
 		return out.toByteArray();
 	}
 
+	/** 最初のフレームのフラグ。ヘッダブロックでは HEADERS のフラグ */
+	public int getFlags() {
+		return stream.isEmpty() ? 0 : stream.get(0).getFlags();
+	}
+
+	/** フロー制御の対象になる DATA フレームのペイロードの長さ */
+	public int dataSize() {
+		int size = 0;
+		for (Frame frame : stream) {
+
+			if (frame.getType() == Frame.Type.DATA) {
+
+				size += frame.getLength();
+			}
+		}
+		return size;
+	}
+
 	public int payloadSize() throws Exception {
 		int size = 0;
 		for (Frame frame : stream) {
@@ -58,18 +58,25 @@ public class FrameUtils {
 
 	/* バイト列からHTTP2の1フレームを切り出す */
 	public static int checkDelimiter(byte[] data) throws Exception {
-		if (data.length < 9) {
+		return checkDelimiter(data, 0, data.length);
+	}
+
+	/* data の [offset, offset + length) からHTTP2の1フレームを切り出す */
+	public static int checkDelimiter(byte[] data, int offset, int length) throws Exception {
+		if (length < 9) {
 
 			return -1;
 		}
-		if (isPreface(data)) {
+		if (PREFACE.length <= length
+				&& Arrays.equals(data, offset, offset + PREFACE.length, PREFACE, 0, PREFACE.length)) {
 
 			return PREFACE.length;
 		}
 		int headerSize = 9;
-		int payloadSize = ((data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | (data[2] & 0xff));
+		int payloadSize = ((data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8
+				| (data[offset + 2] & 0xff));
 		int expectedSize = headerSize + payloadSize;
-		if (data.length < expectedSize) {
+		if (length < expectedSize) {
 
 			return -1;
 		}
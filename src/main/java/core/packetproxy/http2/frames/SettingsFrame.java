@@ -63,6 +63,11 @@ public class SettingsFrame extends Frame {
 		return values.containsKey(type) ? values.get(type) : defaultValues[type.ordinal()];
 	}
 
+	/** フレームに type の値が含まれているか。含まれていなければ get() は既定値を返す */
+	public boolean has(SettingsFrameType type) {
+		return values.containsKey(type);
+	}
+
 	public void set(SettingsFrameType type, int value) {
 		values.put(type, value);
 	}
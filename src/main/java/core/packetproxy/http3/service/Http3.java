@@ -263,7 +263,7 @@ public class Http3 {
 
 	public void setGroupId(Packet packet) throws Exception {
 		byte[] data = (packet.getDecodedData().length > 0) ? packet.getDecodedData() : packet.getModifiedData();
-		Http http = Http.create(data);
+		Http http = packet.getHttp(data);
 		String streamIdStr = http.getFirstHeader("x-packetproxy-http3-stream-id");
 		if (streamIdStr != null && streamIdStr.length() > 0) {
 
@@ -26,9 +26,11 @@ import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.security.spec.ECGenParameterSpec;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HexFormat;
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.x500.X500Name;
@@ -46,7 +48,9 @@ import org.bouncycastle.operator.bc.BcRSAContentSignerBuilder;
 
 public abstract class CA {
 
+	/* サーバ証明書の鍵はホスト名ごとに作らず、全てのサーバ証明書で共有する */
 	private KeyPair keyPair;
+	private KeyPair ecKeyPair;
 	private String keyStoreCAPath;
 	private KeyStore keyStoreCA;
 	private PrivateKey keyStoreCAPrivateKey;
@@ -55,7 +59,6 @@ public abstract class CA {
 	private X500Name templateIssuer;
 	private Date templateFrom;
 	private Date templateTo;
-	private SubjectPublicKeyInfo templatePubKey;
 
 	private String aliasRoot = "root";
 	private String aliasServer = "newalias";
@@ -90,6 +93,20 @@ public abstract class CA {
 		return kp;
 	}
 
+	protected KeyPair genECKeyPair() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+		kpg.initialize(new ECGenParameterSpec("secp256r1"));
+		return kpg.genKeyPair();
+	}
+
+	private synchronized KeyPair getECKeyPair() throws Exception {
+		if (ecKeyPair == null) {
+
+			ecKeyPair = genECKeyPair();
+		}
+		return ecKeyPair;
+	}
+
 	private void initKeyStoreCA(InputStream input) throws Exception {
 		this.keyStoreCA = KeyStore.getInstance("JKS");
 		this.keyStoreCA.load(input, password);
@@ -111,10 +128,19 @@ public abstract class CA {
 		templateIssuer = caRootHolder.getSubject();
 		templateFrom = from;
 		templateTo = to;
-		templatePubKey = SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded());
 	}
 
 	public KeyStore createKeyStore(String commonName, String[] domainNames) throws Exception {
+		return createKeyStore(commonName, domainNames, false);
+	}
+
+	/**
+	 * commonName のサーバ証明書を発行する。ecdsa が true の場合はRSAの代わりにECDSA P-256の鍵を使う (CAの署名はRSAのまま)
+	 */
+	public KeyStore createKeyStore(String commonName, String[] domainNames, boolean ecdsa) throws Exception {
+		KeyPair serverKeyPair = ecdsa ? getECKeyPair() : keyPair;
+		SubjectPublicKeyInfo templatePubKey = SubjectPublicKeyInfo.getInstance(serverKeyPair.getPublic().getEncoded());
+
 		/* シリアルナンバーの設定 */
 		MessageDigest digest = MessageDigest.getInstance("MD5");
 		byte[] hash = digest.digest(commonName.getBytes());
@@ -147,7 +173,7 @@ public abstract class CA {
 		CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
 		KeyStore ks = KeyStore.getInstance("JKS");
 		ks.load(null, password);
-		ks.setKeyEntry(aliasServer, keyPair.getPrivate(), password,
+		ks.setKeyEntry(aliasServer, serverKeyPair.getPrivate(), password,
 				new java.security.cert.Certificate[]{
 						certFactory.generateCertificate(new ByteArrayInputStream(serverHolder.getEncoded())),
 						certFactory.generateCertificate(new ByteArrayInputStream(caRootHolder.getEncoded()))});
@@ -175,6 +201,12 @@ public abstract class CA {
 		return "Unknown CA";
 	}
 
+	/** CAのルート証明書のSHA-256。発行済みのサーバ証明書をディスクに保存するときに、どのCAで発行したかの区別に使う */
+	public String getFingerprint() throws Exception {
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(caRootHolder.getEncoded());
+		return HexFormat.of().formatHex(hash);
+	}
+
 	public String getUTF8Name() {
 		return "Unknown CA";
 	}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import com.google.re2j.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import packetproxy.common.Utils;
+import packetproxy.model.InterceptOption.Method;
+import packetproxy.model.InterceptOption.Relationship;
+
+/**
+ * 1つのサーバに対して有効なインターセプトのルールを、パケットごとに評価しやすい形にまとめたもの。
+ *
+ * <p>
+ * パターンはルールの変更時に1回だけコンパイルし、REGEX のルールが複数あってもボディの文字列への変換は1パケットにつき1回にする。
+ * リクエストの判定結果はパケットに記録し、IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED のルールではリクエストのルールを評価し直さない。
+ */
+class CompiledInterceptRules {
+
+	private static class Rule {
+
+		final Relationship relationship;
+		final Pattern regex;
+		final byte[] bytes;
+
+		Rule(InterceptOption option) throws Exception {
+			relationship = option.getRelationship();
+			if (option.getMethod() == Method.REGEX) {
+
+				regex = option.getCompiledPattern();
+				bytes = null;
+			} else {
+
+				regex = null;
+				bytes = option.getPatternBytes();
+			}
+		}
+
+		boolean matches(Body body) {
+			if (regex != null) {
+
+				return regex.matcher(body.text()).find();
+			}
+			return Utils.indexOf(body.data, 0, body.data.length, bytes) >= 0;
+		}
+	}
+
+	/* 1パケット分のボディ。REGEX のルールで初めて必要になったときに文字列にする */
+	private static class Body {
+
+		final byte[] data;
+		private String text;
+
+		Body(byte[] data) {
+			this.data = data;
+		}
+
+		String text() {
+			if (text == null) {
+
+				text = new String(data);
+			}
+			return text;
+		}
+	}
+
+	private final List<Rule> requestRules = new ArrayList<>();
+	private final List<Rule> responseRules = new ArrayList<>();
+	/* ALL_THE_OTHER_REQUESTS / ALL_THE_OTHER_RESPONSES による、どのルールにも当てはまらなかった場合の結果 */
+	private boolean requestDefault = true;
+	private boolean responseDefault = true;
+
+	/** rules は InterceptOptions.queryEnabled() と同じ順序で渡すこと */
+	CompiledInterceptRules(List<InterceptOption> rules) throws Exception {
+		boolean requestDecided = false;
+		boolean responseDecided = false;
+		for (InterceptOption option : rules) {
+
+			switch (option.getDirection()) {
+				case REQUEST :
+					if (!requestDecided && (option.getRelationship() == Relationship.IS_INTERCEPTED_IF_IT_MATCHES
+							|| option.getRelationship() == Relationship.IS_NOT_INTERCEPTED_IF_IT_MATCHES)) {
+
+						requestRules.add(new Rule(option));
+					}
+					break;
+				case ALL_THE_OTHER_REQUESTS :
+					if (!requestDecided) {
+
+						requestDecided = true;
+						requestDefault = option.getRelationship() != Relationship.ARE_NOT_INTERCEPTED;
+					}
+					break;
+				case RESPONSE :
+					if (responseDecided) {
+
+						break;
+					}
+					if (option.getRelationship() == Relationship.IS_INTERCEPTED_IF_IT_MATCHES
+							|| option.getRelationship() == Relationship.IS_NOT_INTERCEPTED_IF_IT_MATCHES) {
+
+						responseRules.add(new Rule(option));
+					} else if (option.getRelationship() == Relationship.IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED) {
+
+						responseRules.add(null);
+					}
+					break;
+				case ALL_THE_OTHER_RESPONSES :
+					// ARE_INTERCEPTED / ARE_NOT_INTERCEPTED 以外は無視して次のルールに進む
+					if (!responseDecided && (option.getRelationship() == Relationship.ARE_INTERCEPTED
+							|| option.getRelationship() == Relationship.ARE_NOT_INTERCEPTED)) {
+
+						responseDecided = true;
+						responseDefault = option.getRelationship() == Relationship.ARE_INTERCEPTED;
+					}
+					break;
+				default :
+					break;
+			}
+		}
+	}
+
+	boolean interceptOnRequest(Packet client_packet) {
+		Boolean memo = client_packet.getInterceptedOnRequest(this);
+		if (memo != null) {
+
+			return memo;
+		}
+		boolean result = evaluate(requestRules, requestDefault, new Body(client_packet.getDecodedData()), null);
+		client_packet.setInterceptedOnRequest(this, result);
+		return result;
+	}
+
+	boolean interceptOnResponse(Packet client_packet, Packet server_packet) {
+		return evaluate(responseRules, responseDefault, new Body(server_packet.getDecodedData()), client_packet);
+	}
+
+	/* 上から順に評価し、最初に結果が決まったルールに従う。null は IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED */
+	private boolean evaluate(List<Rule> rules, boolean defaultResult, Body body, Packet client_packet) {
+		for (Rule rule : rules) {
+
+			if (rule == null) {
+
+				if (interceptOnRequest(client_packet)) {
+
+					return true;
+				}
+			} else if (rule.matches(body)) {
+
+				return rule.relationship == Relationship.IS_INTERCEPTED_IF_IT_MATCHES;
+			}
+		}
+		return defaultResult;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 有効なModificationを、1パケットに対して上から順に適用する処理をまとめたもの。
+ *
+ * <p>
+ * 連続する SIMPLE / BINARY のルールは、互いの置換結果に影響しない限り1つの Aho-Corasick オートマトンにまとめ、 本文を1回走査するだけで置換する。REGEX
+ * のルールと、前のルールの置換結果にマッチしうるルールは、今まで通り1つずつ適用する。 どちらの場合も、上から順に1つずつ適用した場合と同じ結果になる。
+ */
+class CompiledModifications {
+
+	private interface Stage {
+
+		byte[] replace(byte[] data, Packet packet) throws Exception;
+	}
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	CompiledModifications(List<Modification> modifications) throws Exception {
+		List<Modification> group = new ArrayList<>();
+		for (Modification mod : modifications) {
+
+			if (mod.getMethod() == Modification.Method.REGEX) {
+
+				flush(group);
+				mod.getCompiledPattern();
+				stages.add(mod::replace);
+				continue;
+			}
+			if (mod.getPatternBytes().length == 0) {
+
+				continue;
+			}
+			for (Modification earlier : group) {
+
+				if (interferes(earlier, mod)) {
+
+					flush(group);
+					break;
+				}
+			}
+			group.add(mod);
+		}
+		flush(group);
+	}
+
+	byte[] replace(byte[] data, Packet packet) throws Exception {
+		for (Stage stage : stages) {
+
+			data = stage.replace(data, packet);
+		}
+		return data;
+	}
+
+	int getStageCount() {
+		return stages.size();
+	}
+
+	private void flush(List<Modification> group) throws Exception {
+		if (group.isEmpty()) {
+
+			return;
+		}
+		if (group.size() == 1) {
+
+			stages.add(group.get(0)::replace);
+		} else {
+
+			stages.add(new Automaton(group));
+		}
+		group.clear();
+	}
+
+	/**
+	 * earlier の後に later を適用したときに、同時に適用した場合と結果が変わりうるかどうか。 マッチする位置が重なりうる場合と、earlier の置換後の文字列から later
+	 * のマッチが新しく生まれうる場合は同時に適用できない。
+	 */
+	private static boolean interferes(Modification earlier, Modification later) throws Exception {
+		byte[] a = earlier.getPatternBytes();
+		byte[] a_replaced = earlier.getReplacedBytes();
+		byte[] b = later.getPatternBytes();
+		if (overlaps(a, b) || overlaps(b, a_replaced)) {
+
+			return true;
+		}
+		// 空文字列に置換すると、前後の文字がつながって later にマッチするようになる
+		return a_replaced.length == 0 && b.length > 1;
+	}
+
+	/* 一方がもう一方を含むか、一方の末尾ともう一方の先頭が一致する */
+	private static boolean overlaps(byte[] x, byte[] y) {
+		if (x.length == 0 || y.length == 0) {
+
+			return false;
+		}
+		if (contains(x, y) || contains(y, x)) {
+
+			return true;
+		}
+		return suffixPrefix(x, y) || suffixPrefix(y, x);
+	}
+
+	private static boolean contains(byte[] data, byte[] pattern) {
+		if (pattern.length > data.length) {
+
+			return false;
+		}
+		for (int i = 0; i + pattern.length <= data.length; i++) {
+
+			if (regionMatches(data, i, pattern, 0, pattern.length)) {
+
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean suffixPrefix(byte[] x, byte[] y) {
+		int max = Math.min(x.length, y.length) - 1;
+		for (int len = 1; len <= max; len++) {
+
+			if (regionMatches(x, x.length - len, y, 0, len)) {
+
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean regionMatches(byte[] x, int x_offset, byte[] y, int y_offset, int len) {
+		return Arrays.equals(x, x_offset, x_offset + len, y, y_offset, y_offset + len);
+	}
+
+	/**
+	 * 互いに影響しないルールをまとめて適用する Aho-Corasick オートマトン。失敗遷移も展開した遷移表を持つので、1バイトにつき1回の表引きで済む。
+	 */
+	private static class Automaton implements Stage {
+
+		private final int[] transitions;
+		/* その状態で終わる、最も長いパターンのルールの番号。無ければ -1 */
+		private final int[] outputs;
+		private final byte[][] patterns;
+		private final byte[][] replaced;
+
+		Automaton(List<Modification> group) throws Exception {
+			patterns = new byte[group.size()][];
+			replaced = new byte[group.size()][];
+			int max_states = 1;
+			for (int i = 0; i < group.size(); i++) {
+
+				patterns[i] = group.get(i).getPatternBytes();
+				replaced[i] = group.get(i).getReplacedBytes();
+				max_states += patterns[i].length;
+			}
+
+			int[] goto_table = new int[max_states * 256];
+			Arrays.fill(goto_table, -1);
+			int[] own = new int[max_states];
+			Arrays.fill(own, -1);
+			int states = 1;
+			for (int i = 0; i < patterns.length; i++) {
+
+				int state = 0;
+				for (byte b : patterns[i]) {
+
+					int next = goto_table[state * 256 + (b & 0xff)];
+					if (next < 0) {
+
+						next = states++;
+						goto_table[state * 256 + (b & 0xff)] = next;
+					}
+					state = next;
+				}
+				// 互いに含まれないパターンだけをまとめているので、同じパターンが2回登録されることはない
+				own[state] = i;
+			}
+
+			transitions = new int[states * 256];
+			outputs = new int[states];
+			int[] fail = new int[states];
+			int[] queue = new int[states];
+			int head = 0;
+			int tail = 0;
+			for (int c = 0; c < 256; c++) {
+
+				int next = goto_table[c];
+				if (next < 0) {
+
+					transitions[c] = 0;
+				} else {
+
+					transitions[c] = next;
+					fail[next] = 0;
+					queue[tail++] = next;
+				}
+			}
+			outputs[0] = -1;
+			while (head < tail) {
+
+				int state = queue[head++];
+				outputs[state] = own[state] >= 0 ? own[state] : outputs[fail[state]];
+				for (int c = 0; c < 256; c++) {
+
+					int next = goto_table[state * 256 + c];
+					if (next < 0) {
+
+						transitions[state * 256 + c] = transitions[fail[state] * 256 + c];
+					} else {
+
+						transitions[state * 256 + c] = next;
+						fail[next] = transitions[fail[state] * 256 + c];
+						queue[tail++] = next;
+					}
+				}
+			}
+		}
+
+		@Override
+		public byte[] replace(byte[] data, Packet packet) {
+			ByteArrayOutputStream out = null;
+			int copied = 0;
+			int state = 0;
+			for (int i = 0; i < data.length; i++) {
+
+				state = transitions[state * 256 + (data[i] & 0xff)];
+				int matched = outputs[state];
+				if (matched < 0) {
+
+					continue;
+				}
+				int start = i + 1 - patterns[matched].length;
+				if (start < copied) {
+
+					// 直前の置換と重なるマッチは、1つずつ適用した場合にも置換されない
+					continue;
+				}
+				if (out == null) {
+
+					out = new ByteArrayOutputStream(data.length);
+				}
+				out.write(data, copied, start - copied);
+				out.write(replaced[matched], 0, replaced[matched].length);
+				copied = i + 1;
+				packet.setModified();
+			}
+			if (out == null) {
+
+				return data;
+			}
+			out.write(data, copied, data.length - copied);
+			return out.toByteArray();
+		}
+	}
+}
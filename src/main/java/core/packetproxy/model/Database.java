@@ -78,6 +78,20 @@ public class Database {
 		source = new JdbcConnectionSource(getDatabaseURL());
 		DatabaseConnection conn = source.getReadWriteConnection();
 		conn.executeStatement("pragma auto_vacuum = full", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		enableWriteAheadLog();
+	}
+
+	/* パケットの書き込み中も履歴の読み込みがブロックされないようにWALモードにする */
+	private void enableWriteAheadLog() throws Exception {
+		DatabaseConnection conn = source.getReadWriteConnection();
+		conn.executeStatement("pragma journal_mode = WAL", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		conn.executeStatement("pragma synchronous = NORMAL", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+	}
+
+	/* WALファイルの内容をデータベースファイルに書き戻す。ファイルをコピー・移動する前に呼ぶ */
+	private void checkpoint() throws Exception {
+		DatabaseConnection conn = source.getReadWriteConnection();
+		conn.executeStatement("pragma wal_checkpoint", DatabaseConnection.DEFAULT_RESULT_FLAGS);
 	}
 
 	public <T, ID> Dao<T, ID> createTable(Class<T> c, PropertyChangeListener listener) throws Exception {
@@ -121,6 +135,7 @@ public class Database {
 		Path src = Paths.get(instance.databasePath.getParent().toAbsolutePath().toString() + "/tmp.sqlite3");
 		Path dst = instance.databasePath.toAbsolutePath();
 		firePropertyChange(DatabaseMessage.DISCONNECT_NOW);
+		checkpoint();
 		DatabaseConnection conn = source.getReadWriteConnection();
 		conn.close();
 		Files.move(dst, src, StandardCopyOption.REPLACE_EXISTING);
@@ -232,6 +247,7 @@ public class Database {
 	// TODO 保存中にファイルが更新されない様にする
 	public void Save(String path) throws Exception {
 		firePropertyChange(DatabaseMessage.PAUSE);
+		checkpoint();
 
 		Path src = databasePath;
 		Path dest = FileSystems.getDefault().getPath(path);
@@ -249,12 +265,14 @@ public class Database {
 		Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
 		databasePath = dest;
 		source = new JdbcConnectionSource(getDatabaseURL());
+		enableWriteAheadLog();
 
 		firePropertyChange(DatabaseMessage.RECONNECT);
 	}
 
 	public void saveWithoutLog(String path) throws Exception {
 		firePropertyChange(DatabaseMessage.PAUSE);
+		checkpoint();
 
 		Path src = databasePath;
 		Path dest = FileSystems.getDefault().getPath(path);
@@ -262,6 +280,9 @@ public class Database {
 		JdbcConnectionSource new_db = new JdbcConnectionSource("jdbc:sqlite:" + dest);
 		DatabaseConnection conn = new_db.getReadWriteConnection();
 		conn.executeStatement("delete from packets", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		conn.executeStatement("delete from payloads", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		conn.executeStatement("delete from packet_summaries", DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		conn.executeStatement("drop table if exists packet_trigrams", DatabaseConnection.DEFAULT_RESULT_FLAGS);
 		conn.close();
 		new_db.close();
 
@@ -277,6 +298,7 @@ public class Database {
 		Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
 		databasePath = dest;
 		source = new JdbcConnectionSource(getDatabaseURL());
+		enableWriteAheadLog();
 
 		firePropertyChange(DatabaseMessage.RECONNECT);
 	}
@@ -68,6 +68,10 @@ public class InterceptOption {
 	@DatabaseField(uniqueCombo = true)
 	private int server_id;
 
+	/* パケットごとにコンパイルやhexの解析をしないためのキャッシュ。DBには保存しない */
+	private Pattern compiled_pattern;
+	private byte[] pattern_bytes;
+
 	public InterceptOption() {
 		// ORMLite needs a no-arg constructor
 	}
@@ -233,6 +237,7 @@ public class InterceptOption {
 
 	public void setMethod(Method method) {
 		this.method = method;
+		clearCompiled();
 	}
 
 	public String getPattern() {
@@ -241,6 +246,7 @@ public class InterceptOption {
 
 	public void setPattern(String pattern) {
 		this.pattern = pattern;
+		clearCompiled();
 	}
 
 	public int getId() {
@@ -283,19 +289,39 @@ public class InterceptOption {
 		return result;
 	}
 
-	private boolean matchText(byte[] data) {
-		return matchBinary(data, pattern.getBytes());
+	private void clearCompiled() {
+		compiled_pattern = null;
+		pattern_bytes = null;
+	}
+
+	Pattern getCompiledPattern() {
+		if (compiled_pattern == null) {
+
+			compiled_pattern = Pattern.compile(this.pattern, Pattern.MULTILINE);
+		}
+		return compiled_pattern;
+	}
+
+	/** SIMPLE / BINARY / UNDEFINED の場合に探すバイト列 */
+	byte[] getPatternBytes() throws Exception {
+		if (pattern_bytes == null) {
+
+			pattern_bytes = method == Method.BINARY ? new Binary(new HexString(pattern)).toByteArray() : pattern.getBytes();
+		}
+		return pattern_bytes;
+	}
+
+	private boolean matchText(byte[] data) throws Exception {
+		return matchBinary(data, getPatternBytes());
 	}
 
 	private boolean matchRegex(byte[] data) {
-		Pattern pattern = Pattern.compile(this.pattern, Pattern.MULTILINE);
-		Matcher matcher = pattern.matcher(new String(data));
+		Matcher matcher = getCompiledPattern().matcher(new String(data));
 		return matcher.find();
 	}
 
 	private boolean matchBinary(byte[] data) throws Exception {
-		byte[] binPattern = new Binary(new HexString(pattern)).toByteArray();
-		return matchBinary(data, binPattern);
+		return matchBinary(data, getPatternBytes());
 	}
 
 	private boolean matchBinary(byte[] data, byte[] binPattern) {
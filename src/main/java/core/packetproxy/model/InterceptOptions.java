@@ -25,6 +25,9 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JOptionPane;
 import packetproxy.model.Database.DatabaseMessage;
 import packetproxy.model.InterceptOption.Direction;
@@ -47,6 +50,12 @@ public class InterceptOptions implements PropertyChangeListener {
 	private Servers servers;
 	private ConfigBoolean enabled;
 	private DaoQueryCache<InterceptOption> cache;
+	/* サーバごとにコンパイルしたルール */
+	private final Map<Integer, CompiledInterceptRules> compiled = new ConcurrentHashMap<>();
+	/* clearCache() のたびに増える。コンパイルしている間に編集されたかを調べる */
+	private final AtomicLong generation = new AtomicLong();
+	/* パケットごとにConfigsを引かないよう、enabled の値を保持する。null の場合は読み直す */
+	private volatile Boolean enabledState;
 
 	private void setDefaultRulesIfNotFound() throws Exception {
 		int i1Num = dao.queryBuilder().where().eq("Direction", InterceptOption.Direction.ALL_THE_OTHER_REQUESTS).query()
@@ -58,7 +67,7 @@ public class InterceptOptions implements PropertyChangeListener {
 					InterceptOption.Method.UNDEFINED, null);
 			i1.setEnabled();
 			dao.create(i1);
-			cache.clear();
+			clearCache();
 		}
 		int i2Num = dao.queryBuilder().where().eq("Direction", InterceptOption.Direction.ALL_THE_OTHER_RESPONSES)
 				.query().size();
@@ -69,7 +78,7 @@ public class InterceptOptions implements PropertyChangeListener {
 					InterceptOption.Method.UNDEFINED, null);
 			i2.setEnabled();
 			dao.create(i2);
-			cache.clear();
+			clearCache();
 		}
 	}
 
@@ -98,25 +107,25 @@ public class InterceptOptions implements PropertyChangeListener {
 	public void create(InterceptOption intercept_option) throws Exception {
 		intercept_option.setEnabled();
 		dao.createIfNotExists(intercept_option);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void delete(int id) throws Exception {
 		dao.deleteById(id);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void delete(InterceptOption intercept_option) throws Exception {
 		dao.delete(intercept_option);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void update(InterceptOption intercept_option) throws Exception {
 		dao.update(intercept_option);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
@@ -208,82 +217,38 @@ public class InterceptOptions implements PropertyChangeListener {
 	}
 
 	public boolean interceptOnRequest(Server server, Packet client_packet) throws Exception {
-		for (InterceptOption intercept : queryEnabled(server)) {
-
-			if (intercept.isDirection(InterceptOption.Direction.REQUEST)) {
-
-				switch (intercept.getRelationship()) {
-					case IS_INTERCEPTED_IF_IT_MATCHES :
-						if (intercept.match(client_packet, null)) {
-
-							return true;
-						}
-						break;
-					case IS_NOT_INTERCEPTED_IF_IT_MATCHES :
-						if (intercept.match(client_packet, null)) {
-
-							return false;
-						}
-						break;
-					default :
-						break;
-				}
-			} else if (intercept.isDirection(Direction.ALL_THE_OTHER_REQUESTS)) {
-
-				switch (intercept.getRelationship()) {
-					case ARE_INTERCEPTED :
-						return true;
-					case ARE_NOT_INTERCEPTED :
-						return false;
-					default :
-						return true;
-				}
-			}
-		}
-		return true;
+		return compile(server).interceptOnRequest(client_packet);
 	}
 
 	public boolean interceptOnResponse(Server server, Packet client_packet, Packet server_packet) throws Exception {
-		for (InterceptOption intercept : queryEnabled(server)) {
-
-			if (intercept.getDirection() == InterceptOption.Direction.RESPONSE) {
-
-				switch (intercept.getRelationship()) {
-					case IS_INTERCEPTED_IF_IT_MATCHES :
-						if (intercept.match(client_packet, server_packet)) {
-
-							return true;
-						}
-						break;
-					case IS_NOT_INTERCEPTED_IF_IT_MATCHES :
-						if (intercept.match(client_packet, server_packet)) {
-
-							return false;
-						}
-						break;
-					case IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED :
-						// パケットにフラグを立てた方がいいけどDBが変わるので一旦これで
-						if (interceptOnRequest(server, client_packet)) {
-
-							return true;
-						}
-						break;
-					default :
-						break;
-				}
-			} else if (intercept.isDirection(Direction.ALL_THE_OTHER_RESPONSES)) {
-
-				switch (intercept.getRelationship()) {
-					case ARE_INTERCEPTED :
-						return true;
-					case ARE_NOT_INTERCEPTED :
-						return false;
-					default :
-						break;
-				}
-			}
+		return compile(server).interceptOnResponse(client_packet, server_packet);
+	}
+
+	private CompiledInterceptRules compile(Server server) throws Exception {
+		int server_id = server != null ? server.getId() : InterceptOption.ALL_SERVER;
+		CompiledInterceptRules ret = compiled.get(server_id);
+		if (ret != null) {
+
+			return ret;
+		}
+		long current = generation.get();
+
+		ret = new CompiledInterceptRules(queryEnabled(server));
+
+		compiled.put(server_id, ret);
+		if (current != generation.get()) {
+			// コンパイルしている間に編集された。古いルールと、古いルールを読んだ queryEnabled のキャッシュを残さない
+
+			compiled.remove(server_id, ret);
+			cache.clear();
 		}
-		return true;
+		return ret;
+	}
+
+	private void clearCache() {
+		generation.incrementAndGet();
+		cache.clear();
+		compiled.clear();
 	}
 
 	public void firePropertyChange() {
@@ -316,13 +281,15 @@ public class InterceptOptions implements PropertyChangeListener {
 				case RECONNECT :
 					database = Database.getInstance();
 					dao = database.createTable(InterceptOption.class, this);
-					cache.clear();
+					clearCache();
+					enabledState = null;
 					firePropertyChange(message);
 					break;
 				case RECREATE :
 					database = Database.getInstance();
 					dao = database.createTable(InterceptOption.class, this);
-					cache.clear();
+					clearCache();
+					enabledState = null;
 					break;
 				default :
 					break;
@@ -342,10 +309,17 @@ public class InterceptOptions implements PropertyChangeListener {
 
 	public void setEnabled(boolean enabled) throws Exception {
 		this.enabled.setState(enabled);
+		enabledState = enabled;
 	}
 
 	public boolean isEnabled() throws Exception {
-		return this.enabled.getState();
+		Boolean state = enabledState;
+		if (state == null) {
+
+			state = this.enabled.getState();
+			enabledState = state;
+		}
+		return state;
 	}
 
 	private void RecreateTable() throws Exception {
@@ -355,6 +329,7 @@ public class InterceptOptions implements PropertyChangeListener {
 
 			database.dropTable(InterceptOption.class);
 			dao = database.createTable(InterceptOption.class, this);
+			clearCache();
 		}
 	}
 }
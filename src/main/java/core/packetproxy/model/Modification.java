@@ -19,7 +19,7 @@ import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
-import org.apache.commons.lang3.ArrayUtils;
+import java.io.ByteArrayOutputStream;
 import packetproxy.common.Binary;
 import packetproxy.common.Binary.HexString;
 import packetproxy.common.Utils;
@@ -58,6 +58,11 @@ public class Modification {
 	@DatabaseField
 	private String replaced;
 
+	/* パケットごとにコンパイルやhexの解析をしないためのキャッシュ。DBには保存しない */
+	private Pattern compiled_pattern;
+	private byte[] pattern_bytes;
+	private byte[] replaced_bytes;
+
 	public Modification() {
 		// ORMLite needs a no-arg constructor
 	}
@@ -118,6 +123,7 @@ public class Modification {
 
 	public void setPattern(String pattern) {
 		this.pattern = pattern;
+		clearCompiled();
 	}
 
 	public String getReplaced() {
@@ -126,6 +132,7 @@ public class Modification {
 
 	public void setReplaced(String replaced) {
 		this.replaced = replaced;
+		clearCompiled();
 	}
 
 	public Method getMethod() {
@@ -134,6 +141,7 @@ public class Modification {
 
 	public void setMethod(Method method) {
 		this.method = method;
+		clearCompiled();
 	}
 
 	public int getId() {
@@ -160,51 +168,87 @@ public class Modification {
 		}
 	}
 
-	private byte[] replaceText(byte[] data, Packet packet) {
-		return replaceBinary(data, pattern.getBytes(), replaced.getBytes(), packet);
+	private void clearCompiled() {
+		compiled_pattern = null;
+		pattern_bytes = null;
+		replaced_bytes = null;
 	}
 
-	private byte[] replaceRegex(byte[] data, Packet packet) {
-		Pattern pattern = Pattern.compile(this.pattern, Pattern.MULTILINE);
-		Matcher matcher = pattern.matcher(new String(data));
-		String result = new String(data);
-		boolean matched = false;
-		while (matcher.find()) {
-
-			matched = true;
-			result = matcher.replaceAll(this.replaced);
-			packet.setModified();
+	Pattern getCompiledPattern() {
+		if (compiled_pattern == null) {
+
+			compiled_pattern = Pattern.compile(this.pattern, Pattern.MULTILINE);
+		}
+		return compiled_pattern;
+	}
+
+	/** SIMPLE / BINARY の場合の置換前のバイト列 */
+	byte[] getPatternBytes() throws Exception {
+		if (pattern_bytes == null) {
+
+			pattern_bytes = method == Method.BINARY ? new Binary(new HexString(pattern)).toByteArray() : pattern.getBytes();
 		}
-		if (!matched) {
+		return pattern_bytes;
+	}
+
+	/** SIMPLE / BINARY の場合の置換後のバイト列 */
+	byte[] getReplacedBytes() throws Exception {
+		if (replaced_bytes == null) {
+
+			replaced_bytes = method == Method.BINARY
+					? new Binary(new HexString(replaced)).toByteArray()
+					: replaced.getBytes();
+		}
+		return replaced_bytes;
+	}
+
+	private byte[] replaceText(byte[] data, Packet packet) throws Exception {
+		return replaceBinary(data, getPatternBytes(), getReplacedBytes(), packet);
+	}
+
+	private byte[] replaceRegex(byte[] data, Packet packet) {
+		String text = new String(data);
+		Matcher matcher = getCompiledPattern().matcher(text);
+		if (!matcher.find()) {
 
 			// バイナリデータが壊れる可能性があるので、マッチしなかった場合はそのまま返す
 			return data;
 		}
-		return result.getBytes();
+		packet.setModified();
+		return matcher.replaceAll(this.replaced).getBytes();
 	}
 
 	private byte[] replaceBinary(byte[] data, Packet packet) throws Exception {
-		byte[] binPattern = new Binary(new HexString(pattern)).toByteArray();
-		byte[] binReplaced = new Binary(new HexString(replaced)).toByteArray();
-		return replaceBinary(data, binPattern, binReplaced, packet);
+		return replaceBinary(data, getPatternBytes(), getReplacedBytes(), packet);
 	}
 
+	/* マッチするたびに配列を作り直さず、1つのバッファに書き出す */
 	private byte[] replaceBinary(byte[] data, byte[] binPattern, byte[] binReplaced, Packet packet) {
+		if (binPattern.length == 0) {
+
+			return data;
+		}
+		ByteArrayOutputStream out = null;
+		int copied = 0;
 		int idx = 0;
-		while (idx < data.length) {
+		while (idx < data.length && (idx = Utils.indexOf(data, idx, data.length, binPattern)) >= 0) {
 
-			if ((idx = Utils.indexOf(data, idx, data.length, binPattern)) < 0) {
+			if (out == null) {
 
-				return data;
+				out = new ByteArrayOutputStream(data.length);
 			}
-			byte[] front_data = ArrayUtils.subarray(data, 0, idx);
-			byte[] back_data = ArrayUtils.subarray(data, idx + binPattern.length, data.length);
-			data = ArrayUtils.addAll(front_data, binReplaced);
-			data = ArrayUtils.addAll(data, back_data);
-			idx += binReplaced.length;
+			out.write(data, copied, idx - copied);
+			out.write(binReplaced, 0, binReplaced.length);
+			idx += binPattern.length;
+			copied = idx;
 			packet.setModified();
 		}
-		return data;
+		if (out == null) {
+
+			return data;
+		}
+		out.write(data, copied, data.length - copied);
+		return out.toByteArray();
 	}
 
 	@Override
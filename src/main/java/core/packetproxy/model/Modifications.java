@@ -22,7 +22,11 @@ import com.j256.ormlite.dao.Dao;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JOptionPane;
 import packetproxy.model.Database.DatabaseMessage;
 
@@ -43,6 +47,10 @@ public class Modifications implements PropertyChangeListener {
 	private Dao<Modification, Integer> dao;
 	private Servers servers;
 	private DaoQueryCache<Modification> cache;
+	/* サーバと方向ごとにコンパイルした置換処理 */
+	private final Map<String, CompiledModifications> compiled = new ConcurrentHashMap<>();
+	/* clearCache() のたびに増える。コンパイルしている間に編集されたかを調べる */
+	private final AtomicLong generation = new AtomicLong();
 
 	private Modifications() throws Exception {
 		database = Database.getInstance();
@@ -67,25 +75,25 @@ public class Modifications implements PropertyChangeListener {
 
 	public void create(Modification modification) throws Exception {
 		dao.createIfNotExists(modification);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void delete(int id) throws Exception {
 		dao.deleteById(id);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void delete(Modification modification) throws Exception {
 		dao.delete(modification);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
 	public void update(Modification modification) throws Exception {
 		dao.update(modification);
-		cache.clear();
+		clearCache();
 		firePropertyChange();
 	}
 
@@ -140,23 +148,44 @@ public class Modifications implements PropertyChangeListener {
 	}
 
 	public byte[] replaceOnRequest(byte[] data, Server server, Packet client_packet) throws Exception {
-		for (Modification mod : queryEnabled(server)) {
-
-			if (mod.getDirection() == Modification.Direction.CLIENT_REQUEST
-					|| mod.getDirection() == Modification.Direction.ALL)
-				data = mod.replace(data, client_packet);
-		}
-		return data;
+		return compile(server, Modification.Direction.CLIENT_REQUEST).replace(data, client_packet);
 	}
 
 	public byte[] replaceOnResponse(byte[] data, Server server, Packet server_packet) throws Exception {
+		return compile(server, Modification.Direction.SERVER_RESPONSE).replace(data, server_packet);
+	}
+
+	private CompiledModifications compile(Server server, Modification.Direction direction) throws Exception {
+		String key = direction + ":" + (server != null ? server.getId() : Modification.ALL_SERVER);
+		CompiledModifications ret = compiled.get(key);
+		if (ret != null) {
+
+			return ret;
+		}
+		long current = generation.get();
+
+		List<Modification> mods = new ArrayList<>();
 		for (Modification mod : queryEnabled(server)) {
 
-			if (mod.getDirection() == Modification.Direction.SERVER_RESPONSE
-					|| mod.getDirection() == Modification.Direction.ALL)
-				data = mod.replace(data, server_packet);
+			if (mod.getDirection() == direction || mod.getDirection() == Modification.Direction.ALL)
+				mods.add(mod);
+		}
+		ret = new CompiledModifications(mods);
+
+		compiled.put(key, ret);
+		if (current != generation.get()) {
+			// コンパイルしている間に編集された。古いルールと、古いルールを読んだ queryEnabled のキャッシュを残さない
+
+			compiled.remove(key, ret);
+			cache.clear();
 		}
-		return data;
+		return ret;
+	}
+
+	private void clearCache() {
+		generation.incrementAndGet();
+		cache.clear();
+		compiled.clear();
 	}
 
 	private void firePropertyChange() {
@@ -185,13 +214,13 @@ public class Modifications implements PropertyChangeListener {
 				case RECONNECT :
 					database = Database.getInstance();
 					dao = database.createTable(Modification.class, this);
-					cache.clear();
+					clearCache();
 					firePropertyChange();
 					break;
 				case RECREATE :
 					database = Database.getInstance();
 					dao = database.createTable(Modification.class, this);
-					cache.clear();
+					clearCache();
 					break;
 				default :
 					break;
@@ -216,7 +245,7 @@ public class Modifications implements PropertyChangeListener {
 
 			database.dropTable(Modification.class);
 			dao = database.createTable(Modification.class, this);
-			cache.clear();
+			clearCache();
 		}
 	}
 }
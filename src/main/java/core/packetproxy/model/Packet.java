@@ -22,8 +22,10 @@ import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import java.net.InetSocketAddress;
 import java.util.Date;
+import java.util.Map;
 import packetproxy.EncoderManager;
 import packetproxy.encode.Encoder;
+import packetproxy.http.Http;
 
 @DatabaseTable(tableName = "packets")
 public class Packet implements PacketInfo {
@@ -38,16 +40,22 @@ public class Packet implements PacketInfo {
 	@DatabaseField(dataType = DataType.ENUM_STRING)
 	private Direction direction;
 
-	@DatabaseField(dataType = DataType.BYTE_ARRAY)
-	private byte[] decoded_data;
+	/* payloadの実体は payloads テーブルに保存し、ここにはそのハッシュを保存する */
+	@DatabaseField
+	private String decoded_hash;
 
-	@DatabaseField(dataType = DataType.BYTE_ARRAY)
-	private byte[] modified_data;
+	@DatabaseField
+	private String modified_hash;
 
-	@DatabaseField(dataType = DataType.BYTE_ARRAY)
-	private byte[] sent_data;
+	@DatabaseField
+	private String sent_hash;
+
+	@DatabaseField
+	private String received_hash;
 
-	@DatabaseField(dataType = DataType.BYTE_ARRAY)
+	private byte[] decoded_data;
+	private byte[] modified_data;
+	private byte[] sent_data;
 	private byte[] received_data;
 
 	@DatabaseField
@@ -85,6 +93,20 @@ public class Packet implements PacketInfo {
 	@DatabaseField
 	private String color;
 
+	/* Packets.update() の書き込み待ちの間、未保存のパケットを識別するキー。DBには保存しない */
+	private long pending_key;
+
+	/* Packets.querySummary() などで読み込んだ場合の要約。この場合payloadは読み込まれていない */
+	private PacketSummary summary;
+
+	/* InterceptOptions がこのリクエストを捕まえると判定したかどうかと、判定に使ったルール。DBには保存しない */
+	private Object intercept_rules;
+	private boolean intercepted_on_request;
+
+	/* getHttp() で解析した payload とその結果。payload を設定し直すか、別の配列が渡されたら解析し直す。DBには保存しない */
+	private byte[] http_source;
+	private Http http;
+
 	public Packet() {
 		// ORMLite needs a no-arg constructor
 	}
@@ -134,6 +156,65 @@ public class Packet implements PacketInfo {
 		return this.id;
 	}
 
+	void setId(int id) {
+		this.id = id;
+	}
+
+	String[] getPayloadHashes() {
+		return new String[]{decoded_hash, modified_hash, sent_hash, received_hash};
+	}
+
+	void setPayloadHashes(String decoded_hash, String modified_hash, String sent_hash, String received_hash) {
+		this.decoded_hash = decoded_hash;
+		this.modified_hash = modified_hash;
+		this.sent_hash = sent_hash;
+		this.received_hash = received_hash;
+	}
+
+	/* payloads テーブルから読み込んだpayloadを、保存されているハッシュに従って設定する */
+	void setPayloads(Map<String, byte[]> payloads) {
+		this.decoded_data = payloads.get(decoded_hash);
+		this.modified_data = payloads.get(modified_hash);
+		this.sent_data = payloads.get(sent_hash);
+		this.received_data = payloads.get(received_hash);
+		clearHttp();
+	}
+
+	long getPendingKey() {
+		return this.pending_key;
+	}
+
+	void setPendingKey(long pending_key) {
+		this.pending_key = pending_key;
+	}
+
+	/** 4つのpayloadの合計サイズ */
+	public long getPayloadSize() {
+		return getReceivedData().length + getDecodedData().length + getModifiedData().length + getSentData().length;
+	}
+
+	/* 書き込み待ちの間に保持する複製を作る。max_body_size を超えるpayloadは空にする */
+	Packet copyForHistory(int max_body_size) {
+		Packet packet = new Packet(listen_port, client_ip, client_port, server_ip, server_port, server_name, use_ssl,
+				encoder_name, alpn, direction, conn, group);
+		packet.id = id;
+		packet.pending_key = pending_key;
+		packet.date = date;
+		packet.content_type = content_type;
+		packet.color = color;
+		packet.modified = modified;
+		packet.resend = resend;
+		packet.received_data = limitBody(getReceivedData(), max_body_size);
+		packet.decoded_data = limitBody(getDecodedData(), max_body_size);
+		packet.modified_data = limitBody(getModifiedData(), max_body_size);
+		packet.sent_data = limitBody(getSentData(), max_body_size);
+		return packet;
+	}
+
+	private static byte[] limitBody(byte[] data, int max_body_size) {
+		return data.length > max_body_size ? new byte[]{} : data;
+	}
+
 	public OneShotPacket getOneShotPacket(byte[] data) {
 		return new OneShotPacket(getId(), getListenPort(), getClient(), getServer(), getServerName(), getUseSSL(), data,
 				getEncoder(), getAlpn(), getDirection(), getConn(), getGroup());
@@ -141,6 +222,7 @@ public class Packet implements PacketInfo {
 
 	public void setModifiedData(byte[] data) {
 		this.modified_data = data;
+		clearHttp();
 	}
 
 	public byte[] getModifiedData() {
@@ -154,6 +236,7 @@ public class Packet implements PacketInfo {
 
 	public void setSentData(byte[] data) {
 		this.sent_data = data;
+		clearHttp();
 	}
 
 	public byte[] getSentData() {
@@ -162,6 +245,7 @@ public class Packet implements PacketInfo {
 
 	public void setReceivedData(byte[] data) {
 		this.received_data = data;
+		clearHttp();
 	}
 
 	public byte[] getReceivedData() {
@@ -175,6 +259,8 @@ public class Packet implements PacketInfo {
 
 	public void setDecodedData(byte[] data) {
 		this.decoded_data = data;
+		this.intercept_rules = null;
+		clearHttp();
 	}
 
 	public byte[] getDecodedData() {
@@ -258,6 +344,10 @@ public class Packet implements PacketInfo {
 		return this.date;
 	}
 
+	void setDate(Date date) {
+		this.date = date;
+	}
+
 	public int getConn() {
 		return this.conn;
 	}
@@ -278,7 +368,50 @@ public class Packet implements PacketInfo {
 		this.color = color;
 	}
 
+	/** 履歴の一覧用に要約だけを読み込んだ場合はその要約を返す。それ以外は null */
+	public PacketSummary getSummary() {
+		return summary;
+	}
+
+	void setSummary(PacketSummary summary) {
+		this.summary = summary;
+	}
+
+	/** rules で判定したリクエストの結果。その後ルールやデータが変わっていれば null */
+	Boolean getInterceptedOnRequest(Object rules) {
+		return intercept_rules == rules ? Boolean.valueOf(intercepted_on_request) : null;
+	}
+
+	void setInterceptedOnRequest(Object rules, boolean intercepted) {
+		this.intercept_rules = rules;
+		this.intercepted_on_request = intercepted;
+	}
+
+	/**
+	 * このパケットの payload (getDecodedData() や getModifiedData() の戻り値) を解析した Http。
+	 * 同じ配列に対しては解析し直さずに同じインスタンスを返すので、要約やContent-Typeの判定、グループ分けなどで共有できる。
+	 * ボディは必要になったときに展開する。共有されるので書き換えないこと (書き換える場合は Http.create() で作り直す)。
+	 * payload の配列を直接書き換えた場合は、setDecodedData() などで設定し直せば解析し直す
+	 */
+	public synchronized Http getHttp(byte[] payload) throws Exception {
+		if (http == null || http_source != payload) {
+
+			http = Http.createLazily(payload);
+			http_source = payload;
+		}
+		return http;
+	}
+
+	private synchronized void clearHttp() {
+		http = null;
+		http_source = null;
+	}
+
 	public String getSummarizedRequest() throws Exception {
+		if (summary != null) {
+
+			return (getDirection() == Direction.CLIENT) ? summary.getSummary() : "";
+		}
 		Encoder encoder = EncoderManager.getInstance().createInstance(encoder_name, null);
 		if (encoder == null) {
 
@@ -289,6 +422,10 @@ public class Packet implements PacketInfo {
 	}
 
 	public String getSummarizedResponse() throws Exception {
+		if (summary != null) {
+
+			return (getDirection() == Direction.SERVER) ? summary.getSummary() : "";
+		}
 		Encoder encoder = EncoderManager.getInstance().createInstance(encoder_name, null);
 		if (encoder == null) {
 
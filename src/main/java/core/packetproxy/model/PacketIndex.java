@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static packetproxy.util.Logging.log;
+
+import com.j256.ormlite.dao.Dao;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 全文検索用の decoded_data のtrigramインデックス
+ *
+ * <p>
+ * 同梱のSQLite(3.7.2)にはFTS5やtrigram tokenizerが無いため、trigramをJavaで1つのトークンに変換し、FTS3のテーブル
+ * packet_trigrams にパケットのidをdocidとして保存する。検索語の全てのtrigramを含むパケットだけを候補とし、最終的な判定は従来通り
+ * LIKE / GLOB で行うので、大文字小文字の扱いなどの検索結果は変わらない。 FTS3が使えない環境では候補を絞り込まない。
+ */
+class PacketIndex {
+
+	/* これより大きいpayloadは先頭だけをインデックスし、常に候補に含める */
+	private static final int MAX_INDEXED_SIZE = 1024 * 1024;
+	private static final String TRUNCATED_TOKEN = "truncated";
+	private static final char[] TOKEN_CHARS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+
+	private Dao<Packet, Integer> dao;
+	private boolean available;
+	/* インデックスされていないパケットが無いことを確認済みか */
+	private boolean complete;
+	private boolean enabled = true;
+
+	PacketIndex(Dao<Packet, Integer> dao) throws Exception {
+		reconnect(dao);
+	}
+
+	public synchronized void reconnect(Dao<Packet, Integer> dao) throws Exception {
+		this.dao = dao;
+		this.complete = false;
+		try {
+
+			if (dao.queryRawValue("SELECT count(*) FROM sqlite_master WHERE name='packet_trigrams'") == 0) {
+
+				dao.executeRaw("CREATE VIRTUAL TABLE `packet_trigrams` USING fts3(`trigrams`)");
+			}
+			available = true;
+		} catch (Exception e) {
+
+			log("full text index is not available: %s", e.getMessage());
+			available = false;
+		}
+	}
+
+	/** 候補の絞り込みに使うか。ベンチマークなどで全件検索と比較するときに使う */
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isAvailable() {
+		return available && enabled;
+	}
+
+	/** パケットの decoded_data をインデックスし直す。保存と同じトランザクションの中で呼ぶ */
+	public void update(int id, byte[] decoded) throws Exception {
+		if (!available) {
+
+			return;
+		}
+		// 空のpayloadも、インデックス済みであることが分かるように空のドキュメントとして追加する
+		dao.executeRaw("DELETE FROM `packet_trigrams` WHERE docid = " + id);
+		dao.executeRaw("INSERT INTO `packet_trigrams` (docid, `trigrams`) VALUES (" + id + ", ?)", toDocument(decoded));
+	}
+
+	public void delete(int id) throws Exception {
+		if (available) {
+
+			dao.executeRaw("DELETE FROM `packet_trigrams` WHERE docid = " + id);
+		}
+	}
+
+	public synchronized void deleteAll() throws Exception {
+		if (available) {
+
+			dao.executeRaw("DELETE FROM `packet_trigrams`");
+		}
+		complete = true;
+	}
+
+	/**
+	 * search を含む可能性のあるパケットのidを返すサブクエリ。trigramを取り出せない(短すぎる)検索語の場合は null を返す
+	 *
+	 * @param glob
+	 *            search を GLOB のパターンとして扱う場合は true、LIKE の場合は false
+	 */
+	public String candidateQuery(String search, boolean glob) throws Exception {
+		if (!isAvailable()) {
+
+			return null;
+		}
+		List<String> tokens = new ArrayList<>();
+		for (String literal : literals(search, glob)) {
+
+			for (int trigram : trigrams(literal.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE)) {
+
+				tokens.add(toToken(trigram));
+			}
+		}
+		if (tokens.isEmpty()) {
+
+			return null;
+		}
+		return String.format(
+				"SELECT docid FROM `packet_trigrams` WHERE `trigrams` MATCH '%s' UNION SELECT docid FROM `packet_trigrams` WHERE `trigrams` MATCH '%s'",
+				String.join(" ", tokens), TRUNCATED_TOKEN);
+	}
+
+	/** 以前のバージョンで保存されたパケットなど、まだインデックスされていないパケットのid。確認済みの場合は空 */
+	public synchronized List<Integer> queryUnindexedIds() throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		if (!isAvailable() || complete) {
+
+			return ids;
+		}
+		for (String[] row : dao
+				.queryRaw("SELECT `id` FROM `packets` WHERE `id` NOT IN (SELECT docid FROM `packet_trigrams`)")
+				.getResults()) {
+
+			ids.add(Integer.parseInt(row[0]));
+		}
+		return ids;
+	}
+
+	/** queryUnindexedIds() のパケットを全てインデックスしたら呼ぶ。以降に保存されるパケットは update() でインデックスされる */
+	public synchronized void setComplete() {
+		complete = true;
+	}
+
+	/* 検索語のうちワイルドカード以外の部分 */
+	static List<String> literals(String search, boolean glob) {
+		List<String> literals = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < search.length(); i++) {
+
+			char c = search.charAt(i);
+			boolean wildcard = glob ? (c == '*' || c == '?' || c == '[') : (c == '%' || c == '_');
+			if (!wildcard) {
+
+				literal.append(c);
+				continue;
+			}
+			literals.add(literal.toString());
+			literal.setLength(0);
+			if (glob && c == '[') {
+
+				// 文字クラスは ']' まで読み飛ばす。先頭の ']' はクラスに含まれる
+				int end = search.indexOf(']', i + 2);
+				i = end < 0 ? search.length() : end;
+			}
+		}
+		literals.add(literal.toString());
+		return literals;
+	}
+
+	/* ASCIIの大文字小文字を区別しない重複なしのtrigram。limit バイトを超える部分は無視する */
+	static int[] trigrams(byte[] data, int limit) {
+		int length = Math.min(data.length, limit);
+		if (length < 3) {
+
+			return new int[0];
+		}
+		int[] trigrams = new int[length - 2];
+		for (int i = 0; i < trigrams.length; i++) {
+
+			trigrams[i] = (lower(data[i]) << 16) | (lower(data[i + 1]) << 8) | lower(data[i + 2]);
+		}
+		Arrays.sort(trigrams);
+		int unique = 0;
+		for (int i = 0; i < trigrams.length; i++) {
+
+			if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+
+				trigrams[unique++] = trigrams[i];
+			}
+		}
+		return Arrays.copyOf(trigrams, unique);
+	}
+
+	private static int lower(byte b) {
+		int c = b & 0xff;
+		return ('A' <= c && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	/* FTS3の simple tokenizer でそのまま1トークンになるよう、24bitのtrigramを英数字5文字にする */
+	static String toToken(int trigram) {
+		char[] token = new char[5];
+		for (int i = 4; i >= 0; i--) {
+
+			token[i] = TOKEN_CHARS[trigram & 0x1f];
+			trigram >>>= 5;
+		}
+		return new String(token);
+	}
+
+	static String toDocument(byte[] data) {
+		int[] trigrams = trigrams(data, MAX_INDEXED_SIZE);
+		StringBuilder document = new StringBuilder(trigrams.length * 6 + TRUNCATED_TOKEN.length());
+		for (int trigram : trigrams) {
+
+			document.append(toToken(trigram)).append(' ');
+		}
+		if (data.length > MAX_INDEXED_SIZE) {
+
+			document.append(TRUNCATED_TOKEN);
+		}
+		return document.toString();
+	}
+}
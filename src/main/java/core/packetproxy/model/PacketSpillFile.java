@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+/**
+ * 書き込み待ちのパケットを退避しておく追記専用の一時ファイル
+ *
+ * <p>
+ * append() したパケットは返されたオフセットから read() で読み戻せる。途中のレコードは削除できないので、退避中のパケットが無くなった時点で
+ * reset() してファイルを空にする。
+ */
+class PacketSpillFile {
+
+	private File file;
+	private RandomAccessFile raf;
+
+	public synchronized long append(Packet packet) throws IOException {
+		if (raf == null) {
+
+			file = File.createTempFile("packetproxy-history-", ".spill");
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+		}
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writePacket(out, packet);
+		out.flush();
+		long offset = raf.length();
+		raf.seek(offset);
+		raf.writeInt(bout.size());
+		raf.write(bout.toByteArray());
+		return offset;
+	}
+
+	public synchronized Packet read(long offset) throws IOException {
+		raf.seek(offset);
+		byte[] record = new byte[raf.readInt()];
+		raf.readFully(record);
+		return readPacket(new DataInputStream(new ByteArrayInputStream(record)));
+	}
+
+	public synchronized long length() throws IOException {
+		return raf == null ? 0 : raf.length();
+	}
+
+	public synchronized void reset() throws IOException {
+		if (raf != null) {
+
+			raf.setLength(0);
+		}
+	}
+
+	private static void writePacket(DataOutputStream out, Packet packet) throws IOException {
+		out.writeInt(packet.getId());
+		out.writeLong(packet.getPendingKey());
+		out.writeUTF(packet.getDirection().name());
+		out.writeInt(packet.getListenPort());
+		writeString(out, packet.getClientIP());
+		out.writeInt(packet.getClientPort());
+		writeString(out, packet.getServerIP());
+		out.writeInt(packet.getServerPort());
+		writeString(out, packet.getServerName());
+		out.writeBoolean(packet.getUseSSL());
+		writeString(out, packet.getContentType());
+		writeString(out, packet.getEncoder());
+		writeString(out, packet.getAlpn());
+		out.writeBoolean(packet.getModified());
+		out.writeBoolean(packet.getResend());
+		out.writeLong(packet.getDate() == null ? -1 : packet.getDate().getTime());
+		out.writeInt(packet.getConn());
+		out.writeLong(packet.getGroup());
+		writeString(out, packet.getColor());
+		writeBytes(out, packet.getReceivedData());
+		writeBytes(out, packet.getDecodedData());
+		writeBytes(out, packet.getModifiedData());
+		writeBytes(out, packet.getSentData());
+	}
+
+	private static Packet readPacket(DataInputStream in) throws IOException {
+		int id = in.readInt();
+		long pending_key = in.readLong();
+		Packet.Direction direction = Packet.Direction.valueOf(in.readUTF());
+		int listen_port = in.readInt();
+		String client_ip = readString(in);
+		int client_port = in.readInt();
+		String server_ip = readString(in);
+		int server_port = in.readInt();
+		String server_name = readString(in);
+		boolean use_ssl = in.readBoolean();
+		String content_type = readString(in);
+		String encoder = readString(in);
+		String alpn = readString(in);
+		boolean modified = in.readBoolean();
+		boolean resend = in.readBoolean();
+		long date = in.readLong();
+		int conn = in.readInt();
+		long group = in.readLong();
+		String color = readString(in);
+
+		Packet packet = new Packet(listen_port, client_ip, client_port, server_ip, server_port, server_name, use_ssl,
+				encoder, alpn, direction, conn, group);
+		packet.setId(id);
+		packet.setPendingKey(pending_key);
+		packet.setContentType(content_type);
+		packet.setDate(date < 0 ? null : new Date(date));
+		packet.setColor(color);
+		if (modified) {
+
+			packet.setModified();
+		}
+		if (resend) {
+
+			packet.setResend();
+		}
+		packet.setReceivedData(readBytes(in));
+		packet.setDecodedData(readBytes(in));
+		packet.setModifiedData(readBytes(in));
+		packet.setSentData(readBytes(in));
+		return packet;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		out.writeBoolean(str != null);
+		if (str != null) {
+
+			writeBytes(out, str.getBytes("UTF-8"));
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new String(readBytes(in), "UTF-8") : null;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import com.j256.ormlite.dao.Dao;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * packet_summaries テーブルを管理する
+ *
+ * <p>
+ * 要約はパケットを保存するたびに作り直す。要約が保存されていないパケット(以前のバージョンで保存されたものなど)は、読み込み時に作って保存する。
+ */
+class PacketSummaries {
+
+	/* SQLiteの変数の上限(999)を超えないようにIN句を分割する */
+	private static final int QUERY_CHUNK_SIZE = 500;
+
+	private Dao<PacketSummary, Integer> dao;
+
+	PacketSummaries(Database database) throws Exception {
+		reconnect(database);
+	}
+
+	public void reconnect(Database database) throws Exception {
+		dao = database.createTable(PacketSummary.class);
+	}
+
+	/** 要約を作って保存する。payloadが読み込まれているパケットに対して呼ぶこと */
+	public PacketSummary store(Packet packet) throws Exception {
+		PacketSummary summary;
+		try {
+
+			summary = create(packet);
+		} catch (Exception e) {
+
+			// 古い要約が残らないようにする
+			dao.deleteById(packet.getId());
+			throw e;
+		}
+		dao.executeRaw("INSERT OR REPLACE INTO `packet_summaries` (`id`,`summary`,`length`) VALUES (?,?,?)",
+				String.valueOf(summary.getId()), summary.getSummary(), String.valueOf(summary.getLength()));
+		return summary;
+	}
+
+	private static PacketSummary create(Packet packet) throws Exception {
+		String summary = packet.getDirection() == Packet.Direction.CLIENT
+				? packet.getSummarizedRequest()
+				: packet.getSummarizedResponse();
+		byte[] data = packet.getDecodedData().length > 0 ? packet.getDecodedData() : packet.getModifiedData();
+		return new PacketSummary(packet.getId(), summary, data.length);
+	}
+
+	public Map<Integer, PacketSummary> load(Collection<Integer> ids) throws Exception {
+		Map<Integer, PacketSummary> summaries = new HashMap<>();
+		List<Integer> targets = new ArrayList<>(ids);
+		for (int i = 0; i < targets.size(); i += QUERY_CHUNK_SIZE) {
+
+			List<Integer> chunk = targets.subList(i, Math.min(i + QUERY_CHUNK_SIZE, targets.size()));
+			for (PacketSummary summary : dao.queryBuilder().where().in("id", chunk).query()) {
+
+				summaries.put(summary.getId(), summary);
+			}
+		}
+		return summaries;
+	}
+
+	public void delete(int id) throws Exception {
+		dao.deleteById(id);
+	}
+
+	public void deleteAll() throws Exception {
+		dao.deleteBuilder().delete();
+	}
+}
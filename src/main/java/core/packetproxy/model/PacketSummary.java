@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * 履歴の一覧に表示するパケットの要約。保存時に Encoder で1回だけ作っておき、一覧の表示ではpayloadを読み込まずに済むようにする
+ */
+@DatabaseTable(tableName = "packet_summaries")
+public class PacketSummary {
+
+	/* packets テーブルのid */
+	@DatabaseField(id = true)
+	private int id;
+
+	/* リクエストなら getSummarizedRequest()、レスポンスなら getSummarizedResponse() の結果 */
+	@DatabaseField
+	private String summary;
+
+	/* 一覧のLength列に表示するサイズ */
+	@DatabaseField
+	private int length;
+
+	public PacketSummary() {
+		// ORMLite needs a no-arg constructor
+	}
+
+	public PacketSummary(int id, String summary, int length) {
+		this.id = id;
+		this.summary = summary;
+		this.length = length;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getSummary() {
+		return summary;
+	}
+
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import packetproxy.model.Packets.OverflowPolicy;
+
+/**
+ * Packets.update() の書き込みを遅延させ、まとめて書き込む
+ *
+ * <p>
+ * 同じパケットへの更新は書き込みまでに1回にまとめられ、FLUSH_INTERVAL_MSEC ごと、もしくは FLUSH_MAX_ROWS
+ * 件たまった時点で1回のトランザクションで書き込まれる。
+ *
+ * <p>
+ * 書き込み待ちのpayloadの合計が limitBytes を超えた場合は OverflowPolicy に従う。BLOCK
+ * は空きができるまで呼び出し元(中継スレッド)を止め、DROP_BODY は dropBodySize を超えるpayloadを捨てた複製を、SPILL
+ * はパケットを一時ファイルに書き出して、メモリ上に保持するのはオフセットだけにする。
+ */
+class PacketWriter implements Runnable {
+
+	interface BatchHandler {
+
+		void write(List<Packet> batch) throws Exception;
+	}
+
+	static final long FLUSH_INTERVAL_MSEC = 100;
+	static final int FLUSH_MAX_ROWS = 1000;
+	/* payload以外に1パケットあたり保持しているおおよそのサイズ */
+	private static final long PACKET_OVERHEAD = 256;
+
+	private static class Pending {
+
+		/* 書き込んだ際に採番されたidを反映する元のパケット */
+		final WeakReference<Packet> original;
+		/* 書き込むパケット。一時ファイルに退避した場合は null */
+		final Packet packet;
+		final long spillOffset;
+		final long bytes;
+
+		Pending(Packet original, Packet packet, long spillOffset, long bytes) {
+			this.original = new WeakReference<>(original);
+			this.packet = packet;
+			this.spillOffset = spillOffset;
+			this.bytes = bytes;
+		}
+	}
+
+	private final BatchHandler handler;
+	private final PacketSpillFile spillFile = new PacketSpillFile();
+	/* 未保存(id = 0)のパケットは pending_key を、保存済みのパケットはidをキーにする */
+	private LinkedHashMap<Object, Pending> pending = new LinkedHashMap<>();
+	private long lastPendingKey = 0;
+	private long pendingBytes = 0;
+	private int spilledPending = 0;
+	private final Object writeLock = new Object();
+
+	private OverflowPolicy policy = OverflowPolicy.BLOCK;
+	private long limitBytes = Long.MAX_VALUE;
+	private int dropBodySize = Integer.MAX_VALUE;
+
+	/* メトリクス */
+	private long enqueuedCount = 0;
+	private long coalescedCount = 0;
+	private long blockedCount = 0;
+	private long blockedMsec = 0;
+	private long droppedBodyCount = 0;
+	private long spilledCount = 0;
+	private long flushCount = 0;
+	private long writtenRows = 0;
+	private long maxPendingBytes = 0;
+
+	PacketWriter(BatchHandler handler) {
+		this.handler = handler;
+	}
+
+	/** 一定間隔で書き込むスレッドを開始する */
+	public void start() {
+		Thread thread = new Thread(this, "PacketProxy-packet-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+
+				flush();
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		}));
+	}
+
+	public synchronized void setOverflowPolicy(OverflowPolicy policy, long limitBytes, int dropBodySize) {
+		this.policy = policy;
+		this.limitBytes = limitBytes;
+		this.dropBodySize = dropBodySize;
+		// BLOCKで待っているスレッドに設定の変更を知らせる
+		notifyAll();
+	}
+
+	public void enqueue(Packet packet) throws Exception {
+		synchronized (this) {
+
+			if (packet.getId() == 0 && packet.getPendingKey() == 0) {
+
+				packet.setPendingKey(++lastPendingKey);
+			}
+			Object key = packet.getId() != 0 ? (Object) packet.getId() : (Object) packet.getPendingKey();
+			long bytes = packet.getPayloadSize() + PACKET_OVERHEAD;
+			enqueuedCount++;
+
+			// 書き込み待ちのパケットの更新は、既に枠を確保しているのでブロックしない
+			if (policy == OverflowPolicy.BLOCK && !pending.containsKey(key) && !hasSpace(null, bytes)) {
+
+				long start = System.currentTimeMillis();
+				blockedCount++;
+				while (policy == OverflowPolicy.BLOCK && !pending.containsKey(key) && !hasSpace(null, bytes)) {
+
+					notifyAll();
+					wait();
+				}
+				blockedMsec += System.currentTimeMillis() - start;
+			}
+
+			Pending old = pending.get(key);
+			Pending entry;
+			if (policy == OverflowPolicy.BLOCK || hasSpace(old, bytes)) {
+
+				entry = new Pending(packet, packet, -1, bytes);
+			} else if (policy == OverflowPolicy.DROP_BODY) {
+
+				Packet copy = packet.copyForHistory(dropBodySize);
+				if (copy.getPayloadSize() < packet.getPayloadSize()) {
+
+					droppedBodyCount++;
+				}
+				entry = new Pending(packet, copy, -1, copy.getPayloadSize() + PACKET_OVERHEAD);
+			} else {
+
+				long offset = spillFile.append(packet);
+				spilledCount++;
+				spilledPending++;
+				entry = new Pending(packet, null, offset, PACKET_OVERHEAD);
+			}
+
+			if (old != null) {
+
+				coalescedCount++;
+				pendingBytes -= old.bytes;
+				if (old.packet == null) {
+
+					spilledPending--;
+				}
+			}
+			pending.put(key, entry);
+			pendingBytes += entry.bytes;
+			maxPendingBytes = Math.max(maxPendingBytes, pendingBytes);
+			if (pending.size() == 1 || pending.size() >= FLUSH_MAX_ROWS || pendingBytes > limitBytes) {
+
+				notifyAll();
+			}
+		}
+	}
+
+	/* old を bytes のパケットで置き換えても上限を超えないか。書き込み待ちが他に無ければ大きなパケットでも受け付ける */
+	private boolean hasSpace(Pending old, long bytes) {
+		long others = pendingBytes - (old == null ? 0 : old.bytes);
+		return others == 0 || others + bytes <= limitBytes;
+	}
+
+	public synchronized Map<String, Long> getMetrics() throws Exception {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("pending_rows", (long) pending.size());
+		metrics.put("pending_bytes", pendingBytes);
+		metrics.put("max_pending_bytes", maxPendingBytes);
+		metrics.put("enqueued", enqueuedCount);
+		metrics.put("coalesced", coalescedCount);
+		metrics.put("blocked", blockedCount);
+		metrics.put("blocked_msec", blockedMsec);
+		metrics.put("dropped_bodies", droppedBodyCount);
+		metrics.put("spilled", spilledCount);
+		metrics.put("spill_file_bytes", spillFile.length());
+		metrics.put("flushes", flushCount);
+		metrics.put("written_rows", writtenRows);
+		return metrics;
+	}
+
+	/** 溜まっている更新を呼び出し元のスレッドで全て書き込む */
+	public void flush() throws Exception {
+		synchronized (writeLock) {
+
+			List<Pending> batch;
+			synchronized (this) {
+
+				if (pending.isEmpty()) {
+
+					return;
+				}
+				batch = new ArrayList<>(pending.values());
+				pending = new LinkedHashMap<>();
+			}
+			try {
+
+				for (int i = 0; i < batch.size(); i += FLUSH_MAX_ROWS) {
+
+					try {
+
+						write(batch.subList(i, Math.min(i + FLUSH_MAX_ROWS, batch.size())));
+					} catch (Exception e) {
+
+						errWithStackTrace(e);
+					}
+				}
+			} finally {
+
+				synchronized (this) {
+
+					for (Pending entry : batch) {
+
+						pendingBytes -= entry.bytes;
+						if (entry.packet == null) {
+
+							spilledPending--;
+						}
+					}
+					if (spilledPending == 0) {
+
+						spillFile.reset();
+					}
+					flushCount++;
+					writtenRows += batch.size();
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void write(List<Pending> entries) throws Exception {
+		List<Packet> packets = new ArrayList<>(entries.size());
+		for (Pending entry : entries) {
+
+			Packet packet = entry.packet != null ? entry.packet : spillFile.read(entry.spillOffset);
+			Packet original = entry.original.get();
+			// 複製した後に元のパケットが保存されていれば、そのidで更新する
+			if (packet != original && original != null && packet.getId() == 0) {
+
+				packet.setId(original.getId());
+			}
+			packets.add(packet);
+		}
+		handler.write(packets);
+		for (int i = 0; i < entries.size(); i++) {
+
+			Packet original = entries.get(i).original.get();
+			if (original != null && original.getId() == 0) {
+
+				original.setId(packets.get(i).getId());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+
+			try {
+
+				synchronized (this) {
+
+					while (pending.isEmpty()) {
+
+						wait();
+					}
+					long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MSEC;
+					long rest;
+					while (pending.size() < FLUSH_MAX_ROWS && pendingBytes <= limitBytes
+							&& (rest = deadline - System.currentTimeMillis()) > 0) {
+
+						wait(rest);
+					}
+				}
+				flush();
+			} catch (InterruptedException e) {
+
+				return;
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		}
+	}
+}
@@ -21,12 +21,19 @@ import static packetproxy.util.Logging.errWithStackTrace;
 import static packetproxy.util.Logging.log;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.misc.TransactionManager;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import javax.swing.JOptionPane;
 import packetproxy.common.Logger;
 import packetproxy.model.Database.DatabaseMessage;
@@ -63,12 +70,23 @@ public class Packets implements PropertyChangeListener {
 
 	private Database database;
 	private Dao<Packet, Integer> dao;
-	private ExecutorService executor;
+	private PacketWriter writer;
+	private Payloads payloads;
+	private PacketSummaries summaries;
+	private PacketIndex index;
+	private static final int MIGRATION_BATCH_SIZE = 500;
+	private static final int INDEX_BATCH_SIZE = 500;
 
 	private Packets(boolean restore) throws Exception {
 		database = Database.getInstance();
 		database.addPropertyChangeListener(this);
 		dao = database.createTable(Packet.class);
+		payloads = new Payloads(database);
+		summaries = new PacketSummaries(database);
+		// payloadをpacketsテーブルに直接保存していた形式のDBは、中身を残したまま変換する
+		migratePayloadsIfNeeded();
+		index = new PacketIndex(dao);
+		writer = new PacketWriter(this::writeBatch);
 		if (restore) {
 
 			if (!isLatestVersion()) {
@@ -78,13 +96,92 @@ public class Packets implements PropertyChangeListener {
 			log("load history...");
 			log("load %d records.", dao.countOf());
 		}
-		executor = Executors.newSingleThreadExecutor();
+		loadOverflowPolicy();
+		writer.start();
+	}
+
+	/** 書き込み待ちのパケットが上限を超えたときの扱い */
+	public enum OverflowPolicy {
+		/* 空きができるまで中継を止める */
+		BLOCK,
+		/* 一定サイズを超えるpayloadを捨て、メタデータだけを保存する */
+		DROP_BODY,
+		/* 一時ファイルに退避する */
+		SPILL,
+	}
+
+	private static final int DEFAULT_QUEUE_LIMIT_MB = 256;
+	private static final int DEFAULT_DROP_BODY_SIZE_KB = 64;
+
+	private ConfigString configOverflowPolicy;
+	private ConfigInteger configQueueLimitMB;
+	private ConfigInteger configDropBodySizeKB;
+
+	private void loadOverflowPolicy() throws Exception {
+		configOverflowPolicy = new ConfigString("HistoryQueueOverflowPolicy");
+		configQueueLimitMB = new ConfigInteger("HistoryQueueLimitMB");
+		configDropBodySizeKB = new ConfigInteger("HistoryQueueDropBodySizeKB");
+		applyOverflowPolicy();
+	}
+
+	private void applyOverflowPolicy() throws Exception {
+		writer.setOverflowPolicy(getOverflowPolicy(), getQueueLimitMB() * 1024L * 1024L,
+				getDropBodySizeKB() * 1024);
+	}
+
+	public OverflowPolicy getOverflowPolicy() throws Exception {
+		String policy = configOverflowPolicy.getString();
+		return policy == null || policy.isEmpty() ? OverflowPolicy.BLOCK : OverflowPolicy.valueOf(policy);
+	}
+
+	public void setOverflowPolicy(OverflowPolicy policy) throws Exception {
+		configOverflowPolicy.setString(policy.name());
+		applyOverflowPolicy();
+	}
+
+	/** 書き込み待ちのpayloadの上限 (MB) */
+	public int getQueueLimitMB() throws Exception {
+		int limit = configQueueLimitMB.getInteger();
+		return limit > 0 ? limit : DEFAULT_QUEUE_LIMIT_MB;
+	}
+
+	public void setQueueLimitMB(int limit) throws Exception {
+		configQueueLimitMB.setInteger(limit);
+		applyOverflowPolicy();
+	}
+
+	/** DROP_BODY のときに保存するpayloadの最大サイズ (KB) */
+	public int getDropBodySizeKB() throws Exception {
+		int size = configDropBodySizeKB.getInteger();
+		return size > 0 ? size : DEFAULT_DROP_BODY_SIZE_KB;
+	}
+
+	public void setDropBodySizeKB(int size) throws Exception {
+		configDropBodySizeKB.setInteger(size);
+		applyOverflowPolicy();
+	}
+
+	/** 書き込み待ちキューの状態 */
+	public Map<String, Long> getQueueMetrics() throws Exception {
+		return writer.getMetrics();
+	}
+
+	public boolean getPayloadCompression() {
+		return payloads.getCompression();
+	}
+
+	/** 以降に保存するpayloadをzstdで圧縮する。圧縮されたpayloadの全文検索は展開して行うため遅くなる */
+	public void setPayloadCompression(boolean compression) throws Exception {
+		payloads.setCompression(compression);
 	}
 
 	// TODO できれば非同期でやる（大きいデータのときに数秒止まってしまうので）
 	public void create(Packet packet) throws Exception {
 		synchronized (dao) {
+			storePayloads(packet);
 			dao.createIfNotExists(packet);
+			storeSummary(packet);
+			index.update(packet.getId(), packet.getDecodedData());
 		}
 		firePropertyChange();
 	}
@@ -100,7 +197,10 @@ public class Packets implements PropertyChangeListener {
 		}
 		Dao.CreateOrUpdateStatus status;
 		synchronized (dao) {
+			storePayloads(packet);
 			status = dao.createOrUpdate(packet);
+			storeSummary(packet);
+			index.update(packet.getId(), packet.getDecodedData());
 		}
 		if (status.isCreated()) {
 
@@ -111,25 +211,126 @@ public class Packets implements PropertyChangeListener {
 		}
 	}
 
+	/**
+	 * 非同期に保存する。同じパケットへの連続した更新はまとめて書き込まれ、書き込みごとに UpdatedPackets が通知される。
+	 * 書き込み待ちが上限を超えている場合は OverflowPolicy に従う
+	 */
 	public void update(Packet packet) throws Exception {
-		Runnable task = new Runnable() {
+		writer.enqueue(packet);
+	}
+
+	/** update() で溜まっている書き込みを全て終わらせる */
+	public void flush() throws Exception {
+		writer.flush();
+	}
+
+	private void writeBatch(List<Packet> batch) throws Exception {
+		if (database.isAlertFileSize()) {
+
+			firePropertyChange(true);
+		}
+		// トランザクションが失敗した場合に作り直せるように、書き込み前に未保存だったかを覚えておく
+		boolean[] is_new = new boolean[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+
+			is_new[i] = batch.get(i).getId() == 0;
+		}
+		List<Integer> created = new ArrayList<>();
+		List<Integer> updated = new ArrayList<>();
+		synchronized (dao) {
+
+			try {
 
-			public void run() {
-				try {
+				TransactionManager.callInTransaction(dao.getConnectionSource(), () -> {
+					for (int i = 0; i < batch.size(); i++) {
 
-					updateSync(packet);
-				} catch (Exception e) {
+						writePacket(batch.get(i), is_new[i], created, updated);
+					}
+					return null;
+				});
+			} catch (Exception e) {
+
+				// ロールバックされたので1件ずつ書き込み直す
+				errWithStackTrace(e);
+				payloads.clearCache();
+				created.clear();
+				updated.clear();
+				for (int i = 0; i < batch.size(); i++) {
+
+					try {
 
-					errWithStackTrace(e);
+						writePacket(batch.get(i), is_new[i], created, updated);
+					} catch (Exception e1) {
+
+						errWithStackTrace(e1);
+					}
 				}
 			}
-		};
-		executor.execute(task);
+		}
+		if (!created.isEmpty() || !updated.isEmpty()) {
+
+			firePropertyChange(new UpdatedPackets(created, updated));
+		}
+	}
+
+	/* createOrUpdate() は行の存在確認のSELECTを伴うので、idから判断して create / update を使い分ける */
+	private void writePacket(Packet packet, boolean is_new, List<Integer> created, List<Integer> updated)
+			throws Exception {
+		boolean decoded_changed = storePayloads(packet);
+		if (!is_new && dao.update(packet) > 0) {
+
+			storeSummary(packet);
+			if (decoded_changed) {
+
+				index.update(packet.getId(), packet.getDecodedData());
+			}
+			updated.add(packet.getId());
+			return;
+		}
+		dao.create(packet);
+		storeSummary(packet);
+		index.update(packet.getId(), packet.getDecodedData());
+		created.add(packet.getId());
+	}
+
+	/*
+	 * payloadを payloads テーブルに保存し、packets テーブルにはハッシュだけを書き込むようにする。 decoded_data
+	 * が変わった(全文検索のインデックスを更新する必要がある)場合は true を返す
+	 */
+	private boolean storePayloads(Packet packet) throws Exception {
+		if (packet.getSummary() != null) {
+
+			// 要約だけを読み込んだパケットはpayloadを持っていないので、保存済みのハッシュをそのまま使う
+			return false;
+		}
+		String old_decoded_hash = packet.getPayloadHashes()[0];
+		packet.setPayloadHashes(payloads.store(packet.getDecodedData()), payloads.store(packet.getModifiedData()),
+				payloads.store(packet.getSentData()), payloads.store(packet.getReceivedData()));
+		return !Objects.equals(old_decoded_hash, packet.getPayloadHashes()[0]);
+	}
+
+	/* 要約を作れなかった場合は一覧の表示時に作り直すので、パケットの保存は失敗させない */
+	private PacketSummary storeSummary(Packet packet) {
+		if (packet.getSummary() != null) {
+
+			return packet.getSummary();
+		}
+		try {
+
+			return summaries.store(packet);
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+			return null;
+		}
 	}
 
 	public void deleteAll() throws Exception {
 		synchronized (dao) {
 			dao.deleteBuilder().delete();
+			payloads.deleteAll();
+			summaries.deleteAll();
+			index.deleteAll();
 		}
 		firePropertyChange();
 	}
@@ -137,6 +338,9 @@ public class Packets implements PropertyChangeListener {
 	public void delete(Packet packet) throws Exception {
 		synchronized (dao) {
 			dao.delete(packet);
+			summaries.delete(packet.getId());
+			index.delete(packet.getId());
+			payloads.deleteUnreferenced(Arrays.asList(packet.getPayloadHashes()));
 		}
 		firePropertyChange();
 	}
@@ -146,7 +350,75 @@ public class Packets implements PropertyChangeListener {
 	}
 
 	public Packet query(int id) throws Exception {
-		return dao.queryForId(id);
+		Packet packet = dao.queryForId(id);
+		if (packet != null) {
+
+			loadPayloads(Collections.singletonList(packet));
+		}
+		return packet;
+	}
+
+	/**
+	 * 履歴の一覧の表示用に、payloadを読み込まずに要約(getSummary())を付けたパケットを返す。payloadが必要な場合は query() を使うこと
+	 */
+	public Packet querySummary(int id) throws Exception {
+		Packet packet = dao.queryForId(id);
+		if (packet != null) {
+
+			loadSummaries(Collections.singletonList(packet));
+		}
+		return packet;
+	}
+
+	public List<Packet> querySummaryRange(long offset, long limit) throws Exception {
+		return loadSummaries(dao.queryBuilder().offset(offset).limit(limit).orderBy("id", true).query());
+	}
+
+	public List<Packet> querySummaryAll() throws Exception {
+		return loadSummaries(dao.queryBuilder().orderBy("id", true).query());
+	}
+
+	/* 要約が保存されていないパケットは、payloadを読み込んで要約を作り、保存しておく */
+	private List<Packet> loadSummaries(List<Packet> packets) throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		for (Packet packet : packets) {
+
+			ids.add(packet.getId());
+		}
+		Map<Integer, PacketSummary> loaded = summaries.load(ids);
+		List<Packet> missing = new ArrayList<>();
+		for (Packet packet : packets) {
+
+			PacketSummary summary = loaded.get(packet.getId());
+			if (summary == null) {
+
+				missing.add(packet);
+			} else {
+
+				packet.setSummary(summary);
+			}
+		}
+		if (missing.isEmpty()) {
+
+			return packets;
+		}
+		loadPayloads(missing);
+		synchronized (dao) {
+
+			TransactionManager.callInTransaction(dao.getConnectionSource(), () -> {
+				for (Packet packet : missing) {
+
+					// 要約を作れなかったパケットはpayloadを読み込んだ状態のまま返す
+					PacketSummary summary = storeSummary(packet);
+					if (summary != null) {
+
+						packet.setSummary(summary);
+					}
+				}
+				return null;
+			});
+		}
+		return packets;
 	}
 
 	public List<Packet> queryAllIdsAndColors() throws Exception {
@@ -155,38 +427,107 @@ public class Packets implements PropertyChangeListener {
 	}
 
 	public List<Packet> queryRange(long offset, long limit) throws Exception {
-		return dao.queryBuilder().offset(offset).limit(limit).orderBy("id", true).query();
+		return loadPayloads(dao.queryBuilder().offset(offset).limit(limit).orderBy("id", true).query());
 	}
 
 	public List<Packet> queryAll() throws Exception {
-		return dao.queryBuilder().orderBy("id", true).query();
+		return loadPayloads(dao.queryBuilder().orderBy("id", true).query());
 	}
 
 	public List<Packet> queryMoreThan(int date) throws Exception {
-		return dao.queryBuilder().where().gt("id", date).query();
+		return loadPayloads(dao.queryBuilder().where().gt("id", date).query());
+	}
+
+	/* payloads テーブルから読み込んだpayloadを設定する。同じpayloadは1回だけ読み込む */
+	private List<Packet> loadPayloads(List<Packet> packets) throws Exception {
+		List<String> hashes = new ArrayList<>();
+		for (Packet packet : packets) {
+
+			hashes.addAll(Arrays.asList(packet.getPayloadHashes()));
+		}
+		Map<String, byte[]> loaded = payloads.load(hashes);
+		for (Packet packet : packets) {
+
+			packet.setPayloads(loaded);
+		}
+		return packets;
 	}
 
 	public List<Packet> queryFullText(String search, int start) throws Exception {
-		return dao.queryBuilder().selectColumns("group").where().ge("id", start).and()
-				.like("decoded_data", String.format("%%%s%%", search)).query();
+		return queryDecodedDataMatches(String.format("`id` >= %d", start), search, false);
 	}
 
 	public List<Packet> queryFullTextById(String search, int id) throws Exception {
-		return dao.queryBuilder().selectColumns("group").where().eq("id", id).and()
-				.like("decoded_data", String.format("%%%s%%", search)).query();
+		return queryDecodedDataMatches(String.format("`id` = %d", id), search, false);
 	}
 
 	// case sensitive full text search
 	public List<Packet> queryFullText(String search) throws Exception {
-		// ORMLite does not support glob statement.
-		String query = String.format("SELECT `group`,`id` FROM `packets` WHERE `decoded_data` GLOB '*%s*';", search);
-		return dao.queryRaw(query, dao.getRawRowMapper()).getResults();
+		return queryDecodedDataMatches(null, search, true);
 	}
 
 	// case insensitive full text search
 	public List<Packet> queryFullText_i(String search) throws Exception {
-		return dao.queryBuilder().selectColumns("group").where().like("decoded_data", String.format("%%%s%%", search))
-				.query();
+		return queryDecodedDataMatches(null, search, false);
+	}
+
+	/*
+	 * decoded_data が search を含むパケットの group と id を返す。trigramインデックスで候補を絞り込んでから、 GLOB (大文字小文字を区別する) か LIKE
+	 * (区別しない) で判定する。圧縮されたpayloadはSQLで検索できないので展開して探す
+	 */
+	private List<Packet> queryDecodedDataMatches(String filter, String search, boolean glob) throws Exception {
+		indexUnindexedPackets();
+		List<String> conditions = new ArrayList<>();
+		if (filter != null) {
+
+			conditions.add(filter);
+		}
+		String candidates = index.candidateQuery(search, glob);
+		String hashes = null;
+		if (candidates != null) {
+
+			conditions.add(String.format("`id` IN (%s)", candidates));
+			hashes = String.format("SELECT `decoded_hash` FROM `packets` WHERE `id` IN (%s)", candidates);
+		}
+		String pattern = glob ? String.format("*%s*", search) : String.format("%%%s%%", search);
+		String match = String.format("`decoded_hash` IN (%s)", payloads.matchQuery(pattern, glob, hashes));
+		for (String hash : payloads.searchCompressed(search, !glob, hashes)) {
+
+			match += String.format(" OR `decoded_hash` = '%s'", hash);
+		}
+		conditions.add("(" + match + ")");
+		String query = "SELECT `group`,`id` FROM `packets` WHERE " + String.join(" AND ", conditions);
+		return dao.queryRaw(query, dao.getRawRowMapper()).getResults();
+	}
+
+	/* インデックスされていないパケットを全文検索の前にインデックスする。以前のバージョンのDBでは初回の検索にだけ時間がかかる */
+	private void indexUnindexedPackets() throws Exception {
+		List<Integer> ids = index.queryUnindexedIds();
+		if (!ids.isEmpty()) {
+
+			log("indexing %d packets for full text search...", ids.size());
+		}
+		for (int i = 0; i < ids.size(); i += INDEX_BATCH_SIZE) {
+
+			List<Packet> batch = loadPayloads(
+					dao.queryBuilder().where().in("id", ids.subList(i, Math.min(i + INDEX_BATCH_SIZE, ids.size()))).query());
+			synchronized (dao) {
+
+				TransactionManager.callInTransaction(dao.getConnectionSource(), () -> {
+					for (Packet packet : batch) {
+
+						index.update(packet.getId(), packet.getDecodedData());
+					}
+					return null;
+				});
+			}
+		}
+		index.setComplete();
+	}
+
+	/* ベンチマークで全件検索と比較するときに使う */
+	void setFullTextIndexEnabled(boolean enabled) {
+		index.setEnabled(enabled);
 	}
 
 	public void firePropertyChange() {
@@ -212,11 +553,13 @@ public class Packets implements PropertyChangeListener {
 			switch (message) {
 				case PAUSE :
 					// TODO ロックを取る
+					writer.flush();
 					break;
 				case RESUME :
 					// TODO ロックを解除
 					break;
 				case DISCONNECT_NOW :
+					writer.flush();
 					break;
 				case RECONNECT :
 					database = Database.getInstance();
@@ -228,11 +571,18 @@ public class Packets implements PropertyChangeListener {
 
 						dao.executeRaw("ALTER TABLE `packets` ADD COLUMN color VARCHAR");
 					}
+					payloads.reconnect(database);
+					summaries.reconnect(database);
+					migratePayloadsIfNeeded();
+					index.reconnect(dao);
 					firePropertyChange(message);
 					break;
 				case RECREATE :
 					database = Database.getInstance();
 					dao = database.createTable(Packet.class);
+					payloads.reconnect(database);
+					summaries.reconnect(database);
+					index.reconnect(dao);
 					break;
 				default :
 					break;
@@ -247,7 +597,72 @@ public class Packets implements PropertyChangeListener {
 		String result = dao.queryRaw("SELECT sql FROM sqlite_master WHERE name='packets'").getFirstResult()[0];
 		// Logging.log(result);
 		return result.equals(
-				"CREATE TABLE `packets` (`id` INTEGER PRIMARY KEY AUTOINCREMENT , `direction` VARCHAR , `decoded_data` BLOB , `modified_data` BLOB , `sent_data` BLOB , `received_data` BLOB , `listen_port` INTEGER , `client_ip` VARCHAR , `client_port` INTEGER , `server_ip` VARCHAR , `server_name` VARCHAR , `server_port` INTEGER , `use_ssl` BOOLEAN , `content_type` VARCHAR , `encoder_name` VARCHAR , `alpn` VARCHAR , `modified` BOOLEAN , `resend` BOOLEAN , `date` BIGINT , `conn` INTEGER , `group` BIGINT , `color` VARCHAR )");
+				"CREATE TABLE `packets` (`id` INTEGER PRIMARY KEY AUTOINCREMENT , `direction` VARCHAR , `decoded_hash` VARCHAR , `modified_hash` VARCHAR , `sent_hash` VARCHAR , `received_hash` VARCHAR , `listen_port` INTEGER , `client_ip` VARCHAR , `client_port` INTEGER , `server_ip` VARCHAR , `server_name` VARCHAR , `server_port` INTEGER , `use_ssl` BOOLEAN , `content_type` VARCHAR , `encoder_name` VARCHAR , `alpn` VARCHAR , `modified` BOOLEAN , `resend` BOOLEAN , `date` BIGINT , `conn` INTEGER , `group` BIGINT , `color` VARCHAR )");
+	}
+
+	/*
+	 * payloadを decoded_data などのBLOBカラムに直接保存していた形式のpacketsテーブルを、payloads
+	 * テーブルを参照する形式に変換する。それ以外のカラムは古いテーブルにあるものだけをそのままコピーする
+	 */
+	private void migratePayloadsIfNeeded() throws Exception {
+		String result = dao.queryRaw("SELECT sql FROM sqlite_master WHERE name='packets'").getFirstResult()[0];
+		// 変換の途中で終了した場合は packets_old が残っているので、続きから変換する
+		boolean resume = dao.queryRawValue("SELECT count(*) FROM sqlite_master WHERE name='packets_old'") > 0;
+		if (!result.contains("`decoded_data` BLOB") && !resume) {
+
+			return;
+		}
+		log("migrate packet payloads to payloads table...");
+		if (!resume) {
+
+			dao.executeRaw("ALTER TABLE `packets` RENAME TO `packets_old`");
+		}
+		dao = database.createTable(Packet.class);
+
+		Set<String> old_columns = new HashSet<>();
+		for (String[] row : dao.queryRaw("PRAGMA table_info(`packets_old`)").getResults()) {
+
+			old_columns.add(row[1]);
+		}
+		List<String> columns = new ArrayList<>();
+		for (String[] row : dao.queryRaw("PRAGMA table_info(`packets`)").getResults()) {
+
+			if (old_columns.contains(row[1])) {
+
+				columns.add("`" + row[1] + "`");
+			}
+		}
+		String column_list = String.join(",", columns);
+		String insert = String.format(
+				"INSERT INTO `packets` (%s,`decoded_hash`,`modified_hash`,`sent_hash`,`received_hash`) SELECT %s,?,?,?,? FROM `packets_old` WHERE `id` = ",
+				column_list, column_list);
+
+		DataType[] types = {DataType.INTEGER, DataType.BYTE_ARRAY, DataType.BYTE_ARRAY, DataType.BYTE_ARRAY,
+				DataType.BYTE_ARRAY};
+		long last_id = resume ? dao.queryRawValue("SELECT IFNULL(MAX(`id`), -1) FROM `packets`") : -1;
+		int migrated = 0;
+		while (true) {
+
+			List<Object[]> rows = dao.queryRaw(String.format(
+					"SELECT `id`,`decoded_data`,`modified_data`,`sent_data`,`received_data` FROM `packets_old` WHERE `id` > %d ORDER BY `id` LIMIT %d",
+					last_id, MIGRATION_BATCH_SIZE), types).getResults();
+			if (rows.isEmpty()) {
+
+				break;
+			}
+			TransactionManager.callInTransaction(dao.getConnectionSource(), () -> {
+				for (Object[] row : rows) {
+
+					dao.executeRaw(insert + row[0], payloads.store((byte[]) row[1]), payloads.store((byte[]) row[2]),
+							payloads.store((byte[]) row[3]), payloads.store((byte[]) row[4]));
+				}
+				return null;
+			});
+			last_id = (Integer) rows.get(rows.size() - 1)[0];
+			migrated += rows.size();
+		}
+		dao.executeRaw("DROP TABLE `packets_old`");
+		log("migrated %d records.", migrated);
 	}
 
 	private void RecreateTable() throws Exception {
@@ -260,6 +675,26 @@ public class Packets implements PropertyChangeListener {
 		}
 	}
 
+	/** update() の1回の書き込みで作成・更新されたパケットのid */
+	public static class UpdatedPackets {
+
+		private final List<Integer> createdIds;
+		private final List<Integer> updatedIds;
+
+		UpdatedPackets(List<Integer> createdIds, List<Integer> updatedIds) {
+			this.createdIds = Collections.unmodifiableList(createdIds);
+			this.updatedIds = Collections.unmodifiableList(updatedIds);
+		}
+
+		public List<Integer> getCreatedIds() {
+			return createdIds;
+		}
+
+		public List<Integer> getUpdatedIds() {
+			return updatedIds;
+		}
+	}
+
 	@Override
 	public void propertyChange(PropertyChangeEvent evt) {
 		if (DATABASE_MESSAGE.toString().equals(evt.getPropertyName())) {
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import com.github.luben.zstd.Zstd;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * パケットのpayloadの実体。内容のハッシュをキーにして、同じ内容のpayloadは1つだけ保存する
+ */
+@DatabaseTable(tableName = "payloads")
+public class Payload {
+
+	public static final int CODEC_RAW = 0;
+	public static final int CODEC_ZSTD = 1;
+
+	@DatabaseField(id = true)
+	private String hash;
+
+	@DatabaseField
+	private int codec;
+
+	/* 展開後のサイズ */
+	@DatabaseField
+	private int size;
+
+	@DatabaseField(dataType = DataType.BYTE_ARRAY)
+	private byte[] data;
+
+	public Payload() {
+		// ORMLite needs a no-arg constructor
+	}
+
+	public Payload(String hash, byte[] data, boolean compress) {
+		this.hash = hash;
+		this.size = data.length;
+		this.codec = CODEC_RAW;
+		this.data = data;
+		if (compress) {
+
+			byte[] compressed = Zstd.compress(data);
+			if (compressed.length < data.length) {
+
+				this.codec = CODEC_ZSTD;
+				this.data = compressed;
+			}
+		}
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public int getCodec() {
+		return codec;
+	}
+
+	public byte[] getData() {
+		if (codec == CODEC_ZSTD) {
+
+			return Zstd.decompress(data, size);
+		}
+		return data;
+	}
+}
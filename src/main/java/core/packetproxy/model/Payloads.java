@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import com.j256.ormlite.dao.Dao;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * packets テーブルから参照されるpayloadを管理する
+ *
+ * <p>
+ * payloadはSHA-256のハッシュをキーに payloads テーブルへ保存されるので、同じパケットの decoded / modified / sent /
+ * received や、繰り返されるポーリングのレスポンスのように内容が同じpayloadは1回しか保存されない。 空のpayloadは保存せず、ハッシュを
+ * null とする。
+ */
+class Payloads {
+
+	/* SQLiteの変数の上限(999)を超えないようにIN句を分割する */
+	private static final int QUERY_CHUNK_SIZE = 500;
+	private static final int STORED_CACHE_SIZE = 10000;
+
+	private Dao<Payload, String> dao;
+	private ConfigBoolean configCompression;
+	private boolean compression;
+	/* 保存済みであることが分かっているハッシュ。保存のたびに存在確認のSELECTをしないためのキャッシュ */
+	private final Map<String, Boolean> stored = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > STORED_CACHE_SIZE;
+		}
+	};
+
+	Payloads(Database database) throws Exception {
+		reconnect(database);
+		configCompression = new ConfigBoolean("PayloadCompression");
+		compression = configCompression.getState();
+	}
+
+	public synchronized void reconnect(Database database) throws Exception {
+		dao = database.createTable(Payload.class);
+		stored.clear();
+	}
+
+	public boolean getCompression() {
+		return compression;
+	}
+
+	/** 以降に保存するpayloadをzstdで圧縮するか */
+	public void setCompression(boolean compression) throws Exception {
+		configCompression.setState(compression);
+		this.compression = compression;
+	}
+
+	public static String hash(byte[] data) throws Exception {
+		if (data == null || data.length == 0) {
+
+			return null;
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		StringBuilder hash = new StringBuilder(64);
+		for (byte b : digest.digest(data)) {
+
+			hash.append(String.format("%02x", b & 0xff));
+		}
+		return hash.toString();
+	}
+
+	/** payloadを保存してハッシュを返す。同じ内容のpayloadが既にあれば保存しない */
+	public synchronized String store(byte[] data) throws Exception {
+		String hash = hash(data);
+		if (hash == null || stored.containsKey(hash)) {
+
+			return hash;
+		}
+		if (!dao.idExists(hash)) {
+
+			dao.create(new Payload(hash, data, compression));
+		}
+		stored.put(hash, true);
+		return hash;
+	}
+
+	/** トランザクションがロールバックされた場合など、キャッシュと実際のテーブルがずれた可能性があるときに呼ぶ */
+	public synchronized void clearCache() {
+		stored.clear();
+	}
+
+	public Map<String, byte[]> load(Collection<String> hashes) throws Exception {
+		Map<String, byte[]> payloads = new HashMap<>();
+		List<String> targets = new ArrayList<>(new HashSet<>(hashes));
+		targets.remove(null);
+		for (int i = 0; i < targets.size(); i += QUERY_CHUNK_SIZE) {
+
+			List<String> chunk = targets.subList(i, Math.min(i + QUERY_CHUNK_SIZE, targets.size()));
+			for (Payload payload : dao.queryBuilder().where().in("hash", chunk).query()) {
+
+				payloads.put(payload.getHash(), payload.getData());
+			}
+		}
+		return payloads;
+	}
+
+	/**
+	 * 非圧縮のpayloadのうち、data が pattern にマッチするもののハッシュを返すサブクエリ
+	 *
+	 * @param glob
+	 *            GLOB でマッチさせる場合は true、LIKE の場合は false
+	 * @param hashes
+	 *            対象のハッシュを返すサブクエリ。null の場合は全てのpayloadが対象
+	 */
+	public String matchQuery(String pattern, boolean glob, String hashes) {
+		return String.format("SELECT `hash` FROM `payloads` WHERE %s`codec` = %d AND `data` %s '%s'",
+				hashes == null ? "" : String.format("`hash` IN (%s) AND ", hashes), Payload.CODEC_RAW,
+				glob ? "GLOB" : "LIKE", pattern.replace("'", "''"));
+	}
+
+	/** 圧縮されたpayloadを展開して search を含むもののハッシュを返す。SQLでは圧縮されたpayloadを検索できないため */
+	public Set<String> searchCompressed(String search, boolean ignoreCase, String hashes) throws Exception {
+		Set<String> found = new HashSet<>();
+		String condition = String.format("%s`codec` = %d",
+				hashes == null ? "" : String.format("`hash` IN (%s) AND ", hashes), Payload.CODEC_ZSTD);
+		if (dao.queryRawValue("SELECT count(*) FROM `payloads` WHERE " + condition) == 0) {
+
+			return found;
+		}
+		String target = ignoreCase ? search.toLowerCase() : search;
+		for (Payload payload : dao.queryBuilder().where().raw(condition).query()) {
+
+			String data = new String(payload.getData(), "UTF-8");
+			if ((ignoreCase ? data.toLowerCase() : data).contains(target)) {
+
+				found.add(payload.getHash());
+			}
+		}
+		return found;
+	}
+
+	public synchronized void deleteAll() throws Exception {
+		dao.deleteBuilder().delete();
+		stored.clear();
+	}
+
+	/** hashes のうち、どのパケットからも参照されなくなったpayloadを削除する */
+	public synchronized void deleteUnreferenced(Collection<String> hashes) throws Exception {
+		for (String hash : new HashSet<>(hashes)) {
+
+			if (hash == null) {
+
+				continue;
+			}
+			dao.executeRaw("DELETE FROM `payloads` WHERE `hash` = ? AND NOT EXISTS (SELECT 1 FROM `packets` WHERE "
+					+ "`decoded_hash` = ? OR `modified_hash` = ? OR `sent_hash` = ? OR `received_hash` = ?)", hash,
+					hash, hash, hash, hash);
+			stored.remove(hash);
+		}
+	}
+}
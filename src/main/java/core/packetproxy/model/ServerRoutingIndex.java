@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接続先のIPアドレスとポートから Server を引くための表
+ *
+ * <p>
+ * Servers.queryByAddress() はパケットごとに呼ばれるので、その場で全てのサーバの名前解決をしない。
+ * 表は一定時間ごとに別スレッドで作り直し、作り直している間は古い表を引く。サーバの設定が変わったときは古い表を捨てるので、
+ * その後に引いた場合は新しい表ができるのを待つ。名前解決できなかったサーバは表に入らないので、表にないアドレスを引いたときにその場で名前解決する。
+ */
+class ServerRoutingIndex {
+
+	/* 名前解決をやり直す間隔。JVMのDNSキャッシュ (networkaddress.cache.ttl) の既定値に合わせる */
+	static final long REFRESH_INTERVAL_MSEC = 30 * 1000;
+
+	private final Callable<List<Server>> source;
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicBoolean rebuildRequested = new AtomicBoolean();
+	private volatile Map<InetSocketAddress, Server> index;
+	/* 表を作ったときに名前解決できなかったサーバ */
+	private volatile List<Server> unresolved = new ArrayList<>();
+	/* invalidate() するたびに増やす。作っている間に invalidate() された表は使わない */
+	private final Object generationLock = new Object();
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+	private volatile long lastRebuildMsec;
+	private volatile long maxRebuildMsec;
+
+	/** source は優先度の高い順にサーバを返すこと。同じアドレスに複数のサーバがある場合は先に返したものを使う */
+	ServerRoutingIndex(Callable<List<Server>> source) {
+		this.source = source;
+		executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "PacketProxy-server-index");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::rebuildQuietly, REFRESH_INTERVAL_MSEC, REFRESH_INTERVAL_MSEC,
+				TimeUnit.MILLISECONDS);
+	}
+
+	Server lookup(InetSocketAddress addr) throws Exception {
+		Map<InetSocketAddress, Server> current = index;
+		if (current == null) {
+
+			// 最初の1回と、サーバの設定が変わった直後はその場で作る
+			current = rebuildIfInvalid();
+		}
+		Server server = current.get(addr);
+		if (server == null) {
+
+			server = lookupUnresolved(addr);
+		}
+		if (server != null) {
+
+			hits.incrementAndGet();
+		} else {
+
+			misses.incrementAndGet();
+		}
+		return server;
+	}
+
+	/* 名前解決できるようになっていれば表に入れる */
+	private Server lookupUnresolved(InetSocketAddress addr) {
+		for (Server server : unresolved) {
+
+			if (server.getPort() == addr.getPort() && server.getIps().contains(addr.getAddress())) {
+
+				scheduleRebuild();
+				return server;
+			}
+		}
+		return null;
+	}
+
+	/** サーバの設定が変わったときに呼ぶ。その後の lookup() は新しい設定で引く */
+	void invalidate() {
+		synchronized (generationLock) {
+
+			generation++;
+			index = null;
+		}
+		scheduleRebuild();
+	}
+
+	/* 続けて呼ばれた場合は1回だけ作り直す */
+	private void scheduleRebuild() {
+		if (rebuildRequested.compareAndSet(false, true)) {
+
+			executor.execute(() -> {
+				rebuildRequested.set(false);
+				rebuildQuietly();
+			});
+		}
+	}
+
+	private void rebuildQuietly() {
+		try {
+
+			rebuild();
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
+	}
+
+	private synchronized Map<InetSocketAddress, Server> rebuildIfInvalid() throws Exception {
+		Map<InetSocketAddress, Server> current = index;
+		return current != null ? current : rebuild();
+	}
+
+	synchronized Map<InetSocketAddress, Server> rebuild() throws Exception {
+		long start = System.nanoTime();
+		long startGeneration;
+		synchronized (generationLock) {
+
+			startGeneration = generation;
+		}
+		Map<InetSocketAddress, Server> next = new HashMap<>();
+		List<Server> failed = new ArrayList<>();
+		for (Server server : source.call()) {
+
+			List<InetAddress> ips = server.getIps();
+			if (ips.isEmpty()) {
+
+				failed.add(server);
+			}
+			for (InetAddress ip : ips) {
+
+				next.putIfAbsent(new InetSocketAddress(ip, server.getPort()), server);
+			}
+		}
+		synchronized (generationLock) {
+
+			if (generation == startGeneration) {
+
+				index = next;
+				unresolved = failed;
+			}
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		lastRebuildMsec = elapsed;
+		maxRebuildMsec = Math.max(maxRebuildMsec, elapsed);
+		rebuilds.incrementAndGet();
+		return next;
+	}
+
+	Map<String, Long> getMetrics() {
+		Map<InetSocketAddress, Server> current = index;
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("entries", current != null ? (long) current.size() : 0L);
+		metrics.put("hits", hits.get());
+		metrics.put("misses", misses.get());
+		metrics.put("rebuilds", rebuilds.get());
+		metrics.put("last_rebuild_msec", lastRebuildMsec);
+		metrics.put("max_rebuild_msec", maxRebuildMsec);
+		return metrics;
+	}
+}
@@ -23,9 +23,9 @@ import com.j256.ormlite.dao.Dao;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Map;
 import packetproxy.model.Database.DatabaseMessage;
 
 public class Servers implements PropertyChangeListener {
@@ -44,12 +44,14 @@ public class Servers implements PropertyChangeListener {
 	private Database database;
 	private Dao<Server, Integer> dao;
 	private DaoQueryCache<Server> cache;
+	private ServerRoutingIndex routingIndex;
 
 	private Servers() throws Exception {
 		database = Database.getInstance();
 		dao = database.createTable(Server.class, this);
 		cache = new DaoQueryCache();
 		ensureDescriptorPathColumn();
+		routingIndex = new ServerRoutingIndex(this::queryAll);
 	}
 
 	private void ensureDescriptorPathColumn() {
@@ -63,12 +65,14 @@ public class Servers implements PropertyChangeListener {
 	public void create(Server server) throws Exception {
 		dao.createIfNotExists(server);
 		cache.clear();
+		routingIndex.invalidate();
 		firePropertyChange();
 	}
 
 	public void delete(Server server) throws Exception {
 		dao.delete(server);
 		cache.clear();
+		routingIndex.invalidate();
 		firePropertyChange();
 	}
 
@@ -107,7 +111,6 @@ public class Servers implements PropertyChangeListener {
 	}
 
 	public Server queryByAddress(InetSocketAddress addr) throws Exception {
-		List<Server> all = this.queryAll();
 		if (addr.getAddress() == null) {
 
 			throw new Exception(String.format("cannot resolv hostname: %s", addr.getHostName()));
@@ -116,19 +119,12 @@ public class Servers implements PropertyChangeListener {
 
 			throw new Exception("cannot resolv portnumber: 0");
 		}
-		String target = addr.getAddress().getHostAddress();
-		for (Server server : all) {
-
-			List<InetAddress> ips = server.getIps();
-			for (InetAddress ip : ips) {
-
-				if (ip.getHostAddress().equals(target) && server.getPort() == addr.getPort()) {
+		return routingIndex.lookup(addr);
+	}
 
-					return server;
-				}
-			}
-		}
-		return null;
+	/** queryByAddress() が引く表の大きさ、ヒット数、作り直しにかかった時間 */
+	public Map<String, Long> getRoutingMetrics() {
+		return routingIndex.getMetrics();
 	}
 
 	public Server queryByHostName(String hostname) throws Exception {
@@ -225,6 +221,7 @@ public class Servers implements PropertyChangeListener {
 	public void update(Server server) throws Exception {
 		dao.update(server);
 		cache.clear();
+		routingIndex.invalidate();
 		firePropertyChange();
 	}
 
@@ -268,6 +265,7 @@ public class Servers implements PropertyChangeListener {
 					dao = database.createTable(Server.class, this);
 					cache.clear();
 					ensureDescriptorPathColumn();
+					routingIndex.invalidate();
 					firePropertyChange(message);
 					break;
 				case RECREATE :
@@ -275,6 +273,7 @@ public class Servers implements PropertyChangeListener {
 					dao = database.createTable(Server.class, this);
 					cache.clear();
 					ensureDescriptorPathColumn();
+					routingIndex.invalidate();
 					break;
 				default :
 					break;
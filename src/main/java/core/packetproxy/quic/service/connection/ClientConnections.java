@@ -22,10 +22,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import lombok.AccessLevel;
 import lombok.Getter;
-import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.model.CAs.CA;
 import packetproxy.quic.service.packet.QuicPacketParser;
 import packetproxy.quic.value.ConnectionId;
@@ -34,9 +32,13 @@ import packetproxy.quic.value.ConnectionIdPair;
 @Getter
 public class ClientConnections {
 
+	/* UDP ペイロードの最大長 */
+	private static final int MAX_DATAGRAM_SIZE = 65527;
+
 	private final Map<ConnectionId, ClientConnection> connes = new HashMap<>();
 	private final List<ConnectionId> alreadyReceivedInitialSecrets = new ArrayList<>();
-	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	@Getter(AccessLevel.NONE)
+	private final byte[] recvBuffer = new byte[MAX_DATAGRAM_SIZE];
 	private final int listenPort;
 	private final CA ca;
 	private DatagramSocket socket;
@@ -57,7 +59,6 @@ public class ClientConnections {
 		if (!this.socket.isClosed()) {
 
 			this.connes.values().forEach(Connection::close);
-			this.executor.shutdownNow();
 			this.socket.close();
 		}
 	}
@@ -104,11 +105,11 @@ public class ClientConnections {
 		return Optional.of(conn);
 	}
 
+	/* 受信には同じ配列を使い、受信した長さの配列にコピーして返す */
 	private DatagramPacket recvUdpPacket() throws Exception {
-		byte[] buf = new byte[4096];
-		DatagramPacket udpPacket = new DatagramPacket(buf, 4096);
+		DatagramPacket udpPacket = new DatagramPacket(this.recvBuffer, this.recvBuffer.length);
 		this.socket.receive(udpPacket);
-		udpPacket.setData(ArrayUtils.subarray(udpPacket.getData(), 0, udpPacket.getLength()));
+		udpPacket.setData(Arrays.copyOf(this.recvBuffer, udpPacket.getLength()));
 		return udpPacket;
 	}
 }
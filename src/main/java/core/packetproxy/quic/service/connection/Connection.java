@@ -17,19 +17,22 @@
 package packetproxy.quic.service.connection;
 
 import static packetproxy.util.Logging.errWithStackTrace;
-import static packetproxy.util.Throwing.rethrow;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.AccessLevel;
 import lombok.Getter;
 import packetproxy.common.Endpoint;
 import packetproxy.common.PipeEndpoint;
@@ -37,6 +40,7 @@ import packetproxy.quic.service.LossDetection;
 import packetproxy.quic.service.Pto;
 import packetproxy.quic.service.RttEstimator;
 import packetproxy.quic.service.connection.helper.AwaitingPackets;
+import packetproxy.quic.service.connection.helper.QuicMessageReader;
 import packetproxy.quic.service.handshake.Handshake;
 import packetproxy.quic.service.handshake.HandshakeState;
 import packetproxy.quic.service.key.Keys;
@@ -47,8 +51,7 @@ import packetproxy.quic.utils.Constants;
 import packetproxy.quic.utils.Constants.PnSpaceType;
 import packetproxy.quic.value.ConnectionId;
 import packetproxy.quic.value.ConnectionIdPair;
-import packetproxy.quic.value.QuicMessages;
-import packetproxy.quic.value.SimpleBytes;
+import packetproxy.quic.value.QuicMessage;
 import packetproxy.quic.value.packet.QuicPacket;
 import packetproxy.quic.value.packet.longheader.pnspace.HandshakePacket;
 import packetproxy.quic.value.packet.longheader.pnspace.InitialPacket;
@@ -57,7 +60,18 @@ import packetproxy.quic.value.packet.shortheader.ShortHeaderPacket;
 @Getter
 public abstract class Connection implements Endpoint {
 
-	final ExecutorService executor = Executors.newFixedThreadPool(3);
+	/* 全てのコネクションの送信ループ、デコーダーへの書き込みループとエンコーダーからの読み込みループを実行する。終わったコネクションのスレッドは次のコネクションが使う */
+	private static final ExecutorService executor = createExecutor();
+
+	private static ExecutorService createExecutor() {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "PacketProxy-quic-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
 	final QuicPacketParser clientPacketParser;
 	final QuicPacketParser serverPacketParser;
 	final AwaitingPackets<QuicPacket> awaitingSendPackets = new AwaitingPackets();
@@ -75,6 +89,14 @@ public abstract class Connection implements Endpoint {
 	ConnectionIdPair connIdPair;
 	ConnectionId initialSecret;
 	boolean serverAntiAmplifiedLimit = false;
+	@Getter(AccessLevel.NONE)
+	private final List<Future<?>> tasks = new CopyOnWriteArrayList<>();
+	/*
+	 * ストリームで受信したメッセージ。受信スレッドとタイマーは全てのコネクションで共有しているので、
+	 * デコーダーが読まずにパイプが詰まっても止まらないように、パイプへの書き込みはこのコネクションのループで行う
+	 */
+	@Getter(AccessLevel.NONE)
+	private final BlockingQueue<byte[]> receivedMessages = new LinkedBlockingQueue<>();
 
 	public Connection(Constants.Role role, ConnectionIdPair connIdPair, ConnectionId initialSecret,
 			DatagramSocket socket, InetSocketAddress peerAddr) throws Exception {
@@ -94,9 +116,47 @@ public abstract class Connection implements Endpoint {
 		this.keys.computeInitialKey(initialSecret);
 	}
 
+	/** このコネクションのループを共有スレッドで実行する。close() で中断する */
+	void submit(Runnable loop) {
+		this.tasks.add(executor.submit(loop));
+	}
+
+	/** ストリームで受信したメッセージをデコーダーに渡す。ブロックしない */
+	public void deliverReceivedMessage(byte[] message) {
+		this.receivedMessages.offer(message);
+	}
+
 	protected void start() throws Exception {
+		/* 受信したメッセージ -> デコーダー */
+		this.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+
+					OutputStream os = pipe.getRawEndpoint().getOutputStream();
+					while (true) {
+
+						os.write(receivedMessages.take()); // Blocking here
+						byte[] message;
+						while ((message = receivedMessages.poll()) != null) {
+
+							os.write(message);
+						}
+						os.flush();
+					}
+				} catch (InterruptedException | InterruptedIOException e) {
+
+					/* exception simply ignored */
+				} catch (Exception e) {
+
+					errWithStackTrace(e);
+				}
+			}
+		});
+
 		/* 送信パケットキュー -> 送信 */
-		this.executor.submit(new Runnable() {
+		this.submit(new Runnable() {
 
 			@Override
 			public void run() {
@@ -175,46 +235,22 @@ public abstract class Connection implements Endpoint {
 			}
 		});
 
-		/* エンコーダー -> 送信パケットキュー */
-		this.executor.submit(new Runnable() {
+		/*
+		 * エンコーダー -> 送信パケットキュー
+		 * ハンドシェイクが完了してApplicationKeyを得ていないとパケット化できないため、クライアントとしてのコネクションでは
+		 * ハンドシェイクが確定してから読み込みを始める
+		 */
+		Runnable encoderLoop = new Runnable() {
 
 			@Override
 			public void run() {
 				try {
 
-					InputStream in = pipe.getRawEndpoint().getInputStream();
-
-					/*
-					 * ハンドシェイクが完了するまで待ってからエンコーダーからの入力をパケット化する
-					 * ハンドシェイクが完了してApplicationKeyを得ていないとパケット化できないため
-					 */
-					if (role == Constants.Role.CLIENT) {
-
-						while (true) {
-
-							if (handshakeState.isConfirmed()) {
-
-								break;
-							}
-							Thread.sleep(100);
-						}
-					}
-
-					byte[] readChunk = new byte[4096];
-					ByteArrayOutputStream readQueue = new ByteArrayOutputStream();
-					int length;
-					while ((length = in.read(readChunk)) > 0) {
-
-						readQueue.write(readChunk, 0, length);
-						ByteBuffer buffer = ByteBuffer.wrap(readQueue.toByteArray());
-						QuicMessages.parse(buffer).forEach(rethrow(msg -> {
-							getPnSpace(Constants.PnSpaceType.PnSpaceApplicationData).addSendQuicMessage(msg);
-						}));
-						readQueue.reset();
-						if (buffer.hasRemaining()) {
+					QuicMessageReader reader = new QuicMessageReader(pipe.getRawEndpoint().getInputStream());
+					QuicMessage msg;
+					while ((msg = reader.read()) != null) {
 
-							readQueue.write(SimpleBytes.parse(buffer, buffer.remaining()).getBytes());
-						}
+						getPnSpace(Constants.PnSpaceType.PnSpaceApplicationData).addSendQuicMessage(msg);
 					}
 				} catch (InterruptedIOException e) {
 
@@ -224,7 +260,14 @@ public abstract class Connection implements Endpoint {
 					errWithStackTrace(e);
 				}
 			}
-		});
+		};
+		if (role == Constants.Role.CLIENT) {
+
+			this.handshakeState.whenConfirmed().thenRun(() -> this.submit(encoderLoop));
+		} else {
+
+			this.submit(encoderLoop);
+		}
 	}
 
 	private void sendUdpPacket(byte[] data) throws Exception {
@@ -245,7 +288,7 @@ public abstract class Connection implements Endpoint {
 
 			this.pipe.getRawEndpoint().getInputStream().close();
 			this.pipe.getRawEndpoint().getOutputStream().close();
-			this.executor.shutdownNow();
+			this.tasks.forEach(task -> task.cancel(true));
 		} catch (Exception e) {
 
 			errWithStackTrace(e);
@@ -19,11 +19,8 @@ package packetproxy.quic.service.connection;
 import static packetproxy.util.Logging.errWithStackTrace;
 
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import lombok.Getter;
-import lombok.SneakyThrows;
-import org.apache.commons.lang3.ArrayUtils;
 import packetproxy.PrivateDNSClient;
 import packetproxy.quic.service.handshake.ClientHandshake;
 import packetproxy.quic.utils.AwaitingException;
@@ -37,49 +34,45 @@ public class ServerConnection extends Connection {
 	private final String serverName;
 
 	public ServerConnection(ConnectionIdPair connIdPair, String serverName, int serverPort) throws Exception {
-		super(Constants.Role.CLIENT, connIdPair, connIdPair.getDestConnId(), new DatagramSocket(),
+		super(Constants.Role.CLIENT, connIdPair, connIdPair.getDestConnId(),
+				ServerConnections.getInstance().getSocket(),
 				new InetSocketAddress(PrivateDNSClient.getByName(serverName), serverPort));
 		this.handshake = new ClientHandshake(this);
 		this.serverName = serverName;
+		ServerConnections.getInstance().register(this);
 		this.handshake.start(serverName);
-		super.executor.submit(new RecvUdpPacketsLoop());
 		super.start();
 	}
 
-	/* サーバから受信 -> 処理 -> SendPacketキュー */
-	public class RecvUdpPacketsLoop implements Runnable {
+	/** サーバからの受信パケット -> 処理 -> SendPacketキュー。ServerConnections の受信スレッドから呼ばれる */
+	public void recvUdpPacket(DatagramPacket udpPacket) {
+		awaitingReceivedPackets.put(udpPacket);
+		awaitingReceivedPackets.forEachAndRemovedIfReturnTrue(packet -> {
+			try {
 
-		@Override
-		@SneakyThrows
-		public void run() {
-			while (true) {
+				serverPacketParser.parseOnePacket(packet);
+				return true;
+			} catch (AwaitingException e) {
 
-				DatagramPacket udpPacket = recvUdpPacket(); // Blocking here
-				awaitingReceivedPackets.put(udpPacket);
-				awaitingReceivedPackets.forEachAndRemovedIfReturnTrue(packet -> {
-					try {
+				return false;
+			} catch (Exception e) {
 
-						serverPacketParser.parseOnePacket(packet);
-						return true;
-					} catch (AwaitingException e) {
-
-						return false;
-					} catch (Exception e) {
-
-						errWithStackTrace(e);
-						return false;
-					}
-				});
+				errWithStackTrace(e);
+				return false;
 			}
-		}
+		});
 	}
 
-	private DatagramPacket recvUdpPacket() throws Exception {
-		byte[] buf = new byte[4096];
-		DatagramPacket recvPacket = new DatagramPacket(buf, 4096);
-		socket.receive(recvPacket);
-		recvPacket.setData(ArrayUtils.subarray(recvPacket.getData(), 0, recvPacket.getLength()));
-		return recvPacket;
+	@Override
+	public void close() {
+		super.close();
+		try {
+
+			ServerConnections.getInstance().remove(this);
+		} catch (Exception e) {
+
+			errWithStackTrace(e);
+		}
 	}
 
 	@Override
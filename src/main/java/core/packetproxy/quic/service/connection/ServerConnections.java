@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package packetproxy.quic.service.connection;
+
+import static packetproxy.util.Logging.errWithStackTrace;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import packetproxy.quic.service.packet.QuicPacketParser;
+import packetproxy.quic.value.ConnectionId;
+
+/**
+ * サーバへの全てのコネクションが共有する UDP ソケット
+ *
+ * <p>
+ * 1つのスレッドでサーバからのパケットを受信し、宛先のコネクションIDでコネクションに振り分ける。
+ * コネクションごとにソケットと受信スレッドを作らない。
+ */
+public class ServerConnections {
+
+	/* UDP ペイロードの最大長 */
+	private static final int MAX_DATAGRAM_SIZE = 65527;
+
+	private static ServerConnections instance;
+
+	public static synchronized ServerConnections getInstance() throws Exception {
+		if (instance == null) {
+
+			instance = new ServerConnections();
+		}
+		return instance;
+	}
+
+	private final Map<ConnectionId, ServerConnection> connes = new ConcurrentHashMap<>();
+	private final DatagramSocket socket;
+
+	private ServerConnections() throws Exception {
+		this.socket = new DatagramSocket();
+		Thread thread = new Thread(this::recvLoop, "PacketProxy-quic-upstream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public DatagramSocket getSocket() {
+		return this.socket;
+	}
+
+	void register(ServerConnection conn) {
+		this.connes.put(conn.getConnIdPair().getSrcConnId(), conn);
+	}
+
+	void remove(ServerConnection conn) {
+		this.connes.remove(conn.getConnIdPair().getSrcConnId(), conn);
+	}
+
+	/* サーバから受信 -> 宛先のコネクションで処理 -> SendPacketキュー */
+	private void recvLoop() {
+		byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket recvPacket = new DatagramPacket(buf, buf.length);
+		while (!this.socket.isClosed()) {
+
+			try {
+
+				recvPacket.setLength(buf.length);
+				this.socket.receive(recvPacket); // Blocking here
+				byte[] data = Arrays.copyOf(buf, recvPacket.getLength());
+				ServerConnection conn = this.connes.get(QuicPacketParser.getDestConnectionId(data));
+				if (conn == null) {
+
+					continue; /* 閉じたコネクション宛てのパケットは捨てる */
+				}
+				conn.recvUdpPacket(new DatagramPacket(data, data.length, recvPacket.getSocketAddress()));
+			} catch (Exception e) {
+
+				errWithStackTrace(e);
+			}
+		}
+	}
+}
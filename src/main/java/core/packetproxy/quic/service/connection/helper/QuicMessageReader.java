@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package packetproxy.quic.service.connection.helper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import packetproxy.quic.value.QuicMessage;
+import packetproxy.quic.value.StreamId;
+
+/**
+ * エンコーダーから届くバイト列を QuicMessage に区切る。
+ * ヘッダ (streamId: 8 bytes, dataLength: 8 bytes) を読んでから data をその長さの配列に直接読み込むので、
+ * 途中まで届いたメッセージを読み直したりコピーし直したりしない
+ */
+public class QuicMessageReader {
+
+	private static final int HEADER_LENGTH = 16;
+
+	private final InputStream in;
+	private final byte[] header = new byte[HEADER_LENGTH];
+
+	public QuicMessageReader(InputStream in) {
+		this.in = in;
+	}
+
+	/** 次のメッセージを1つ返す (Blocking)。メッセージの区切りでストリームが閉じられた場合は null */
+	public QuicMessage read() throws IOException {
+		if (!this.readFully(this.header, true)) {
+
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(this.header);
+		StreamId streamId = StreamId.parse(buffer);
+		long dataLength = buffer.getLong();
+		if (dataLength < 0 || dataLength > Integer.MAX_VALUE - 8) {
+
+			throw new IOException(String.format("invalid QuicMessage length: %d", dataLength));
+		}
+		byte[] data = new byte[(int) dataLength];
+		this.readFully(data, false);
+		return QuicMessage.of(streamId, data);
+	}
+
+	private boolean readFully(byte[] bytes, boolean eofAllowed) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+
+			int length = this.in.read(bytes, offset, bytes.length - offset);
+			if (length < 0) {
+
+				if (eofAllowed && offset == 0) {
+
+					return false;
+				}
+				throw new EOFException("stream closed in the middle of QuicMessage");
+			}
+			offset += length;
+		}
+		return true;
+	}
+}
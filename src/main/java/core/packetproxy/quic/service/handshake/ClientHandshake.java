@@ -35,6 +35,7 @@ import packetproxy.quic.service.frame.Frames;
 import packetproxy.quic.service.framegenerator.MessagesToCryptoFrames;
 import packetproxy.quic.service.transportparameter.TransportParameters;
 import packetproxy.quic.utils.Constants;
+import packetproxy.quic.value.key.CipherSuite;
 
 public class ClientHandshake implements Handshake {
 
@@ -44,7 +45,8 @@ public class ClientHandshake implements Handshake {
 	public ClientHandshake(Connection conn) {
 		this.conn = conn;
 		this.engine = new TlsClientEngine(new MyClientMessageSender(), new MyClientTlsStatusEventHandler());
-		this.engine.addSupportedCiphers(List.of(TlsConstants.CipherSuite.TLS_AES_128_GCM_SHA256));
+		this.engine.addSupportedCiphers(List.of(TlsConstants.CipherSuite.TLS_AES_128_GCM_SHA256,
+				TlsConstants.CipherSuite.TLS_CHACHA20_POLY1305_SHA256));
 		this.engine.add(new ApplicationLayerProtocolNegotiationExtension("h3"));
 		this.engine.setTrustManager(new X509TrustManager() {
 
@@ -150,20 +152,23 @@ public class ClientHandshake implements Handshake {
 
 		@Override
 		public void earlySecretsKnown() {
-			conn.getKeys().computeZeroRttKey(engine.getClientEarlyTrafficSecret());
+			/*
+			 * setNewSessionTicket() しないので、ClientHello に PSK を付けず 0-RTT も送らない。 ServerHello
+			 * の前で暗号スイートも決まっていないので、ここで 0-RTT の鍵は作らない
+			 */
 		}
 
 		@Override
 		public void handshakeSecretsKnown() {
 			conn.getKeys().computeHandshakeKey(engine.getClientHandshakeTrafficSecret(),
-					engine.getServerHandshakeTrafficSecret());
+					engine.getServerHandshakeTrafficSecret(), CipherSuite.of(engine.getSelectedCipher()));
 			conn.getHandshakeState().transit(HasHandshakeKeys);
 		}
 
 		@Override
 		public void handshakeFinished() {
 			conn.getKeys().computeApplicationKey(engine.getClientApplicationTrafficSecret(),
-					engine.getServerApplicationTrafficSecret());
+					engine.getServerApplicationTrafficSecret(), CipherSuite.of(engine.getSelectedCipher()));
 			conn.getHandshakeState().transit(HasAppKeys);
 		}
 
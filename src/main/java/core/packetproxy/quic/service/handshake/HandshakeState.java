@@ -16,13 +16,16 @@
 
 package packetproxy.quic.service.handshake;
 
+import java.util.concurrent.CompletableFuture;
+
 public class HandshakeState {
 
 	public enum State {
 		Initial, HasHandshakeKeys, AckReceived, HasAppKeys, Confirmed
 	}
 
-	private State state;
+	private volatile State state;
+	private final CompletableFuture<Void> confirmed = new CompletableFuture<>();
 
 	public HandshakeState() {
 		this.state = State.Initial;
@@ -30,6 +33,15 @@ public class HandshakeState {
 
 	public void transit(HandshakeState.State newlyState) {
 		this.state = newlyState;
+		if (this.isConfirmed()) {
+
+			this.confirmed.complete(null);
+		}
+	}
+
+	/** ハンドシェイクが確定したときに完了する。確定済みなら完了したものを返す */
+	public CompletableFuture<Void> whenConfirmed() {
+		return this.confirmed.copy();
 	}
 
 	public boolean hasNoHandshakeKeys() {
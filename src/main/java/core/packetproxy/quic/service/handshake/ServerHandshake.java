@@ -34,6 +34,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 import net.luminis.tls.*;
 import net.luminis.tls.extension.ApplicationLayerProtocolNegotiationExtension;
+import net.luminis.tls.extension.ClientHelloPreSharedKeyExtension;
 import net.luminis.tls.extension.Extension;
 import net.luminis.tls.extension.ServerNameExtension;
 import net.luminis.tls.handshake.*;
@@ -47,6 +48,7 @@ import packetproxy.quic.utils.Constants;
 import packetproxy.quic.value.ConnectionId;
 import packetproxy.quic.value.Token;
 import packetproxy.quic.value.frame.NewConnectionIdFrame;
+import packetproxy.quic.value.key.CipherSuite;
 
 public class ServerHandshake implements Handshake {
 
@@ -58,6 +60,8 @@ public class ServerHandshake implements Handshake {
 	final TransportParameters clientTransportParams = new TransportParameters(Constants.Role.CLIENT);
 	Optional<String> sniName = Optional.empty();
 	TlsServerEngine engine;
+	/* 再開したセッションの暗号スイート。PSK を受け入れなかった場合は null */
+	CipherSuite resumedCipherSuite;
 
 	public ServerHandshake(Connection conn, CA ca) {
 		this.conn = conn;
@@ -65,13 +69,15 @@ public class ServerHandshake implements Handshake {
 	}
 
 	public void startHandshake(String sniName) throws Exception {
-		KeyStore ks = CertCacheManager.getInstance().getKeyStore(sniName, new String[]{sniName}, this.ca);
+		// TlsServerEngine はRSAの鍵にしか対応していないので、ECDSAの設定に関わらずRSAの証明書を使う
+		KeyStore ks = CertCacheManager.getInstance().getKeyStore(sniName, new String[]{sniName}, this.ca, false);
 		RSAPrivateKey key = (RSAPrivateKey) ks.getKey("newalias", "testtest".toCharArray());
 		List<X509Certificate> certs = Arrays.stream(ks.getCertificateChain("newalias"))
 				.map(cert -> (X509Certificate) cert).collect(Collectors.toList());
 		this.engine = new TlsServerEngine(certs, key, new MyServerMessageSender(), new MyTlsStatusEventHandler(),
-				tlsSessionRegistry);
-		this.engine.addSupportedCiphers(List.of(TlsConstants.CipherSuite.TLS_AES_128_GCM_SHA256));
+				new MySessionRegistry());
+		this.engine.addSupportedCiphers(List.of(TlsConstants.CipherSuite.TLS_AES_128_GCM_SHA256,
+				TlsConstants.CipherSuite.TLS_CHACHA20_POLY1305_SHA256));
 	}
 
 	@Override
@@ -176,26 +182,66 @@ public class ServerHandshake implements Handshake {
 		}
 	}
 
+	/* 共有のレジストリでセッションを引き、再開したセッションの暗号スイートを覚えておく */
+	class MySessionRegistry implements TlsSessionRegistry {
+
+		@Override
+		public NewSessionTicketMessage createNewSessionTicketMessage(byte ticketNonce,
+				TlsConstants.CipherSuite cipher, TlsState tlsState, String applicationProtocol) {
+			return tlsSessionRegistry.createNewSessionTicketMessage(ticketNonce, cipher, tlsState,
+					applicationProtocol);
+		}
+
+		@Override
+		public NewSessionTicketMessage createNewSessionTicketMessage(byte ticketNonce,
+				TlsConstants.CipherSuite cipher, TlsState tlsState, String applicationProtocol, Long maxEarlyDataSize) {
+			return tlsSessionRegistry.createNewSessionTicketMessage(ticketNonce, cipher, tlsState,
+					applicationProtocol, maxEarlyDataSize);
+		}
+
+		@Override
+		public Integer selectIdentity(List<ClientHelloPreSharedKeyExtension.PskIdentity> identities,
+				TlsConstants.CipherSuite cipher) {
+			Integer selected = tlsSessionRegistry.selectIdentity(identities, cipher);
+			if (selected != null) {
+
+				// TlsSessionRegistryImpl は、cipher で確立したセッションのチケットだけを選ぶ
+				resumedCipherSuite = CipherSuite.of(cipher);
+			}
+			return selected;
+		}
+
+		@Override
+		public TlsSession useSession(ClientHelloPreSharedKeyExtension.PskIdentity identity) {
+			return tlsSessionRegistry.useSession(identity);
+		}
+	}
+
 	class MyTlsStatusEventHandler implements TlsStatusEventHandler {
 
 		@Override
 		public void earlySecretsKnown() {
 			// Logging.log("earlySecretsKnown");
-			conn.getKeys().computeZeroRttKey(engine.getClientEarlyTrafficSecret());
+			if (resumedCipherSuite == null) {
+
+				/* PSK がなければ 0-RTT のパケットは来ない */
+				return;
+			}
+			conn.getKeys().computeZeroRttKey(engine.getClientEarlyTrafficSecret(), resumedCipherSuite);
 		}
 
 		@Override
 		public void handshakeSecretsKnown() {
 			// Logging.log("handshakeSecretsKnown");
 			conn.getKeys().computeHandshakeKey(engine.getClientHandshakeTrafficSecret(),
-					engine.getServerHandshakeTrafficSecret());
+					engine.getServerHandshakeTrafficSecret(), CipherSuite.of(engine.getSelectedCipher()));
 		}
 
 		@Override
 		public void handshakeFinished() {
 			// Logging.log("handshakeFinished");
 			conn.getKeys().computeApplicationKey(engine.getClientApplicationTrafficSecret(),
-					engine.getServerApplicationTrafficSecret());
+					engine.getServerApplicationTrafficSecret(), CipherSuite.of(engine.getSelectedCipher()));
 			conn.getKeys().discardInitialKey();
 			conn.getPnSpace(PnSpaceInitial).close();
 			conn.getKeys().discardHandshakeKey();
@@ -10,6 +10,7 @@ import lombok.Getter;
 import org.apache.commons.codec.binary.Hex;
 import packetproxy.quic.utils.Constants;
 import packetproxy.quic.value.ConnectionId;
+import packetproxy.quic.value.key.CipherSuite;
 
 @Getter
 public class Keys {
@@ -23,18 +24,18 @@ public class Keys {
 		this.serverKeys.computeInitialKey(destConnId);
 	}
 
-	public void computeZeroRttKey(byte[] secret) {
-		this.clientKeys.computeZeroRttKey(secret);
+	public void computeZeroRttKey(byte[] secret, CipherSuite cipherSuite) {
+		this.clientKeys.computeZeroRttKey(secret, cipherSuite);
 	}
 
-	public void computeHandshakeKey(byte[] clientSecret, byte[] serverSecret) {
-		this.clientKeys.computeHandshakeKey(clientSecret);
-		this.serverKeys.computeHandshakeKey(serverSecret);
+	public void computeHandshakeKey(byte[] clientSecret, byte[] serverSecret, CipherSuite cipherSuite) {
+		this.clientKeys.computeHandshakeKey(clientSecret, cipherSuite);
+		this.serverKeys.computeHandshakeKey(serverSecret, cipherSuite);
 	}
 
-	public void computeApplicationKey(byte[] clientSecret, byte[] serverSecret) {
-		this.clientKeys.computeApplicationKey(clientSecret);
-		this.serverKeys.computeApplicationKey(serverSecret);
+	public void computeApplicationKey(byte[] clientSecret, byte[] serverSecret, CipherSuite cipherSuite) {
+		this.clientKeys.computeApplicationKey(clientSecret, cipherSuite);
+		this.serverKeys.computeApplicationKey(serverSecret, cipherSuite);
 		outputSecretsForWireshark(); /* for wireshark debug */
 	}
 
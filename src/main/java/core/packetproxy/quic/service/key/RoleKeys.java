@@ -20,6 +20,7 @@ import java.util.Optional;
 import lombok.Getter;
 import packetproxy.quic.utils.Constants;
 import packetproxy.quic.value.ConnectionId;
+import packetproxy.quic.value.key.CipherSuite;
 import packetproxy.quic.value.key.level.ApplicationKey;
 import packetproxy.quic.value.key.level.HandshakeKey;
 import packetproxy.quic.value.key.level.InitialKey;
@@ -78,16 +79,16 @@ public class RoleKeys {
 		this.optionalInitialKey = Optional.of(InitialKey.of(this.role, destConnId));
 	}
 
-	public void computeZeroRttKey(byte[] secret) {
-		this.optionalZeroRttKey = Optional.of(ZeroRttKey.of(secret));
+	public void computeZeroRttKey(byte[] secret, CipherSuite cipherSuite) {
+		this.optionalZeroRttKey = Optional.of(ZeroRttKey.of(secret, cipherSuite));
 	}
 
-	public void computeHandshakeKey(byte[] secret) {
-		this.optionalHandshakeKey = Optional.of(HandshakeKey.of(secret));
+	public void computeHandshakeKey(byte[] secret, CipherSuite cipherSuite) {
+		this.optionalHandshakeKey = Optional.of(HandshakeKey.of(secret, cipherSuite));
 	}
 
-	public void computeApplicationKey(byte[] secret) {
-		this.optionalApplicationKey = Optional.of(ApplicationKey.of(secret));
+	public void computeApplicationKey(byte[] secret, CipherSuite cipherSuite) {
+		this.optionalApplicationKey = Optional.of(ApplicationKey.of(secret, cipherSuite));
 	}
 
 	public void discardInitialKey() {
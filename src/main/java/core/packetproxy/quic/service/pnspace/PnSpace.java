@@ -23,7 +23,6 @@ import static packetproxy.quic.utils.Constants.PnSpaceType.PnSpaceInitial;
 import static packetproxy.util.Logging.err;
 import static packetproxy.util.Throwing.rethrow;
 
-import java.io.OutputStream;
 import java.time.Instant;
 import java.util.List;
 import lombok.Getter;
@@ -162,11 +161,9 @@ public abstract class PnSpace {
 
 				StreamFrame streamFrame = (StreamFrame) frame;
 				this.frameToMsgStream.put(streamFrame);
-				this.frameToMsgStream.get(streamFrame.getStreamId()).ifPresent(rethrow(msg -> {
-					OutputStream os = this.conn.getPipe().getRawEndpoint().getOutputStream();
-					os.write(msg.getBytes());
-					os.flush();
-				}));
+				/* パイプへの書き込みはブロックするので、このモニタの外でコネクションのループが行う */
+				this.frameToMsgStream.get(streamFrame.getStreamId())
+						.ifPresent(msg -> this.conn.deliverReceivedMessage(msg.getBytes()));
 			} else if (frame instanceof AckFrame) {
 
 				this.OnAckReceived(pn, (AckFrame) frame);
@@ -18,14 +18,27 @@ package packetproxy.quic.utils;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * 全てのコネクションのタイマーを1つのスレッドで待つ。キャンセルしたタイマーはすぐに取り除く
+ */
 public class ScheduledTimer {
 
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+	private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "PacketProxy-quic-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
 	private final Runnable onTimeout;
 	private ScheduledFuture<?> future;
 
@@ -34,14 +47,13 @@ public class ScheduledTimer {
 		this.future = null;
 	}
 
+	/** 以前に設定した時刻は取り消して time に設定し直す */
 	public synchronized void update(Instant time) {
-		if (time == Instant.MAX) {
-
-			this.cancel();
-		} else {
+		this.cancel();
+		if (time != Instant.MAX) {
 
-			long delay = Duration.between(Instant.now(), time).toMillis();
-			this.future = this.scheduler.schedule(this.onTimeout, delay, TimeUnit.MILLISECONDS);
+			long delay = Math.max(0, Duration.between(Instant.now(), time).toMillis());
+			this.future = scheduler.schedule(this.onTimeout, delay, TimeUnit.MILLISECONDS);
 		}
 	}
 
@@ -49,6 +61,7 @@ public class ScheduledTimer {
 		if (this.future != null) {
 
 			this.future.cancel(false);
+			this.future = null;
 		}
 	}
 }
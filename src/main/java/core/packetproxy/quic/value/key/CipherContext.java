@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.quic.value.key;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.spec.ChaCha20ParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 1つの鍵でのパケット保護とヘッダ保護に使う Cipher と SecretKeySpec を保持する
+ *
+ * <p>
+ * パケットごとに Cipher.getInstance() をせず、ナンスだけを変えて init() し直す。Cipher はスレッドセーフではないので、メソッドは synchronized。
+ */
+class CipherContext {
+
+	private static final int NONCE_LENGTH = 12;
+	private static final int SAMPLE_LENGTH = 16;
+
+	private final CipherSuite suite;
+	private final byte[] iv;
+	private final SecretKeySpec aeadKey;
+	private final SecretKeySpec headerProtectionKey;
+	private final Cipher aead;
+	private final Cipher headerProtection;
+	private final byte[] nonce = new byte[NONCE_LENGTH];
+	private final byte[] sample = new byte[SAMPLE_LENGTH];
+
+	CipherContext(CipherSuite suite, byte[] key, byte[] iv, byte[] hp) throws GeneralSecurityException {
+		this.suite = suite;
+		this.iv = iv.clone();
+		this.aeadKey = new SecretKeySpec(key, suite.getKeyAlgorithm());
+		this.headerProtectionKey = new SecretKeySpec(hp, suite.getKeyAlgorithm());
+		this.aead = Cipher.getInstance(suite.getAeadTransformation());
+		this.headerProtection = Cipher.getInstance(suite.getHeaderProtectionTransformation());
+		if (suite == CipherSuite.AES_128_GCM_SHA256) {
+
+			// ECBは状態を持たないので、init() は最初の1回だけでよい
+			headerProtection.init(Cipher.ENCRYPT_MODE, headerProtectionKey);
+		}
+	}
+
+	/**
+	 * packet の sampleOffset から16バイトをサンプルとして、ヘッダ保護のマスクを返す (RFC9001 5.4.3, 5.4.4)。 使うのは先頭の5バイト
+	 */
+	synchronized byte[] headerMask(ByteBuffer packet, int sampleOffset) throws GeneralSecurityException {
+		packet.get(sampleOffset, sample);
+		if (suite == CipherSuite.AES_128_GCM_SHA256) {
+
+			return headerProtection.doFinal(sample);
+		}
+		int counter = (sample[0] & 0xff) | (sample[1] & 0xff) << 8 | (sample[2] & 0xff) << 16
+				| (sample[3] & 0xff) << 24;
+		byte[] chachaNonce = new byte[NONCE_LENGTH];
+		System.arraycopy(sample, 4, chachaNonce, 0, NONCE_LENGTH);
+		Cipher cipher = init(headerProtection, suite.getHeaderProtectionTransformation(), headerProtectionKey,
+				new ChaCha20ParameterSpec(chachaNonce, counter), Cipher.ENCRYPT_MODE);
+		return cipher.doFinal(new byte[5]);
+	}
+
+	/**
+	 * payload を暗号化して output に書き込み、書き込んだ長さを返す。 output は payload と同じ領域でもよい (Cipher の doFinal は copy-safe)
+	 */
+	synchronized int seal(byte[] packetNumber, ByteBuffer associatedData, ByteBuffer payload, ByteBuffer output)
+			throws GeneralSecurityException {
+		Cipher cipher = init(Cipher.ENCRYPT_MODE, packetNumber);
+		cipher.updateAAD(associatedData);
+		return cipher.doFinal(payload, output);
+	}
+
+	/**
+	 * encryptedPayload を復号して output に書き込み、書き込んだ長さを返す。認証に失敗した場合は AEADBadTagException
+	 */
+	synchronized int open(byte[] packetNumber, ByteBuffer associatedData, ByteBuffer encryptedPayload,
+			ByteBuffer output) throws GeneralSecurityException {
+		Cipher cipher = init(Cipher.DECRYPT_MODE, packetNumber);
+		cipher.updateAAD(associatedData);
+		return cipher.doFinal(encryptedPayload, output);
+	}
+
+	private Cipher init(int mode, byte[] packetNumber) throws GeneralSecurityException {
+		setNonce(packetNumber);
+		AlgorithmParameterSpec spec = (suite == CipherSuite.AES_128_GCM_SHA256)
+				? new GCMParameterSpec(CipherSuite.AUTH_TAG_LENGTH * 8, nonce)
+				: new IvParameterSpec(nonce);
+		return init(aead, suite.getAeadTransformation(), aeadKey, spec, mode);
+	}
+
+	private static Cipher init(Cipher cipher, String transformation, SecretKeySpec key, AlgorithmParameterSpec spec,
+			int mode) throws GeneralSecurityException {
+		try {
+
+			cipher.init(mode, key, spec);
+			return cipher;
+		} catch (InvalidAlgorithmParameterException | InvalidKeyException e) {
+
+			// 直前と同じ鍵とナンスでの再初期化 (送信に失敗したパケットの作り直しなど) は JCE が拒否するので、そのときだけ新しい Cipher を使う
+			Cipher fresh = Cipher.getInstance(transformation);
+			fresh.init(mode, key, spec);
+			return fresh;
+		}
+	}
+
+	/* RFC9001 5.3: iv とパケット番号 (右詰め) の XOR */
+	private void setNonce(byte[] packetNumber) {
+		System.arraycopy(iv, 0, nonce, 0, NONCE_LENGTH);
+		int offset = NONCE_LENGTH - packetNumber.length;
+		for (int i = 0; i < packetNumber.length; i++) {
+
+			nonce[offset + i] ^= packetNumber[i];
+		}
+	}
+}
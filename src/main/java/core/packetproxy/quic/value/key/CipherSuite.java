@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.quic.value.key;
+
+import net.luminis.tls.TlsConstants;
+
+/**
+ * QUICのパケット保護に使う暗号スイート (RFC9001 5.3, 5.4)
+ */
+public enum CipherSuite {
+
+	AES_128_GCM_SHA256(16, "AES/GCM/NoPadding", "AES", "AES/ECB/NoPadding"), CHACHA20_POLY1305_SHA256(32,
+			"ChaCha20-Poly1305", "ChaCha20", "ChaCha20");
+
+	/** AEADの認証タグの長さ。どちらの暗号スイートも16バイト */
+	public static final int AUTH_TAG_LENGTH = 16;
+
+	/** TLSのハンドシェイクで選ばれた暗号スイート。まだ選ばれていない場合は AES_128_GCM_SHA256 */
+	public static CipherSuite of(TlsConstants.CipherSuite suite) {
+		if (suite == null || suite == TlsConstants.CipherSuite.TLS_AES_128_GCM_SHA256) {
+
+			return AES_128_GCM_SHA256;
+		}
+		if (suite == TlsConstants.CipherSuite.TLS_CHACHA20_POLY1305_SHA256) {
+
+			return CHACHA20_POLY1305_SHA256;
+		}
+		throw new IllegalArgumentException("unsupported cipher suite for QUIC: " + suite);
+	}
+
+	private final int keyLength;
+	private final String aeadTransformation;
+	private final String keyAlgorithm;
+	private final String headerProtectionTransformation;
+
+	CipherSuite(int keyLength, String aeadTransformation, String keyAlgorithm, String headerProtectionTransformation) {
+		this.keyLength = keyLength;
+		this.aeadTransformation = aeadTransformation;
+		this.keyAlgorithm = keyAlgorithm;
+		this.headerProtectionTransformation = headerProtectionTransformation;
+	}
+
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	String getAeadTransformation() {
+		return aeadTransformation;
+	}
+
+	String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+
+	String getHeaderProtectionTransformation() {
+		return headerProtectionTransformation;
+	}
+}
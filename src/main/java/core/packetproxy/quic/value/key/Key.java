@@ -19,16 +19,15 @@ package packetproxy.quic.value.key;
 import at.favre.lib.crypto.HKDF;
 import java.nio.ByteBuffer;
 import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.SneakyThrows;
 import lombok.Value;
 import lombok.experimental.NonFinal;
 import org.apache.commons.codec.binary.Hex;
 
 @NonFinal
 @Value
-@AllArgsConstructor
 public class Key {
 
 	protected static final byte[] STATIC_SALT_V1 = new byte[]{(byte) 0x38, (byte) 0x76, (byte) 0x2c, (byte) 0xf7,
@@ -49,53 +48,105 @@ public class Key {
 	}
 
 	public static Key of(byte[] secret) {
-		byte[] key = hkdfExpandLabel(secret, "quic key", "", (short) 16);
+		return of(secret, CipherSuite.AES_128_GCM_SHA256);
+	}
+
+	public static Key of(byte[] secret, CipherSuite cipherSuite) {
+		short keyLength = (short) cipherSuite.getKeyLength();
+		byte[] key = hkdfExpandLabel(secret, "quic key", "", keyLength);
 		byte[] iv = hkdfExpandLabel(secret, "quic iv", "", (short) 12);
-		byte[] hp = hkdfExpandLabel(secret, "quic hp", "", (short) 16);
-		return new Key(secret, key, iv, hp);
+		byte[] hp = hkdfExpandLabel(secret, "quic hp", "", keyLength);
+		return new Key(secret, key, iv, hp, cipherSuite);
 	}
 
 	byte[] secret;
 	byte[] key;
 	byte[] iv;
 	byte[] hp;
+	CipherSuite cipherSuite;
+
+	/* 鍵ごとに使い回す Cipher。最初に使うときに作る */
+	@NonFinal
+	@Getter(AccessLevel.NONE)
+	transient volatile CipherContext cipherContext;
+
+	public Key(byte[] secret, byte[] key, byte[] iv, byte[] hp) {
+		this(secret, key, iv, hp, CipherSuite.AES_128_GCM_SHA256);
+	}
+
+	public Key(byte[] secret, byte[] key, byte[] iv, byte[] hp, CipherSuite cipherSuite) {
+		this.secret = secret;
+		this.key = key;
+		this.iv = iv;
+		this.hp = hp;
+		this.cipherSuite = cipherSuite;
+	}
+
+	@SneakyThrows
+	private CipherContext getCipherContext() {
+		CipherContext context = this.cipherContext;
+		if (context == null) {
+
+			synchronized (this) {
+
+				context = this.cipherContext;
+				if (context == null) {
+
+					context = new CipherContext(this.cipherSuite, this.key, this.iv, this.hp);
+					this.cipherContext = context;
+				}
+			}
+		}
+		return context;
+	}
 
 	public byte[] getMaskForHeaderProtection(byte[] sample) throws Exception {
-		SecretKeySpec keySpec = new SecretKeySpec(this.hp, "AES");
-		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-		cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-		return cipher.doFinal(sample);
+		return getMaskForHeaderProtection(ByteBuffer.wrap(sample), 0);
+	}
+
+	/**
+	 * packet の sampleOffset (パケット番号の先頭から4バイト後) にある16バイトのサンプルから、ヘッダ保護のマスクを求める
+	 */
+	public byte[] getMaskForHeaderProtection(ByteBuffer packet, int sampleOffset) throws Exception {
+		return getCipherContext().headerMask(packet, sampleOffset);
 	}
 
 	public byte[] aesGCM(int cipherMode, byte[] packetNumber, byte[] payload, byte[] associatedData) throws Exception {
-		byte[] nonce = getNonce(packetNumber);
-		SecretKeySpec keySpec = new SecretKeySpec(this.key, "AES");
-		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-		GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, nonce);
-		cipher.init(cipherMode, keySpec, gcmParameterSpec);
-		cipher.updateAAD(associatedData);
-		return cipher.doFinal(payload);
+		if (cipherMode == Cipher.ENCRYPT_MODE) {
+
+			return encryptPayload(packetNumber, payload, associatedData);
+		}
+		return decryptPayload(packetNumber, payload, associatedData);
 	}
 
 	public byte[] decryptPayload(byte[] packetNumber, byte[] encryptPayload, byte[] associatedData) throws Exception {
-		return aesGCM(Cipher.DECRYPT_MODE, packetNumber, encryptPayload, associatedData);
+		return decryptPayload(packetNumber, ByteBuffer.wrap(associatedData), ByteBuffer.wrap(encryptPayload));
 	}
 
 	public byte[] encryptPayload(byte[] packetNumber, byte[] payload, byte[] associatedData) throws Exception {
-		return aesGCM(Cipher.ENCRYPT_MODE, packetNumber, payload, associatedData);
+		byte[] encrypted = new byte[payload.length + CipherSuite.AUTH_TAG_LENGTH];
+		encryptPayload(packetNumber, ByteBuffer.wrap(associatedData), ByteBuffer.wrap(payload),
+				ByteBuffer.wrap(encrypted));
+		return encrypted;
 	}
 
-	private byte[] getNonce(byte[] packetNumber) {
-		byte[] nonce = new byte[12];
-		for (int i = 0; i < 12; i++) {
-
-			nonce[i] = this.iv[i];
-			if (i >= nonce.length - packetNumber.length) {
+	/**
+	 * encryptedPayload の残り全てを復号して返す。packetNumber は切り詰める前のパケット番号
+	 */
+	public byte[] decryptPayload(byte[] packetNumber, ByteBuffer associatedData, ByteBuffer encryptedPayload)
+			throws Exception {
+		byte[] payload = new byte[encryptedPayload.remaining() - CipherSuite.AUTH_TAG_LENGTH];
+		getCipherContext().open(packetNumber, associatedData, encryptedPayload, ByteBuffer.wrap(payload));
+		return payload;
+	}
 
-				nonce[i] ^= packetNumber[i - (nonce.length - packetNumber.length)];
-			}
-		}
-		return nonce;
+	/**
+	 * payload の残り全てを暗号化し、認証タグと合わせて output に書き込む。output には payload より AUTH_TAG_LENGTH
+	 * バイト多い空きが必要。 output は payload と同じ領域でもよい
+	 */
+	public int encryptPayload(byte[] packetNumber, ByteBuffer associatedData, ByteBuffer payload, ByteBuffer output)
+			throws Exception {
+		return getCipherContext().seal(packetNumber, associatedData, payload, output);
 	}
 
 	@Override
@@ -18,6 +18,7 @@ package packetproxy.quic.value.key.level;
 
 import lombok.EqualsAndHashCode;
 import lombok.Value;
+import packetproxy.quic.value.key.CipherSuite;
 import packetproxy.quic.value.key.Key;
 
 @EqualsAndHashCode(callSuper = true)
@@ -25,11 +26,19 @@ import packetproxy.quic.value.key.Key;
 public class ApplicationKey extends Key {
 
 	public static ApplicationKey of(byte[] secret) {
-		Key key = Key.of(secret);
-		return new ApplicationKey(key.getSecret(), key.getKey(), key.getIv(), key.getHp());
+		return of(secret, CipherSuite.AES_128_GCM_SHA256);
+	}
+
+	public static ApplicationKey of(byte[] secret, CipherSuite cipherSuite) {
+		Key key = Key.of(secret, cipherSuite);
+		return new ApplicationKey(key.getSecret(), key.getKey(), key.getIv(), key.getHp(), cipherSuite);
 	}
 
 	public ApplicationKey(byte[] secret, byte[] key, byte[] iv, byte[] hp) {
 		super(secret, key, iv, hp);
 	}
+
+	public ApplicationKey(byte[] secret, byte[] key, byte[] iv, byte[] hp, CipherSuite cipherSuite) {
+		super(secret, key, iv, hp, cipherSuite);
+	}
 }
@@ -33,6 +33,7 @@ import packetproxy.quic.value.SimpleBytes;
 import packetproxy.quic.value.TruncatedPacketNumber;
 import packetproxy.quic.value.VariableLengthInteger;
 import packetproxy.quic.value.frame.AckFrame;
+import packetproxy.quic.value.key.CipherSuite;
 import packetproxy.quic.value.key.Key;
 import packetproxy.quic.value.packet.PnSpacePacket;
 
@@ -74,26 +75,20 @@ public class LongHeaderPnSpacePacket extends LongHeaderPacket implements PnSpace
 
 		long length = VariableLengthInteger.parse(buffer).getValue();
 
-		// get the sampling data
-		int packetNumberPosition = buffer.position();
-		buffer.position(buffer.position() + 4);
-		byte[] sample = SimpleBytes.parse(buffer, 16).getBytes();
-
 		// get the maskKey from the sampling data
-		byte[] maskKey = key.getMaskForHeaderProtection(sample);
+		int packetNumberPosition = buffer.position();
+		byte[] maskKey = key.getMaskForHeaderProtection(buffer, packetNumberPosition + 4);
 
 		super.unmaskType(PacketHeaderType.LongHeaderType, maskKey);
 		int packetNumberLength = super.getOrigPnLength();
 
 		// decode header protection of truncatedPacketNumber
-		buffer.position(packetNumberPosition);
 		byte[] maskedTruncatedPn = SimpleBytes.parse(buffer, packetNumberLength).getBytes();
 		byte[] truncatedPn = TruncatedPacketNumber.unmaskTruncatedPacketNumber(maskedTruncatedPn, maskKey);
 
 		int payloadPosition = buffer.position();
 		int payloadLength = (int) length - packetNumberLength;
-		byte[] encodedPayload = SimpleBytes.parse(buffer, payloadLength).getBytes();
-		int positionPacketEnd = buffer.position();
+		int positionPacketEnd = payloadPosition + payloadLength;
 
 		buffer.position(startPosition);
 		byte[] header = SimpleBytes.parse(buffer, payloadPosition - startPosition).getBytes();
@@ -104,46 +99,51 @@ public class LongHeaderPnSpacePacket extends LongHeaderPacket implements PnSpace
 		}
 
 		this.packetNumber = new TruncatedPacketNumber(truncatedPn).getPacketNumber(largestAckedPn);
-		this.payload = key.decryptPayload(this.packetNumber.toBytes(), encodedPayload, header);
+		ByteBuffer encodedPayload = buffer.duplicate();
+		encodedPayload.position(payloadPosition).limit(positionPacketEnd);
+		this.payload = key.decryptPayload(this.packetNumber.toBytes(), ByteBuffer.wrap(header), encodedPayload);
 
 		buffer.position(positionPacketEnd);
 	}
 
+	/**
+	 * ヘッダ、暗号化したペイロード、認証タグを1つの配列に直接書き込み、その配列のままヘッダ保護をかける
+	 */
 	@SneakyThrows
 	public byte[] getBytes(Key key, PacketNumber largestAckedPn) {
-		ByteBuffer headerBuffer = ByteBuffer.allocate(1500);
-
 		byte[] truncatedPn = this.packetNumber.getTruncatedPacketNumber(largestAckedPn).getBytes();
-		if (truncatedPn.length + this.payload.length + 16 /* AES auth hash */ < 20) {
+		if (truncatedPn.length + this.payload.length + CipherSuite.AUTH_TAG_LENGTH < 20) {
 
-			int dummyBytesLength = 20 - truncatedPn.length - this.payload.length - 16;
+			int dummyBytesLength = 20 - truncatedPn.length - this.payload.length - CipherSuite.AUTH_TAG_LENGTH;
 			truncatedPn = ArrayUtils.addAll(new byte[dummyBytesLength], truncatedPn);
 		}
 
-		byte[] payloadLength = VariableLengthInteger.of(truncatedPn.length + payload.length + 16 /* GCM auth hash */)
-				.getBytes();
+		byte[] payloadLength = VariableLengthInteger
+				.of(truncatedPn.length + payload.length + CipherSuite.AUTH_TAG_LENGTH).getBytes();
 
 		/* create original header for associated data of AES encryption */
+		ByteBuffer headerBuffer = ByteBuffer.allocate(1500);
 		headerBuffer.put(super.getBytes(truncatedPn.length));
 		this.getBytesExtra(headerBuffer);
 		headerBuffer.put(payloadLength);
+		int packetNumberPosition = headerBuffer.position();
 		headerBuffer.put(truncatedPn);
 		headerBuffer.flip();
-		byte[] header = SimpleBytes.parse(headerBuffer, headerBuffer.remaining()).getBytes();
-
-		byte[] encryptedPayload = key.encryptPayload(truncatedPn, payload, header);
-		byte[] sample = ArrayUtils.subarray(ArrayUtils.addAll(truncatedPn, encryptedPayload), 4, 4 + 16);
-		byte[] maskKey = key.getMaskForHeaderProtection(sample);
-		byte[] maskedTruncatedPn = TruncatedPacketNumber.maskTruncatedPacketNumber(truncatedPn, maskKey);
-
-		ByteBuffer buffer = ByteBuffer.allocate(1500);
-		buffer.put(super.getMaskedBytes(truncatedPn.length, maskKey));
-		this.getBytesExtra(buffer);
-		buffer.put(payloadLength);
-		buffer.put(maskedTruncatedPn);
-		buffer.put(encryptedPayload);
-		buffer.flip();
-		return SimpleBytes.parse(buffer, buffer.remaining()).getBytes();
+
+		ByteBuffer buffer = ByteBuffer
+				.allocate(headerBuffer.remaining() + this.payload.length + CipherSuite.AUTH_TAG_LENGTH);
+		buffer.put(headerBuffer);
+		ByteBuffer header = buffer.duplicate().flip();
+		key.encryptPayload(this.packetNumber.toBytes(), header, ByteBuffer.wrap(this.payload), buffer);
+
+		byte[] packet = buffer.array();
+		byte[] maskKey = key.getMaskForHeaderProtection(buffer, packetNumberPosition + 4);
+		packet[0] = super.getMaskedType(truncatedPn.length, PacketHeaderType.LongHeaderType, maskKey);
+		for (int i = 0; i < truncatedPn.length; i++) {
+
+			packet[packetNumberPosition + i] ^= maskKey[1 + i];
+		}
+		return packet;
 	}
 
 	@Override
@@ -14,6 +14,7 @@ import packetproxy.quic.value.PacketNumber;
 import packetproxy.quic.value.SimpleBytes;
 import packetproxy.quic.value.TruncatedPacketNumber;
 import packetproxy.quic.value.frame.AckFrame;
+import packetproxy.quic.value.key.CipherSuite;
 import packetproxy.quic.value.key.Key;
 import packetproxy.quic.value.packet.PnSpacePacket;
 import packetproxy.quic.value.packet.QuicPacket;
@@ -71,26 +72,19 @@ public class ShortHeaderPacket extends QuicPacket implements PnSpacePacket {
 
 		this.destConnId = ConnectionId.parse(buffer, Constants.CONNECTION_ID_SIZE);
 
-		// get the sampling data
-		int packetNumberPosition = buffer.position();
-		buffer.position(buffer.position() + 4);
-		byte[] sample = SimpleBytes.parse(buffer, 16).getBytes();
-
 		// get the maskKey from the sampling data
-		byte[] maskKey = key.getMaskForHeaderProtection(sample);
+		int packetNumberPosition = buffer.position();
+		byte[] maskKey = key.getMaskForHeaderProtection(buffer, packetNumberPosition + 4);
 
 		super.unmaskType(PacketHeaderType.ShortHeaderType, maskKey);
 		int packetNumberLength = super.getOrigPnLength();
 
 		// decode header protection of truncatedPacketNumber
-		buffer.position(packetNumberPosition);
 		byte[] maskedTruncatedPn = SimpleBytes.parse(buffer, packetNumberLength).getBytes();
 		byte[] truncatedPn = TruncatedPacketNumber.unmaskTruncatedPacketNumber(maskedTruncatedPn, maskKey);
 
 		int payloadPosition = buffer.position();
-		int payloadLength = buffer.limit() - payloadPosition;
-		byte[] encodedPayload = SimpleBytes.parse(buffer, payloadLength).getBytes();
-		int positionPacketEnd = buffer.position();
+		int positionPacketEnd = buffer.limit();
 
 		/* create unmasked header for associated data of AES decryption */
 		buffer.position(startPosition);
@@ -102,42 +96,43 @@ public class ShortHeaderPacket extends QuicPacket implements PnSpacePacket {
 		}
 
 		this.packetNumber = new TruncatedPacketNumber(truncatedPn).getPacketNumber(largestAckedPn);
-		this.payload = key.decryptPayload(this.packetNumber.toBytes(), encodedPayload, header);
+		ByteBuffer encodedPayload = buffer.duplicate();
+		encodedPayload.position(payloadPosition).limit(positionPacketEnd);
+		this.payload = key.decryptPayload(this.packetNumber.toBytes(), ByteBuffer.wrap(header), encodedPayload);
 
 		buffer.position(positionPacketEnd);
 	}
 
+	/**
+	 * ヘッダ、暗号化したペイロード、認証タグを1つの配列に直接書き込み、その配列のままヘッダ保護をかける
+	 */
 	public byte[] getBytes(Key key, PacketNumber largestAckedPn) throws Exception {
-		ByteBuffer headerBuffer = ByteBuffer.allocate(1500);
-
 		byte[] truncatedPn = this.packetNumber.getTruncatedPacketNumber(largestAckedPn).getBytes();
-		if (truncatedPn.length + this.payload.length + 16 /* AES auth hash */ < 20) {
+		if (truncatedPn.length + this.payload.length + CipherSuite.AUTH_TAG_LENGTH < 20) {
 
-			int dummyBytesLength = 20 - truncatedPn.length - this.payload.length - 16;
+			int dummyBytesLength = 20 - truncatedPn.length - this.payload.length - CipherSuite.AUTH_TAG_LENGTH;
 			truncatedPn = ArrayUtils.addAll(new byte[dummyBytesLength], truncatedPn);
 		}
+		byte[] destConnId = this.destConnId.getBytes();
+		int packetNumberPosition = 1 + destConnId.length;
+		int payloadPosition = packetNumberPosition + truncatedPn.length;
+		ByteBuffer buffer = ByteBuffer.allocate(payloadPosition + this.payload.length + CipherSuite.AUTH_TAG_LENGTH);
 
 		/* create original header for associated data of AES encryption */
-		byte type = super.getType(truncatedPn.length);
-		headerBuffer.put(type);
-		headerBuffer.put(this.destConnId.getBytes());
-		headerBuffer.put(truncatedPn);
-		headerBuffer.flip();
-		byte[] header = SimpleBytes.parse(headerBuffer, headerBuffer.remaining()).getBytes();
-
-		byte[] encryptedPayload = key.encryptPayload(truncatedPn, payload, header);
-		byte[] sample = ArrayUtils.subarray(ArrayUtils.addAll(truncatedPn, encryptedPayload), 4, 4 + 16);
-		byte[] maskKey = key.getMaskForHeaderProtection(sample);
-		byte maskedType = super.getMaskedType(truncatedPn.length, PacketHeaderType.ShortHeaderType, maskKey);
-		byte[] maskedTruncatedPn = TruncatedPacketNumber.maskTruncatedPacketNumber(truncatedPn, maskKey);
-
-		ByteBuffer buffer = ByteBuffer.allocate(1500);
-		buffer.put(maskedType);
-		buffer.put(this.destConnId.getBytes());
-		buffer.put(maskedTruncatedPn);
-		buffer.put(encryptedPayload);
-		buffer.flip();
-		return SimpleBytes.parse(buffer, buffer.remaining()).getBytes();
+		buffer.put(super.getType(truncatedPn.length));
+		buffer.put(destConnId);
+		buffer.put(truncatedPn);
+		ByteBuffer header = buffer.duplicate().flip();
+		key.encryptPayload(this.packetNumber.toBytes(), header, ByteBuffer.wrap(this.payload), buffer);
+
+		byte[] packet = buffer.array();
+		byte[] maskKey = key.getMaskForHeaderProtection(buffer, packetNumberPosition + 4);
+		packet[0] = super.getMaskedType(truncatedPn.length, PacketHeaderType.ShortHeaderType, maskKey);
+		for (int i = 0; i < truncatedPn.length; i++) {
+
+			packet[packetNumberPosition + i] ^= maskKey[1 + i];
+		}
+		return packet;
 	}
 
 	public int size() {
@@ -138,8 +138,12 @@ private constructor(
     server: Server?,
     clientPacket: Packet,
     serverPacket: Packet? = null,
-  ): ByteArray = runBlocking {
-    received(data, server, clientPacket, serverPacket).fold({ ByteArray(0) }) { it }
+  ): ByteArray {
+    // インターセプトモードがOFFの場合はコルーチンを起動せずにそのまま返す
+    if (!interceptModel.isInterceptEnabled) return data
+    return runBlocking {
+      received(data, server, clientPacket, serverPacket).fold({ ByteArray(0) }) { it }
+    }
   }
 
   private fun isInterceptTarget(
@@ -38,7 +38,6 @@ import packetproxy.extensions.securityheaders.exclusion.ExclusionRuleType
 import packetproxy.extensions.securityheaders.ui.SecurityHeadersDetailPanel
 import packetproxy.extensions.securityheaders.ui.SecurityHeadersTableRenderer
 import packetproxy.extensions.securityheaders.ui.SecurityHeadersToolbar
-import packetproxy.http.Http
 import packetproxy.http.HttpHeader
 import packetproxy.model.Extension
 import packetproxy.model.Packet
@@ -275,7 +274,7 @@ class SecurityHeadersExtension : Extension() {
       val results = resultsMap[key] ?: return@addListSelectionListener
 
       try {
-        val http = Http.create(p.decodedData)
+        val http = p.getHttp(p.decodedData)
         val header = http.header
 
         detailPanel!!.populateHeaders(header, results)
@@ -404,8 +403,8 @@ class SecurityHeadersExtension : Extension() {
 
   private fun analyzePacket(resPacket: Packet, reqPacket: Packet) {
     try {
-      val resHttp = Http.create(resPacket.decodedData)
-      val reqHttp = Http.create(reqPacket.decodedData)
+      val resHttp = resPacket.getHttp(resPacket.decodedData)
+      val reqHttp = reqPacket.getHttp(reqPacket.decodedData)
 
       val method = reqHttp.method
       val host = reqHttp.header.getValue("Host").orElse(reqPacket.serverName)
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2026 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.grpc
+
+import com.google.protobuf.Descriptors.Descriptor
+import com.google.protobuf.DynamicMessage
+import com.google.protobuf.Parser
+import com.google.protobuf.util.JsonFormat
+import packetproxy.common.Protobuf3
+
+/**
+ * 1つの message 型の protobuf⇔JSON 変換。 [GrpcServiceRegistry] が型ごとに1つ作り、同じ gRPC メソッドの全メッセージで使い回す。
+ * スキーマに合わないメッセージはスキーマなしの [Protobuf3] で変換する。
+ */
+class GrpcMessageCodec(val type: Descriptor) {
+  private val parser: Parser<DynamicMessage> = DynamicMessage.getDefaultInstance(type).parserForType
+
+  /** raw の [offset, offset + length) にある1メッセージを JSON にする */
+  @Throws(Exception::class)
+  fun decode(raw: ByteArray, offset: Int, length: Int): String {
+    return try {
+      JSON_PRINTER.print(parser.parseFrom(raw, offset, length))
+    } catch (_: Exception) {
+      Protobuf3.decode(raw.copyOfRange(offset, offset + length))
+    }
+  }
+
+  @Throws(Exception::class)
+  fun encode(json: String): ByteArray {
+    return try {
+      val builder = DynamicMessage.newBuilder(type)
+      JSON_PARSER.merge(json, builder)
+      builder.build().toByteArray()
+    } catch (_: Exception) {
+      Protobuf3.encode(json)
+    }
+  }
+
+  companion object {
+    private val JSON_PRINTER: JsonFormat.Printer =
+      JsonFormat.printer().preservingProtoFieldNames().alwaysPrintFieldsWithNoPresence()
+    private val JSON_PARSER: JsonFormat.Parser = JsonFormat.parser().ignoringUnknownFields()
+  }
+}
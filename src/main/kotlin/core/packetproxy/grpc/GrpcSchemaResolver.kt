@@ -17,13 +17,9 @@ package packetproxy.grpc
 
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.core.JsonToken
-import com.google.protobuf.Descriptors.Descriptor
-import com.google.protobuf.DynamicMessage
-import com.google.protobuf.util.JsonFormat
 import java.io.ByteArrayOutputStream
 import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
-import packetproxy.common.Protobuf3
 import packetproxy.http.Http
 import packetproxy.util.Logging
 
@@ -76,8 +72,17 @@ class GrpcSchemaResolver {
     return reg
   }
 
+  /** リクエストの型の変換。解決した registry はレスポンスの処理でも使う */
+  fun inputCodecForRequest(http: Http, grpcPath: String?): GrpcMessageCodec? {
+    return resolveRegistryForRequest(http)?.getInputCodec(grpcPath)
+  }
+
+  fun outputCodec(http: Http, grpcPath: String?): GrpcMessageCodec? {
+    return effectiveRegistry(http)?.getOutputCodec(grpcPath)
+  }
+
   @Throws(Exception::class)
-  fun decodeSchemaAwareBody(raw: ByteArray, type: Descriptor): ByteArray {
+  fun decodeSchemaAwareBody(raw: ByteArray, codec: GrpcMessageCodec): ByteArray {
     val body = ByteArrayOutputStream()
     var pos = 0
     while (pos < raw.size) {
@@ -87,24 +92,24 @@ class GrpcSchemaResolver {
       pos += 1
       val messageLength = ByteBuffer.wrap(raw, pos, 4).int
       pos += 4
-      val grpcMsg = raw.copyOfRange(pos, pos + messageLength)
-      pos += messageLength
       if (body.size() > 0) {
         body.write('\n'.code)
       }
       val json =
-        try {
-          JSON_PRINTER.print(DynamicMessage.parseFrom(type, grpcMsg))
-        } catch (_: Exception) {
-          Protobuf3.decode(grpcMsg)
+        if (messageLength <= raw.size - pos) {
+          codec.decode(raw, pos, messageLength)
+        } else {
+          // 途中で切れたメッセージは、これまで通り足りない分を 0 で埋めて読む
+          codec.decode(raw.copyOfRange(pos, pos + messageLength), 0, messageLength)
         }
       body.write(json.toByteArray(StandardCharsets.UTF_8))
+      pos += messageLength
     }
     return body.toByteArray()
   }
 
   @Throws(Exception::class)
-  fun encodeSchemaAwareBody(body: ByteArray, type: Descriptor): ByteArray {
+  fun encodeSchemaAwareBody(body: ByteArray, codec: GrpcMessageCodec): ByteArray {
     val s = String(body, StandardCharsets.UTF_8)
     var objects = splitTopLevelJsonObjects(s)
     if (objects.isEmpty() && s.trim().isNotEmpty()) {
@@ -114,14 +119,7 @@ class GrpcSchemaResolver {
     for (json in objects) {
       val trimmed = json.trim()
       if (trimmed.isEmpty()) continue
-      val data =
-        try {
-          val builder = DynamicMessage.newBuilder(type)
-          JSON_PARSER.merge(trimmed, builder)
-          builder.build().toByteArray()
-        } catch (_: Exception) {
-          Protobuf3.encode(trimmed)
-        }
+      val data = codec.encode(trimmed)
       rawStream.write(0)
       rawStream.write(ByteBuffer.allocate(4).putInt(data.size).array())
       rawStream.write(data)
@@ -132,9 +130,8 @@ class GrpcSchemaResolver {
   private fun splitTopLevelJsonObjects(text: String): List<String> {
     if (text.isEmpty()) return emptyList()
     val out = mutableListOf<String>()
-    val factory = JsonFactory()
     try {
-      factory.createParser(text).use { p ->
+      JSON_FACTORY.createParser(text).use { p ->
         var depth = 0
         var start = -1
         while (p.nextToken() != null) {
@@ -157,8 +154,6 @@ class GrpcSchemaResolver {
   }
 
   companion object {
-    private val JSON_PRINTER: JsonFormat.Printer =
-      JsonFormat.printer().preservingProtoFieldNames().alwaysPrintFieldsWithNoPresence()
-    private val JSON_PARSER: JsonFormat.Parser = JsonFormat.parser().ignoringUnknownFields()
+    private val JSON_FACTORY = JsonFactory()
   }
 }
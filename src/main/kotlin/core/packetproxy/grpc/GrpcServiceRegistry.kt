@@ -18,11 +18,16 @@ package packetproxy.grpc
 import com.google.protobuf.Descriptors.Descriptor
 import com.google.protobuf.Descriptors.FileDescriptor
 import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 class GrpcServiceRegistry(fileDescriptors: List<FileDescriptor>) {
   private val inputByPath: Map<String, Descriptor>
   private val outputByPath: Map<String, Descriptor>
   private val messageByFullName: Map<String, Descriptor>
+  private val codecByType = ConcurrentHashMap<Descriptor, GrpcMessageCodec>()
+  private val codecHits = AtomicLong()
+  private val codecMisses = AtomicLong()
 
   init {
     val inputs = HashMap<String, Descriptor>()
@@ -53,6 +58,30 @@ class GrpcServiceRegistry(fileDescriptors: List<FileDescriptor>) {
     return outputByPath[grpcPath]
   }
 
+  /** [getInputType] の型の変換。同じ型には同じインスタンスを返す */
+  fun getInputCodec(grpcPath: String?): GrpcMessageCodec? = codecFor(getInputType(grpcPath))
+
+  /** [getOutputType] の型の変換。同じ型には同じインスタンスを返す */
+  fun getOutputCodec(grpcPath: String?): GrpcMessageCodec? = codecFor(getOutputType(grpcPath))
+
+  private fun codecFor(type: Descriptor?): GrpcMessageCodec? {
+    if (type == null) return null
+    codecByType[type]?.let {
+      codecHits.incrementAndGet()
+      return it
+    }
+    codecMisses.incrementAndGet()
+    return codecByType.computeIfAbsent(type) { GrpcMessageCodec(it) }
+  }
+
+  internal fun getCodecMetrics(): Map<String, Long> {
+    return linkedMapOf(
+      "codecs" to codecByType.size.toLong(),
+      "codec_hits" to codecHits.get(),
+      "codec_misses" to codecMisses.get(),
+    )
+  }
+
   fun findMessageByName(fullName: String?): Descriptor? {
     if (fullName == null) return null
     return messageByFullName[fullName]
@@ -18,13 +18,17 @@ package packetproxy.grpc
 import com.google.protobuf.DescriptorProtos.FileDescriptorSet
 import com.google.protobuf.Descriptors.DescriptorValidationException
 import com.google.protobuf.Descriptors.FileDescriptor
+import java.beans.PropertyChangeListener
 import java.io.File
 import java.io.IOException
 import java.net.InetSocketAddress
 import java.nio.file.Files
 import java.util.ArrayList
 import java.util.HashMap
+import java.util.LinkedHashMap
+import java.util.Optional
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import packetproxy.model.ListenPort
 import packetproxy.model.ListenPorts
 import packetproxy.model.Server
@@ -33,11 +37,41 @@ import packetproxy.model.Servers
 class GrpcServiceRegistryStore private constructor() {
   private val cache = ConcurrentHashMap<String, GrpcServiceRegistry>()
 
+  /**
+   * authority ごとの [getByAuthority] の結果。registry が無いことも覚えておき、パケットごとに Servers を引かない。
+   * descriptor の invalidate と、Servers / ListenPorts の変更で捨てる
+   */
+  private val byAuthority = ConcurrentHashMap<String, Optional<GrpcServiceRegistry>>()
+  private val authorityGeneration = AtomicLong()
+  private val authorityHits = AtomicLong()
+  private val authorityMisses = AtomicLong()
+  @Volatile private var listeningServers = false
+
   /** Transparent proxy では authority がリスナーアドレスになるため、Servers → ListenPort の順でフォールバックする */
   fun getByAuthority(authority: String?): GrpcServiceRegistry? {
     if (authority.isNullOrBlank()) return null
+    val key = authority.trim()
+    byAuthority[key]?.let {
+      authorityHits.incrementAndGet()
+      return it.orElse(null)
+    }
+    authorityMisses.incrementAndGet()
+    val cacheable = listenServerChanges()
+    val generation = authorityGeneration.get()
+    val registry = lookupByAuthority(key)
+    // 引いている間に設定が変わった場合は、古い結果を覚えない
+    if (cacheable) {
+      byAuthority[key] = Optional.ofNullable(registry)
+      if (generation != authorityGeneration.get()) {
+        byAuthority.remove(key)
+      }
+    }
+    return registry
+  }
+
+  private fun lookupByAuthority(authority: String): GrpcServiceRegistry? {
     return try {
-      val parsed = parseAuthorityHostPort(authority.trim()) ?: return null
+      val parsed = parseAuthorityHostPort(authority) ?: return null
       val (host, port) = parsed
       var server = Servers.getInstance().queryByHostNameAndPort(host, port)
       if (server == null) {
@@ -144,6 +178,27 @@ class GrpcServiceRegistryStore private constructor() {
     return ordered
   }
 
+  private fun listenServerChanges(): Boolean {
+    if (listeningServers) return true
+    synchronized(this) {
+      if (listeningServers) return true
+      try {
+        val listener = PropertyChangeListener { clearAuthorities() }
+        Servers.getInstance().addPropertyChangeListener(listener)
+        ListenPorts.getInstance().addPropertyChangeListener(listener)
+        listeningServers = true
+      } catch (_: Exception) {
+        // 変更を知ることができないので、authority の結果は覚えない
+      }
+      return listeningServers
+    }
+  }
+
+  private fun clearAuthorities() {
+    authorityGeneration.incrementAndGet()
+    byAuthority.clear()
+  }
+
   fun invalidate(descFile: File?) {
     if (descFile == null) return
     try {
@@ -151,10 +206,27 @@ class GrpcServiceRegistryStore private constructor() {
     } catch (_: Exception) {
       cache.remove(descFile.absolutePath)
     }
+    clearAuthorities()
   }
 
   fun invalidateAll() {
     cache.clear()
+    clearAuthorities()
+  }
+
+  /** authority の解決と、読み込み済みの registry が持つ message 型ごとの変換の hit/miss */
+  fun getMetrics(): Map<String, Long> {
+    val metrics = LinkedHashMap<String, Long>()
+    metrics["registries"] = cache.size.toLong()
+    metrics["authorities"] = byAuthority.size.toLong()
+    metrics["authority_hits"] = authorityHits.get()
+    metrics["authority_misses"] = authorityMisses.get()
+    for (registry in cache.values) {
+      for ((name, value) in registry.getCodecMetrics()) {
+        metrics[name] = (metrics[name] ?: 0L) + value
+      }
+    }
+    return metrics
   }
 
   companion object {
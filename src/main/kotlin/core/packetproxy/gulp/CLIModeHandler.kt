@@ -16,6 +16,8 @@
 package packetproxy.cli
 
 import core.packetproxy.gulp.command.EchoCommand
+import core.packetproxy.gulp.command.HandshakeCommand
+import core.packetproxy.gulp.command.HistoryCommand
 import core.packetproxy.gulp.command.LogCommand
 import core.packetproxy.gulp.command.SourceCommand
 import org.jline.builtins.Completers.TreeCompleter
@@ -37,6 +39,13 @@ abstract class CLIModeHandler {
         node("echo"),
         node("log"),
         node("source"),
+        node(
+          "history",
+          node("policy", node("BLOCK"), node("DROP_BODY"), node("SPILL")),
+          node("limit"),
+          node("dropsize"),
+        ),
+        node("handshake", node("concurrency"), node("hellotimeout"), node("probetimeout")),
         node("help"),
       ) + extensionNodes()
     TreeCompleter(*mergedNodes.toTypedArray())
@@ -66,6 +75,10 @@ abstract class CLIModeHandler {
 
       "echo" -> EchoCommand(parsed, ctx)
 
+      "history" -> HistoryCommand(parsed, ctx)
+
+      "handshake" -> HandshakeCommand(parsed, ctx)
+
       else -> extensionCommand(parsed, ctx)
     }
   }
@@ -84,6 +97,8 @@ abstract class CLIModeHandler {
   help                     - ヘルプ
   echo <args>              - 引数を出力
   l, log                   - ログ継続出力
+  history [policy|limit|dropsize <value>] - 履歴の保存待ちキューの状態表示と設定
+  handshake [concurrency|hellotimeout|probetimeout <value>] - 透過プロキシのハンドシェイクの状態表示と設定
   s, switch                - Mode切り替え
 
 専用コマンド：""" +
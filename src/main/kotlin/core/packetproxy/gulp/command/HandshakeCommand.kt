@@ -0,0 +1,60 @@
+/*
+ * Copyright 2025 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package core.packetproxy.gulp.command
+
+import packetproxy.HandshakeExecutor
+import packetproxy.gulp.CommandContext
+import packetproxy.gulp.ParsedCommand
+
+/**
+ * handshakeコマンド: 透過プロキシのハンドシェイク用スレッドプールの状態表示と設定
+ *
+ * 使用例:
+ * - handshake -> 設定とメトリクス (段階ごとの所要時間を含む) を出力
+ * - handshake concurrency 128 -> 一度に実行するハンドシェイクの数を128にする
+ * - handshake hellotimeout 5000 -> ClientHello を待つ時間を5000ミリ秒にする
+ * - handshake probetimeout 300 -> 転送先のポートに接続できるかの確認を300ミリ秒で打ち切る
+ */
+object HandshakeCommand : Command {
+  override suspend fun invoke(parsed: ParsedCommand, ctx: CommandContext) {
+    val executor = HandshakeExecutor.getInstance()
+    val sub = parsed.shift()
+    val value = sub?.args?.firstOrNull()
+    try {
+      val number = { value?.toIntOrNull()?.takeIf { it > 0 } ?: error("$value") }
+      when (sub?.cmd) {
+        null -> {}
+        "concurrency" -> executor.setConcurrency(number())
+        "hellotimeout" -> executor.setClientHelloTimeoutMsec(number())
+        "probetimeout" -> executor.setProbeTimeoutMsec(number())
+        else -> {
+          ctx.println(
+            "usage: handshake [concurrency <n> | hellotimeout <msec> | probetimeout <msec>]"
+          )
+          return
+        }
+      }
+    } catch (e: IllegalStateException) {
+      ctx.println("invalid value: ${value ?: ""}")
+      return
+    }
+    ctx.println(
+      "concurrency: ${executor.concurrency}, hellotimeout: ${executor.clientHelloTimeoutMsec}ms, " +
+        "probetimeout: ${executor.probeTimeoutMsec}ms"
+    )
+    executor.metrics.forEach { (key, count) -> ctx.println("  $key: $count") }
+  }
+}
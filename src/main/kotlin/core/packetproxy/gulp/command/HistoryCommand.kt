@@ -0,0 +1,60 @@
+/*
+ * Copyright 2025 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package core.packetproxy.gulp.command
+
+import packetproxy.gulp.CommandContext
+import packetproxy.gulp.ParsedCommand
+import packetproxy.model.Packets
+import packetproxy.model.Packets.OverflowPolicy
+
+/**
+ * historyコマンド: 履歴の保存待ちキューの状態表示と設定
+ *
+ * 使用例:
+ * - history -> 設定とメトリクスを出力
+ * - history policy SPILL -> 上限を超えたら一時ファイルに退避する (BLOCK / DROP_BODY / SPILL)
+ * - history limit 512 -> 保存待ちの上限を512MBにする
+ * - history dropsize 128 -> DROP_BODYで保存するボディの最大サイズを128KBにする
+ */
+object HistoryCommand : Command {
+  override suspend fun invoke(parsed: ParsedCommand, ctx: CommandContext) {
+    val packets = Packets.getInstance()
+    val sub = parsed.shift()
+    val value = sub?.args?.firstOrNull()
+    try {
+      when (sub?.cmd) {
+        null -> {}
+        "policy" -> packets.setOverflowPolicy(OverflowPolicy.valueOf(value?.uppercase() ?: ""))
+        "limit" -> packets.setQueueLimitMB(value?.toIntOrNull()?.takeIf { it > 0 } ?: error("$value"))
+        "dropsize" -> packets.setDropBodySizeKB(value?.toIntOrNull()?.takeIf { it > 0 } ?: error("$value"))
+        else -> {
+          ctx.println("usage: history [policy BLOCK|DROP_BODY|SPILL | limit <MB> | dropsize <KB>]")
+          return
+        }
+      }
+    } catch (e: IllegalArgumentException) {
+      ctx.println("invalid value: ${value ?: ""}")
+      return
+    } catch (e: IllegalStateException) {
+      ctx.println("invalid value: ${value ?: ""}")
+      return
+    }
+    ctx.println(
+      "policy: ${packets.overflowPolicy}, limit: ${packets.queueLimitMB}MB, dropsize: ${packets.dropBodySizeKB}KB"
+    )
+    packets.queueMetrics.forEach { (key, count) -> ctx.println("  $key: $count") }
+  }
+}
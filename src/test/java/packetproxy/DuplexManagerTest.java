@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DuplexManagerTest {
+
+	private static class TestDuplex extends Duplex {
+
+		@Override
+		public void finish() {
+			super.finish();
+		}
+	}
+
+	@Test
+	public void idsAreUnique() {
+		int first = new TestDuplex().getId();
+		int second = new TestDuplex().getId();
+		assertNotEquals(first, second);
+		// 履歴のconnとして保存されるので正の値
+		assertTrue(first > 0);
+		assertTrue(second > 0);
+	}
+
+	@Test
+	public void finishedDuplexLeavesLiveTableButStaysResolvable() throws Exception {
+		DuplexManager manager = DuplexManager.getInstance();
+		TestDuplex duplex = new TestDuplex();
+		int id = manager.registerDuplex(duplex);
+		assertEquals(id, duplex.getId());
+		assertTrue(manager.getConnections().stream().anyMatch(c -> c.id == id));
+
+		duplex.finish();
+		assertFalse(manager.getConnections().stream().anyMatch(c -> c.id == id));
+		assertSame(duplex, manager.getDuplex(id));
+	}
+
+	@Test
+	public void finishedDuplexesAreBounded() throws Exception {
+		DuplexManager manager = DuplexManager.getInstance();
+		TestDuplex first = new TestDuplex();
+		manager.registerDuplex(first);
+		first.finish();
+		for (int i = 0; i < DuplexManager.RETAINED_FINISHED_DUPLEXES; i++) {
+
+			TestDuplex duplex = new TestDuplex();
+			manager.registerDuplex(duplex);
+			duplex.finish();
+		}
+		assertNull(manager.getDuplex(first.getId()));
+	}
+
+	@Test
+	public void duplexFinishedBeforeRegistrationIsNotLive() throws Exception {
+		DuplexManager manager = DuplexManager.getInstance();
+		TestDuplex duplex = new TestDuplex();
+		duplex.finish();
+		manager.registerDuplex(duplex);
+		assertFalse(manager.getConnections().stream().anyMatch(c -> c.id == duplex.getId()));
+		assertSame(duplex, manager.getDuplex(duplex.getId()));
+	}
+}
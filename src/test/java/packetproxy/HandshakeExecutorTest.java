@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class HandshakeExecutorTest {
+
+	private final AtomicLong now = new AtomicLong(1000);
+
+	@Test
+	public void handshakesBeyondTheQueueAreClosed() throws Exception {
+		HandshakeExecutor executor = new HandshakeExecutor(1, now::get);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+
+			executor.execute(new Socket(), () -> {
+				running.countDown();
+				release.await();
+			});
+			running.await();
+			Socket queued = new Socket();
+			for (int i = 0; i < HandshakeExecutor.QUEUE_FACTOR; i++) {
+
+				executor.execute(queued, () -> {
+				});
+			}
+			Socket overflow = new Socket();
+			executor.execute(overflow, () -> fail("rejected handshake must not run"));
+
+			assertTrue(overflow.isClosed());
+			assertFalse(queued.isClosed());
+			assertEquals(1L, executor.getMetrics().get("rejected"));
+			assertEquals((long) HandshakeExecutor.QUEUE_FACTOR, executor.getMetrics().get("queued"));
+			assertEquals(HandshakeExecutor.QUEUE_FACTOR + 2L, executor.getMetrics().get("accepted"));
+		} finally {
+
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void probeIsCachedUntilItsTtlExpires() throws Exception {
+		HandshakeExecutor executor = new HandshakeExecutor(1, now::get);
+		InetSocketAddress addr;
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+			addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			assertTrue(executor.probe(addr));
+		}
+
+		/* 閉じた後も、TTL の間は接続できた結果を返す */
+		now.addAndGet(HandshakeExecutor.PROBE_CACHE_TTL_MSEC - 1);
+		assertTrue(executor.probe(addr));
+		assertEquals(1L, executor.getMetrics().get("probe_cache_hits"));
+		assertEquals(1L, executor.getMetrics().get("probe_cache_misses"));
+
+		now.addAndGet(1);
+		assertFalse(executor.probe(addr));
+		assertEquals(2L, executor.getMetrics().get("probe_cache_misses"));
+		assertEquals(2L, executor.getMetrics().get("probe_count"));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.Type;
+import packetproxy.PrivateDNSResolver.Answer;
+
+public class PrivateDNSResolverTest {
+
+	private final AtomicLong now = new AtomicLong(1000);
+	private final PrivateDNSResolver resolver = new PrivateDNSResolver(now::get);
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private Answer answer(long ttlMsec) throws Exception {
+		loads.incrementAndGet();
+		return new Answer(InetAddress.getByName("192.0.2.1"), null, ttlMsec);
+	}
+
+	@Test
+	public void answerIsCachedUntilItsTtlExpires() throws Exception {
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		now.addAndGet(4999);
+		resolver.lookup(Type.A, "EXAMPLE.com", () -> answer(5000));
+		assertEquals(1, loads.get());
+
+		now.addAndGet(1);
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		assertEquals(2, loads.get());
+		assertEquals(1L, resolver.getMetrics().get("cache_hits"));
+		assertEquals(2L, resolver.getMetrics().get("cache_misses"));
+	}
+
+	@Test
+	public void typesAreCachedSeparately() throws Exception {
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		resolver.lookup(Type.AAAA, "example.com", () -> answer(5000));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void missingNameIsCachedNegatively() throws Exception {
+		assertTrue(resolver.lookup(Type.A, "missing.example", Answer::negative).isNegative());
+		now.addAndGet(PrivateDNSResolver.NEGATIVE_TTL_MSEC - 1);
+		assertTrue(resolver.lookup(Type.A, "missing.example", () -> answer(5000)).isNegative());
+		assertEquals(0, loads.get());
+		assertEquals(1L, resolver.getMetrics().get("cache_negative_hits"));
+	}
+
+	@Test
+	public void failureIsNotCached() throws Exception {
+		assertThrows(IllegalStateException.class, () -> resolver.lookup(Type.A, "example.com", () -> {
+			throw new IllegalStateException();
+		}));
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void clearDropsCachedAnswers() throws Exception {
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		resolver.clear();
+		resolver.lookup(Type.A, "example.com", () -> answer(5000));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void concurrentQueriesAreCoalesced() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+
+			Future<Answer> first = executor.submit(() -> resolver.lookup(Type.A, "slow.example", () -> {
+				loading.countDown();
+				release.await();
+				return answer(5000);
+			}));
+			assertTrue(loading.await(1, TimeUnit.SECONDS));
+			Future<Answer> second = executor.submit(() -> resolver.lookup(Type.A, "slow.example", () -> answer(5000)));
+			Future<Answer> third = executor.submit(() -> resolver.lookup(Type.A, "slow.example", () -> answer(5000)));
+			while (resolver.getMetrics().get("coalesced") < 2) {
+
+				Thread.sleep(1);
+			}
+			release.countDown();
+			assertSame(first.get(1, TimeUnit.SECONDS), second.get(1, TimeUnit.SECONDS));
+			assertSame(first.get(), third.get(1, TimeUnit.SECONDS));
+			assertEquals(1, loads.get());
+		} finally {
+
+			executor.shutdownNow();
+		}
+	}
+}
@@ -16,6 +16,7 @@
 package packetproxy.common;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import org.junit.jupiter.api.Test;
 
@@ -154,4 +155,17 @@ public class Protobuf3Test {
 		bytes2 = Protobuf3.encode(json);
 		assertArrayEquals(bytes, bytes2);
 	}
+
+	@Test
+	public void testDecodeNestedRepeatedAndBytes() throws Exception {
+		// 入れ子のメッセージは親の配列をそのまま読むので、親の中の位置に関わらず同じ結果になる
+		String data = "0a0708960112026162120301ac021a03ff00ff";
+		byte[] bytes = new Binary(new Binary.HexString(data)).toByteArray();
+		String expected = "{\n" + "  \"0001:0000:embedded message\" : {\n" + "    \"0001:0000:Varint\" : 150,\n"
+				+ "    \"0002:0001:String\" : \"ab\"\n" + "  },\n" + "  \"0002:0001:repeated\" : [ 1, 300 ],\n"
+				+ "  \"0003:0002:bytes\" : \"ff:00:ff\"\n" + "}";
+		String json = Protobuf3.decode(bytes);
+		assertEquals(expected, json.replace(System.lineSeparator(), "\n"));
+		assertArrayEquals(bytes, Protobuf3.encode(json));
+	}
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import org.junit.jupiter.api.Test;
+
+public class ReceiveBufferTest {
+
+	@Test
+	public void testWriteAndRead() {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		buffer.write("hello, world".getBytes());
+		assertEquals(12, buffer.size());
+		assertArrayEquals("hello".getBytes(), buffer.read(5));
+		assertEquals(7, buffer.size());
+		assertEquals(", world", new String(buffer.array(), buffer.readIndex(), buffer.size()));
+		assertArrayEquals(", world".getBytes(), buffer.toByteArray());
+	}
+
+	@Test
+	public void testGrowKeepsUnreadData() {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		buffer.write("0123456789".getBytes());
+		buffer.skip(4);
+		buffer.write("abcdefghijklmnopqrstuvwxyz".getBytes());
+		assertEquals("456789abcdefghijklmnopqrstuvwxyz", new String(buffer.toByteArray()));
+		assertEquals(0, buffer.readIndex());
+	}
+
+	@Test
+	public void testCompactInsteadOfGrow() {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		buffer.write("0123456789abcd".getBytes());
+		buffer.skip(12);
+		buffer.write("efghij".getBytes());
+		assertEquals(16, buffer.array().length);
+		assertEquals("cdefghij", new String(buffer.toByteArray()));
+	}
+
+	@Test
+	public void testReadAllResetsIndex() {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		buffer.write("abc".getBytes());
+		buffer.read(3);
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.readIndex());
+	}
+
+	@Test
+	public void testReadFrom() throws Exception {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		ByteArrayInputStream in = new ByteArrayInputStream("0123456789abcdefghij".getBytes());
+		assertEquals(20, buffer.readFrom(in, 32));
+		assertEquals(-1, buffer.readFrom(in, 32));
+		assertEquals("0123456789abcdefghij", new String(buffer.toByteArray()));
+	}
+
+	@Test
+	public void testReadOutOfRange() {
+		ReceiveBuffer buffer = new ReceiveBuffer(16);
+		buffer.write("abc".getBytes());
+		assertThrows(IndexOutOfBoundsException.class, () -> buffer.read(4));
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class UDPConnManagerTest {
+
+	private static final InetSocketAddress CLIENT_A = new InetSocketAddress("127.0.0.1", 50001);
+	private static final InetSocketAddress CLIENT_B = new InetSocketAddress("127.0.0.1", 50002);
+
+	private DatagramChannel channel;
+	private UDPConnManager manager;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		channel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		manager = new UDPConnManager(channel, 1000);
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		manager.close();
+		channel.close();
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] read(InputStream in) throws Exception {
+		byte[] buf = new byte[4096];
+		int len = in.read(buf);
+		return len < 0 ? null : Arrays.copyOf(buf, len);
+	}
+
+	@Test
+	public void datagramsAreDeliveredToTheirOwnFlow() throws Exception {
+		manager.received(CLIENT_A, ascii("a1"));
+		manager.received(CLIENT_B, ascii("b1"));
+		manager.received(CLIENT_A, ascii("a2"));
+
+		UDPConn a = manager.accept();
+		UDPConn b = manager.accept();
+		assertEquals(CLIENT_A, a.getAddress());
+		assertEquals(CLIENT_B, b.getAddress());
+		assertEquals(channel.socket().getLocalPort(), a.getLocalPort());
+
+		// read() 1回で1つのデータグラムを返す
+		assertArrayEquals(ascii("a1"), read(a.getInputStream()));
+		assertArrayEquals(ascii("a2"), read(a.getInputStream()));
+		assertArrayEquals(ascii("b1"), read(b.getInputStream()));
+		assertEquals(2L, manager.getMetrics().get("flows"));
+		assertEquals(3L, manager.getMetrics().get("datagrams_in"));
+	}
+
+	@Test
+	public void idleFlowIsEvictedAndClosed() throws Exception {
+		manager.received(CLIENT_A, ascii("a1"));
+		UDPConn a = manager.accept();
+		AtomicBoolean closed = new AtomicBoolean();
+		a.addCloseListener(() -> closed.set(true));
+
+		manager.evictIdle(a.getLastActive() + 999);
+		assertFalse(a.isClosed());
+		manager.evictIdle(a.getLastActive() + 1000);
+		assertTrue(a.isClosed());
+		assertTrue(closed.get());
+
+		// 閉じる前に届いていた分を返してから終わる
+		assertArrayEquals(ascii("a1"), read(a.getInputStream()));
+		assertNull(read(a.getInputStream()));
+		assertEquals(0L, manager.getMetrics().get("flows"));
+		assertEquals(1L, manager.getMetrics().get("evicted"));
+
+		// 同じ送信元から再び届いたら新しいフローになる
+		manager.received(CLIENT_A, ascii("a2"));
+		assertNotSame(a, manager.accept());
+	}
+
+	@Test
+	public void fullQueueDropsDatagrams() throws Exception {
+		for (int i = 0; i < UDPConn.QUEUE_LIMIT + 1; i++) {
+
+			manager.received(CLIENT_A, ascii("a" + i));
+		}
+		assertEquals(1L, manager.getMetrics().get("dropped_queue_full"));
+	}
+
+	@Test
+	public void acceptReturnsNullAfterClose() throws Exception {
+		manager.close();
+		assertNull(manager.accept());
+		assertNull(manager.accept());
+	}
+}
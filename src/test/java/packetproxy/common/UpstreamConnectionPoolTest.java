@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import org.junit.jupiter.api.Test;
+
+public class UpstreamConnectionPoolTest {
+
+	private static boolean reusable(String request, String response) {
+		return UpstreamConnectionPool.isReusable(request.getBytes(), response.getBytes());
+	}
+
+	@Test
+	public void http11IsKeptAliveByDefault() {
+		assertTrue(reusable("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"));
+	}
+
+	@Test
+	public void connectionCloseOnEitherSideIsNotReused() {
+		assertFalse(reusable("GET / HTTP/1.1\r\nHost: example.com\r\nConnection: close\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"));
+		assertFalse(reusable("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nconnection: Close\r\nContent-Length: 0\r\n\r\n"));
+	}
+
+	@Test
+	public void http10NeedsKeepAlive() {
+		assertFalse(reusable("GET / HTTP/1.0\r\n\r\n", "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+		assertTrue(reusable("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n",
+				"HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n"));
+	}
+
+	@Test
+	public void headerInBodyIsIgnored() {
+		assertTrue(reusable("POST / HTTP/1.1\r\nContent-Length: 20\r\n\r\n\nConnection: close\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"));
+	}
+
+	@Test
+	public void keyComparesKeyManagersByIdentity() {
+		Object[] keyManagers = new Object[0];
+		assertEquals(new UpstreamConnectionPool.Key("tls|a", keyManagers),
+				new UpstreamConnectionPool.Key("tls|a", keyManagers));
+		assertNotEquals(new UpstreamConnectionPool.Key("tls|a", keyManagers),
+				new UpstreamConnectionPool.Key("tls|a", new Object[0]));
+		assertNotEquals(new UpstreamConnectionPool.Key("tls|a", null),
+				new UpstreamConnectionPool.Key("tls|a", keyManagers));
+	}
+
+	@Test
+	public void releasedConnectionIsReusedOnlyForSameKey() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			UpstreamConnectionPool.Connector connector = () -> new SocketEndpoint(addr);
+			UpstreamConnectionPool pool = UpstreamConnectionPool.getInstance();
+			String endpoint = "tls|" + addr + "|example.com|";
+			UpstreamConnectionPool.Key client1 = new UpstreamConnectionPool.Key(endpoint, new Object[0]);
+			UpstreamConnectionPool.Key client2 = new UpstreamConnectionPool.Key(endpoint, new Object[0]);
+
+			Endpoint first = pool.acquire(client1, connector);
+			pool.release(first, true);
+			// 別のクライアント証明書では、保持しているコネクションを使わない
+			Endpoint other = pool.acquire(client2, connector);
+			assertNotSame(first, other);
+			pool.release(other, false);
+
+			assertSame(first, pool.acquire(client1, connector));
+			pool.release(first, false);
+			Endpoint reconnected = pool.acquire(client1, connector);
+			assertNotSame(first, reconnected);
+			pool.release(reconnected, false);
+		}
+	}
+
+	@Test
+	public void proxiedRequestsToSameAddressShareConnections() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+			InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			UpstreamConnectionPool pool = UpstreamConnectionPool.getInstance();
+
+			Endpoint first = pool.acquire(addr, null);
+			pool.release(first, true);
+			assertSame(first, pool.acquire(addr, null));
+			pool.release(first, false);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.encode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+public class EncodeHTTPBaseDelimiterTest {
+
+	/* 前後に別のメッセージの断片がある受信バッファ */
+	private static final byte[] REQUEST = "xxPOST / HTTP/1.1\r\nHost: example.com\r\nContent-Length: 2\r\n\r\nokyy"
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	/* 区切りを独自に判定するプラグインのエンコーダ */
+	public static class FixedLengthHTTP extends EncodeHTTP {
+
+		byte[] lastInput;
+
+		public FixedLengthHTTP() throws Exception {
+			super("http/1.1");
+		}
+
+		@Override
+		public int checkDelimiter(byte[] data) throws Exception {
+			lastInput = data;
+			return Math.min(data.length, 4);
+		}
+	}
+
+	public static class FixedLengthResponseHTTP extends EncodeHTTP {
+
+		public FixedLengthResponseHTTP() throws Exception {
+			super("http/1.1");
+		}
+
+		@Override
+		public int checkResponseDelimiter(byte[] data) throws Exception {
+			return 1;
+		}
+	}
+
+	@Test
+	public void builtinFramerFindsRequestInRange() throws Exception {
+		EncodeHTTP encoder = new EncodeHTTP("http/1.1");
+		assertEquals(REQUEST.length - 4, encoder.checkRequestDelimiter(REQUEST, 2, REQUEST.length - 2));
+		assertEquals(REQUEST.length - 4, encoder.checkResponseDelimiter(REQUEST, 2, REQUEST.length - 2));
+	}
+
+	@Test
+	public void overriddenCheckDelimiterIsUsedForRanges() throws Exception {
+		FixedLengthHTTP encoder = new FixedLengthHTTP();
+		assertEquals(4, encoder.checkRequestDelimiter(REQUEST, 2, REQUEST.length - 2));
+		assertArrayEquals(Arrays.copyOfRange(REQUEST, 2, REQUEST.length), encoder.lastInput);
+		assertEquals(4, encoder.checkResponseDelimiter(REQUEST, 2, REQUEST.length - 2));
+	}
+
+	@Test
+	public void overriddenCheckResponseDelimiterIsUsedForRanges() throws Exception {
+		FixedLengthResponseHTTP encoder = new FixedLengthResponseHTTP();
+		assertEquals(1, encoder.checkResponseDelimiter(REQUEST, 2, REQUEST.length - 2));
+		assertEquals(REQUEST.length - 4, encoder.checkRequestDelimiter(REQUEST, 2, REQUEST.length - 2));
+	}
+}
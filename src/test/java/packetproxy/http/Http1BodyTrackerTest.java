@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class Http1BodyTrackerTest {
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/* 1バイトずつ渡して、ボディが終わるまでに読んだ長さを返す */
+	private static int feedByteByByte(Http1BodyTracker tracker, byte[] data) {
+		int consumed = 0;
+		for (int i = 0; i < data.length && !tracker.isComplete(); i++) {
+
+			consumed += tracker.consume(data, i, 1);
+		}
+		return consumed;
+	}
+
+	@Test
+	public void testContentLength() throws Exception {
+		Http1BodyTracker tracker = new Http1BodyTracker(bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n"));
+		byte[] data = bytes("helloHTTP/1.1");
+		assertEquals(5, tracker.consume(data, 0, data.length));
+		assertTrue(tracker.isComplete());
+	}
+
+	@Test
+	public void testChunkedWithExtensionAndTrailer() throws Exception {
+		Http1BodyTracker tracker = new Http1BodyTracker(
+				bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"));
+		String body = "5;name=value\r\nhello\r\n10\r\n0123456789abcdef\r\n0\r\nX-Trailer: 1\r\n\r\n";
+		assertEquals(body.length(), feedByteByByte(tracker, bytes(body + "HTTP/1.1")));
+		assertTrue(tracker.isComplete());
+	}
+
+	@Test
+	public void testChunkedBodyContainingTerminator() throws Exception {
+		// chunkのデータ中に "0\r\n\r\n" があっても終わりとみなさない
+		Http1BodyTracker tracker = new Http1BodyTracker(
+				bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"));
+		byte[] data = bytes("5\r\n0\r\n\r\n\r\n");
+		assertEquals(data.length, tracker.consume(data, 0, data.length));
+		assertFalse(tracker.isComplete());
+
+		data = bytes("0\r\n\r\n");
+		assertEquals(data.length, tracker.consume(data, 0, data.length));
+		assertTrue(tracker.isComplete());
+	}
+
+	@Test
+	public void testNoBody() throws Exception {
+		assertTrue(new Http1BodyTracker(bytes("HTTP/1.1 304 Not Modified\r\nContent-Length: 10\r\n\r\n")).isComplete());
+		assertTrue(new Http1BodyTracker(bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n")).isComplete());
+	}
+
+	@Test
+	public void testUntilClose() throws Exception {
+		Http1BodyTracker tracker = new Http1BodyTracker(
+				bytes("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n\r\n"));
+		byte[] data = bytes("data: 1\n\n");
+		assertEquals(data.length, tracker.consume(data, 0, data.length));
+		assertFalse(tracker.isComplete());
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.jupiter.api.Test;
+
+public class Http1FramerTest {
+
+	/* 1バイトずつ受信した場合に区切りが見つかる位置を返す */
+	private static int feedByteByByte(Http1Framer framer, byte[] data) throws Exception {
+		for (int n = 1; n <= data.length; n++) {
+
+			int delimiter = framer.checkDelimiter(data, 0, n);
+			if (delimiter >= 0) {
+
+				return delimiter;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testContentLength() throws Exception {
+		String msg = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+		assertEquals(msg.length(), feedByteByByte(new Http1Framer(), bytes(msg + "HTTP/1.1")));
+	}
+
+	@Test
+	public void testChunkedWithExtensionAndTrailer() throws Exception {
+		String msg = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "5;name=value\r\nhello\r\n10\r\n0123456789abcdef\r\n0\r\nX-Trailer: 1\r\n\r\n";
+		assertEquals(msg.length(), feedByteByByte(new Http1Framer(), bytes(msg + "HTTP/1.1")));
+	}
+
+	@Test
+	public void testChunkedBodyContainingTerminator() throws Exception {
+		// chunkのデータ中に "0\r\n\r\n" があっても区切りとみなさない
+		String msg = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\n0\r\n\r\n\r\n0\r\n\r\n";
+		Http1Framer framer = new Http1Framer();
+		byte[] data = bytes(msg);
+		assertEquals(-1, framer.checkDelimiter(data, 0, msg.indexOf("\r\n0\r\n\r\n") + 7));
+		assertEquals(msg.length(), framer.checkDelimiter(data, 0, data.length));
+	}
+
+	@Test
+	public void testOffset() throws Exception {
+		String msg = "POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc";
+		byte[] data = bytes("xxxx" + msg);
+		assertEquals(msg.length(), new Http1Framer().checkDelimiter(data, 4, msg.length()));
+	}
+
+	@Test
+	public void testContinue() throws Exception {
+		String msg = "HTTP/1.1 100 Continue\r\n\r\n";
+		assertEquals(msg.length(), new Http1Framer().checkDelimiter(bytes(msg + "HTTP/1.1 200 OK\r\n\r\n"), 0,
+				msg.length() + 19));
+	}
+
+	@Test
+	public void testResetAfterDelimiter() throws Exception {
+		Http1Framer framer = new Http1Framer();
+		String first = "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789";
+		String second = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nab";
+		assertEquals(first.length(), feedByteByByte(framer, bytes(first)));
+		assertEquals(second.length(), feedByteByByte(framer, bytes(second)));
+	}
+
+	@Test
+	public void testZstdFrame() throws Exception {
+		byte[] header = bytes("HTTP/1.1 200 OK\r\nContent-Encoding: zstd\r\n\r\n");
+		// Single Segment, Frame_Content_Size = 5, 最後のRaw block
+		byte[] frame = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0x20, 0x05, 0x29, 0x00, 0x00, 'h', 'e', 'l', 'l', 'o'};
+		byte[] data = ArrayUtils.addAll(header, frame);
+		Http1Framer framer = new Http1Framer();
+		for (int n = header.length + 1; n < data.length; n++) {
+
+			assertEquals(-1, framer.checkDelimiter(data, 0, n));
+		}
+		assertEquals(data.length, framer.checkDelimiter(data, 0, data.length));
+	}
+
+	@Test
+	public void testGzipHeader() throws Exception {
+		byte[] header = bytes("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\n\r\n");
+		byte[] body = {0x1f, (byte) 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 0x01};
+		byte[] data = ArrayUtils.addAll(header, body);
+		Http1Framer framer = new Http1Framer();
+		assertEquals(-1, framer.checkDelimiter(data, 0, header.length + 5));
+		assertEquals(data.length, framer.checkDelimiter(data, 0, data.length));
+	}
+}
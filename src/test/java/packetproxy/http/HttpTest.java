@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.jupiter.api.Test;
+import packetproxy.model.Packet;
+
+public class HttpTest {
+
+	private static byte[] gzipResponse(String body) throws Exception {
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(zipped)) {
+
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		byte[] header = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Encoding: gzip\r\nContent-Length: "
+				+ zipped.size() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		return ArrayUtils.addAll(header, zipped.toByteArray());
+	}
+
+	@Test
+	public void testLazyBodyIsSameAsEager() throws Exception {
+		byte[] data = gzipResponse("hello");
+		Http lazy = Http.createLazily(data);
+		// ボディを展開する前からヘッダは展開後の状態になっている
+		assertEquals("", lazy.getFirstHeader("Content-Encoding"));
+		assertEquals("text/plain", lazy.getFirstHeader("Content-Type"));
+		assertEquals("200", lazy.getStatusCode());
+
+		assertArrayEquals(Http.create(data).toByteArray(), lazy.toByteArray());
+		assertEquals("hello", new String(lazy.getBody(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testLazyParseKeepsUndecodableBody() throws Exception {
+		byte[] data = "HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\n\r\nbroken".getBytes(StandardCharsets.ISO_8859_1);
+		assertThrows(Exception.class, () -> Http.create(data));
+
+		Http lazy = Http.createLazily(data);
+		assertEquals("200", lazy.getStatusCode());
+		// 展開できないボディは、Content-Encoding とともに受信したまま残す
+		assertArrayEquals("broken".getBytes(StandardCharsets.ISO_8859_1), lazy.getBody());
+		assertEquals("gzip", lazy.getFirstHeader("Content-Encoding"));
+	}
+
+	@Test
+	public void testBodyEncodingHeaderIsReportedOnlyWhenReparsingChangesTheBody() throws Exception {
+		Http http = Http.create(gzipResponse("hello"));
+		assertFalse(http.hasBodyEncodingHeader());
+
+		http.encodeBodyByGzip();
+		assertTrue(http.hasBodyEncodingHeader());
+		assertEquals("hello", new String(Http.create(http.toByteArray()).getBody(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testCorruptGzipBodyIsKeptEncoded() throws Exception {
+		byte[] data = gzipResponse("hello");
+		int bodyStart = new String(data, StandardCharsets.ISO_8859_1).indexOf("\r\n\r\n") + 4;
+		byte[] corrupt = Arrays.copyOf(data, data.length);
+		// gzip のマジックナンバーを壊す (途中で切れた gzip は展開できるところまで展開される)
+		corrupt[bodyStart] ^= (byte) 0xff;
+		assertThrows(Exception.class, () -> Http.create(corrupt));
+
+		Http lazy = Http.createLazily(corrupt);
+		assertArrayEquals(Arrays.copyOfRange(corrupt, bodyStart, corrupt.length), lazy.getBody());
+		String message = new String(lazy.toByteArray(), StandardCharsets.ISO_8859_1);
+		assertTrue(message.contains("Content-Encoding: gzip"));
+		assertTrue(message.contains("Content-Length: " + (corrupt.length - bodyStart)));
+	}
+
+	@Test
+	public void testPacketReusesParsedHttpUntilDataChanges() throws Exception {
+		Packet packet = new Packet(0, "127.0.0.1", 10000, "127.0.0.1", 443, "example.com", true, "HTTP", null,
+				Packet.Direction.SERVER, 1, 1);
+		byte[] data = gzipResponse("hello");
+		packet.setDecodedData(data);
+		Http http = packet.getHttp(packet.getDecodedData());
+		assertSame(http, packet.getHttp(packet.getDecodedData()));
+
+		packet.setDecodedData(gzipResponse("world"));
+		Http updated = packet.getHttp(packet.getDecodedData());
+		assertNotSame(http, updated);
+		assertEquals("world", new String(updated.getBody(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testPacketReparsesAfterInPlaceEditIsSetAgain() throws Exception {
+		Packet packet = new Packet(0, "127.0.0.1", 10000, "127.0.0.1", 443, "example.com", true, "HTTP", null,
+				Packet.Direction.SERVER, 1, 1);
+		byte[] data = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1);
+		packet.setDecodedData(data);
+		assertEquals("200", packet.getHttp(packet.getDecodedData()).getStatusCode());
+
+		data[9] = '4'; /* 同じ配列を書き換えて 400 にする */
+		packet.setDecodedData(data);
+		assertEquals("400", packet.getHttp(packet.getDecodedData()).getStatusCode());
+	}
+}
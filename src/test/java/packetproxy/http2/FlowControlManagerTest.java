@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.http2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import packetproxy.http2.frames.Frame;
+import packetproxy.http2.frames.RstStreamFrame;
+import packetproxy.http2.frames.SettingsFrame;
+import packetproxy.http2.frames.WindowUpdateFrame;
+
+public class FlowControlManagerTest {
+
+	private static final int END_STREAM = 0x1;
+	private static final int END_HEADERS = 0x4;
+
+	private static Frame headers(int streamId, int flags) {
+		return new Frame(Frame.Type.HEADERS, END_HEADERS | flags, streamId, new byte[]{(byte) 0x82});
+	}
+
+	private static Frame data(int streamId, int length, int flags) {
+		return new Frame(Frame.Type.DATA, flags, streamId, new byte[length]);
+	}
+
+	private static SettingsFrame settings(int id, int value) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(9 + 6);
+		bb.put(new byte[]{0, 0, 6, 0x4, 0});
+		bb.putInt(0);
+		bb.putShort((short) id);
+		bb.putInt(value);
+		return new SettingsFrame(bb.array());
+	}
+
+	private static WindowUpdateFrame windowUpdate(int streamId, int increment) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(9 + 4);
+		bb.put(new byte[]{0, 0, 4, 0x8, 0});
+		bb.putInt(streamId);
+		bb.putInt(increment);
+		return new WindowUpdateFrame(bb.array());
+	}
+
+	private static RstStreamFrame rstStream(int streamId) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(9 + 4);
+		bb.put(new byte[]{0, 0, 4, 0x3, 0});
+		bb.putInt(streamId);
+		bb.putInt(8);
+		return new RstStreamFrame(bb.array());
+	}
+
+	/* これまでに送り出されたフレームを読む */
+	private static List<Frame> sent(FlowControlManager manager) throws Exception {
+		InputStream in = manager.getInputStream();
+		byte[] bytes = new byte[in.available()];
+		in.read(bytes);
+		List<Frame> frames = new ArrayList<>();
+		ByteBuffer bb = ByteBuffer.wrap(bytes);
+		while (bb.hasRemaining()) {
+
+			int length = ((bb.get(bb.position()) & 0xff) << 16) | ((bb.get(bb.position() + 1) & 0xff) << 8)
+					| (bb.get(bb.position() + 2) & 0xff);
+			byte[] frame = new byte[9 + length];
+			bb.get(frame);
+			frames.add(new Frame(frame));
+		}
+		return frames;
+	}
+
+	@Test
+	public void streamsShareConnectionWindowRoundRobin() throws Exception {
+		FlowControlManager manager = new FlowControlManager();
+		manager.applySettings(settings(0x4, 16384));
+		manager.write(headers(1, 0));
+		manager.write(headers(3, 0));
+		manager.write(data(1, 200000, END_STREAM));
+		manager.write(data(3, 200000, END_STREAM));
+		sent(manager);
+		// ストリーム1がコネクションのウィンドウを使い切る
+		manager.appendWindowSize(windowUpdate(1, 65536));
+		manager.appendWindowSize(windowUpdate(3, 65536));
+		sent(manager);
+
+		manager.appendWindowSize(windowUpdate(0, 40000));
+		List<Integer> order = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		for (Frame frame : sent(manager)) {
+
+			order.add(frame.getStreamId());
+			lengths.add(frame.getLength());
+		}
+		assertEquals(List.of(1, 3, 1), order);
+		assertEquals(List.of(16384, 16384, 40000 - 16384 * 2), lengths);
+	}
+
+	@Test
+	public void dataFramesFollowPeerMaxFrameSize() throws Exception {
+		FlowControlManager manager = new FlowControlManager();
+		manager.applySettings(settings(0x5, 32768));
+		manager.applySettings(settings(0x4, 1 << 20));
+		manager.appendWindowSize(windowUpdate(0, 1 << 20));
+		manager.write(headers(1, 0));
+		manager.write(data(1, 40000, END_STREAM));
+
+		List<Frame> frames = sent(manager);
+		assertEquals(3, frames.size());
+		assertEquals(32768, frames.get(1).getLength());
+		assertEquals(40000 - 32768, frames.get(2).getLength());
+		assertEquals(END_STREAM, frames.get(2).getFlags());
+	}
+
+	@Test
+	public void newStreamsWaitForMaxConcurrentStreams() throws Exception {
+		FlowControlManager manager = new FlowControlManager();
+		manager.applySettings(settings(0x3, 1));
+		manager.write(headers(1, END_STREAM));
+		manager.write(headers(3, END_STREAM));
+		assertEquals(1, sent(manager).size());
+		assertEquals(1L, manager.getMetrics().get("pending_streams"));
+
+		// 相手がストリーム1を閉じたら、ストリーム3を開く
+		manager.received(headers(1, END_STREAM), 1);
+		List<Frame> frames = sent(manager);
+		assertEquals(1, frames.size());
+		assertEquals(3, frames.get(0).getStreamId());
+	}
+
+	@Test
+	public void closedStreamsAreForgotten() throws Exception {
+		FlowControlManager manager = new FlowControlManager();
+		manager.applySettings(settings(0x4, 1000));
+		// 相手から開かれたストリームに応答する
+		manager.received(headers(1, END_STREAM), 1);
+		manager.write(headers(1, 0));
+		manager.write(data(1, 10, END_STREAM));
+		// 送りきる前にリセットされる
+		manager.received(headers(3, 0), 3);
+		manager.write(headers(3, 0));
+		manager.write(data(3, 100000, 0));
+		manager.received(rstStream(3), 3);
+
+		assertEquals(0L, manager.getMetrics().get("streams"));
+		assertEquals(2L, manager.getMetrics().get("streams_closed"));
+	}
+}
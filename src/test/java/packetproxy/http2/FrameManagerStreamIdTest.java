@@ -19,10 +19,12 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.jupiter.api.Test;
 import packetproxy.http2.frames.Frame;
 import packetproxy.http2.frames.FrameUtils;
+import packetproxy.model.Packet;
 
 public class FrameManagerStreamIdTest {
 
@@ -37,6 +39,16 @@ public class FrameManagerStreamIdTest {
 		return bb.array();
 	}
 
+	private byte[] rstStreamFrame(int streamId) {
+		ByteBuffer bb = ByteBuffer.allocate(9 + 4);
+		bb.put((byte) 0).put((byte) 0).put((byte) 4);
+		bb.put((byte) Frame.Type.RST_STREAM.ordinal());
+		bb.put((byte) 0);
+		bb.putInt(streamId);
+		bb.putInt(8); // CANCEL
+		return bb.array();
+	}
+
 	private byte[] readAvailable(InputStream in) throws Exception {
 		int n = in.available();
 		byte[] buf = new byte[n];
@@ -86,4 +98,58 @@ public class FrameManagerStreamIdTest {
 		assertEquals(25, frames.get(0).getStreamId());
 		assertEquals(23, frames.get(1).getStreamId());
 	}
+
+	/* A reset stream is reported with the client's stream ID, whichever side reset it. */
+	@Test
+	public void resetStreamsAreReportedWithClientStreamIds() throws Exception {
+		List<Integer> resets = new ArrayList<>();
+		FramesBase frames = new FramesBase() {
+
+			@Override
+			protected void streamReset(int streamId) {
+				resets.add(streamId);
+			}
+
+			@Override
+			protected byte[] passFramesToDecodeClientRequest(List<Frame> frames) {
+				return null;
+			}
+
+			@Override
+			protected byte[] passFramesToDecodeServerResponse(List<Frame> frames) {
+				return null;
+			}
+
+			@Override
+			protected byte[] decodeClientRequestFromFrames(byte[] frames) {
+				return null;
+			}
+
+			@Override
+			protected byte[] decodeServerResponseFromFrames(byte[] frames) {
+				return null;
+			}
+
+			@Override
+			protected byte[] encodeClientRequestToFrames(byte[] data) {
+				return null;
+			}
+
+			@Override
+			protected byte[] encodeServerResponseToFrames(byte[] data) {
+				return null;
+			}
+
+			@Override
+			public void setGroupId(Packet packet) {
+			}
+		};
+		// Client stream 25 is sent to the server as stream 1.
+		frames.putToServerFlowControlledQueue(headersFrame(25));
+
+		frames.serverResponseArrived(rstStreamFrame(1));
+		frames.clientRequestArrived(rstStreamFrame(27));
+
+		assertEquals(List.of(25, 27), resets);
+	}
 }
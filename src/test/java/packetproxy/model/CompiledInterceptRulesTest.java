@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import packetproxy.model.InterceptOption.Direction;
+import packetproxy.model.InterceptOption.Method;
+import packetproxy.model.InterceptOption.Relationship;
+import packetproxy.model.InterceptOption.Type;
+
+public class CompiledInterceptRulesTest {
+
+	private static InterceptOption rule(Direction direction, Relationship relationship, String pattern,
+			Method method) {
+		return new InterceptOption(direction, Type.REQUEST, relationship, pattern, method, null);
+	}
+
+	private static InterceptOption otherRequests(Relationship relationship) {
+		return rule(Direction.ALL_THE_OTHER_REQUESTS, relationship, "", Method.UNDEFINED);
+	}
+
+	private static InterceptOption otherResponses(Relationship relationship) {
+		return rule(Direction.ALL_THE_OTHER_RESPONSES, relationship, "", Method.UNDEFINED);
+	}
+
+	private static Packet packet(Packet.Direction direction, String body) {
+		Packet packet = new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				direction, 0, 0);
+		packet.setDecodedData(body.getBytes(StandardCharsets.UTF_8));
+		return packet;
+	}
+
+	@Test
+	public void firstMatchingRequestRuleDecides() throws Exception {
+		CompiledInterceptRules rules = new CompiledInterceptRules(List.of(
+				rule(Direction.REQUEST, Relationship.IS_NOT_INTERCEPTED_IF_IT_MATCHES, "\\.png ", Method.REGEX),
+				rule(Direction.REQUEST, Relationship.IS_INTERCEPTED_IF_IT_MATCHES, "/api/", Method.SIMPLE),
+				otherRequests(Relationship.ARE_NOT_INTERCEPTED)));
+		assertTrue(rules.interceptOnRequest(packet(Packet.Direction.CLIENT, "GET /api/users HTTP/1.1")));
+		assertFalse(rules.interceptOnRequest(packet(Packet.Direction.CLIENT, "GET /api/icon.png HTTP/1.1")));
+		assertFalse(rules.interceptOnRequest(packet(Packet.Direction.CLIENT, "GET /index.html HTTP/1.1")));
+	}
+
+	@Test
+	public void binaryRuleMatchesDecodedBytes() throws Exception {
+		CompiledInterceptRules rules = new CompiledInterceptRules(
+				List.of(rule(Direction.RESPONSE, Relationship.IS_INTERCEPTED_IF_IT_MATCHES, "4f4b", Method.BINARY),
+						otherResponses(Relationship.ARE_NOT_INTERCEPTED)));
+		Packet client = packet(Packet.Direction.CLIENT, "GET / HTTP/1.1");
+		assertTrue(rules.interceptOnResponse(client, packet(Packet.Direction.SERVER, "HTTP/1.1 200 OK")));
+		assertFalse(rules.interceptOnResponse(client, packet(Packet.Direction.SERVER, "HTTP/1.1 404 Not Found")));
+	}
+
+	@Test
+	public void responseFollowsMemoizedRequestVerdict() throws Exception {
+		CompiledInterceptRules rules = new CompiledInterceptRules(List.of(
+				rule(Direction.REQUEST, Relationship.IS_INTERCEPTED_IF_IT_MATCHES, "/api/", Method.SIMPLE),
+				otherRequests(Relationship.ARE_NOT_INTERCEPTED),
+				rule(Direction.RESPONSE, Relationship.IS_INTERCEPTED_IF_REQUEST_WAS_INTERCEPTED, "", Method.UNDEFINED),
+				otherResponses(Relationship.ARE_NOT_INTERCEPTED)));
+		Packet client = packet(Packet.Direction.CLIENT, "GET /api/users HTTP/1.1");
+		Packet server = packet(Packet.Direction.SERVER, "HTTP/1.1 200 OK");
+		assertTrue(rules.interceptOnRequest(client));
+		assertEquals(Boolean.TRUE, client.getInterceptedOnRequest(rules));
+		assertTrue(rules.interceptOnResponse(client, server));
+
+		// データが変わったら判定し直す
+		client.setDecodedData("GET /index.html HTTP/1.1".getBytes(StandardCharsets.UTF_8));
+		assertNull(client.getInterceptedOnRequest(rules));
+		assertFalse(rules.interceptOnResponse(client, server));
+		assertEquals(Boolean.FALSE, client.getInterceptedOnRequest(rules));
+	}
+
+	@Test
+	public void unmatchedOtherResponsesRuleFallsThrough() throws Exception {
+		// ALL_THE_OTHER_RESPONSES は ARE_INTERCEPTED / ARE_NOT_INTERCEPTED 以外なら次のルールに進む
+		CompiledInterceptRules rules = new CompiledInterceptRules(
+				List.of(otherRequests(Relationship.ARE_NOT_INTERCEPTED),
+						otherResponses(Relationship.IS_INTERCEPTED_IF_IT_MATCHES),
+						otherResponses(Relationship.ARE_NOT_INTERCEPTED)));
+		Packet client = packet(Packet.Direction.CLIENT, "GET / HTTP/1.1");
+		assertFalse(rules.interceptOnRequest(client));
+		assertFalse(rules.interceptOnResponse(client, packet(Packet.Direction.SERVER, "HTTP/1.1 200 OK")));
+	}
+}
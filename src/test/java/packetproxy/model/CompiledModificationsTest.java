@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import packetproxy.model.Modification.Direction;
+import packetproxy.model.Modification.Method;
+
+public class CompiledModificationsTest {
+
+	private static Modification simple(String pattern, String replaced) {
+		return new Modification(Direction.ALL, pattern, replaced, Method.SIMPLE, null);
+	}
+
+	private static Packet newPacket() {
+		return new Packet(0, "127.0.0.1", 50000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				Packet.Direction.CLIENT, 0, 0);
+	}
+
+	/* 上から1つずつ適用した場合と同じ結果になることを確かめる */
+	private static byte[] assertSameAsSequential(List<Modification> mods, String input) throws Exception {
+		byte[] data = input.getBytes(StandardCharsets.UTF_8);
+		Packet sequential_packet = newPacket();
+		byte[] expected = data;
+		for (Modification mod : mods) {
+
+			expected = mod.replace(expected, sequential_packet);
+		}
+		Packet compiled_packet = newPacket();
+		byte[] actual = new CompiledModifications(mods).replace(data, compiled_packet);
+		assertArrayEquals(expected, actual);
+		assertEquals(sequential_packet.getModified(), compiled_packet.getModified());
+		return actual;
+	}
+
+	@Test
+	public void independentRulesShareOnePass() throws Exception {
+		List<Modification> mods = Arrays.asList(simple("Host: a.example", "Host: b.example"),
+				new Modification(Direction.ALL, "414243", "78797a", Method.BINARY, null), simple("token=1", "token=2"));
+		assertEquals(1, new CompiledModifications(mods).getStageCount());
+		byte[] result = assertSameAsSequential(mods, "GET /?token=1 HTTP/1.1\r\nHost: a.example\r\nX: ABCABC\r\n\r\n");
+		assertEquals("GET /?token=2 HTTP/1.1\r\nHost: b.example\r\nX: xyzxyz\r\n\r\n",
+				new String(result, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void chainedRulesAreAppliedInOrder() throws Exception {
+		// 2つ目のルールは1つ目の置換結果にマッチする
+		List<Modification> mods = Arrays.asList(simple("foo", "bar"), simple("bar", "baz"));
+		assertEquals(2, new CompiledModifications(mods).getStageCount());
+		assertEquals("baz baz", new String(assertSameAsSequential(mods, "foo bar"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void overlappingPatternsKeepSequentialSemantics() throws Exception {
+		assertSameAsSequential(Arrays.asList(simple("abc", "X"), simple("bcd", "Y")), "abcd bcd abc");
+		assertSameAsSequential(Arrays.asList(simple("bc", "X"), simple("abcd", "Y")), "abcd bc");
+		assertSameAsSequential(Arrays.asList(simple("aa", "b"), simple("c", "d")), "aaaaa c aaa");
+		// 削除すると前後がつながって後のルールにマッチする
+		assertSameAsSequential(Arrays.asList(simple("-", ""), simple("ab", "Z")), "a-b ab");
+		// 置換後の文字列と後のパターンが境界をまたいでつながる
+		assertSameAsSequential(Arrays.asList(simple("x", "yz"), simple("zw", "Q")), "xw zw");
+	}
+
+	@Test
+	public void regexSplitsGroups() throws Exception {
+		List<Modification> mods = Arrays.asList(simple("a", "b"),
+				new Modification(Direction.ALL, "b+", "c", Method.REGEX, null), simple("x", "y"));
+		assertEquals(3, new CompiledModifications(mods).getStageCount());
+		assertEquals("c y", new String(assertSameAsSequential(mods, "ab x"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void unmatchedDataIsReturnedAsIs() throws Exception {
+		List<Modification> mods = Arrays.asList(simple("foo", "bar"), simple("qux", "quux"), simple("", "never"));
+		byte[] data = "nothing to replace".getBytes(StandardCharsets.UTF_8);
+		Packet packet = newPacket();
+		assertSame(data, new CompiledModifications(mods).replace(data, packet));
+		assertFalse(packet.getModified());
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class PacketIndexTest {
+
+	@Test
+	public void trigramsIgnoreAsciiCaseAndDuplicates() {
+		int[] lower = PacketIndex.trigrams("abcabc".getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+		int[] upper = PacketIndex.trigrams("ABCaBc".getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+		// abc, bca, cab
+		assertEquals(3, lower.length);
+		assertArrayEquals(lower, upper);
+		assertEquals(0, PacketIndex.trigrams("ab".getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE).length);
+	}
+
+	@Test
+	public void tokensAreDistinctAlphanumerics() {
+		assertEquals("00000", PacketIndex.toToken(0));
+		assertEquals("fvvvv", PacketIndex.toToken(0xffffff));
+		assertNotEquals(PacketIndex.toToken(0x616263), PacketIndex.toToken(0x616264));
+		assertTrue(PacketIndex.toToken(0x616263).matches("[0-9a-v]{5}"));
+	}
+
+	@Test
+	public void literalsSkipLikeWildcards() {
+		assertEquals(Arrays.asList("user", "id", "=1"), PacketIndex.literals("user_id%=1", false));
+		// LIKE では GLOB のワイルドカードは普通の文字
+		assertEquals(List.of("a*b?c"), PacketIndex.literals("a*b?c", false));
+	}
+
+	@Test
+	public void literalsSkipGlobWildcardsAndClasses() {
+		assertEquals(Arrays.asList("token", "abc", "", "xyz"), PacketIndex.literals("token*abc?[0-9]xyz", true));
+		assertEquals(Arrays.asList("ab", "cd"), PacketIndex.literals("ab[]x]cd", true));
+	}
+
+	@Test
+	public void documentContainsEveryTrigramOfSubstring() {
+		byte[] body = "{\"session\":\"Q3JhenlVVUlE\",\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+		List<String> document = Arrays.asList(PacketIndex.toDocument(body).trim().split(" "));
+		for (int trigram : PacketIndex.trigrams("jhenlvvu".getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE)) {
+
+			assertTrue(document.contains(PacketIndex.toToken(trigram)));
+		}
+		assertFalse(document.contains("truncated"));
+	}
+}
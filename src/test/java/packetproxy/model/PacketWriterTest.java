@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import packetproxy.model.Packets.OverflowPolicy;
+
+public class PacketWriterTest {
+
+	/* 書き込まれたパケットを記録し、未保存のパケットには連番のidを振る */
+	private static class RecordingHandler implements PacketWriter.BatchHandler {
+
+		final List<List<Packet>> batches = new ArrayList<>();
+		int lastId = 0;
+
+		@Override
+		public void write(List<Packet> batch) throws Exception {
+			for (Packet packet : batch) {
+
+				if (packet.getId() == 0) {
+
+					packet.setId(++lastId);
+				}
+			}
+			batches.add(new ArrayList<>(batch));
+		}
+	}
+
+	private static Packet createPacket(int bodySize) {
+		Packet packet = new Packet(0, "127.0.0.1", 10000, "127.0.0.1", 443, "example.com", true, "HTTP", "",
+				Packet.Direction.CLIENT, 1, 1);
+		packet.setReceivedData(new byte[bodySize]);
+		return packet;
+	}
+
+	@Test
+	public void testCoalesceSamePacket() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		PacketWriter writer = new PacketWriter(handler);
+		Packet packet = createPacket(10);
+		writer.enqueue(packet);
+		writer.enqueue(packet);
+		writer.enqueue(packet);
+		writer.flush();
+
+		assertEquals(1, handler.batches.size());
+		assertEquals(1, handler.batches.get(0).size());
+		assertEquals(1, packet.getId());
+		assertEquals(2, (long) writer.getMetrics().get("coalesced"));
+	}
+
+	@Test
+	public void testDropBody() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		PacketWriter writer = new PacketWriter(handler);
+		writer.setOverflowPolicy(OverflowPolicy.DROP_BODY, 1024, 100);
+		Packet first = createPacket(1000);
+		Packet second = createPacket(1000);
+		writer.enqueue(first);
+		writer.enqueue(second);
+		writer.flush();
+
+		List<Packet> batch = handler.batches.get(0);
+		assertSame(first, batch.get(0));
+		assertNotSame(second, batch.get(1));
+		assertEquals(0, batch.get(1).getReceivedData().length);
+		assertEquals("example.com", batch.get(1).getServerName());
+		// 複製を保存した場合も元のパケットにidが反映される
+		assertEquals(2, second.getId());
+		assertEquals(1000, second.getReceivedData().length);
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		PacketWriter writer = new PacketWriter(handler);
+		writer.setOverflowPolicy(OverflowPolicy.SPILL, 1024, 100);
+		Packet first = createPacket(1000);
+		Packet second = createPacket(1000);
+		second.setColor("green");
+		writer.enqueue(first);
+		writer.enqueue(second);
+		assertTrue(writer.getMetrics().get("spill_file_bytes") > 1000);
+		writer.flush();
+
+		Packet restored = handler.batches.get(0).get(1);
+		assertNotSame(second, restored);
+		assertEquals(1000, restored.getReceivedData().length);
+		assertEquals("green", restored.getColor());
+		assertEquals(second.getDate(), restored.getDate());
+		assertEquals(2, second.getId());
+		assertEquals(0, (long) writer.getMetrics().get("spill_file_bytes"));
+	}
+
+	@Test
+	public void testBlockUntilFlushed() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		PacketWriter writer = new PacketWriter(handler);
+		writer.setOverflowPolicy(OverflowPolicy.BLOCK, 1024, 100);
+		writer.enqueue(createPacket(1000));
+
+		Thread producer = new Thread(() -> {
+			try {
+
+				writer.enqueue(createPacket(1000));
+			} catch (Exception e) {
+
+				fail(e);
+			}
+		});
+		producer.start();
+		producer.join(300);
+		assertTrue(producer.isAlive());
+
+		writer.flush();
+		producer.join(10000);
+		assertFalse(producer.isAlive());
+		assertEquals(1, (long) writer.getMetrics().get("blocked"));
+		assertEquals(1, (long) writer.getMetrics().get("pending_rows"));
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+public class ServerRoutingIndexTest {
+
+	@Test
+	public void firstServerWinsForSameAddress() throws Exception {
+		Server first = new Server("192.0.2.1", 443, "HTTP");
+		Server second = new Server("192.0.2.1", 443, "Sample");
+		ServerRoutingIndex index = new ServerRoutingIndex(() -> List.of(first, second));
+		assertSame(first, index.lookup(new InetSocketAddress("192.0.2.1", 443)));
+		assertNull(index.lookup(new InetSocketAddress("192.0.2.1", 80)));
+
+		Map<String, Long> metrics = index.getMetrics();
+		assertEquals(1L, metrics.get("entries"));
+		assertEquals(1L, metrics.get("hits"));
+		assertEquals(1L, metrics.get("misses"));
+		assertEquals(1L, metrics.get("rebuilds"));
+	}
+
+	@Test
+	public void lookupRightAfterInvalidateSeesTheChange() throws Exception {
+		List<Server> servers = new CopyOnWriteArrayList<>();
+		Server first = new Server("192.0.2.1", 443, "HTTP");
+		servers.add(first);
+		ServerRoutingIndex index = new ServerRoutingIndex(() -> servers);
+		InetSocketAddress added = new InetSocketAddress("192.0.2.2", 8443);
+		assertNull(index.lookup(added));
+
+		Server server = new Server("192.0.2.2", 8443, "HTTP");
+		servers.add(server);
+		index.invalidate();
+		assertSame(server, index.lookup(added));
+
+		servers.remove(first);
+		index.invalidate();
+		assertNull(index.lookup(new InetSocketAddress("192.0.2.1", 443)));
+	}
+
+	@Test
+	public void serverThatFailedToResolveIsResolvedOnMiss() throws Exception {
+		AtomicBoolean resolvable = new AtomicBoolean(false);
+		Server server = new Server("192.0.2.3", 443, "HTTP") {
+
+			@Override
+			public List<InetAddress> getIps() {
+				return resolvable.get() ? super.getIps() : List.of();
+			}
+		};
+		ServerRoutingIndex index = new ServerRoutingIndex(() -> List.of(server));
+		InetSocketAddress addr = new InetSocketAddress("192.0.2.3", 443);
+		assertNull(index.lookup(addr));
+
+		// 次に表を作り直すのを待たずに引ける
+		resolvable.set(true);
+		assertSame(server, index.lookup(addr));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package packetproxy.quic.service.connection.helper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.jupiter.api.Test;
+import packetproxy.quic.value.QuicMessage;
+import packetproxy.quic.value.StreamId;
+
+class QuicMessageReaderTest {
+
+	/* 1回の read() で1バイトずつしか返さない */
+	private static InputStream oneByteAtATime(byte[] bytes) {
+		return new ByteArrayInputStream(bytes) {
+
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+	@Test
+	void 分割して届いたメッセージを順に読めること() throws Exception {
+		QuicMessage msg1 = QuicMessage.of(StreamId.of(0), "hello".getBytes());
+		QuicMessage msg2 = QuicMessage.of(StreamId.of(4), new byte[0]);
+		QuicMessage msg3 = QuicMessage.of(StreamId.of(8), new byte[5000]);
+		byte[] bytes = ArrayUtils.addAll(ArrayUtils.addAll(msg1.getBytes(), msg2.getBytes()), msg3.getBytes());
+
+		QuicMessageReader reader = new QuicMessageReader(oneByteAtATime(bytes));
+		assertThat(reader.read()).isEqualTo(msg1);
+		assertThat(reader.read()).isEqualTo(msg2);
+		assertThat(reader.read()).isEqualTo(msg3);
+		assertThat(reader.read()).isNull();
+	}
+
+	@Test
+	void メッセージの途中で閉じられたら例外になること() throws Exception {
+		byte[] bytes = QuicMessage.of(StreamId.of(0), "hello".getBytes()).getBytes();
+
+		QuicMessageReader reader = new QuicMessageReader(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+		assertThatThrownBy(reader::read).isInstanceOf(EOFException.class);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 DeNA Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package packetproxy.quic.value.key;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+
+class KeyTest {
+
+	// https://www.rfc-editor.org/rfc/rfc9001.html#name-chacha20-poly1305-short-hea
+	private static final String CHACHA20_SECRET = "9ac312a7f877468ebe69422748ad00a15443f18203a07d6060f688f30f21632b";
+	private static final byte[] CHACHA20_PACKET_NUMBER = new byte[]{0x27, 0x00, (byte) 0xbf, (byte) 0xf4};
+	private static final String CHACHA20_HEADER = "4200bff4";
+	private static final String CHACHA20_PROTECTED_PAYLOAD = "655e5cd55c41f69080575d7999c25a5bfb";
+
+	@Test
+	void chacha20の鍵をRFC9001のサンプルどおりに導出できること() throws Exception {
+		Key key = Key.of(Hex.decodeHex(CHACHA20_SECRET), CipherSuite.CHACHA20_POLY1305_SHA256);
+		assertThat(Hex.encodeHexString(key.getKey()))
+				.isEqualTo("c6d98ff3441c3fe1b2182094f69caa2ed4b716b65488960a7a984979fb23e1c8");
+		assertThat(Hex.encodeHexString(key.getIv())).isEqualTo("e0459b3474bdd0e44a41c144");
+		assertThat(Hex.encodeHexString(key.getHp()))
+				.isEqualTo("25a282b9e82f06f21f488917a4fc8f1b73573685608597d0efcb076b0ab7a7a4");
+	}
+
+	@Test
+	void chacha20でRFC9001のサンプルどおりに保護できること() throws Exception {
+		Key key = Key.of(Hex.decodeHex(CHACHA20_SECRET), CipherSuite.CHACHA20_POLY1305_SHA256);
+		byte[] header = Hex.decodeHex(CHACHA20_HEADER);
+		byte[] encrypted = key.encryptPayload(CHACHA20_PACKET_NUMBER, new byte[]{0x01}, header);
+		assertThat(Hex.encodeHexString(encrypted)).isEqualTo(CHACHA20_PROTECTED_PAYLOAD);
+
+		byte[] packet = Hex.decodeHex(CHACHA20_HEADER + CHACHA20_PROTECTED_PAYLOAD);
+		byte[] mask = key.getMaskForHeaderProtection(ByteBuffer.wrap(packet), 1 + 4);
+		assertThat(Hex.encodeHexString(mask)).isEqualTo("aefefe7d03");
+	}
+
+	@Test
+	void 同じ領域で暗号化と復号ができること() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+
+			Key key = Key.of(Hex.decodeHex(CHACHA20_SECRET), suite);
+			byte[] payload = new byte[1200];
+			for (int i = 0; i < payload.length; i++) {
+
+				payload[i] = (byte) i;
+			}
+			ByteBuffer header = ByteBuffer.wrap(Hex.decodeHex(CHACHA20_HEADER));
+			ByteBuffer packet = ByteBuffer.allocate(payload.length + CipherSuite.AUTH_TAG_LENGTH);
+			packet.put(payload).flip();
+			int length = key.encryptPayload(CHACHA20_PACKET_NUMBER, header, packet.duplicate(),
+					packet.duplicate().clear());
+			assertThat(length).isEqualTo(payload.length + CipherSuite.AUTH_TAG_LENGTH);
+
+			header.rewind();
+			byte[] decrypted = key.decryptPayload(CHACHA20_PACKET_NUMBER, header, ByteBuffer.wrap(packet.array()));
+			assertThat(decrypted).isEqualTo(payload);
+		}
+	}
+
+	@Test
+	void 同じパケット番号で作り直しても同じ結果になること() throws Exception {
+		Key key = Key.of(Hex.decodeHex(CHACHA20_SECRET));
+		byte[] header = Hex.decodeHex(CHACHA20_HEADER);
+		byte[] first = key.encryptPayload(CHACHA20_PACKET_NUMBER, new byte[]{0x01}, header);
+		byte[] second = key.encryptPayload(CHACHA20_PACKET_NUMBER, new byte[]{0x01}, header);
+		assertThat(second).isEqualTo(first);
+	}
+}
@@ -19,6 +19,8 @@ import java.io.File
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertNotNull
 import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 
 class GrpcServiceRegistryTest {
@@ -68,4 +70,37 @@ class GrpcServiceRegistryTest {
     val reg = GrpcServiceRegistryStore.getInstance().get(resource("proto/testsvc.desc"))
     assertNull(reg.findMessageByName("pp.testsvc.HelloRequest.Unknown"))
   }
+
+  @Test
+  fun codecs_areSharedPerMessageType() {
+    val store = GrpcServiceRegistryStore.getInstance()
+    store.invalidate(resource("proto/testsvc.desc"))
+    val reg = store.get(resource("proto/testsvc.desc"))
+    val serverStream = reg.getOutputCodec("/pp.testsvc.Greeter/SayHelloServerStream")
+    val bidiStream = reg.getOutputCodec("/pp.testsvc.Greeter/SayHelloBidiStream")
+    assertNotNull(serverStream)
+    assertSame(serverStream, bidiStream)
+    assertSame(serverStream, reg.getInputCodec("/pp.testsvc.Greeter/SayHelloBidiStream"))
+    assertNull(reg.getInputCodec("/unknown.Service/Method"))
+    val metrics = reg.getCodecMetrics()
+    assertEquals(1L, metrics["codecs"])
+    assertEquals(2L, metrics["codec_hits"])
+    assertEquals(1L, metrics["codec_misses"])
+  }
+
+  @Test
+  fun codecs_decodeEachFramedMessageInPlace() {
+    val reg = GrpcServiceRegistryStore.getInstance().get(resource("proto/testsvc.desc"))
+    val codec = reg.getInputCodec("/pp.testsvc.Greeter/SayHello")!!
+    val resolver = GrpcSchemaResolver()
+    val raw =
+      resolver.encodeSchemaAwareBody(
+        "{\"name\": \"alice\"}\n{\"name\": \"bob\", \"age\": 3}".toByteArray(),
+        codec,
+      )
+    val lines = String(resolver.decodeSchemaAwareBody(raw, codec)).split("\n{")
+    assertEquals(2, lines.size)
+    assertTrue(lines[0].contains("\"alice\""))
+    assertTrue(lines[1].contains("\"bob\"") && lines[1].contains("\"age\": 3"))
+  }
 }